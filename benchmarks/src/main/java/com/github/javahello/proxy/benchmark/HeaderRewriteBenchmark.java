@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.benchmark;
+
+import com.github.javahello.proxy.core.ForwardHeaders;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 转发前改写请求头: 原地改写和以前复制一份请求的做法对比.
+ * <p>
+ * 两个方法都包含构造下游请求的开销, 用 -prof gc 看两者分配的差值
+ *
+ * @author kailuo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderRewriteBenchmark {
+    private static final AsciiString HOST = new AsciiString("localhost:9000");
+    private static final AsciiString CLIENT = new AsciiString("10.0.0.1");
+
+    private static HttpRequest request() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/api/users?id=1");
+        HttpHeaders headers = request.headers();
+        headers.add("Host", "example.com");
+        headers.add("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/91.0");
+        headers.add("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.add("Accept-Language", "zh-CN,zh;q=0.8,en-US;q=0.5,en;q=0.3");
+        headers.add("Accept-Encoding", "gzip, deflate, br");
+        headers.add("Cookie", "sid=4f1c2a; lang=zh");
+        headers.add("Connection", "keep-alive");
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest baseline() {
+        return request();
+    }
+
+    @Benchmark
+    public HttpRequest rewriteInPlace() {
+        HttpRequest request = request();
+        ForwardHeaders.rewrite(request.headers(), HOST, CLIENT, ForwardHeaders.HTTP);
+        return request;
+    }
+
+    /**
+     * 以前的做法: 新建请求, 逐个复制请求头, 再加上后端的 Host
+     */
+    @Benchmark
+    public HttpRequest copy() {
+        HttpRequest req = request();
+        HttpRequest request = new DefaultHttpRequest(req.protocolVersion(), req.method(), req.uri());
+        for (Map.Entry<String, String> header : req.headers()) {
+            if (HttpHeaderNames.HOST.contentEqualsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            request.headers().add(header.getKey(), header.getValue());
+        }
+        request.headers().add(HttpHeaderNames.HOST, "localhost");
+        return request;
+    }
+}
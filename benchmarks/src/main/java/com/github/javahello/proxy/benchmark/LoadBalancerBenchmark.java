@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.benchmark;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.lb.LoadBalancer;
+import com.github.javahello.proxy.lb.LoadBalancers;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个线程同时选择后端, 每次选择后增减未完成请求数, 模拟 EventLoop 之间的竞争
+ *
+ * @author kailuo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LoadBalancerBenchmark {
+
+    @Param({LoadBalancers.ROUND_ROBIN, LoadBalancers.WEIGHTED_ROUND_ROBIN, LoadBalancers.LEAST_REQUEST,
+            LoadBalancers.POWER_OF_TWO, LoadBalancers.CONSISTENT_HASH})
+    String balance;
+
+    LoadBalancer loadBalancer;
+
+    @Setup
+    public void setup() {
+        List<UpstreamServer> servers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            UpstreamServer server = new UpstreamServer();
+            server.setAddress("10.0.0." + i);
+            server.setPort(8080);
+            server.setWeight(1 + i % 3);
+            servers.add(server);
+        }
+        ProxyConf.Upstream conf = new ProxyConf.Upstream();
+        conf.setBalance(balance);
+        conf.setHashKey("header:X-User");
+        loadBalancer = LoadBalancers.create(conf, servers);
+    }
+
+    @State(Scope.Thread)
+    public static class Requests {
+        HttpRequest[] requests = new HttpRequest[256];
+        int next;
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+                requests[i].headers().set("X-User", "user-" + ThreadLocalRandom.current().nextInt(1_000_000));
+            }
+        }
+    }
+
+    @Benchmark
+    public UpstreamServer select(Requests requests) {
+        HttpRequest request = requests.requests[requests.next++ & 255];
+        UpstreamServer server = loadBalancer.select(request, null);
+        server.incrementOutstanding();
+        server.decrementOutstanding();
+        return server;
+    }
+}
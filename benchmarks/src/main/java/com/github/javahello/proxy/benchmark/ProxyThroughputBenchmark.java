@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.benchmark;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.core.ProxyClient;
+import com.github.javahello.proxy.core.ProxyContext;
+import com.github.javahello.proxy.core.ProxyServer;
+import com.github.javahello.proxy.core.ProxyTransport;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内端到端: 客户端 -> ProxyServer -> 本地 Netty 后端.
+ * <p>
+ * 每个 JMH 线程一条长连接, 一次操作是一个完整的请求响应. 用 -prof gc 看每个请求的分配量.
+ *
+ * @author kailuo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ProxyThroughputBenchmark {
+    private static final byte[] BODY = "hello, proxy".getBytes(CharsetUtil.UTF_8);
+
+    int proxyPort;
+    EventLoopGroup backendGroup;
+    Channel backendChannel;
+    ProxyTransport transport;
+    ProxyClient proxyClient;
+    ProxyServer proxyServer;
+
+    @Setup
+    public void setup() throws Exception {
+        backendGroup = new NioEventLoopGroup(2);
+        backendChannel = new ServerBootstrap()
+                .group(backendGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+                                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                        HttpResponseStatus.OK, Unpooled.wrappedBuffer(BODY));
+                                response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+                                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, BODY.length);
+                                ctx.writeAndFlush(response);
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        int backendPort = ((InetSocketAddress) backendChannel.localAddress()).getPort();
+        proxyPort = freePort();
+
+        String yml = "upstream:\n"
+                + "  bench:\n"
+                + "    server:\n"
+                + "      - \"127.0.0.1:" + backendPort + "\"\n"
+                + "servers:\n"
+                + "  - listen: " + proxyPort + "\n"
+                + "    serverName: \"localhost\"\n"
+                + "    location:\n"
+                + "      /:\n"
+                + "        proxyPass: \"http://bench/\"\n";
+        ProxyConf conf = YmlHelper.reSerializer(yml, ProxyConf.class);
+        ProxyContext proxyContext = ProxyContext.create(conf);
+        transport = ProxyTransport.create(conf.getTransport());
+        proxyClient = ProxyClient.create(new Bootstrap(), transport, proxyContext.getMetrics());
+        proxyServer = ProxyServer.create(conf.getServers().get(0), proxyContext, proxyClient, transport);
+        awaitListening(proxyPort);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        proxyServer.close();
+        proxyClient.close();
+        transport.close();
+        backendChannel.close();
+        backendGroup.shutdownGracefully();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("代理端口 " + port + " 没有启动");
+    }
+
+    /**
+     * 每个线程一条到代理的长连接
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        Socket socket;
+        OutputStream out;
+        InputStream in;
+        byte[] request;
+        byte[] buffer = new byte[8192];
+
+        @Setup
+        public void setup(ProxyThroughputBenchmark benchmark) throws IOException {
+            socket = new Socket("127.0.0.1", benchmark.proxyPort);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream());
+            request = ("GET /hello HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "User-Agent: jmh\r\n"
+                    + "Accept: */*\r\n"
+                    + "\r\n").getBytes(CharsetUtil.US_ASCII);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * 读一个响应, 只解析 Content-Length
+         */
+        int readResponse() throws IOException {
+            int len = 0;
+            int contentLength = -1;
+            int lineStart = 0;
+            while (true) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("连接已关闭");
+                }
+                buffer[len++] = (byte) b;
+                if (b == '\n') {
+                    int lineLength = len - lineStart;
+                    if (lineLength == 2) {
+                        break;
+                    }
+                    if (contentLength < 0 && startsWithIgnoreCase(buffer, lineStart, "content-length:")) {
+                        contentLength = parseInt(buffer, lineStart + 15, len - 2);
+                    }
+                    lineStart = len;
+                }
+            }
+            for (int remaining = Math.max(contentLength, 0); remaining > 0; ) {
+                int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+                if (n < 0) {
+                    throw new IOException("连接已关闭");
+                }
+                remaining -= n;
+            }
+            return contentLength;
+        }
+
+        private static boolean startsWithIgnoreCase(byte[] bytes, int offset, String prefix) {
+            for (int i = 0; i < prefix.length(); i++) {
+                if (Character.toLowerCase(bytes[offset + i]) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int parseInt(byte[] bytes, int from, int to) {
+            int value = 0;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] >= '0' && bytes[i] <= '9') {
+                    value = value * 10 + (bytes[i] - '0');
+                }
+            }
+            return value;
+        }
+    }
+
+    @Benchmark
+    public int request(Client client) throws IOException {
+        client.out.write(client.request);
+        client.out.flush();
+        return client.readResponse();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.benchmark;
+
+import com.github.javahello.proxy.core.RouteTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * location 匹配, 80% 命中某个 location, 20% 落到根路径
+ *
+ * @author kailuo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+    private static final int URIS = 1024;
+
+    @Param({"10", "100", "1000"})
+    int locations;
+
+    RouteTable<String> table;
+    String[] uris;
+    int next;
+
+    @Setup
+    public void setup() {
+        table = new RouteTable<>();
+        table.add("/", "root");
+        for (int i = 0; i < locations; i++) {
+            table.add("/svc" + i + "/api", "svc" + i);
+        }
+        Random random = new Random(42);
+        uris = new String[URIS];
+        for (int i = 0; i < URIS; i++) {
+            if (random.nextInt(5) == 0) {
+                uris[i] = "/static/js/app." + random.nextInt(1000) + ".js";
+            } else {
+                uris[i] = "/svc" + random.nextInt(locations) + "/api/users/" + random.nextInt(100_000) + "?fields=name";
+            }
+        }
+    }
+
+    @Benchmark
+    public String match() {
+        return table.match(uris[next++ & (URIS - 1)]);
+    }
+}
@@ -16,18 +16,56 @@
 package com.github.javahello.proxy;
 
 import com.github.javahello.proxy.conf.ProxyConf;
-import com.github.javahello.proxy.core.ProxyContext;
-import com.github.javahello.proxy.core.ProxyServer;
+import com.github.javahello.proxy.core.AdminServer;
+import com.github.javahello.proxy.core.ProxyReloader;
+import com.github.javahello.proxy.core.ProxyTransport;
 import com.github.javahello.proxy.util.ClassPathHelper;
 import com.github.javahello.proxy.util.YmlHelper;
+import sun.misc.Signal;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
 
 public class App {
+    /**
+     * @param args 可选的配置文件路径, 指定后修改文件或发送 SIGHUP 会重新加载; 不指定时使用 classpath 下的 proxy.yml
+     */
     public static void main(String[] args) throws Exception {
-        String config = ClassPathHelper.readClasspathFile("/proxy.yml");
-        ProxyConf proxyConf = YmlHelper.reSerializer(config, ProxyConf.class);
-        ProxyContext proxyContext = ProxyContext.create(proxyConf);
-        for (ProxyConf.Server server : proxyConf.getServers()) {
-            ProxyServer.create(server, proxyContext);
+        Path file = args.length > 0 ? Paths.get(args[0]) : null;
+        Callable<String> configSource = file != null
+                ? () -> new String(Files.readAllBytes(file), StandardCharsets.UTF_8)
+                : () -> ClassPathHelper.readClasspathFile("/proxy.yml");
+        ProxyConf proxyConf = YmlHelper.reSerializer(configSource.call(), ProxyConf.class);
+        ProxyTransport transport = ProxyTransport.create(proxyConf.getTransport());
+        ProxyReloader reloader = ProxyReloader.start(configSource, transport);
+        if (file != null) {
+            reloader.watch(file);
+        }
+        onSignal("HUP", reloader::reload);
+        AdminServer adminServer = AdminServer.create(proxyConf.getAdmin(),
+                reloader.getProxyContext().getMetrics(), reloader, transport);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            adminServer.close();
+            reloader.close();
+            transport.close();
+        }));
+    }
+
+    /**
+     * 注册信号处理, sun.misc.Signal 在 jdk.unsupported 模块里.
+     * 不支持的平台 (windows) 上忽略, 只能通过文件修改或管理端口重新加载
+     *
+     * @param name   信号名, 不带 SIG 前缀
+     * @param action
+     */
+    static void onSignal(String name, Runnable action) {
+        try {
+            Signal.handle(new Signal(name), signal -> action.run());
+        } catch (IllegalArgumentException e) {
+            System.out.println("不支持信号 SIG" + name + ": " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.cache;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存的响应, body 放在池化的直接内存里, 命中时返回共享 body 的副本
+ *
+ * @author kailuo
+ */
+class CacheEntry {
+    static final AsciiString X_CACHE = AsciiString.cached("x-cache");
+
+    /**
+     * 不带 Vary 请求头的 key
+     */
+    final String primaryKey;
+    final HttpResponseStatus status;
+    final HttpHeaders headers;
+    final ByteBuf body;
+    final String etag;
+    final String lastModified;
+    final long size;
+    /**
+     * 写入缓存时的时间和后端给出的 Age, 用来计算返回给客户端的 Age
+     */
+    private long storedAt;
+    private long initialAge;
+    private long expiresAt;
+
+    CacheEntry(String primaryKey, HttpResponseStatus status, HttpHeaders headers, ByteBuf body, long freshnessMillis) {
+        this.primaryKey = primaryKey;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.etag = headers.get(HttpHeaderNames.ETAG);
+        this.lastModified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+        long headerSize = 0;
+        for (Map.Entry<String, String> header : headers) {
+            headerSize += header.getKey().length() + header.getValue().length() + 32;
+        }
+        this.size = body.capacity() + headerSize + 128;
+        refresh(freshnessMillis, headers.getInt(HttpHeaderNames.AGE, 0));
+    }
+
+    void refresh(long freshnessMillis, long age) {
+        this.storedAt = System.nanoTime();
+        this.initialAge = age;
+        this.expiresAt = storedAt + TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+    }
+
+    boolean isFresh(long now) {
+        return expiresAt - now > 0;
+    }
+
+    boolean hasValidator() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * 生成返回给客户端的响应, 调用方需要持有所在分段的锁, 避免 body 同时被淘汰释放
+     *
+     * @param xCache
+     * @return
+     */
+    FullHttpResponse toResponse(String xCache) {
+        HttpHeaders h = headers.copy();
+        h.set(HttpHeaderNames.AGE, initialAge + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - storedAt));
+        h.set(X_CACHE, xCache);
+        return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body.retainedDuplicate(), h, EmptyHttpHeaders.INSTANCE);
+    }
+
+    /**
+     * 计算响应的新鲜期, 返回 -1 表示不能缓存, 0 表示每次都要重新验证
+     *
+     * @param headers
+     * @param policy
+     * @return 毫秒
+     */
+    static long freshnessMillis(HttpHeaders headers, ProxyConf.CachePolicy policy) {
+        long freshness = -1;
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (cacheControl != null) {
+            long maxAge = -1;
+            long sMaxAge = -1;
+            boolean noCache = false;
+            for (String directive : cacheControl.split(",")) {
+                String d = directive.trim();
+                if (HttpHeaderValues.NO_STORE.contentEqualsIgnoreCase(d) || HttpHeaderValues.PRIVATE.contentEqualsIgnoreCase(d)) {
+                    return -1;
+                } else if (HttpHeaderValues.NO_CACHE.contentEqualsIgnoreCase(d)) {
+                    noCache = true;
+                } else if (d.regionMatches(true, 0, "s-maxage=", 0, 9)) {
+                    sMaxAge = parseSeconds(d.substring(9));
+                } else if (d.regionMatches(true, 0, "max-age=", 0, 8)) {
+                    maxAge = parseSeconds(d.substring(8));
+                }
+            }
+            if (noCache) {
+                // 不管和 max-age 的先后顺序, 每次都要重新验证, 没有校验信息就不能缓存
+                return hasValidator(headers) ? 0 : -1;
+            }
+            freshness = sMaxAge >= 0 ? sMaxAge : maxAge;
+        }
+        if (freshness < 0) {
+            String expires = headers.get(HttpHeaderNames.EXPIRES);
+            if (expires != null) {
+                Date expiresDate = DateFormatter.parseHttpDate(expires);
+                Date date = DateFormatter.parseHttpDate(headers.get(HttpHeaderNames.DATE, ""));
+                long base = date == null ? System.currentTimeMillis() : date.getTime();
+                freshness = expiresDate == null ? 0 : Math.max(0, (expiresDate.getTime() - base) / 1000);
+            }
+        }
+        if (freshness < 0 && policy.getDefaultMaxAge() > 0) {
+            freshness = policy.getDefaultMaxAge();
+        }
+        if (freshness < 0) {
+            return hasValidator(headers) ? 0 : -1;
+        }
+        long age = headers.getInt(HttpHeaderNames.AGE, 0);
+        return Math.max(0, freshness - age) * 1000;
+    }
+
+    private static boolean hasValidator(HttpHeaders headers) {
+        return headers.contains(HttpHeaderNames.ETAG) || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    private static long parseSeconds(String s) {
+        try {
+            return Long.parseLong(s.trim().replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
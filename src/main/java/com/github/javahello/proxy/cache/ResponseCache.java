@@ -0,0 +1,412 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.cache;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.metrics.CacheMetrics;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存 HTTP 响应缓存, 所有 server 共用一个, 按字节数限制总大小.
+ * <p>
+ * 缓存 key 由方法、Host、uri 和 Vary 指定的请求头组成, Accept-Encoding 总是参与 key,
+ * 因为后端压缩过的响应会原样透传. 条目按 key 分到多个 LRU 分段, 每个分段一把锁,
+ * 减少多个 EventLoop 之间的竞争. 同一个 key 的并发未命中只向后端发一次请求,
+ * 其它请求等这次请求结束后再查一次缓存.
+ *
+ * @author kailuo
+ */
+public class ResponseCache {
+    private static final int SEGMENTS = 16;
+    private static final String[] DEFAULT_VARY = {HttpHeaderNames.ACCEPT_ENCODING.toString()};
+    /**
+     * HttpHeaderNames.KEEP_ALIVE 已经废弃, 但 HTTP/1.0 的后端仍然可能返回
+     */
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    /**
+     * 每个 uri 最近一次响应的 Vary 请求头, 以及缓存里这个 uri 的条目数, 最后一个条目被淘汰时删除
+     */
+    private final Map<String, Vary> varyIndex = new ConcurrentHashMap<>();
+    /**
+     * 正在向后端获取的 key, 以及等待结果的请求
+     */
+    private final Map<String, List<Runnable>> fetching = new ConcurrentHashMap<>();
+    private final CacheMetrics metrics;
+
+    public ResponseCache(long maxBytes, CacheMetrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxBytes / SEGMENTS));
+        }
+    }
+
+    public static ResponseCache create(ProxyConf.Cache conf, ProxyMetrics metrics) {
+        return new ResponseCache(conf == null ? new ProxyConf.Cache().getMaxBytes() : conf.getMaxBytes(), metrics.cache());
+    }
+
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 有缓存条目的 uri 数
+     *
+     * @return
+     */
+    public int varyIndexSize() {
+        return varyIndex.size();
+    }
+
+    /**
+     * 当前缓存占用的字节数
+     *
+     * @return
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.bytes;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 只缓存不带认证信息的 GET 请求
+     *
+     * @param request
+     * @return
+     */
+    public static boolean isCacheable(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        return HttpMethod.GET.equals(request.method())
+                && !headers.contains(HttpHeaderNames.AUTHORIZATION)
+                && !headers.containsValue(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE, true);
+    }
+
+    public static String primaryKey(HttpRequest request) {
+        return request.method().name() + ' ' + request.headers().get(HttpHeaderNames.HOST, "") + request.uri();
+    }
+
+    /**
+     * 加上 Vary 请求头的完整 key
+     *
+     * @param primaryKey
+     * @param requestHeaders
+     * @return
+     */
+    public String key(String primaryKey, HttpHeaders requestHeaders) {
+        Vary vary = varyIndex.get(primaryKey);
+        return varyKey(primaryKey, vary == null ? DEFAULT_VARY : vary.names, requestHeaders);
+    }
+
+    private static String varyKey(String primaryKey, String[] varyNames, HttpHeaders requestHeaders) {
+        StringBuilder sb = new StringBuilder(primaryKey.length() + 32).append(primaryKey);
+        for (String name : varyNames) {
+            sb.append('\n');
+            String value = requestHeaders.get(name);
+            if (value != null) {
+                sb.append(value.trim());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 查找新鲜的缓存
+     *
+     * @param key
+     * @param request
+     * @return 没有可用的缓存时返回 null
+     */
+    public FullHttpResponse get(String key, HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        if (headers.containsValue(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE, true)
+                || headers.containsValue(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true)) {
+            metrics.onMiss();
+            return null;
+        }
+        Segment segment = segment(key);
+        synchronized (segment) {
+            CacheEntry entry = segment.get(key);
+            if (entry == null || !entry.isFresh(System.nanoTime())) {
+                metrics.onMiss();
+                return null;
+            }
+            metrics.onHit();
+            return entry.toResponse("HIT");
+        }
+    }
+
+    /**
+     * 开始向后端获取, 同一个 key 已经有请求在获取时登记等待
+     *
+     * @param key
+     * @param waiter 前一个请求结束后执行, 调用方负责切回自己的 EventLoop
+     * @return true 表示由调用方向后端发请求, 结束后必须调用 {@link Fetch#finish()}
+     */
+    public boolean tryFetch(String key, Runnable waiter) {
+        boolean[] leader = new boolean[1];
+        fetching.compute(key, (k, waiters) -> {
+            if (waiters == null) {
+                leader[0] = true;
+                return new ArrayList<>(2);
+            }
+            waiters.add(waiter);
+            return waiters;
+        });
+        if (!leader[0]) {
+            metrics.onCoalesced();
+        }
+        return leader[0];
+    }
+
+    /**
+     * 创建一次向后端的获取, 过期但带校验信息的缓存会转成条件请求
+     *
+     * @param primaryKey
+     * @param key         {@link #tryFetch} 成功时的 key, 没有合并时传 null
+     * @param request     发往后端的请求
+     * @param policy
+     * @return
+     */
+    public Fetch fetch(String primaryKey, String key, HttpRequest request, ProxyConf.CachePolicy policy) {
+        Fetch fetch = new Fetch(primaryKey, key, request.headers(), policy);
+        HttpHeaders headers = request.headers();
+        // 客户端自己的条件请求原样转发
+        if (headers.contains(HttpHeaderNames.IF_NONE_MATCH) || headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE)) {
+            return fetch;
+        }
+        String k = key != null ? key : key(primaryKey, headers);
+        Segment segment = segment(k);
+        synchronized (segment) {
+            CacheEntry entry = segment.get(k);
+            if (entry != null && entry.hasValidator()) {
+                entry.body.retain();
+                fetch.revalidating = entry;
+                fetch.revalidatingKey = k;
+            }
+        }
+        if (fetch.revalidating != null) {
+            if (fetch.revalidating.etag != null) {
+                headers.set(HttpHeaderNames.IF_NONE_MATCH, fetch.revalidating.etag);
+            }
+            if (fetch.revalidating.lastModified != null) {
+                headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, fetch.revalidating.lastModified);
+            }
+        }
+        return fetch;
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private void store(Fetch fetch, FullHttpResponse response) {
+        int code = response.status().code();
+        if (code != 200 && code != 203 && code != 301 && code != 404 && code != 410) {
+            return;
+        }
+        HttpHeaders headers = response.headers();
+        if (headers.contains(HttpHeaderNames.SET_COOKIE)) {
+            return;
+        }
+        long freshness = CacheEntry.freshnessMillis(headers, fetch.policy);
+        ByteBuf content = response.content();
+        if (freshness < 0 || content.readableBytes() > fetch.policy.getMaxEntrySize()) {
+            return;
+        }
+        String[] varyNames = varyNames(headers.getAll(HttpHeaderNames.VARY));
+        if (varyNames == null) {
+            return;
+        }
+        String key = varyKey(fetch.primaryKey, varyNames, fetch.requestHeaders);
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(content.readableBytes());
+        body.writeBytes(content, content.readerIndex(), content.readableBytes());
+        HttpHeaders h = headers.copy();
+        h.remove(HttpHeaderNames.CONNECTION);
+        h.remove(KEEP_ALIVE);
+        h.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        h.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+        CacheEntry entry = new CacheEntry(fetch.primaryKey, response.status(), h, body, freshness);
+        // 先计数再放入分段, 替换同一个 key 的旧条目时计数不会先减到 0
+        varyIndex.compute(fetch.primaryKey, (k, vary) -> new Vary(varyNames, vary == null ? 1 : vary.variants + 1));
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.store(key, entry);
+        }
+        metrics.onStore();
+    }
+
+    /**
+     * 条目被替换或淘汰, 调用方持有所在分段的锁
+     */
+    private void removed(CacheEntry entry) {
+        entry.body.release();
+        metrics.addBytes(-entry.size);
+        varyIndex.computeIfPresent(entry.primaryKey, (k, vary) -> vary.variants <= 1 ? null : new Vary(vary.names, vary.variants - 1));
+    }
+
+    private static final class Vary {
+        final String[] names;
+        final int variants;
+
+        Vary(String[] names, int variants) {
+            this.names = names;
+            this.variants = variants;
+        }
+    }
+
+    /**
+     * 解析 Vary, 总是带上 Accept-Encoding, Vary: * 返回 null 表示不能缓存
+     *
+     * @param vary
+     * @return
+     */
+    private static String[] varyNames(List<String> vary) {
+        TreeSet<String> names = new TreeSet<>(Arrays.asList(DEFAULT_VARY));
+        for (String v : vary) {
+            for (String name : v.split(",")) {
+                String n = name.trim().toLowerCase(Locale.ROOT);
+                if ("*".equals(n)) {
+                    return null;
+                }
+                if (!n.isEmpty()) {
+                    names.add(n);
+                }
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * 一次向后端的获取, 负责把响应写入缓存、处理 304 和唤醒等待的请求
+     */
+    public class Fetch {
+        final String primaryKey;
+        final String key;
+        final HttpHeaders requestHeaders;
+        final ProxyConf.CachePolicy policy;
+        CacheEntry revalidating;
+        String revalidatingKey;
+        private boolean finished;
+
+        Fetch(String primaryKey, String key, HttpHeaders requestHeaders, ProxyConf.CachePolicy policy) {
+            this.primaryKey = primaryKey;
+            this.key = key;
+            this.requestHeaders = requestHeaders;
+            this.policy = policy;
+        }
+
+        /**
+         * 处理后端的完整响应, 返回要写给客户端的响应
+         *
+         * @param response
+         * @return
+         */
+        public FullHttpResponse onResponse(FullHttpResponse response) {
+            CacheEntry entry = revalidating;
+            if (entry != null && response.status().code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                Segment segment = segment(revalidatingKey);
+                FullHttpResponse r;
+                synchronized (segment) {
+                    HttpHeaders h = response.headers();
+                    for (CharSequence name : new CharSequence[]{HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.EXPIRES,
+                            HttpHeaderNames.DATE, HttpHeaderNames.ETAG, HttpHeaderNames.LAST_MODIFIED}) {
+                        String value = h.get(name);
+                        if (value != null) {
+                            entry.headers.set(name, value);
+                        }
+                    }
+                    entry.refresh(Math.max(0, CacheEntry.freshnessMillis(entry.headers, policy)), h.getInt(HttpHeaderNames.AGE, 0));
+                    r = entry.toResponse("REVALIDATED");
+                }
+                metrics.onRevalidated();
+                response.release();
+                return r;
+            }
+            store(this, response);
+            response.headers().set(CacheEntry.X_CACHE, "MISS");
+            return response;
+        }
+
+        /**
+         * 获取结束, 成功或失败都必须调用, 可以重复调用
+         */
+        public void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (revalidating != null) {
+                revalidating.body.release();
+                revalidating = null;
+            }
+            if (key != null) {
+                List<Runnable> waiters = fetching.remove(key);
+                if (waiters != null) {
+                    for (Runnable waiter : waiters) {
+                        waiter.run();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * LRU 分段, 超过字节上限时从最久未使用的条目开始淘汰
+     */
+    final class Segment extends LinkedHashMap<String, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+
+        final long maxBytes;
+        long bytes;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        void store(String key, CacheEntry entry) {
+            CacheEntry old = put(key, entry);
+            bytes += entry.size;
+            metrics.addBytes(entry.size);
+            if (old != null) {
+                bytes -= old.size;
+                removed(old);
+            }
+            Iterator<CacheEntry> it = values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                CacheEntry eldest = it.next();
+                it.remove();
+                bytes -= eldest.size;
+                removed(eldest);
+                metrics.onEviction();
+            }
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package com.github.javahello.proxy.conf;
 
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -23,6 +25,12 @@ public class ProxyConf {
 
     Map<String, Upstream> upstream;
     List<Server> servers;
+    Transport transport;
+    Cache cache;
+    Admin admin;
+    Dns dns;
+    AccessLog accessLog;
+    Timing timing;
 
     public List<Server> getServers() {
         return servers;
@@ -40,8 +48,378 @@ public class ProxyConf {
         this.upstream = upstream;
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
+    public Admin getAdmin() {
+        return admin;
+    }
+
+    public void setAdmin(Admin admin) {
+        this.admin = admin;
+    }
+
+    public Dns getDns() {
+        return dns;
+    }
+
+    public void setDns(Dns dns) {
+        this.dns = dns;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public Timing getTiming() {
+        return timing;
+    }
+
+    public void setTiming(Timing timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * 管理端口, 提供 /metrics, 不配置时不启动
+     */
+    public static class Admin {
+        String host = "127.0.0.1";
+        int listen;
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public int getListen() {
+            return listen;
+        }
+
+        public void setListen(int listen) {
+            this.listen = listen;
+        }
+    }
+
+    /**
+     * 响应缓存, 所有 server 共用, 是否缓存由 location 的 cache 配置决定
+     */
+    public static class Cache {
+        long maxBytes = 64 * 1024 * 1024;
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * 请求各阶段的耗时, 重新加载配置后对新请求生效
+     */
+    public static class Timing {
+        /**
+         * 在响应头里加上 Server-Timing, 会暴露后端的耗时, 默认关闭
+         */
+        boolean serverTiming = false;
+        /**
+         * 总耗时超过这个值 (毫秒) 的请求记录到管理端口的 /slow, 0 不记录
+         */
+        long slowThreshold = 0;
+        /**
+         * 保留最近的慢请求数
+         */
+        int samples = 128;
+
+        public boolean isServerTiming() {
+            return serverTiming;
+        }
+
+        public void setServerTiming(boolean serverTiming) {
+            this.serverTiming = serverTiming;
+        }
+
+        public long getSlowThreshold() {
+            return slowThreshold;
+        }
+
+        public void setSlowThreshold(long slowThreshold) {
+            this.slowThreshold = slowThreshold;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public void setSamples(int samples) {
+            this.samples = samples;
+        }
+    }
+
+    /**
+     * 访问日志, 不配置时不记录, 修改需要重启
+     */
+    public static class AccessLog {
+        String path;
+        /**
+         * 环形队列能容纳的记录数, 向上取 2 的幂
+         */
+        int bufferSize = 65536;
+        /**
+         * 格式化用的写缓冲大小 (字节), 写满或者到了 flushInterval 写一次文件
+         */
+        int writeBuffer = 256 * 1024;
+        long flushInterval = 1000;
+        /**
+         * 队列满时的处理: drop 丢弃并计数, block 阻塞 EventLoop 直到写线程腾出位置
+         */
+        String overflow = "drop";
+        /**
+         * 文件超过这个大小 (字节) 时切分, 0 不按大小切分
+         */
+        long maxSize = 100 * 1024 * 1024;
+        /**
+         * 按时间切分的间隔 (秒), 按本地时间对齐, 86400 即每天零点切分, 0 不按时间切分
+         */
+        long rotateInterval = 86400;
+        /**
+         * 保留的历史文件数, 0 不删除
+         */
+        int maxFiles = 7;
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public int getWriteBuffer() {
+            return writeBuffer;
+        }
+
+        public void setWriteBuffer(int writeBuffer) {
+            this.writeBuffer = writeBuffer;
+        }
+
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(long flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public String getOverflow() {
+            return overflow;
+        }
+
+        public void setOverflow(String overflow) {
+            this.overflow = overflow;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public long getRotateInterval() {
+            return rotateInterval;
+        }
+
+        public void setRotateInterval(long rotateInterval) {
+            this.rotateInterval = rotateInterval;
+        }
+
+        public int getMaxFiles() {
+            return maxFiles;
+        }
+
+        public void setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+        }
+    }
+
+    /**
+     * 后端域名解析, 修改需要重启. 每个解析出来的 IP 作为一个单独的后端
+     */
+    public static class Dns {
+        /**
+         * "host:port" 格式的 DNS 服务器, 不配置时使用系统配置
+         */
+        List<String> nameServers;
+        /**
+         * 缓存时间 (秒) 的上下限, 在 DNS 返回的 TTL 基础上限制
+         */
+        int minTtl = 1;
+        int maxTtl = 300;
+        /**
+         * 解析失败的缓存时间 (秒)
+         */
+        int negativeTtl = 5;
+        long queryTimeout = 2000;
+        /**
+         * 有请求时后台重新解析的间隔 (毫秒), 缓存没过期时不会发出查询
+         */
+        long refreshInterval = 1000;
+        /**
+         * ipv4_only、ipv6_only、ipv4_preferred、ipv6_preferred, 不配置时使用 netty 默认值
+         */
+        String addressTypes;
+
+        public List<String> getNameServers() {
+            return nameServers;
+        }
+
+        public void setNameServers(List<String> nameServers) {
+            this.nameServers = nameServers;
+        }
+
+        public int getMinTtl() {
+            return minTtl;
+        }
+
+        public void setMinTtl(int minTtl) {
+            this.minTtl = minTtl;
+        }
+
+        public int getMaxTtl() {
+            return maxTtl;
+        }
+
+        public void setMaxTtl(int maxTtl) {
+            this.maxTtl = maxTtl;
+        }
+
+        public int getNegativeTtl() {
+            return negativeTtl;
+        }
+
+        public void setNegativeTtl(int negativeTtl) {
+            this.negativeTtl = negativeTtl;
+        }
+
+        public long getQueryTimeout() {
+            return queryTimeout;
+        }
+
+        public void setQueryTimeout(long queryTimeout) {
+            this.queryTimeout = queryTimeout;
+        }
+
+        public long getRefreshInterval() {
+            return refreshInterval;
+        }
+
+        public void setRefreshInterval(long refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+
+        public String getAddressTypes() {
+            return addressTypes;
+        }
+
+        public void setAddressTypes(String addressTypes) {
+            this.addressTypes = addressTypes;
+        }
+    }
+
+    /**
+     * 线程配置, 所有 server 和后端连接共用一组 EventLoop
+     */
+    public static class Transport {
+        int bossThreads = 1;
+        /**
+         * 0 表示使用 netty 默认值, 即 CPU 核数 * 2
+         */
+        int workerThreads = 0;
+        /**
+         * Linux 上使用 epoll
+         */
+        boolean nativeTransport = true;
+
+        public int getBossThreads() {
+            return bossThreads;
+        }
+
+        public void setBossThreads(int bossThreads) {
+            this.bossThreads = bossThreads;
+        }
+
+        public int getWorkerThreads() {
+            return workerThreads;
+        }
+
+        public void setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+        }
+
+        public boolean isNativeTransport() {
+            return nativeTransport;
+        }
+
+        public void setNativeTransport(boolean nativeTransport) {
+            this.nativeTransport = nativeTransport;
+        }
+    }
+
     public static class Upstream {
         List<String> server;
+        Pool pool;
+        /**
+         * 负载均衡策略: round_robin, weighted_round_robin, least_request, power_of_two, consistent_hash
+         */
+        String balance = "round_robin";
+        /**
+         * consistent_hash 使用的 key: ip, header:名称, cookie:名称
+         */
+        String hashKey = "ip";
+        /**
+         * consistent_hash 单个后端允许的负载上限, 相对平均值的倍数
+         */
+        double hashLoadFactor = 1.25;
+        HealthCheck healthCheck = new HealthCheck();
+        /**
+         * proxyPass 使用 https://upstream 时的 TLS 配置
+         */
+        UpstreamTls tls = new UpstreamTls();
+        /**
+         * 自适应并发限制, 不配置时不限制
+         */
+        ConcurrencyLimit concurrencyLimit;
 
         public List<String> getServer() {
             return server;
@@ -50,12 +428,425 @@ public class ProxyConf {
         public void setServer(List<String> server) {
             this.server = server;
         }
+
+        public Pool getPool() {
+            return pool;
+        }
+
+        public void setPool(Pool pool) {
+            this.pool = pool;
+        }
+
+        public String getBalance() {
+            return balance;
+        }
+
+        public void setBalance(String balance) {
+            this.balance = balance;
+        }
+
+        public String getHashKey() {
+            return hashKey;
+        }
+
+        public void setHashKey(String hashKey) {
+            this.hashKey = hashKey;
+        }
+
+        public double getHashLoadFactor() {
+            return hashLoadFactor;
+        }
+
+        public void setHashLoadFactor(double hashLoadFactor) {
+            this.hashLoadFactor = hashLoadFactor;
+        }
+
+        public HealthCheck getHealthCheck() {
+            return healthCheck;
+        }
+
+        public void setHealthCheck(HealthCheck healthCheck) {
+            this.healthCheck = healthCheck;
+        }
+
+        public UpstreamTls getTls() {
+            return tls;
+        }
+
+        public void setTls(UpstreamTls tls) {
+            this.tls = tls;
+        }
+
+        public ConcurrencyLimit getConcurrencyLimit() {
+            return concurrencyLimit;
+        }
+
+        public void setConcurrencyLimit(ConcurrencyLimit concurrencyLimit) {
+            this.concurrencyLimit = concurrencyLimit;
+        }
+    }
+
+    /**
+     * upstream 的自适应并发限制: 按后端的响应时间调整允许同时处理的请求数,
+     * 超出的请求短暂排队, 队列满了或者等待超时直接返回 503
+     */
+    public static class ConcurrencyLimit {
+        /**
+         * gradient: 按最近和长期响应时间的比值调整; aimd: 成功时加一, 失败或超过 maxLatency 时按 backoffRatio 缩小
+         */
+        String algorithm = "gradient";
+        int initialLimit = 20;
+        int minLimit = 2;
+        int maxLimit = 1000;
+        /**
+         * 排队等待的最大请求数
+         */
+        int maxQueue = 32;
+        /**
+         * 排队的最长时间, 毫秒
+         */
+        long maxWait = 50;
+        double backoffRatio = 0.9;
+        /**
+         * aimd 使用, 响应时间超过该值按失败处理, 毫秒, 0 表示不检查
+         */
+        long maxLatency;
+        /**
+         * gradient 使用, 最近的响应时间超过长期响应时间的这个倍数才开始缩小
+         */
+        double tolerance = 1.5;
+        /**
+         * gradient 使用, 每次调整向新值靠近的比例
+         */
+        double smoothing = 0.2;
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public void setAlgorithm(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public int getMinLimit() {
+            return minLimit;
+        }
+
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+
+        public int getMaxQueue() {
+            return maxQueue;
+        }
+
+        public void setMaxQueue(int maxQueue) {
+            this.maxQueue = maxQueue;
+        }
+
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        public void setMaxWait(long maxWait) {
+            this.maxWait = maxWait;
+        }
+
+        public double getBackoffRatio() {
+            return backoffRatio;
+        }
+
+        public void setBackoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+        }
+
+        public long getMaxLatency() {
+            return maxLatency;
+        }
+
+        public void setMaxLatency(long maxLatency) {
+            this.maxLatency = maxLatency;
+        }
+
+        public double getTolerance() {
+            return tolerance;
+        }
+
+        public void setTolerance(double tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        public double getSmoothing() {
+            return smoothing;
+        }
+
+        public void setSmoothing(double smoothing) {
+            this.smoothing = smoothing;
+        }
+    }
+
+    /**
+     * 连接 https 后端的 TLS 配置. 同一个 upstream 的连接共用一个 SslContext, 新连接复用之前的会话, 跳过完整握手
+     */
+    public static class UpstreamTls {
+        String provider = "jdk";
+        /**
+         * 不配置时使用 provider 的默认值
+         */
+        List<String> protocols;
+        List<String> ciphers;
+        /**
+         * PEM 格式的 CA 证书, 不配置时使用 JDK 默认的信任库
+         */
+        String trustCertificates;
+        boolean verifyHostname = true;
+        /**
+         * SNI 和证书校验使用的域名, 不配置时使用后端地址, 后端地址是 IP 或者不带点的域名 (比如 localhost) 时不发送 SNI
+         */
+        String serverName;
+        long sessionCacheSize = 1024;
+        /**
+         * 会话缓存的有效期, 秒
+         */
+        long sessionTimeout = 3600;
+        long handshakeTimeout = 10_000;
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public void setProvider(String provider) {
+            this.provider = provider;
+        }
+
+        public List<String> getProtocols() {
+            return protocols;
+        }
+
+        public void setProtocols(List<String> protocols) {
+            this.protocols = protocols;
+        }
+
+        public List<String> getCiphers() {
+            return ciphers;
+        }
+
+        public void setCiphers(List<String> ciphers) {
+            this.ciphers = ciphers;
+        }
+
+        public String getTrustCertificates() {
+            return trustCertificates;
+        }
+
+        public void setTrustCertificates(String trustCertificates) {
+            this.trustCertificates = trustCertificates;
+        }
+
+        public boolean isVerifyHostname() {
+            return verifyHostname;
+        }
+
+        public void setVerifyHostname(boolean verifyHostname) {
+            this.verifyHostname = verifyHostname;
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public void setServerName(String serverName) {
+            this.serverName = serverName;
+        }
+
+        public long getSessionCacheSize() {
+            return sessionCacheSize;
+        }
+
+        public void setSessionCacheSize(long sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+        }
+
+        public long getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        public void setSessionTimeout(long sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        public long getHandshakeTimeout() {
+            return handshakeTimeout;
+        }
+
+        public void setHandshakeTimeout(long handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+        }
+    }
+
+    /**
+     * 后端连接池配置, 数量限制都是针对单个 EventLoop 的
+     */
+    public static class Pool {
+        int maxConnections = 64;
+        int maxIdle = 16;
+        int maxPending = 1024;
+        long idleTimeout = 60_000;
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        public int getMaxIdle() {
+            return maxIdle;
+        }
+
+        public void setMaxIdle(int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        public int getMaxPending() {
+            return maxPending;
+        }
+
+        public void setMaxPending(int maxPending) {
+            this.maxPending = maxPending;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+    }
+
+    /**
+     * 后端健康检查配置.
+     * <p>
+     * 被动检查: 连续失败 maxFails 次后摘除, 摘除时间从 ejectTime 开始每次翻倍, 最长 maxEjectTime.
+     * 主动检查: 配置了 path 时每隔 interval 毫秒发一次 GET 请求探测.
+     * 摘除的后端不超过 maxEjectionPercent, 避免全部摘光
+     */
+    public static class HealthCheck {
+        int maxFails = 3;
+        long ejectTime = 10_000;
+        long maxEjectTime = 300_000;
+        int maxEjectionPercent = 50;
+        String path;
+        long interval = 5_000;
+        long timeout = 2_000;
+        int unhealthyThreshold = 2;
+        int healthyThreshold = 2;
+
+        public int getMaxFails() {
+            return maxFails;
+        }
+
+        public void setMaxFails(int maxFails) {
+            this.maxFails = maxFails;
+        }
+
+        public long getEjectTime() {
+            return ejectTime;
+        }
+
+        public void setEjectTime(long ejectTime) {
+            this.ejectTime = ejectTime;
+        }
+
+        public long getMaxEjectTime() {
+            return maxEjectTime;
+        }
+
+        public void setMaxEjectTime(long maxEjectTime) {
+            this.maxEjectTime = maxEjectTime;
+        }
+
+        public int getMaxEjectionPercent() {
+            return maxEjectionPercent;
+        }
+
+        public void setMaxEjectionPercent(int maxEjectionPercent) {
+            this.maxEjectionPercent = maxEjectionPercent;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public long getInterval() {
+            return interval;
+        }
+
+        public void setInterval(long interval) {
+            this.interval = interval;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        public int getUnhealthyThreshold() {
+            return unhealthyThreshold;
+        }
+
+        public void setUnhealthyThreshold(int unhealthyThreshold) {
+            this.unhealthyThreshold = unhealthyThreshold;
+        }
+
+        public int getHealthyThreshold() {
+            return healthyThreshold;
+        }
+
+        public void setHealthyThreshold(int healthyThreshold) {
+            this.healthyThreshold = healthyThreshold;
+        }
     }
 
     public static class Server {
         int listen;
         String serverName;
         Map<String, Location> location;
+        /**
+         * 同一连接上最多同时处理的 pipelining 请求数, 超过后暂停读取
+         */
+        int maxPipelined = 16;
+        Http2 http2 = new Http2();
+        /**
+         * 不配置时是明文端口
+         */
+        Tls tls;
+        Tunnel tunnel = new Tunnel();
 
         public int getListen() {
             return listen;
@@ -80,11 +871,354 @@ public class ProxyConf {
         public void setLocation(Map<String, Location> location) {
             this.location = location;
         }
+
+        public int getMaxPipelined() {
+            return maxPipelined;
+        }
+
+        public void setMaxPipelined(int maxPipelined) {
+            this.maxPipelined = maxPipelined;
+        }
+
+        public Http2 getHttp2() {
+            return http2;
+        }
+
+        public void setHttp2(Http2 http2) {
+            this.http2 = http2;
+        }
+
+        public Tls getTls() {
+            return tls;
+        }
+
+        public void setTls(Tls tls) {
+            this.tls = tls;
+        }
+
+        public Tunnel getTunnel() {
+            return tunnel;
+        }
+
+        public void setTunnel(Tunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+    }
+
+    /**
+     * Upgrade (WebSocket 等) 和 CONNECT 建立的隧道, 握手之后两边原样转发字节, 超时和连接数和普通请求分开配置
+     */
+    public static class Tunnel {
+        /**
+         * 转发带 Upgrade 的请求, 后端按 location 选择
+         */
+        boolean upgrade = true;
+        /**
+         * 允许 CONNECT 的目标 "host:port", host 可以写成 "*.example.com", 不配置时 CONNECT 返回 405
+         */
+        List<String> connect;
+        /**
+         * CONNECT 连接目标的超时 (毫秒), Upgrade 使用 location 的 timeout.connect
+         */
+        long connectTimeout = 5000;
+        /**
+         * 两个方向都没有数据超过这个时间 (毫秒) 关闭隧道, 0 不关闭
+         */
+        long idleTimeout = 300000;
+        /**
+         * 这个端口同时存在的隧道数上限, 超过时返回 503, 0 不限制
+         */
+        int maxConnections = 1024;
+
+        public boolean isUpgrade() {
+            return upgrade;
+        }
+
+        public void setUpgrade(boolean upgrade) {
+            this.upgrade = upgrade;
+        }
+
+        public List<String> getConnect() {
+            return connect;
+        }
+
+        public void setConnect(List<String> connect) {
+            this.connect = connect;
+        }
+
+        public long getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(long connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    /**
+     * 证书, PEM 文件 (certificate + privateKey) 和 keyStore 二选一
+     */
+    public static class Certificate {
+        /**
+         * PEM 证书链
+         */
+        String certificate;
+        /**
+         * PEM PKCS#8 私钥
+         */
+        String privateKey;
+        String keyPassword;
+        String keyStore;
+        String keyStorePassword;
+        String keyStoreType = "PKCS12";
+
+        public String getCertificate() {
+            return certificate;
+        }
+
+        public void setCertificate(String certificate) {
+            this.certificate = certificate;
+        }
+
+        public String getPrivateKey() {
+            return privateKey;
+        }
+
+        public void setPrivateKey(String privateKey) {
+            this.privateKey = privateKey;
+        }
+
+        public String getKeyPassword() {
+            return keyPassword;
+        }
+
+        public void setKeyPassword(String keyPassword) {
+            this.keyPassword = keyPassword;
+        }
+
+        public String getKeyStore() {
+            return keyStore;
+        }
+
+        public void setKeyStore(String keyStore) {
+            this.keyStore = keyStore;
+        }
+
+        public String getKeyStorePassword() {
+            return keyStorePassword;
+        }
+
+        public void setKeyStorePassword(String keyStorePassword) {
+            this.keyStorePassword = keyStorePassword;
+        }
+
+        public String getKeyStoreType() {
+            return keyStoreType;
+        }
+
+        public void setKeyStoreType(String keyStoreType) {
+            this.keyStoreType = keyStoreType;
+        }
+    }
+
+    /**
+     * TLS 终止配置, 自身的证书用于 serverName 和不带 SNI 的客户端, sni 里按域名 (支持 *.example.com) 选择其他证书.
+     * 会话缓存和会话票据默认开启, 回访的客户端可以跳过完整握手
+     */
+    public static class Tls extends Certificate {
+        /**
+         * jdk 或者 openssl (netty-tcnative), openssl 握手的 CPU 开销更低
+         */
+        String provider = "jdk";
+        List<String> protocols = Arrays.asList("TLSv1.3", "TLSv1.2");
+        /**
+         * 不配置时使用 provider 的默认值, 开启 HTTP/2 时使用 HTTP/2 允许的套件
+         */
+        List<String> ciphers;
+        long sessionCacheSize = 20_480;
+        /**
+         * 会话缓存的有效期, 秒
+         */
+        long sessionTimeout = 3600;
+        long handshakeTimeout = 10_000;
+        Map<String, Certificate> sni = new LinkedHashMap<>();
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public void setProvider(String provider) {
+            this.provider = provider;
+        }
+
+        public List<String> getProtocols() {
+            return protocols;
+        }
+
+        public void setProtocols(List<String> protocols) {
+            this.protocols = protocols;
+        }
+
+        public List<String> getCiphers() {
+            return ciphers;
+        }
+
+        public void setCiphers(List<String> ciphers) {
+            this.ciphers = ciphers;
+        }
+
+        public long getSessionCacheSize() {
+            return sessionCacheSize;
+        }
+
+        public void setSessionCacheSize(long sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+        }
+
+        public long getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        public void setSessionTimeout(long sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        public long getHandshakeTimeout() {
+            return handshakeTimeout;
+        }
+
+        public void setHandshakeTimeout(long handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+        }
+
+        public Map<String, Certificate> getSni() {
+            return sni;
+        }
+
+        public void setSni(Map<String, Certificate> sni) {
+            this.sni = sni;
+        }
+    }
+
+    /**
+     * 下游 HTTP/2 配置, 开启后明文端口同时支持 HTTP/1.1 和 h2c (prior knowledge 或 Upgrade), TLS 端口通过 ALPN 协商.
+     * 每个 stream 单独转发到后端的 HTTP/1.1 连接池
+     */
+    public static class Http2 {
+        boolean enabled;
+        /**
+         * 单个连接上同时打开的 stream 数, 超过的 stream 被拒绝
+         */
+        int maxConcurrentStreams = 100;
+        /**
+         * stream 的初始接收窗口, 后端写不动时不再读取, 窗口用完后客户端停止发送
+         */
+        int initialWindowSize = 65_535;
+        /**
+         * 连接级接收窗口, 所有 stream 共用
+         */
+        int connectionWindowSize = 1024 * 1024;
+        int maxFrameSize = 16_384;
+        /**
+         * HPACK 动态表大小
+         */
+        int headerTableSize = 4096;
+        /**
+         * 解压后请求头的最大字节数
+         */
+        int maxHeaderListSize = 8192;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+        }
+
+        public int getInitialWindowSize() {
+            return initialWindowSize;
+        }
+
+        public void setInitialWindowSize(int initialWindowSize) {
+            this.initialWindowSize = initialWindowSize;
+        }
+
+        public int getConnectionWindowSize() {
+            return connectionWindowSize;
+        }
+
+        public void setConnectionWindowSize(int connectionWindowSize) {
+            this.connectionWindowSize = connectionWindowSize;
+        }
+
+        public int getMaxFrameSize() {
+            return maxFrameSize;
+        }
+
+        public void setMaxFrameSize(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        public int getHeaderTableSize() {
+            return headerTableSize;
+        }
+
+        public void setHeaderTableSize(int headerTableSize) {
+            this.headerTableSize = headerTableSize;
+        }
+
+        public int getMaxHeaderListSize() {
+            return maxHeaderListSize;
+        }
+
+        public void setMaxHeaderListSize(int maxHeaderListSize) {
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
     }
 
     public static class Location {
         String proxyPass;
-
+        /**
+         * 流式转发, 不聚合请求和响应, 适合大 body
+         */
+        boolean streaming;
+        Compression compression = new Compression();
+        CachePolicy cache = new CachePolicy();
+        /**
+         * 限流, 不配置时不限流
+         */
+        RateLimit rateLimit;
+        Timeout timeout = new Timeout();
+        Retry retry = new Retry();
+        /**
+         * 对冲请求, 不配置时不开启
+         */
+        Hedge hedge;
 
         public String getProxyPass() {
             return proxyPass;
@@ -93,5 +1227,368 @@ public class ProxyConf {
         public void setProxyPass(String proxyPass) {
             this.proxyPass = proxyPass;
         }
+
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        public void setStreaming(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        public void setCompression(Compression compression) {
+            this.compression = compression;
+        }
+
+        public CachePolicy getCache() {
+            return cache;
+        }
+
+        public void setCache(CachePolicy cache) {
+            this.cache = cache;
+        }
+
+        public RateLimit getRateLimit() {
+            return rateLimit;
+        }
+
+        public void setRateLimit(RateLimit rateLimit) {
+            this.rateLimit = rateLimit;
+        }
+
+        public Timeout getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        public Retry getRetry() {
+            return retry;
+        }
+
+        public void setRetry(Retry retry) {
+            this.retry = retry;
+        }
+
+        public Hedge getHedge() {
+            return hedge;
+        }
+
+        public void setHedge(Hedge hedge) {
+            this.hedge = hedge;
+        }
+    }
+
+    /**
+     * location 的对冲请求配置, 只对非流式的 GET、HEAD、OPTIONS 请求生效.
+     * 等待一段时间还没有响应时向同一个 upstream 的另一个后端再发一次, 先到的响应生效
+     */
+    public static class Hedge {
+        /**
+         * 发出对冲请求之前最少等待的时间 (毫秒)
+         */
+        long delay = 20;
+        /**
+         * 大于 0 时按 location 观察到的这个分位数的耗时等待, 不小于 delay; 0 表示固定等待 delay
+         */
+        double percentile = 95;
+        /**
+         * 对冲请求不超过请求数的这个比例
+         */
+        double budget = 0.05;
+
+        public long getDelay() {
+            return delay;
+        }
+
+        public void setDelay(long delay) {
+            this.delay = delay;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        public double getBudget() {
+            return budget;
+        }
+
+        public void setBudget(double budget) {
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * location 的后端超时 (毫秒), 超时返回 504, 0 表示不限制
+     */
+    public static class Timeout {
+        /**
+         * 拿到后端连接的时间, 包括建连、TLS 握手和并发限制的排队
+         */
+        long connect = 5000;
+        /**
+         * 请求发完到收到响应头的时间
+         */
+        long firstByte = 60000;
+        /**
+         * 从收到请求到响应结束的时间, 包括重试
+         */
+        long total;
+
+        public long getConnect() {
+            return connect;
+        }
+
+        public void setConnect(long connect) {
+            this.connect = connect;
+        }
+
+        public long getFirstByte() {
+            return firstByte;
+        }
+
+        public void setFirstByte(long firstByte) {
+            this.firstByte = firstByte;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public void setTotal(long total) {
+            this.total = total;
+        }
+    }
+
+    /**
+     * location 的重试配置. 只重试非流式的请求, 并且换同一个 upstream 里的另一个后端;
+     * 连接失败时请求还没有发出, 任何方法都可以重试, 已经发出的只重试幂等的方法
+     */
+    public static class Retry {
+        /**
+         * 最多尝试的次数, 包括第一次, 1 表示不重试
+         */
+        int attempts = 2;
+        /**
+         * 重试预算, 重试数不超过请求数的这个比例, 后端整体故障时重试不会放大流量
+         */
+        double budget = 0.2;
+        /**
+         * 请求很少时每秒至少允许的重试数
+         */
+        int minPerSecond = 10;
+        /**
+         * 收到这些状态码时重试, 只对非流式的响应生效
+         */
+        List<Integer> statuses = Arrays.asList(502, 503, 504);
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public void setAttempts(int attempts) {
+            this.attempts = attempts;
+        }
+
+        public double getBudget() {
+            return budget;
+        }
+
+        public void setBudget(double budget) {
+            this.budget = budget;
+        }
+
+        public int getMinPerSecond() {
+            return minPerSecond;
+        }
+
+        public void setMinPerSecond(int minPerSecond) {
+            this.minPerSecond = minPerSecond;
+        }
+
+        public List<Integer> getStatuses() {
+            return statuses;
+        }
+
+        public void setStatuses(List<Integer> statuses) {
+            this.statuses = statuses;
+        }
+    }
+
+    /**
+     * location 的限流配置, 超出的请求直接返回 429
+     */
+    public static class RateLimit {
+        /**
+         * 每个 key 每秒允许的请求数
+         */
+        double rate;
+        /**
+         * 在 rate 之外允许突发的请求数
+         */
+        int burst;
+        /**
+         * ip: 按客户端地址; route: 整个 location 共用; header:X-Api-Key: 按请求头的值, 没有该请求头时按客户端地址
+         */
+        String key = "ip";
+        /**
+         * 最多记录的 key 数量, 超过时先淘汰已经恢复满额的 key
+         */
+        int maxKeys = 100_000;
+
+        public double getRate() {
+            return rate;
+        }
+
+        public void setRate(double rate) {
+            this.rate = rate;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public void setKey(String key) {
+            this.key = key;
+        }
+
+        public int getMaxKeys() {
+            return maxKeys;
+        }
+
+        public void setMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+    }
+
+    /**
+     * location 的缓存配置, 只对非流式转发的 GET 请求生效
+     */
+    public static class CachePolicy {
+        boolean enabled;
+        long maxEntrySize = 1024 * 1024;
+        /**
+         * 后端没有给出 Cache-Control 和 Expires 时的缓存秒数, 0 表示不缓存
+         */
+        long defaultMaxAge;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxEntrySize() {
+            return maxEntrySize;
+        }
+
+        public void setMaxEntrySize(long maxEntrySize) {
+            this.maxEntrySize = maxEntrySize;
+        }
+
+        public long getDefaultMaxAge() {
+            return defaultMaxAge;
+        }
+
+        public void setDefaultMaxAge(long defaultMaxAge) {
+            this.defaultMaxAge = defaultMaxAge;
+        }
+    }
+
+    /**
+     * 响应压缩配置, 后端已压缩的响应不会再压缩
+     */
+    public static class Compression {
+        boolean enabled = true;
+        int level = 6;
+        /**
+         * 小于该长度的响应不压缩, 没有 Content-Length 的响应总是压缩
+         */
+        long minLength = 1024;
+        /**
+         * 按顺序选择客户端接受的算法, 支持 gzip、deflate
+         */
+        List<String> algorithms = List.of("gzip", "deflate");
+        /**
+         * 可压缩的 Content-Type, 支持 text/* 这样的前缀匹配
+         */
+        List<String> types = List.of("text/*", "application/json", "application/javascript", "application/xml");
+
+        public boolean matchType(String contentType) {
+            if (contentType == null) {
+                return false;
+            }
+            for (String type : types) {
+                if (type.endsWith("*")) {
+                    if (contentType.regionMatches(true, 0, type, 0, type.length() - 1)) {
+                        return true;
+                    }
+                } else if (contentType.regionMatches(true, 0, type, 0, type.length())
+                        && (contentType.length() == type.length() || contentType.charAt(type.length()) == ';')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public void setLevel(int level) {
+            this.level = level;
+        }
+
+        public long getMinLength() {
+            return minLength;
+        }
+
+        public void setMinLength(long minLength) {
+            this.minLength = minLength;
+        }
+
+        public List<String> getAlgorithms() {
+            return algorithms;
+        }
+
+        public void setAlgorithms(List<String> algorithms) {
+            this.algorithms = algorithms;
+        }
+
+        public List<String> getTypes() {
+            return types;
+        }
+
+        public void setTypes(List<String> types) {
+            this.types = types;
+        }
     }
 }
@@ -15,13 +15,137 @@
  */
 package com.github.javahello.proxy.conf;
 
+import com.github.javahello.proxy.core.ClientTls;
+import com.github.javahello.proxy.lb.ServerHealth;
+import com.github.javahello.proxy.limit.ConcurrencyLimiter;
+import com.github.javahello.proxy.metrics.UpstreamMetrics;
+import io.netty.util.AsciiString;
+import io.netty.util.NetUtil;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author kailuo
  */
 public class UpstreamServer {
+    public static final String HTTP = "http";
+    public static final String HTTPS = "https";
+
     private String prefix;
+    String scheme = HTTP;
     String address;
+    /**
+     * 配置里写的是域名时, 每个解析出来的 IP 是一个后端, 这里保存原来的域名, 用于 Host 头和 SNI
+     */
+    String hostname;
+    /**
+     * DNS 解析出来的地址, 配置的是 IP 时为 null
+     */
+    private InetAddress resolved;
     int port;
+    int weight = 1;
+    ProxyConf.Pool pool = new ProxyConf.Pool();
+    /**
+     * 已发出还没有完成的请求数, 给负载均衡使用
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final ServerHealth health = new ServerHealth();
+    private AsciiString hostHeader;
+    private String key;
+    private UpstreamMetrics metrics;
+    /**
+     * https 后端使用, 同一个 upstream 共用
+     */
+    private volatile ClientTls tls;
+    /**
+     * 所属 upstream 的并发限制, 没有配置时为 null
+     */
+    private volatile ConcurrencyLimiter limiter;
+
+    /**
+     * 为域名解析出来的一个地址创建后端, 其他配置和当前对象相同
+     *
+     * @param resolved
+     * @return
+     */
+    public UpstreamServer withAddress(InetAddress resolved) {
+        UpstreamServer server = new UpstreamServer();
+        server.prefix = prefix;
+        server.scheme = scheme;
+        server.hostname = getHostname();
+        server.address = resolved.getHostAddress();
+        server.resolved = resolved;
+        server.port = port;
+        server.weight = weight;
+        server.pool = pool;
+        return server;
+    }
+
+    /**
+     * 地址是否需要 DNS 解析
+     *
+     * @return
+     */
+    public boolean needsResolve() {
+        return resolved == null && !NetUtil.isValidIpV4Address(address) && !NetUtil.isValidIpV6Address(address);
+    }
+
+    /**
+     * 连接地址, 不会在调用线程上做 DNS 解析
+     *
+     * @return
+     */
+    public InetSocketAddress socketAddress() {
+        if (resolved != null) {
+            return new InetSocketAddress(resolved, port);
+        }
+        if (needsResolve()) {
+            return InetSocketAddress.createUnresolved(address, port);
+        }
+        // IP 字面量直接解析, 不会查询 DNS
+        return new InetSocketAddress(address, port);
+    }
+
+    /**
+     * 配置里的域名, 配置的是 IP 时就是 IP
+     *
+     * @return
+     */
+    public String getHostname() {
+        return hostname == null ? address : hostname;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public void setScheme(String scheme) {
+        this.scheme = scheme;
+        this.key = null;
+        this.hostHeader = null;
+    }
+
+    public boolean isSecure() {
+        return HTTPS.equals(scheme);
+    }
+
+    public ClientTls getTls() {
+        return tls;
+    }
+
+    public void setTls(ClientTls tls) {
+        this.tls = tls;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public void setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
 
     public String getAddress() {
         return address;
@@ -29,6 +153,8 @@ public class UpstreamServer {
 
     public void setAddress(String address) {
         this.address = address;
+        this.key = null;
+        this.hostHeader = null;
     }
 
     public int getPort() {
@@ -37,6 +163,8 @@ public class UpstreamServer {
 
     public void setPort(int port) {
         this.port = port;
+        this.key = null;
+        this.hostHeader = null;
     }
 
     public String getPrefix() {
@@ -47,7 +175,78 @@ public class UpstreamServer {
         this.prefix = prefix;
     }
 
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public void incrementOutstanding() {
+        outstanding.incrementAndGet();
+    }
+
+    public void decrementOutstanding() {
+        outstanding.decrementAndGet();
+    }
+
+    public ServerHealth getHealth() {
+        return health;
+    }
+
+    public UpstreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(UpstreamMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ProxyConf.Pool getPool() {
+        return pool;
+    }
+
+    public void setPool(ProxyConf.Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 转发给后端的 Host 头, 第一次使用时编码好, 之后每个请求直接复用
+     *
+     * @return
+     */
+    public AsciiString hostHeader() {
+        AsciiString hostHeader = this.hostHeader;
+        if (hostHeader == null) {
+            String host = getHostname();
+            hostHeader = new AsciiString(port == defaultPort(scheme) ? host : host + ":" + port);
+            this.hostHeader = hostHeader;
+        }
+        return hostHeader;
+    }
+
+    /**
+     * 连接池和指标使用的 key, https 后端带上 scheme, 和同地址的 http 后端区分开,
+     * 域名解析出来的后端是 "域名/IP:端口"
+     *
+     * @return
+     */
     public String toKey() {
-        return address + ":" + port;
+        String key = this.key;
+        if (key == null) {
+            key = hostname == null ? address + ":" + port : hostname + "/" + address + ":" + port;
+            key = isSecure() ? HTTPS + "://" + key : key;
+            this.key = key;
+        }
+        return key;
+    }
+
+    public static int defaultPort(String scheme) {
+        return HTTPS.equals(scheme) ? 443 : 80;
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.util.JsonHelper;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.io.Closeable;
+
+/**
+ * 管理端口, 和代理端口分开监听. 提供 Prometheus 格式的 /metrics, JSON 格式的最近慢请求 /slow,
+ * POST /reload 重新加载配置
+ *
+ * @author kailuo
+ */
+public class AdminServer implements Closeable {
+    static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private Channel serverChannel;
+
+    private AdminServer() {
+    }
+
+    /**
+     * @param reloader 为 null 时不支持 /reload
+     */
+    public static AdminServer create(ProxyConf.Admin conf, ProxyMetrics metrics, ProxyReloader reloader,
+                                     ProxyTransport transport) {
+        AdminServer adminServer = new AdminServer();
+        if (conf == null || conf.getListen() <= 0) {
+            return adminServer;
+        }
+        new ServerBootstrap()
+                .group(transport.bossGroup, transport.workerGroup)
+                .channel(transport.serverChannelClass)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ChannelPipeline cp = ch.pipeline();
+                        cp.addLast(new HttpServerCodec());
+                        cp.addLast(new HttpObjectAggregator(8192));
+                        cp.addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+                                boolean keepAlive = HttpUtil.isKeepAlive(req);
+                                if (reloader != null && "/reload".equals(new QueryStringDecoder(req.uri()).path())) {
+                                    if (req.method() != HttpMethod.POST) {
+                                        write(ctx, ProxyServerHandler.errorResponse(HttpResponseStatus.METHOD_NOT_ALLOWED), keepAlive);
+                                        return;
+                                    }
+                                    // 重新加载会读文件、绑定端口, 不能占用 IO 线程
+                                    GlobalEventExecutor.INSTANCE.execute(() -> {
+                                        boolean success = reloader.reload();
+                                        write(ctx, ProxyServerHandler.errorResponse(success ? HttpResponseStatus.OK
+                                                : HttpResponseStatus.UNPROCESSABLE_ENTITY), keepAlive);
+                                    });
+                                    return;
+                                }
+                                write(ctx, handle(req, metrics), keepAlive);
+                            }
+                        });
+                    }
+                })
+                .bind(conf.getHost(), conf.getListen())
+                .addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        adminServer.serverChannel = future.channel();
+                        System.out.println(conf.getHost() + ":" + conf.getListen() + " 管理端口启动成功");
+                    } else {
+                        future.cause().printStackTrace();
+                    }
+                });
+        return adminServer;
+    }
+
+    private static void write(ChannelHandlerContext ctx, FullHttpResponse response, boolean keepAlive) {
+        HttpUtil.setKeepAlive(response, keepAlive);
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    static FullHttpResponse handle(FullHttpRequest req, ProxyMetrics metrics) {
+        String path = new QueryStringDecoder(req.uri()).path();
+        if (!"/metrics".equals(path) && !"/slow".equals(path)) {
+            return ProxyServerHandler.errorResponse(HttpResponseStatus.NOT_FOUND);
+        }
+        if (req.method() != HttpMethod.GET && req.method() != HttpMethod.HEAD) {
+            return ProxyServerHandler.errorResponse(HttpResponseStatus.METHOD_NOT_ALLOWED);
+        }
+        boolean slow = "/slow".equals(path);
+        byte[] body;
+        try {
+            body = (slow ? JsonHelper.serializer(metrics.slowRequests().snapshot()) : metrics.scrape()).getBytes(CharsetUtil.UTF_8);
+        } catch (JsonProcessingException e) {
+            return ProxyServerHandler.errorResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                req.method() == HttpMethod.HEAD ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(body));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, slow ? JSON_CONTENT_TYPE : METRICS_CONTENT_TYPE);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+        return response;
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+}
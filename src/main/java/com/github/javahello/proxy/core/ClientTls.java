@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * 连接一个 https upstream 使用的 SslContext, 同一个 upstream 的所有后端和连接共用.
+ * <p>
+ * 会话按 "SNI 域名:端口" 缓存在 SslContext 里, 连接池新建连接时复用之前的会话, 只需要一次简短握手.
+ *
+ * @author kailuo
+ */
+public final class ClientTls {
+    private final ProxyConf.UpstreamTls conf;
+    /**
+     * CA 证书文件的修改时间, 路径没变但文件换了时也要重新创建
+     */
+    private final long trustModified;
+    private final SslContext sslContext;
+    private final String serverName;
+    private final boolean verifyHostname;
+    private final long handshakeTimeout;
+
+    private ClientTls(SslContext sslContext, ProxyConf.UpstreamTls conf) {
+        this.conf = conf;
+        this.trustModified = trustModified(conf);
+        this.sslContext = sslContext;
+        this.serverName = conf.getServerName();
+        this.verifyHostname = conf.isVerifyHostname();
+        this.handshakeTimeout = conf.getHandshakeTimeout();
+    }
+
+    /**
+     * netty 默认关闭 OpenSSL 客户端的会话缓存, 连接 https 后端需要它来复用会话.
+     * 这个开关在 OpenSSL 相关的类第一次加载时读取 (OpenSsl 初始化时就会加载), 所以在选择 openssl provider 时最先设置
+     */
+    static void enableSessionCache() {
+        if (System.getProperty("io.netty.handler.ssl.openssl.sessionCacheClient") == null) {
+            System.setProperty("io.netty.handler.ssl.openssl.sessionCacheClient", "true");
+        }
+    }
+
+    /**
+     * @param conf
+     * @return
+     * @throws IOException CA 证书读取失败或者 provider 不可用
+     */
+    static ClientTls create(ProxyConf.UpstreamTls conf) throws IOException {
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                .sslProvider(ServerTls.provider(conf.getProvider()))
+                .protocols(conf.getProtocols())
+                .ciphers(conf.getCiphers(), SupportedCipherSuiteFilter.INSTANCE)
+                .sessionCacheSize(conf.getSessionCacheSize())
+                .sessionTimeout(conf.getSessionTimeout());
+        if (conf.getTrustCertificates() != null) {
+            builder.trustManager(new File(conf.getTrustCertificates()));
+        }
+        return new ClientTls(builder.build(), conf);
+    }
+
+    /**
+     * 重新加载配置时判断能否沿用, 沿用时已经缓存的会话继续有效
+     *
+     * @param other
+     * @return
+     */
+    boolean sameAs(ProxyConf.UpstreamTls other) {
+        return String.valueOf(other.getProvider()).equalsIgnoreCase(String.valueOf(conf.getProvider()))
+                && Objects.equals(other.getProtocols(), conf.getProtocols())
+                && Objects.equals(other.getCiphers(), conf.getCiphers())
+                && Objects.equals(other.getTrustCertificates(), conf.getTrustCertificates())
+                && trustModified(other) == trustModified
+                && other.isVerifyHostname() == conf.isVerifyHostname()
+                && Objects.equals(other.getServerName(), conf.getServerName())
+                && other.getSessionCacheSize() == conf.getSessionCacheSize()
+                && other.getSessionTimeout() == conf.getSessionTimeout()
+                && other.getHandshakeTimeout() == conf.getHandshakeTimeout();
+    }
+
+    private static long trustModified(ProxyConf.UpstreamTls conf) {
+        return conf.getTrustCertificates() == null ? 0 : new File(conf.getTrustCertificates()).lastModified();
+    }
+
+    /**
+     * 创建连接后端的 SslHandler, 发送 SNI 并且按需校验证书里的域名
+     *
+     * @param alloc
+     * @param server
+     * @return
+     */
+    SslHandler newHandler(ByteBufAllocator alloc, UpstreamServer server) {
+        String host = serverName == null ? server.getHostname() : serverName;
+        // 带上 host 和端口, SslContext 才会查找和保存可以复用的会话
+        SslHandler sslHandler = sslContext.newHandler(alloc, host, server.getPort());
+        if (verifyHostname) {
+            SSLEngine engine = sslHandler.engine();
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        sslHandler.setHandshakeTimeoutMillis(handshakeTimeout);
+        return sslHandler;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.metrics.UpstreamMetrics;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 后端连接池, 每个 UpstreamServer 一个.
+ * <p>
+ * 池按 EventLoop 拆分, 连接只在所属的 EventLoop 上创建、获取和归还, 所以不需要任何锁.
+ *
+ * @author kailuo
+ */
+public class ConnectionPool {
+    static final AttributeKey<PooledConnection> POOLED = AttributeKey.valueOf("proxy.pooled");
+    /**
+     * 连接所属的后端, 初始化 pipeline 时用来判断是否需要 TLS
+     */
+    static final AttributeKey<UpstreamServer> UPSTREAM = AttributeKey.valueOf("proxy.upstream");
+
+    final UpstreamServer upstreamServer;
+    final ProxyConf.Pool poolConf;
+    /**
+     * 创建时后端使用的 TLS 配置, http 后端为 null
+     */
+    final ClientTls tls;
+    private final Bootstrap bootstrap;
+    private final Map<EventLoop, LoopPool> loopPools = new ConcurrentHashMap<>();
+    /**
+     * 重新加载配置后已经被新的连接池替换
+     */
+    private volatile boolean retired;
+
+    ConnectionPool(Bootstrap bootstrap, UpstreamServer upstreamServer) {
+        this.bootstrap = bootstrap;
+        this.upstreamServer = upstreamServer;
+        this.poolConf = upstreamServer.getPool();
+        this.tls = upstreamServer.getTls();
+    }
+
+    /**
+     * 连接池的数量限制和 TLS 配置是否和后端当前的配置一致, 不一致时需要换新的连接池
+     *
+     * @param server
+     * @return
+     */
+    boolean sameAs(UpstreamServer server) {
+        ProxyConf.Pool conf = server.getPool();
+        return tls == server.getTls() && conf.getMaxConnections() == poolConf.getMaxConnections()
+                && conf.getMaxIdle() == poolConf.getMaxIdle() && conf.getMaxPending() == poolConf.getMaxPending()
+                && conf.getIdleTimeout() == poolConf.getIdleTimeout();
+    }
+
+    /**
+     * 在指定 EventLoop 上获取一个连接, 没有空闲连接时新建, 达到上限时排队等待归还
+     *
+     * @param eventLoop 使用该连接的下游 channel 所在的 EventLoop
+     * @return
+     */
+    public Future<Channel> acquire(EventLoop eventLoop) {
+        LoopPool loopPool = loopPools.get(eventLoop);
+        if (loopPool == null) {
+            loopPool = loopPools.computeIfAbsent(eventLoop, LoopPool::new);
+        }
+        Promise<Channel> promise = eventLoop.newPromise();
+        if (eventLoop.inEventLoop()) {
+            loopPool.acquire0(promise);
+        } else {
+            LoopPool lp = loopPool;
+            eventLoop.execute(() -> lp.acquire0(promise));
+        }
+        return promise;
+    }
+
+    /**
+     * 归还连接, keepAlive 为 false 时直接关闭
+     *
+     * @param ch
+     * @param keepAlive
+     */
+    public static void release(Channel ch, boolean keepAlive) {
+        PooledConnection pc = ch.attr(POOLED).get();
+        if (pc == null) {
+            ch.close();
+            return;
+        }
+        if (ch.eventLoop().inEventLoop()) {
+            pc.loopPool.release0(ch, keepAlive);
+        } else {
+            ch.eventLoop().execute(() -> pc.loopPool.release0(ch, keepAlive));
+        }
+    }
+
+    public void close() {
+        for (LoopPool loopPool : loopPools.values()) {
+            loopPool.eventLoop.execute(loopPool::close);
+        }
+    }
+
+    /**
+     * 被新的连接池替换, 空闲连接马上关闭. 正在排队的请求仍然从这里拿连接, 连接用完后关闭, 不再放回池中
+     */
+    void retire() {
+        retired = true;
+        for (LoopPool loopPool : loopPools.values()) {
+            loopPool.eventLoop.execute(loopPool::retire);
+        }
+    }
+
+    /**
+     * 连接在池中的状态
+     */
+    static final class PooledConnection {
+        final LoopPool loopPool;
+        long idleSince;
+        /**
+         * 当前租用该连接的下游请求
+         */
+        Object lease;
+        /**
+         * 连接上出现的异常, 连接断开时作为失败的原因
+         */
+        Throwable cause;
+
+        PooledConnection(LoopPool loopPool) {
+            this.loopPool = loopPool;
+        }
+    }
+
+    final class LoopPool {
+        final EventLoop eventLoop;
+        final Bootstrap loopBootstrap;
+        /**
+         * 空闲连接, 尾部是最近归还的, 头部是最老的
+         */
+        final ArrayDeque<Channel> idle = new ArrayDeque<>();
+        final ArrayDeque<Promise<Channel>> pending = new ArrayDeque<>();
+        int total;
+        ScheduledFuture<?> evictFuture;
+        boolean closed;
+
+        LoopPool(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+            this.loopBootstrap = bootstrap.clone(eventLoop)
+                    .attr(UPSTREAM, upstreamServer)
+                    .remoteAddress(upstreamServer.socketAddress());
+            if (!retired) {
+                long period = Math.max(1000, poolConf.getIdleTimeout() / 2);
+                this.evictFuture = eventLoop.scheduleAtFixedRate(this::evict, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void acquire0(Promise<Channel> promise) {
+            if (closed) {
+                promise.tryFailure(new IllegalStateException(upstreamServer.toKey() + " 连接池已关闭"));
+                return;
+            }
+            Channel ch;
+            // 优先使用最近归还的连接, 老连接留给空闲回收
+            while ((ch = idle.pollLast()) != null) {
+                if (ch.isActive()) {
+                    if (!promise.trySuccess(ch)) {
+                        release0(ch, true);
+                    }
+                    return;
+                }
+                ch.close();
+            }
+            if (total < poolConf.getMaxConnections()) {
+                connect(promise);
+                return;
+            }
+            if (pending.size() >= poolConf.getMaxPending()) {
+                promise.tryFailure(new IllegalStateException(upstreamServer.toKey() + " 等待连接的请求过多"));
+                return;
+            }
+            pending.addLast(promise);
+        }
+
+        private void connect(Promise<Channel> promise) {
+            total++;
+            long start = System.nanoTime();
+            ChannelFuture cf = loopBootstrap.connect();
+            Channel ch = cf.channel();
+            ch.attr(POOLED).set(new PooledConnection(this));
+            ch.closeFuture().addListener((ChannelFutureListener) future -> onClose(future.channel()));
+            cf.addListener((ChannelFutureListener) future -> {
+                SslHandler sslHandler = future.isSuccess() ? ch.pipeline().get(SslHandler.class) : null;
+                if (sslHandler == null) {
+                    connected(promise, ch, future, start);
+                } else {
+                    // https 后端握手完成才算连接成功, 握手耗时计入连接耗时
+                    sslHandler.handshakeFuture().addListener(f -> connected(promise, ch, f, start));
+                }
+            });
+        }
+
+        private void connected(Promise<Channel> promise, Channel ch, Future<?> future, long start) {
+            if (future.isSuccess()) {
+                UpstreamMetrics metrics = upstreamServer.getMetrics();
+                if (metrics != null) {
+                    metrics.onConnect(System.nanoTime() - start);
+                    ch.closeFuture().addListener(f -> metrics.onDisconnect());
+                }
+                if (!promise.trySuccess(ch)) {
+                    release0(ch, true);
+                }
+            } else {
+                ch.close();
+                promise.tryFailure(future.cause());
+            }
+        }
+
+        private void onClose(Channel ch) {
+            total--;
+            idle.remove(ch);
+            // 连接数降下来了, 为排队的请求补建连接
+            Promise<Channel> promise;
+            while (!closed && total < poolConf.getMaxConnections() && (promise = pending.pollFirst()) != null) {
+                if (!promise.isDone()) {
+                    connect(promise);
+                }
+            }
+        }
+
+        void release0(Channel ch, boolean keepAlive) {
+            PooledConnection pc = ch.attr(POOLED).get();
+            pc.lease = null;
+            if (!keepAlive || !ch.isActive() || closed) {
+                ch.close();
+                return;
+            }
+            Promise<Channel> promise;
+            while ((promise = pending.pollFirst()) != null) {
+                if (promise.trySuccess(ch)) {
+                    return;
+                }
+            }
+            if (retired || idle.size() >= poolConf.getMaxIdle()) {
+                ch.close();
+                return;
+            }
+            pc.idleSince = System.nanoTime();
+            idle.addLast(ch);
+        }
+
+        /**
+         * 关闭空闲超时的连接
+         */
+        private void evict() {
+            long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(poolConf.getIdleTimeout());
+            Channel ch;
+            while ((ch = idle.peekFirst()) != null && ch.attr(POOLED).get().idleSince - deadline < 0) {
+                idle.pollFirst().close();
+            }
+        }
+
+        void retire() {
+            if (evictFuture != null) {
+                evictFuture.cancel(false);
+                evictFuture = null;
+            }
+            Channel ch;
+            while ((ch = idle.pollFirst()) != null) {
+                ch.close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            retire();
+            Promise<Channel> promise;
+            while ((promise = pending.pollFirst()) != null) {
+                promise.tryFailure(new IllegalStateException(upstreamServer.toKey() + " 连接池已关闭"));
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.AsciiString;
+
+/**
+ * 转发前在原请求上直接改写请求头, 不复制请求, 也不生成中间字符串.
+ * <p>
+ * 写入的值都是预先编码好的 {@link AsciiString}, 只有下游已经带了 X-Forwarded-For
+ * 或者 Connection 里列了自定义头时才会分配.
+ *
+ * @author kailuo
+ */
+public final class ForwardHeaders {
+    public static final AsciiString X_FORWARDED_FOR = AsciiString.cached("x-forwarded-for");
+    public static final AsciiString X_FORWARDED_PROTO = AsciiString.cached("x-forwarded-proto");
+    public static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+    /**
+     * 代替已经废弃的 HttpHeaderNames.KEEP_ALIVE
+     */
+    public static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+    public static final AsciiString HTTP = AsciiString.cached("http");
+    public static final AsciiString HTTPS = AsciiString.cached("https");
+    private static final AsciiString XFF_SEPARATOR = AsciiString.cached(", ");
+
+    /**
+     * 逐跳的请求头, 不能转发给后端. Transfer-Encoding 也是逐跳的, 但流式请求的分块由编码器按它输出, 这里保留
+     */
+    private static final AsciiString[] HOP_BY_HOP = {
+            HttpHeaderNames.CONNECTION,
+            KEEP_ALIVE,
+            PROXY_CONNECTION,
+            HttpHeaderNames.TE,
+            HttpHeaderNames.TRAILER,
+            HttpHeaderNames.UPGRADE,
+            // HTTP/2 请求转成 HTTP/1.1 时 Netty 加的内部头
+            HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(),
+            HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(),
+    };
+
+    private ForwardHeaders() {
+    }
+
+    /**
+     * 改写要转发给后端的请求头
+     *
+     * @param headers  下游请求头, 直接修改
+     * @param host     后端的 Host
+     * @param clientIp 下游客户端地址
+     * @param proto    下游使用的协议, {@link #HTTP} 或者 {@link #HTTPS}
+     */
+    public static void rewrite(HttpHeaders headers, AsciiString host, AsciiString clientIp, AsciiString proto) {
+        String connection = headers.get(HttpHeaderNames.CONNECTION);
+        if (connection != null) {
+            removeConnectionTokens(headers, connection);
+        }
+        for (AsciiString name : HOP_BY_HOP) {
+            headers.remove(name);
+        }
+        headers.set(HttpHeaderNames.HOST, host);
+        if (clientIp != null) {
+            String prior = headers.get(X_FORWARDED_FOR);
+            headers.set(X_FORWARDED_FOR, prior == null ? clientIp : new AsciiString(prior).concat(XFF_SEPARATOR).concat(clientIp));
+        }
+        headers.set(X_FORWARDED_PROTO, proto);
+    }
+
+    /**
+     * 改写后端响应头: 去掉后端连接的 Connection 和 Keep-Alive, 后端连接是否复用由连接池决定, 不影响下游连接
+     *
+     * @param headers 后端响应头, 直接修改
+     */
+    public static void rewriteResponse(HttpHeaders headers) {
+        String connection = headers.get(HttpHeaderNames.CONNECTION);
+        if (connection == null) {
+            return;
+        }
+        removeConnectionTokens(headers, connection);
+        headers.remove(HttpHeaderNames.CONNECTION);
+        headers.remove(KEEP_ALIVE);
+    }
+
+    /**
+     * Connection 里列出的头也是逐跳的, 常见的 keep-alive/close/upgrade 不需要额外处理
+     */
+    private static void removeConnectionTokens(HttpHeaders headers, String connection) {
+        int len = connection.length();
+        int start = 0;
+        while (start < len) {
+            int end = connection.indexOf(',', start);
+            if (end < 0) {
+                end = len;
+            }
+            int s = start;
+            int e = end;
+            while (s < e && connection.charAt(s) == ' ') {
+                s++;
+            }
+            while (e > s && connection.charAt(e - 1) == ' ') {
+                e--;
+            }
+            if (e > s && !isKnownToken(connection, s, e)) {
+                headers.remove(connection.substring(s, e));
+            }
+            start = end + 1;
+        }
+    }
+
+    private static boolean isKnownToken(String value, int start, int end) {
+        return regionEquals(value, start, end, HttpHeaderValues.KEEP_ALIVE)
+                || regionEquals(value, start, end, HttpHeaderValues.CLOSE)
+                || regionEquals(value, start, end, HttpHeaderValues.UPGRADE);
+    }
+
+    private static boolean regionEquals(String value, int start, int end, AsciiString token) {
+        return end - start == token.length() && value.regionMatches(true, start, token.toString(), 0, token.length());
+    }
+}
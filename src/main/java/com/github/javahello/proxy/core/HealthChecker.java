@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.lb.OutlierDetector;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主动健康检查, 对配置了 healthCheck.path 的 upstream 定时发 GET 请求探测.
+ * <p>
+ * 每个后端固定在一个 EventLoop 上探测, 结果也在这个 EventLoop 上处理, 探测使用单独的短连接, 不占用连接池.
+ *
+ * @author kailuo
+ */
+public class HealthChecker implements Closeable {
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    private HealthChecker() {
+    }
+
+    public static HealthChecker start(ProxyContext proxyContext, ProxyTransport transport) {
+        HealthChecker healthChecker = new HealthChecker();
+        for (OutlierDetector detector : proxyContext.outlierDetectors.values()) {
+            ProxyConf.HealthCheck conf = detector.getConf();
+            if (conf.getPath() == null) {
+                continue;
+            }
+            for (UpstreamServer server : detector.getServers()) {
+                EventLoop eventLoop = transport.workerGroup.next();
+                Bootstrap bootstrap = new Bootstrap()
+                        .group(eventLoop)
+                        .channel(transport.channelClass)
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) conf.getTimeout())
+                        .handler(new ChannelInitializer<Channel>() {
+                            @Override
+                            protected void initChannel(Channel ch) {
+                                if (server.getTls() != null) {
+                                    ch.pipeline().addLast(server.getTls().newHandler(ch.alloc(), server));
+                                }
+                                ch.pipeline().addLast(new HttpClientCodec());
+                                ch.pipeline().addLast(new HttpObjectAggregator(8192));
+                            }
+                        });
+                healthChecker.tasks.add(eventLoop.scheduleWithFixedDelay(
+                        () -> probe(bootstrap, detector, server),
+                        0, conf.getInterval(), TimeUnit.MILLISECONDS));
+            }
+        }
+        return healthChecker;
+    }
+
+    private static void probe(Bootstrap bootstrap, OutlierDetector detector, UpstreamServer server) {
+        ProxyConf.HealthCheck conf = detector.getConf();
+        Probe probe = new Probe(detector, server);
+        bootstrap.connect(server.socketAddress()).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                probe.done(false);
+                return;
+            }
+            Channel ch = future.channel();
+            ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpResponse>() {
+                @Override
+                protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                    int code = msg.status().code();
+                    probe.done(code >= 200 && code < 400);
+                    ctx.close();
+                }
+
+                @Override
+                public void channelInactive(ChannelHandlerContext ctx) {
+                    probe.done(false);
+                }
+
+                @Override
+                public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                    ctx.close();
+                }
+            });
+            ch.eventLoop().schedule(() -> {
+                probe.done(false);
+                ch.close();
+            }, conf.getTimeout(), TimeUnit.MILLISECONDS);
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, conf.getPath());
+            request.headers().set(HttpHeaderNames.HOST, server.hostHeader());
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            ch.writeAndFlush(request);
+        });
+    }
+
+    @Override
+    public void close() {
+        for (ScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * 一次探测, 超时、断开和收到响应只取第一个结果
+     */
+    private static class Probe {
+        final OutlierDetector detector;
+        final UpstreamServer server;
+        boolean reported;
+
+        Probe(OutlierDetector detector, UpstreamServer server) {
+            this.detector = detector;
+            this.server = server;
+        }
+
+        void done(boolean healthy) {
+            if (!reported) {
+                reported = true;
+                detector.onProbe(server, healthy);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.AsciiString;
+
+import java.util.List;
+
+/**
+ * 下游 HTTP/2 支持.
+ * <p>
+ * 连接上只有帧编解码和多路复用, 每个 stream 是一个子 channel, 子 channel 上跑和 HTTP/1.1 一样的处理器,
+ * 请求仍然通过 {@link ProxyClient} 的 HTTP/1.1 连接池转发. 子 channel 停止读取时不归还接收窗口,
+ * 客户端在窗口用完后停止发送; 子 channel 的可写状态跟随对端窗口, 写不动时停止读后端.
+ *
+ * @author kailuo
+ */
+final class Http2Server {
+    /**
+     * h2c Upgrade 请求允许的最大 body
+     */
+    static final int MAX_UPGRADE_CONTENT_LENGTH = 64 * 1024;
+
+    private Http2Server() {
+    }
+
+    static Http2Settings settings(ProxyConf.Http2 conf) {
+        return new Http2Settings()
+                .maxConcurrentStreams(conf.getMaxConcurrentStreams())
+                .initialWindowSize(conf.getInitialWindowSize())
+                .maxFrameSize(conf.getMaxFrameSize())
+                .headerTableSize(conf.getHeaderTableSize())
+                .maxHeaderListSize(conf.getMaxHeaderListSize());
+    }
+
+    static Http2FrameCodec frameCodec(ProxyConf.Http2 conf) {
+        return Http2FrameCodecBuilder.forServer()
+                .initialSettings(settings(conf))
+                .build();
+    }
+
+    /**
+     * 已经确定是 HTTP/2 的连接, 直接加上 HTTP/2 的处理器
+     *
+     * @param cp
+     * @param conf
+     * @param streamInitializer 初始化每个 stream 的子 channel
+     */
+    static void configure(ChannelPipeline cp, ProxyConf.Http2 conf, ChannelHandler streamInitializer) {
+        cp.addLast("h2-codec", frameCodec(conf));
+        cp.addLast("h2-connection-window", new ConnectionWindow(conf.getConnectionWindowSize()));
+        cp.addLast("h2-multiplex", new Http2MultiplexHandler(streamInitializer));
+    }
+
+    /**
+     * 明文端口同时支持 HTTP/1.1 和 h2c, 根据连接前言或 Upgrade 请求切换.
+     * 切换到 HTTP/2 时移除后面的 HTTP/1.1 处理器
+     *
+     * @param sourceCodec       HTTP/1.1 编解码器
+     * @param conf
+     * @param streamInitializer
+     * @param http1Handlers     切换时要移除的 HTTP/1.1 处理器名
+     * @return
+     */
+    static ChannelHandler cleartext(HttpServerCodec sourceCodec, ProxyConf.Http2 conf, ChannelHandler streamInitializer,
+                                    String... http1Handlers) {
+        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(sourceCodec, protocol -> {
+            if (!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                return null;
+            }
+            return new Http2ServerUpgradeCodec(frameCodec(conf), new ConnectionWindow(conf.getConnectionWindowSize()),
+                    new Http2MultiplexHandler(streamInitializer)) {
+                @Override
+                public void upgradeTo(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest) {
+                    removeAll(ctx.pipeline(), http1Handlers);
+                    super.upgradeTo(ctx, upgradeRequest);
+                }
+            };
+        }, MAX_UPGRADE_CONTENT_LENGTH) {
+            @Override
+            protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+                // 升级请求的 body 要整个缓存, 带 body 的请求不升级, 按 HTTP/1.1 处理
+                if (msg instanceof HttpRequest && hasBody((HttpRequest) msg)) {
+                    ((HttpRequest) msg).headers().remove(HttpHeaderNames.UPGRADE);
+                }
+                super.decode(ctx, msg, out);
+            }
+        };
+        return new CleartextHttp2ServerUpgradeHandler(sourceCodec, upgradeHandler, new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                // prior knowledge
+                removeAll(ch.pipeline(), http1Handlers);
+                configure(ch.pipeline(), conf, streamInitializer);
+            }
+        });
+    }
+
+    private static boolean hasBody(HttpRequest request) {
+        return HttpUtil.getContentLength(request, 0L) > 0 || HttpUtil.isTransferEncodingChunked(request);
+    }
+
+    private static void removeAll(ChannelPipeline cp, String... names) {
+        for (String name : names) {
+            if (cp.get(name) != null) {
+                cp.remove(name);
+            }
+        }
+    }
+
+    /**
+     * 默认的连接级窗口只有 64K, 所有 stream 共用, 连接建立后一次性调大
+     */
+    static class ConnectionWindow extends ChannelInboundHandlerAdapter {
+        private final int windowSize;
+
+        ConnectionWindow(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (ctx.channel().isActive()) {
+                increment(ctx);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            increment(ctx);
+            super.channelActive(ctx);
+        }
+
+        private void increment(ChannelHandlerContext ctx) {
+            int delta = windowSize - Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+            if (delta > 0) {
+                ctx.writeAndFlush(new DefaultHttp2WindowUpdateFrame(delta));
+            }
+            ctx.pipeline().remove(this);
+        }
+    }
+}
@@ -15,107 +15,1250 @@
  */
 package com.github.javahello.proxy.core;
 
+import com.github.javahello.proxy.cache.ResponseCache;
+import com.github.javahello.proxy.conf.ProxyConf;
 import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.limit.ConcurrencyLimiter;
+import com.github.javahello.proxy.limit.RetryBudget;
+import com.github.javahello.proxy.log.AccessLog;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.metrics.RouteMetrics;
+import com.github.javahello.proxy.metrics.SlowRequests;
+import com.github.javahello.proxy.metrics.UpstreamMetrics;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.codec.http.HttpContentDecompressor;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseNotifier;
+import io.netty.util.concurrent.ScheduledFuture;
 
-import java.net.InetSocketAddress;
-import java.util.Map;
+import java.net.SocketAddress;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class ProxyClient {
     static int maxContentLength = 1024 * 1024;
+    private static final AsciiString SERVER_TIMING = AsciiString.cached("server-timing");
     Bootstrap clientBootstrap;
-    final Map<ChannelId, HttpClient> serverMap = new ConcurrentHashMap<>();
-    final Map<ChannelId, HttpClient> clientMap = new ConcurrentHashMap<>();
+    private ChannelHandler upstreamTraffic;
+    final Map<String, ConnectionPool> poolMap = new ConcurrentHashMap<>();
 
     private ProxyClient() {
     }
 
 
-    interface Pass {
-        ChannelFuture write(ChannelHandlerContext ctx, Object msg);
-
-        Channel flush(ChannelHandlerContext ctx);
+    private static HttpClient lease(Channel ch) {
+        ConnectionPool.PooledConnection pc = ch.attr(ConnectionPool.POOLED).get();
+        return pc == null ? null : (HttpClient) pc.lease;
     }
 
-
     private void flush(ChannelHandlerContext ctx) {
-        serverMap.get(ctx.channel().id()).flush(ctx);
+        HttpClient httpClient = lease(ctx.channel());
+        if (httpClient != null) {
+            httpClient.owner.flush(httpClient);
+        }
     }
 
-    private void write(ChannelHandlerContext ctx, Object msg) {
-        serverMap.get(ctx.channel().id()).write(ctx, msg);
+    private void read(ChannelHandlerContext ctx, Object msg) {
+        HttpClient httpClient = lease(ctx.channel());
+        if (httpClient == null) {
+            // 没有请求在等待的响应, 直接丢弃
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        httpClient.onResponse(ctx.channel(), (HttpObject) msg);
     }
 
 
-    static class HttpClient implements Pass {
-        public ChannelFuture channelFuture;
+    /**
+     * 一次代理请求, 每个下游请求对应一个, 从连接池租用后端连接, 响应结束后归还.
+     * <p>
+     * 超时和重试的定时器都在下游 channel 的 EventLoop 上, 后端连接也注册在这个 EventLoop 上, 所以状态不需要同步.
+     * 每次尝试有一个序号, 超时或者换后端之后旧尝试的回调都会被忽略.
+     */
+    static class HttpClient {
+        final ProxyServerHandler owner;
+        final Channel sc;
+        private final ProxyClient proxyClient;
         UpstreamServer upstreamServer;
+        ConnectionPool pool;
         private Channel ch;
-        private Channel sc;
+        private Future<Channel> acquireFuture;
+        private boolean keepAlive;
+        private boolean informational;
+        /**
+         * 当前请求是否流式转发, 流式时后端响应也不聚合. 匹配的 location 开启了流式或者请求 body 是分片的
+         */
+        boolean streaming;
+        /**
+         * 下游请求的 Accept-Encoding, 决定后端压缩过的响应是否需要解压
+         */
+        String acceptEncoding;
+        /**
+         * 下游请求要求响应后关闭连接
+         */
+        boolean closeAfterResponse;
+        /**
+         * 请求已经完整写到后端
+         */
+        private boolean requestDone;
+        /**
+         * 已经收到响应头
+         */
+        private boolean responseStarted;
+        /**
+         * 响应已经完整收到
+         */
+        boolean done;
+        private boolean cancelled;
+        /**
+         * 还没轮到写给下游的响应, 保证 pipelining 时按请求顺序返回
+         */
+        private ArrayDeque<HttpObject> buffered;
+        /**
+         * 开启缓存的请求, 响应结束时写入缓存
+         */
+        ResponseCache.Fetch cacheFetch;
+        /**
+         * 已经计入后端的未完成请求数, 结束时减掉, 只减一次
+         */
+        private boolean outstanding;
+        /**
+         * 所属 location 的指标, 没有匹配到 location 的本地响应为 null
+         */
+        RouteMetrics route;
+        /**
+         * 收到请求的时间, 下面几个时间点都用 System.nanoTime(), 没有经过的阶段为 0
+         */
+        private long startNanos = System.nanoTime();
+        private long routedNanos;
+        private long connectedNanos;
+        private long headerAtNanos;
+        private long receivedNanos;
+        private long sentNanos;
+        private int status;
+        /**
+         * 持有许可的并发限制器, 结束时按结果释放
+         */
+        private ConcurrencyLimiter limiter;
+        /**
+         * 发出请求到收到响应头的耗时, 没有收到正常的响应头时为 0
+         */
+        private long rttNanos;
+        /**
+         * 所属 location 的超时配置, 本地响应为 null
+         */
+        ProxyConf.Timeout timeout;
+        /**
+         * 重试预算, location 不重试时为 null
+         */
+        private RetryBudget retryBudget;
+        private ProxyContext proxyContext;
+        private String upstreamName;
+        /**
+         * 可以重试的完整请求, 每次尝试写出的是它的副本, 结束时释放
+         */
+        private FullHttpRequest request;
+        /**
+         * 已经试过的后端, 第一次重试或者对冲时才创建
+         */
+        private List<UpstreamServer> tried;
+        private int attempts;
+        /**
+         * 当前尝试的序号, 放弃之后为 0
+         */
+        private int current;
+        /**
+         * 当前阶段 (获取连接或者等待响应头) 的超时
+         */
+        private ScheduledFuture<?> timer;
+        private ScheduledFuture<?> totalTimer;
+        /**
+         * 对冲配置, location 没有开启时为 null
+         */
+        private ProxyConf.Hedge hedgeConf;
+        private RetryBudget hedgeBudget;
+        private ScheduledFuture<?> hedgeTimer;
+        /**
+         * 正在进行的对冲请求, 一个请求最多对冲一次
+         */
+        private Hedge hedge;
+        /**
+         * 不能再发对冲请求: 没有开启、请求不适合对冲, 或者已经开始等待过一次
+         */
+        private boolean hedgeDisabled;
+        /**
+         * 访问日志, 没有开启或者已经记过时为 null
+         */
+        private AccessLog accessLog;
+        /**
+         * 下游的请求, 只在记录访问日志和慢请求时读取请求行和请求头
+         */
+        private HttpRequest origin;
+        private CharSequence client;
+        private ProxyConf.Timing timing;
+        /**
+         * 需要记录慢请求时不为 null, 写完下游后检查一次
+         */
+        private SlowRequests slowRequests;
+        /**
+         * 写给下游的 body 字节数
+         */
+        private long bytes;
+        /**
+         * 发出请求到收到后端响应头的耗时, 没有收到时为 -1
+         */
+        private long headerNanos = -1;
 
-        private HttpClient() {
+        private HttpClient(ProxyClient proxyClient, ProxyServerHandler owner, Channel sc, UpstreamServer upstreamServer,
+                           ConnectionPool pool) {
+            this.proxyClient = proxyClient;
+            this.owner = owner;
+            this.sc = sc;
+            this.upstreamServer = upstreamServer;
+            this.pool = pool;
         }
 
-        public ChannelFuture writeAndFlush(Object msg) {
-            if (ch != null) {
-                return ch.writeAndFlush(msg);
+        /**
+         * 开启重试
+         *
+         * @param proxyContext 选择其他后端使用
+         * @param upstreamName
+         * @param retryBudget  location 不重试时为 null
+         */
+        void retry(ProxyContext proxyContext, String upstreamName, RetryBudget retryBudget) {
+            this.proxyContext = proxyContext;
+            this.upstreamName = upstreamName;
+            this.retryBudget = retryBudget;
+        }
+
+        /**
+         * 开启对冲, 需要先调用 {@link #retry} 设置选择后端的 upstream
+         *
+         * @param hedgeConf   location 没有开启时为 null
+         * @param hedgeBudget
+         */
+        void hedge(ProxyConf.Hedge hedgeConf, RetryBudget hedgeBudget) {
+            this.hedgeConf = hedgeConf;
+            this.hedgeBudget = hedgeBudget;
+        }
+
+        /**
+         * @param req    下游的请求
+         * @param client
+         */
+        void origin(HttpRequest req, CharSequence client) {
+            this.origin = req;
+            this.client = client;
+        }
+
+        /**
+         * 开启访问日志, 请求结束或者下游断开时记一条
+         */
+        void accessLog(AccessLog accessLog) {
+            this.accessLog = accessLog;
+        }
+
+        /**
+         * 记录各阶段的时间点
+         *
+         * @param timing       没有配置时为 null
+         * @param slowRequests
+         * @param startNanos   收到请求的时间
+         * @param routedNanos  选好后端的时间
+         */
+        void timing(ProxyConf.Timing timing, SlowRequests slowRequests, long startNanos, long routedNanos) {
+            this.timing = timing;
+            this.slowRequests = timing != null && timing.getSlowThreshold() > 0 ? slowRequests : null;
+            this.startNanos = startNanos;
+            this.routedNanos = routedNanos;
+        }
+
+        /**
+         * 本地直接生成的响应, 不经过后端, 但同样要排队保证顺序
+         *
+         * @param owner
+         * @param sc
+         * @param response
+         * @return
+         */
+        static HttpClient local(ProxyServerHandler owner, Channel sc, FullHttpResponse response) {
+            HttpClient httpClient = new HttpClient(null, owner, sc, null, null);
+            httpClient.requestDone = true;
+            httpClient.responseStarted = true;
+            httpClient.done = true;
+            httpClient.buffer(response);
+            return httpClient;
+        }
+
+        /**
+         * 不经过后端直接完成, 比如缓存命中
+         *
+         * @param response
+         */
+        void complete(FullHttpResponse response) {
+            if (cancelled) {
+                response.release();
+                return;
+            }
+            requestDone = true;
+            responseStarted = true;
+            done = true;
+            bytes = response.content().readableBytes();
+            receivedNanos = System.nanoTime();
+            if (timing != null && timing.isServerTiming()) {
+                serverTiming(response);
+            }
+            status = response.status().code();
+            recordRoute(status);
+            owner.deliver(this, response);
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * 从连接池中取一个连接发送请求, 响应结束后连接自动归还
+         *
+         * @param msg
+         */
+        public void writeAndFlush(HttpRequest msg) {
+            // 后端连接都保持长连接, 是否关闭由连接池决定
+            HttpUtil.setKeepAlive(msg, true);
+            // HTTP/2 没有 body 的请求解码出来就是完整请求, 是否流式还要看 location 的配置
+            requestDone = msg instanceof FullHttpRequest;
+            streaming |= !requestDone;
+            acceptEncoding = msg.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+            if (timeout != null && timeout.getTotal() > 0) {
+                totalTimer = sc.eventLoop().schedule(this::totalTimeout, timeout.getTotal(), TimeUnit.MILLISECONDS);
+            }
+            if (hedgeBudget != null) {
+                hedgeBudget.onRequest();
+                // 只读的请求才能同时发给两个后端
+                hedgeDisabled = !requestDone || !RetryBudget.isSafe(msg.method());
             } else {
-                return channelFuture.addListener((ChannelFutureListener) future -> {
+                hedgeDisabled = true;
+            }
+            if (retryBudget != null) {
+                retryBudget.onRequest();
+            }
+            if (requestDone && (retryBudget != null || !hedgeDisabled)) {
+                // 原请求留给重试和对冲
+                request = (FullHttpRequest) msg;
+                send(attempt(null));
+                return;
+            }
+            send(msg);
+        }
+
+        /**
+         * 向当前的后端发出一次尝试
+         *
+         * @param msg
+         */
+        private void send(HttpRequest msg) {
+            int attempt = ++attempts;
+            current = attempt;
+            if (tried != null) {
+                tried.add(upstreamServer);
+            }
+            rttNanos = 0;
+            outstanding = true;
+            upstreamServer.incrementOutstanding();
+            sentNanos = System.nanoTime();
+            UpstreamMetrics metrics = upstreamServer.getMetrics();
+            if (metrics != null) {
+                metrics.onRequest();
+            }
+            Future<Channel> acquireFuture = this.acquireFuture = acquire();
+            if (timeout != null && timeout.getConnect() > 0 && !acquireFuture.isDone()) {
+                timer = sc.eventLoop().schedule(() -> connectTimeout(attempt), timeout.getConnect(), TimeUnit.MILLISECONDS);
+            }
+            acquireFuture.addListener((FutureListener<Channel>) future -> {
+                if (attempt != current) {
+                    // 这次尝试已经超时放弃了
+                    ReferenceCountUtil.release(msg);
                     if (future.isSuccess()) {
-                        future.channel().writeAndFlush(msg);
+                        ConnectionPool.release(future.getNow(), true);
+                    }
+                    return;
+                }
+                cancelTimer();
+                if (!future.isSuccess()) {
+                    ReferenceCountUtil.release(msg);
+                    if (future.isCancelled()) {
+                        // 排队期间下游断开了
+                        return;
+                    }
+                    if (future.cause() instanceof ConcurrencyLimiter.RejectedException) {
+                        fail(HttpResponseStatus.SERVICE_UNAVAILABLE);
+                        return;
+                    }
+                    // 连接池满了或者已关闭不是后端的问题, 只有连接失败才计入, 也只有连接失败才换后端
+                    if (future.cause() instanceof IllegalStateException) {
+                        fail(HttpResponseStatus.BAD_GATEWAY);
+                        return;
+                    }
+                    failed(upstreamServer, UpstreamMetrics.CONNECT, future.cause());
+                    if (hedgeReady()) {
+                        promoteHedge(true);
+                        return;
+                    }
+                    // 请求还没有发出, 任何方法都可以重试
+                    UpstreamServer next = retryTarget(true);
+                    if (next != null) {
+                        retry(next);
                     } else {
-                        future.cause().printStackTrace();
+                        fail(HttpResponseStatus.BAD_GATEWAY);
+                    }
+                    return;
+                }
+                Channel ch = future.getNow();
+                if (cancelled) {
+                    ReferenceCountUtil.release(msg);
+                    ConnectionPool.release(ch, true);
+                    return;
+                }
+                this.ch = ch;
+                this.keepAlive = true;
+                connectedNanos = System.nanoTime();
+                ch.attr(ConnectionPool.POOLED).get().lease = this;
+                // 写失败时在 pipeline 上触发 exceptionCaught, 按后端断开处理
+                ch.writeAndFlush(msg, ch.voidPromise());
+                if (requestDone) {
+                    startFirstByteTimer();
+                    startHedgeTimer();
+                }
+                owner.updateAutoRead();
+            });
+        }
+
+        /**
+         * 可以重试时选择下一个后端, 同时取出一次重试预算
+         *
+         * @param notSent 请求还没有发到后端
+         * @return 不能重试时返回 null
+         */
+        private UpstreamServer retryTarget(boolean notSent) {
+            if (request == null || retryBudget == null || cancelled || done || attempts >= retryBudget.getConf().getAttempts()) {
+                return null;
+            }
+            if (!notSent && !RetryBudget.isIdempotent(request.method())) {
+                return null;
+            }
+            UpstreamServer next = proxyContext.chooseRetry(upstreamName, request, sc, tried());
+            if (next == null || !retryBudget.tryRetry()) {
+                return null;
+            }
+            return next;
+        }
+
+        /**
+         * 放弃当前的尝试, 换 next 重新发送
+         *
+         * @param next
+         */
+        private void retry(UpstreamServer next) {
+            cancelTimer();
+            dropHedge();
+            finishOutstanding();
+            if (route != null) {
+                route.onRetry();
+            }
+            upstreamServer = next;
+            pool = proxyClient.pool(next);
+            responseStarted = false;
+            send(attempt(next));
+        }
+
+        private List<UpstreamServer> tried() {
+            if (tried == null) {
+                // 到这里只试过当前的后端, 之后每次尝试在 send 里记录
+                tried = new ArrayList<>(2);
+                tried.add(upstreamServer);
+            }
+            return tried;
+        }
+
+        /**
+         * 一次尝试写出的请求. 写出会移动 body 的读索引, 有 body 时写一个副本; 没有 body 时直接写原请求.
+         * 后端连接和下游在同一个 EventLoop 上, 写出时已经编码完, 之后为其他后端改 Host 不影响已经写出的
+         *
+         * @param server 换后端时的新后端, 第一次发送为 null
+         */
+        private FullHttpRequest attempt(UpstreamServer server) {
+            FullHttpRequest msg = request.content().isReadable() ? request.retainedDuplicate() : request.retain();
+            if (server != null) {
+                msg.headers().set(HttpHeaderNames.HOST, server.hostHeader());
+            }
+            return msg;
+        }
+
+        private void startFirstByteTimer() {
+            // 后端可能在请求发完之前就响应了
+            if (timeout != null && timeout.getFirstByte() > 0 && !responseStarted) {
+                int attempt = current;
+                timer = sc.eventLoop().schedule(() -> firstByteTimeout(attempt), timeout.getFirstByte(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * 超过 connect 还没有拿到连接, 放弃这次获取, 拿到的连接会还回池中
+         */
+        private void connectTimeout(int attempt) {
+            if (attempt != current) {
+                return;
+            }
+            timer = null;
+            current = 0;
+            acquireFuture.cancel(false);
+            timedOut();
+            if (hedgeReady()) {
+                promoteHedge(true);
+                return;
+            }
+            UpstreamServer next = retryTarget(true);
+            if (next != null) {
+                retry(next);
+            } else {
+                fail(HttpResponseStatus.GATEWAY_TIMEOUT);
+            }
+        }
+
+        /**
+         * 请求发完之后超过 firstByte 还没有收到响应头, 关闭这个后端连接
+         */
+        private void firstByteTimeout(int attempt) {
+            if (attempt != current) {
+                return;
+            }
+            timer = null;
+            current = 0;
+            abortConnection();
+            timedOut();
+            if (hedgeReady()) {
+                promoteHedge(true);
+                return;
+            }
+            UpstreamServer next = retryTarget(false);
+            if (next != null) {
+                retry(next);
+            } else {
+                fail(HttpResponseStatus.GATEWAY_TIMEOUT);
+            }
+        }
+
+        private void totalTimeout() {
+            totalTimer = null;
+            if (done || cancelled) {
+                return;
+            }
+            current = 0;
+            cancelTimer();
+            if (acquireFuture != null && !acquireFuture.isDone()) {
+                acquireFuture.cancel(false);
+            }
+            abortConnection();
+            if (route != null) {
+                route.onTimeout();
+            }
+            // 可能只是 body 太大, 不计入后端的健康状态
+            UpstreamMetrics metrics = upstreamServer.getMetrics();
+            if (metrics != null) {
+                metrics.onFailure(UpstreamMetrics.TIMEOUT);
+            }
+            fail(HttpResponseStatus.GATEWAY_TIMEOUT);
+        }
+
+        private void timedOut() {
+            failed(upstreamServer, UpstreamMetrics.TIMEOUT, null);
+            if (route != null) {
+                route.onTimeout();
+            }
+        }
+
+        /**
+         * 后端的失败计入被动健康检查和指标, 不逐个打印, 后端被摘除时才打印
+         *
+         * @param server
+         * @param reason {@link UpstreamMetrics} 里的失败原因
+         * @param cause  可能为 null
+         */
+        private static void failed(UpstreamServer server, int reason, Throwable cause) {
+            server.getHealth().onFailure(cause);
+            UpstreamMetrics metrics = server.getMetrics();
+            if (metrics != null) {
+                metrics.onFailure(reason);
+            }
+        }
+
+        /**
+         * 关闭正在使用的后端连接, 先解除租用, 连接断开时不会再当作后端故障处理
+         */
+        private void abortConnection() {
+            Channel ch = this.ch;
+            if (ch != null) {
+                this.ch = null;
+                ConnectionPool.release(ch, false);
+            }
+        }
+
+        /**
+         * 后端连接在响应结束之前断开了, 还没收到响应头时可以换后端重试
+         *
+         * @param ch 断开的连接, 可能是对冲请求的
+         */
+        void upstreamClosed(Channel ch) {
+            // 连接上出现过异常时按异常计, 否则是后端主动断开
+            Throwable cause = ch.attr(ConnectionPool.POOLED).get().cause;
+            int reason = cause == null ? UpstreamMetrics.CLOSED : UpstreamMetrics.ERROR;
+            Hedge hedge = this.hedge;
+            if (hedge != null && hedge.ch == ch) {
+                hedge.ch = null;
+                failed(hedge.server, reason, cause);
+                dropHedge();
+                return;
+            }
+            if (!done && !cancelled) {
+                failed(upstreamServer, reason, cause);
+                if (!responseStarted && hedgeReady()) {
+                    this.ch = null;
+                    promoteHedge(true);
+                    return;
+                }
+                if (!responseStarted) {
+                    UpstreamServer next = retryTarget(false);
+                    if (next != null) {
+                        this.ch = null;
+                        retry(next);
+                        return;
+                    }
+                }
+            }
+            fail(HttpResponseStatus.BAD_GATEWAY);
+        }
+
+        /**
+         * 请求发完之后开始等待, 超过 delay 或者 location 观察到的后端响应头耗时的分位数还没有响应时发出对冲请求
+         */
+        private void startHedgeTimer() {
+            if (hedgeDisabled || responseStarted) {
+                return;
+            }
+            hedgeDisabled = true;
+            long delay = hedgeConf.getDelay();
+            if (hedgeConf.getPercentile() > 0 && route != null) {
+                delay = Math.max(delay, TimeUnit.MICROSECONDS.toMillis(route.upstreamHeaderPercentile(hedgeConf.getPercentile() / 100)));
+            }
+            hedgeTimer = sc.eventLoop().schedule(this::sendHedge, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancelHedgeTimer() {
+            ScheduledFuture<?> hedgeTimer = this.hedgeTimer;
+            if (hedgeTimer != null) {
+                this.hedgeTimer = null;
+                hedgeTimer.cancel(false);
+            }
+        }
+
+        /**
+         * 向另一个后端发出同样的请求, 没有其他可用的后端、预算用完或者并发许可不够时不发
+         */
+        private void sendHedge() {
+            hedgeTimer = null;
+            if (done || cancelled || responseStarted || current == 0 || request == null) {
+                return;
+            }
+            UpstreamServer server = proxyContext.chooseRetry(upstreamName, request, sc, tried());
+            if (server == null || !hedgeBudget.tryRetry()) {
+                return;
+            }
+            ConcurrencyLimiter limiter = server.getLimiter();
+            if (limiter != null && !limiter.tryAcquire()) {
+                return;
+            }
+            if (route != null) {
+                route.onHedge();
+            }
+            Hedge hedge = new Hedge(++attempts, server, proxyClient.pool(server), limiter);
+            this.hedge = hedge;
+            tried.add(server);
+            server.incrementOutstanding();
+            UpstreamMetrics metrics = server.getMetrics();
+            if (metrics != null) {
+                metrics.onRequest();
+            }
+            FullHttpRequest msg = attempt(server);
+            hedge.acquire = hedge.pool.acquire(sc.eventLoop());
+            hedge.acquire.addListener((FutureListener<Channel>) future -> {
+                if (this.hedge != hedge) {
+                    ReferenceCountUtil.release(msg);
+                    if (future.isSuccess()) {
+                        ConnectionPool.release(future.getNow(), true);
+                    }
+                    return;
+                }
+                if (!future.isSuccess()) {
+                    ReferenceCountUtil.release(msg);
+                    if (!(future.cause() instanceof IllegalStateException)) {
+                        failed(server, UpstreamMetrics.CONNECT, future.cause());
+                    }
+                    dropHedge();
+                    return;
+                }
+                Channel ch = future.getNow();
+                hedge.ch = ch;
+                hedge.connectedNanos = System.nanoTime();
+                ch.attr(ConnectionPool.POOLED).get().lease = this;
+                ch.writeAndFlush(msg, ch.voidPromise());
+            });
+        }
+
+        /**
+         * 对冲请求已经发出, 原来的请求失败时可以直接改用它
+         */
+        private boolean hedgeReady() {
+            return hedge != null && hedge.ch != null;
+        }
+
+        /**
+         * 对冲请求变成当前的请求, 原来的请求放弃, 连接关闭
+         *
+         * @param primaryFailed 原来的请求是失败了还是只是比对冲请求慢
+         */
+        private void promoteHedge(boolean primaryFailed) {
+            Hedge hedge = this.hedge;
+            this.hedge = null;
+            cancelTimer();
+            current = hedge.attempt;
+            if (acquireFuture != null && !acquireFuture.isDone()) {
+                acquireFuture.cancel(false);
+            }
+            abortConnection();
+            finishOutstanding(!primaryFailed);
+            upstreamServer = hedge.server;
+            pool = hedge.pool;
+            acquireFuture = hedge.acquire;
+            ch = hedge.ch;
+            limiter = hedge.limiter;
+            sentNanos = hedge.sentNanos;
+            connectedNanos = hedge.connectedNanos;
+            outstanding = true;
+            rttNanos = 0;
+            if (primaryFailed) {
+                startFirstByteTimer();
+            }
+        }
+
+        /**
+         * 放弃对冲请求, 连接上还有没读完的响应, 直接关闭
+         */
+        private void dropHedge() {
+            Hedge hedge = this.hedge;
+            if (hedge == null) {
+                return;
+            }
+            this.hedge = null;
+            if (hedge.ch != null) {
+                ConnectionPool.release(hedge.ch, false);
+            } else if (!hedge.acquire.isDone()) {
+                hedge.acquire.cancel(false);
+            }
+            hedge.server.decrementOutstanding();
+            if (hedge.limiter != null) {
+                hedge.limiter.onIgnore();
+            }
+        }
+
+        private void cancelTimer() {
+            ScheduledFuture<?> timer = this.timer;
+            if (timer != null) {
+                this.timer = null;
+                timer.cancel(false);
+            }
+        }
+
+        /**
+         * 请求结束, 停止所有定时器并释放留给重试的请求
+         */
+        private void finish() {
+            cancelTimer();
+            cancelHedgeTimer();
+            dropHedge();
+            if (totalTimer != null) {
+                totalTimer.cancel(false);
+                totalTimer = null;
+            }
+            if (request != null) {
+                request.release();
+                request = null;
+            }
+        }
+
+        /**
+         * 先拿 upstream 的并发许可再从连接池取连接, 许可不够时排队, 被拒绝时返回的 future 失败
+         *
+         * @return
+         */
+        private Future<Channel> acquire() {
+            ConcurrencyLimiter limiter = upstreamServer.getLimiter();
+            if (limiter == null) {
+                return pool.acquire(sc.eventLoop());
+            }
+            if (limiter.tryAcquire()) {
+                this.limiter = limiter;
+                return pool.acquire(sc.eventLoop());
+            }
+            Promise<Channel> promise = sc.eventLoop().newPromise();
+            limiter.await(sc.eventLoop()).addListener(f -> {
+                if (!f.isSuccess()) {
+                    promise.tryFailure(f.cause());
+                    return;
+                }
+                if (cancelled || promise.isDone()) {
+                    // 下游断开了或者获取连接超时了
+                    limiter.onIgnore();
+                    promise.cancel(false);
+                    return;
+                }
+                this.limiter = limiter;
+                // 排队的时间不算后端的响应时间
+                sentNanos = System.nanoTime();
+                Future<Channel> acquired = pool.acquire(sc.eventLoop());
+                acquired.addListener(new PromiseNotifier<Channel, Future<Channel>>(promise));
+                // 超时取消时连接池拿到的连接会直接归还
+                promise.addListener(p -> {
+                    if (p.isCancelled()) {
+                        acquired.cancel(false);
                     }
                 });
+            });
+            return promise;
+        }
+
+        /**
+         * 流式请求的 body 分片, 按到达顺序写到同一个后端连接
+         *
+         * @param content
+         */
+        public void writeContent(HttpContent content) {
+            if (content instanceof LastHttpContent) {
+                requestDone = true;
+            }
+            Channel ch = this.ch;
+            if (ch != null && acquireFuture.isDone()) {
+                writeUpstream(ch, content);
+                return;
             }
+            if (acquireFuture == null) {
+                ReferenceCountUtil.release(content);
+                return;
+            }
+            acquireFuture.addListener((FutureListener<Channel>) future -> {
+                Channel c = this.ch;
+                if (future.isSuccess() && c != null) {
+                    writeUpstream(c, content);
+                } else {
+                    ReferenceCountUtil.release(content);
+                }
+            });
         }
 
-        public String getPrefix() {
-            return upstreamServer.getPrefix();
+        private void writeUpstream(Channel ch, HttpContent content) {
+            if (cancelled || done) {
+                ReferenceCountUtil.release(content);
+                return;
+            }
+            ch.writeAndFlush(content, ch.voidPromise());
+            if (content instanceof LastHttpContent) {
+                startFirstByteTimer();
+            }
+            if (!ch.isWritable()) {
+                // 后端写不动了, 先停止读下游, 等后端可写再恢复
+                owner.updateAutoRead();
+            }
+        }
+
+        /**
+         * 后端连接上收到的响应
+         *
+         * @param ch
+         * @param msg
+         */
+        void onResponse(Channel ch, HttpObject msg) {
+            Hedge hedge = this.hedge;
+            if (hedge != null) {
+                boolean head = msg instanceof HttpResponse
+                        && ((HttpResponse) msg).status().codeClass() != HttpStatusClass.INFORMATIONAL;
+                if (ch == hedge.ch) {
+                    if (!head) {
+                        ReferenceCountUtil.release(msg);
+                        return;
+                    }
+                    // 对冲请求先响应, 放弃原来的请求
+                    if (route != null) {
+                        route.onHedgeWin();
+                    }
+                    promoteHedge(false);
+                } else if (head) {
+                    dropHedge();
+                }
+            }
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                // 100-continue 之类的中间响应之后还有真正的响应
+                informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+                keepAlive = HttpUtil.isKeepAlive(response);
+                ForwardHeaders.rewriteResponse(response.headers());
+                responseStarted = true;
+                if (!informational) {
+                    cancelTimer();
+                    cancelHedgeTimer();
+                    headerAtNanos = System.nanoTime();
+                    headerNanos = headerAtNanos - sentNanos;
+                    if (route != null) {
+                        route.onUpstreamHeader(headerNanos);
+                    }
+                    UpstreamMetrics metrics = upstreamServer.getMetrics();
+                    if (metrics != null) {
+                        metrics.onFirstByte(response.status().code(), System.nanoTime() - sentNanos);
+                    }
+                    if (isServerError(response.status())) {
+                        upstreamServer.getHealth().onFailure();
+                    } else {
+                        upstreamServer.getHealth().onSuccess();
+                        rttNanos = Math.max(1, System.nanoTime() - sentNanos);
+                    }
+                    if (msg instanceof FullHttpResponse && retryBudget != null && retryBudget.retryOn(response.status().code())) {
+                        // 完整的响应还没有发给下游, 可以丢掉换一个后端
+                        UpstreamServer next = retryTarget(false);
+                        if (next != null) {
+                            ReferenceCountUtil.release(msg);
+                            this.ch = null;
+                            ConnectionPool.release(ch, keepAlive);
+                            retry(next);
+                            return;
+                        }
+                    }
+                }
+            }
+            boolean last = msg instanceof LastHttpContent && !informational;
+            if (cacheFetch != null) {
+                if (msg instanceof FullHttpResponse && !informational && !cancelled) {
+                    msg = cacheFetch.onResponse((FullHttpResponse) msg);
+                }
+                if (last) {
+                    cacheFetch.finish();
+                }
+            }
+            if (msg instanceof HttpResponse && !informational) {
+                // 缓存重新验证时下游收到的是缓存的响应, 按下游看到的状态码统计
+                status = ((HttpResponse) msg).status().code();
+                if (timing != null && timing.isServerTiming()) {
+                    // 缓存里存的是响应头的副本, 这里加的不会进缓存
+                    serverTiming((HttpResponse) msg);
+                }
+            }
+            if (msg instanceof HttpContent) {
+                bytes += ((HttpContent) msg).content().readableBytes();
+            }
+            if (last) {
+                // 响应结束, 连接还回池中. 请求还没发完时连接状态不确定, 不能复用
+                done = true;
+                receivedNanos = System.nanoTime();
+                finish();
+                finishOutstanding();
+                recordRoute(status);
+                this.ch = null;
+                ch.config().setAutoRead(true);
+                ConnectionPool.release(ch, keepAlive && requestDone);
+            }
+            if (cancelled) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            owner.deliver(this, msg);
+        }
+
+        /**
+         * 后端连接失败或者中途断开, 还没收到响应头时返回错误响应, 否则只能关闭下游
+         *
+         * @param status
+         */
+        void fail(HttpResponseStatus status) {
+            this.ch = null;
+            current = 0;
+            finish();
+            finishOutstanding();
+            if (cacheFetch != null) {
+                cacheFetch.finish();
+            }
+            if (cancelled || done) {
+                return;
+            }
+            done = true;
+            if (responseStarted) {
+                recordRoute(this.status);
+                sc.close();
+                return;
+            }
+            receivedNanos = System.nanoTime();
+            this.status = status.code();
+            recordRoute(status.code());
+            owner.deliver(this, ProxyServerHandler.errorResponse(status));
+        }
+
+        /**
+         * 下游断开了, 丢弃响应, 没结束的后端连接直接关闭
+         */
+        void cancel() {
+            cancelled = true;
+            // 和 nginx 一样, 响应没写完下游就断开记为 499
+            writeAccessLog(499);
+            finish();
+            finishOutstanding();
+            releaseBuffered();
+            if (cacheFetch != null && !done) {
+                // 等待这次获取的请求不能一直等下去
+                cacheFetch.finish();
+            }
+            Channel ch = this.ch;
+            if (ch != null) {
+                this.ch = null;
+                ch.close();
+            }
+        }
+
+        /**
+         * 后端自己报告的不可用, 计入被动健康检查
+         */
+        private static boolean isServerError(HttpResponseStatus status) {
+            int code = status.code();
+            return code == 502 || code == 503 || code == 504;
+        }
+
+        private void recordRoute(int status) {
+            if (route != null) {
+                route.onComplete(status, System.nanoTime() - startNanos);
+            }
+            writeAccessLog(status);
+        }
+
+        private void writeAccessLog(int status) {
+            AccessLog accessLog = this.accessLog;
+            if (accessLog == null) {
+                return;
+            }
+            this.accessLog = null;
+            AccessLog.Record record = accessLog.claim();
+            if (record != null) {
+                record.request(client, origin);
+                record.time = System.currentTimeMillis();
+                record.status = status;
+                record.bytes = bytes;
+                record.durationNanos = System.nanoTime() - startNanos;
+                record.upstreamNanos = headerNanos;
+                record.route = route == null ? null : route.getRoute();
+                // 缓存命中没有发给后端
+                record.upstream = attempts > 0 ? upstreamServer : null;
+                accessLog.publish(record);
+            }
+        }
+
+        /**
+         * 已经收到的阶段写到 Server-Timing, 单位是毫秒
+         */
+        private void serverTiming(HttpResponse response) {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append("route;dur=").append(SlowRequests.millis(routedNanos - startNanos));
+            if (connectedNanos != 0) {
+                sb.append(", connect;dur=").append(SlowRequests.millis(connectedNanos - routedNanos));
+                sb.append(", upstream;dur=").append(SlowRequests.millis(headerAtNanos - connectedNanos));
+            } else {
+                sb.append(", cache;desc=hit");
+            }
+            response.headers().add(SERVER_TIMING, sb.toString());
+        }
+
+        /**
+         * 写给下游的消息, 最后一个写完时检查是否是慢请求
+         *
+         * @param msg
+         * @param future
+         */
+        void onWrite(HttpObject msg, ChannelFuture future) {
+            SlowRequests slowRequests = this.slowRequests;
+            if (slowRequests == null || !(msg instanceof LastHttpContent)
+                    || msg instanceof HttpResponse && ((HttpResponse) msg).status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                return;
+            }
+            this.slowRequests = null;
+            future.addListener(f -> sample(slowRequests));
+        }
+
+        private void sample(SlowRequests slowRequests) {
+            long writtenNanos = System.nanoTime();
+            if (writtenNanos - startNanos < TimeUnit.MILLISECONDS.toNanos(timing.getSlowThreshold())) {
+                return;
+            }
+            long[] timestamps = {startNanos, routedNanos, connectedNanos, headerAtNanos, receivedNanos, writtenNanos};
+            slowRequests.add(new SlowRequests.Sample(System.currentTimeMillis(), client == null ? null : client.toString(),
+                    origin.method().name(), origin.uri(), status, route == null ? null : route.getRoute(),
+                    attempts > 0 ? upstreamServer.toKey() : null, attempts, timestamps), timing.getSamples());
+        }
+
+        private void finishOutstanding() {
+            finishOutstanding(cancelled);
+        }
+
+        /**
+         * @param ignore 结果不能说明后端的情况, 比如下游断开或者对冲请求先返回了
+         */
+        private void finishOutstanding(boolean ignore) {
+            if (outstanding) {
+                outstanding = false;
+                upstreamServer.decrementOutstanding();
+            }
+            ConcurrencyLimiter limiter = this.limiter;
+            if (limiter != null) {
+                this.limiter = null;
+                if (ignore) {
+                    limiter.onIgnore();
+                } else if (rttNanos > 0) {
+                    limiter.onSuccess(rttNanos);
+                } else {
+                    // 连接失败、后端断开或者后端返回了 502/503/504
+                    limiter.onDropped();
+                }
+            }
+        }
+
+        void buffer(HttpObject msg) {
+            if (buffered == null) {
+                buffered = new ArrayDeque<>(4);
+            }
+            buffered.addLast(msg);
+        }
+
+        HttpObject pollBuffered() {
+            return buffered == null ? null : buffered.pollFirst();
+        }
+
+        private void releaseBuffered() {
+            HttpObject msg;
+            while ((msg = pollBuffered()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
         }
 
-        public String getHost() {
-            return upstreamServer.getAddress();
+        /**
+         * 下游还能继续读取 body 分片
+         *
+         * @return
+         */
+        boolean canAcceptContent() {
+            Channel ch = this.ch;
+            return cancelled || done || (ch != null && ch.isWritable());
         }
 
-        @Override
-        public ChannelFuture write(ChannelHandlerContext ctx, Object msg) {
-            return sc.write(msg);
+        void pauseRead() {
+            Channel ch = this.ch;
+            if (ch != null) {
+                ch.config().setAutoRead(false);
+            }
         }
 
-        @Override
-        public Channel flush(ChannelHandlerContext ctx) {
-            return sc.flush();
+        void resumeRead() {
+            Channel ch = this.ch;
+            if (ch != null) {
+                ch.config().setAutoRead(true);
+            }
         }
 
+        public String getPrefix() {
+            return upstreamServer.getPrefix();
+        }
     }
 
-    public static ProxyClient create(Bootstrap clientBootstrap, EventLoopGroup eventLoopGroup) {
+    /**
+     * 一个请求的对冲请求, 先返回时变成当前的请求
+     */
+    private static final class Hedge {
+        final int attempt;
+        final UpstreamServer server;
+        final ConnectionPool pool;
+        /**
+         * 拿到的并发许可, 没有并发限制时为 null
+         */
+        final ConcurrencyLimiter limiter;
+        final long sentNanos = System.nanoTime();
+        long connectedNanos;
+        Future<Channel> acquire;
+        Channel ch;
+
+        Hedge(int attempt, UpstreamServer server, ConnectionPool pool, ConcurrencyLimiter limiter) {
+            this.attempt = attempt;
+            this.server = server;
+            this.pool = pool;
+            this.limiter = limiter;
+        }
+    }
+
+    public static ProxyClient create(Bootstrap clientBootstrap, ProxyTransport transport, ProxyMetrics metrics) {
         ProxyClient proxyClient = new ProxyClient();
         proxyClient.clientBootstrap = clientBootstrap;
+        proxyClient.upstreamTraffic = metrics.upstreamTraffic();
+        // 连接池会把连接注册到下游 channel 所在的 EventLoop 上, 这里的 group 只是默认值
         clientBootstrap
-                .group(eventLoopGroup)
-                .channel(NioSocketChannel.class)
+                .group(transport.workerGroup)
+                .channel(transport.channelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
                 .handler(new ChannelInitializer<Channel>() {
                     @Override
                     protected void initChannel(Channel ch) throws Exception {
                         ChannelPipeline cp = ch.pipeline();
+                        cp.addLast(metrics.upstreamTraffic());
+                        UpstreamServer upstreamServer = ch.attr(ConnectionPool.UPSTREAM).get();
+                        if (upstreamServer != null && upstreamServer.getTls() != null) {
+                            cp.addLast("tls", upstreamServer.getTls().newHandler(ch.alloc(), upstreamServer));
+                        }
                         //包含编码器和解码器
                         cp.addLast(new HttpClientCodec());
-                        //聚合
-                        cp.addLast(new HttpObjectAggregator(maxContentLength));
-                        //解压
-                        cp.addLast(new HttpContentDecompressor());
+                        //聚合, 流式转发的请求不聚合响应
+                        cp.addLast(new HttpObjectAggregator(maxContentLength) {
+                            boolean streaming;
+
+                            @Override
+                            public boolean acceptInboundMessage(Object msg) throws Exception {
+                                if (msg instanceof HttpResponse) {
+                                    HttpClient httpClient = lease(ch);
+                                    streaming = httpClient != null && httpClient.streaming;
+                                }
+                                return !streaming && super.acceptInboundMessage(msg);
+                            }
+                        });
+                        //解压, 只有客户端不接受后端的编码时才解压, 否则原样透传
+                        cp.addLast(new HttpContentDecompressor() {
+                            @Override
+                            protected EmbeddedChannel newContentDecoder(String contentEncoding) throws Exception {
+                                HttpClient httpClient = lease(ch);
+                                if (httpClient == null || ProxyContentCompressor.accepts(httpClient.acceptEncoding, contentEncoding)) {
+                                    return null;
+                                }
+                                return super.newContentDecoder(contentEncoding);
+                            }
+                        });
                         cp.addLast(new ChannelInboundHandlerAdapter() {
                             @Override
                             public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                                proxyClient.write(ctx, msg);
+                                proxyClient.read(ctx, msg);
                             }
 
                             @Override
@@ -124,42 +1267,122 @@ public class ProxyClient {
                             }
 
 
+                            @Override
+                            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                                // 后端可写了, 恢复读取下游请求
+                                HttpClient httpClient = lease(ctx.channel());
+                                if (httpClient != null) {
+                                    httpClient.owner.updateAutoRead();
+                                }
+                                super.channelWritabilityChanged(ctx);
+                            }
+
                             @Override
                             public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-                                proxyClient.serverMap.remove(ctx.channel().id());
+                                HttpClient httpClient = lease(ctx.channel());
+                                if (httpClient != null) {
+                                    // 响应还没结束后端就断开了
+                                    httpClient.upstreamClosed(ctx.channel());
+                                }
                                 super.channelInactive(ctx);
                             }
 
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                                // 连接断开时和失败一起计入, 租用这个连接的请求会收到 502 或者换后端重试
+                                ctx.channel().attr(ConnectionPool.POOLED).get().cause = cause;
+                                ctx.close();
+                            }
                         });
                     }
                 });
         return proxyClient;
     }
 
-    public ChannelFuture connect(UpstreamServer upstreamServer) {
-        return clientBootstrap.connect(new InetSocketAddress(upstreamServer.getAddress(), upstreamServer.getPort()));
+    public ConnectionPool pool(UpstreamServer upstreamServer) {
+        String key = upstreamServer.toKey();
+        ConnectionPool pool = poolMap.get(key);
+        if (pool != null) {
+            return pool;
+        }
+        return poolMap.computeIfAbsent(key, k -> new ConnectionPool(clientBootstrap, upstreamServer));
     }
 
-    public HttpClient createHttpClient(Channel sc, UpstreamServer upstreamServer) {
-        return clientMap.computeIfAbsent(sc.id(), k -> {
-            HttpClient httpClient = new HttpClient();
-            httpClient.sc = sc;
-            httpClient.upstreamServer = upstreamServer;
-            httpClient.channelFuture = connect(upstreamServer)
-                    .addListener((ChannelFutureListener) future -> {
-                        if (future.isSuccess()) {
-                            httpClient.ch = future.channel();
-                            serverMap.put(future.channel().id(), httpClient);
-                        } else {
-                            future.cause().printStackTrace();
+    /**
+     * 隧道使用的后端连接, 不经过连接池, 隧道关闭时连接也关闭
+     *
+     * @param eventLoop      下游 channel 的 EventLoop
+     * @param address
+     * @param upstreamServer Upgrade 时的后端, 握手用 HTTP 编解码器, 需要时加上 TLS; CONNECT 为 null, 连接上只有原始字节
+     * @param connectTimeout 毫秒, 0 使用默认值
+     * @param handler
+     * @return
+     */
+    ChannelFuture connectTunnel(EventLoop eventLoop, SocketAddress address, UpstreamServer upstreamServer,
+                                long connectTimeout, ChannelHandler handler) {
+        Bootstrap bootstrap = clientBootstrap.clone(eventLoop)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ChannelPipeline cp = ch.pipeline();
+                        cp.addLast(upstreamTraffic);
+                        if (upstreamServer != null) {
+                            if (upstreamServer.getTls() != null) {
+                                cp.addLast("tls", upstreamServer.getTls().newHandler(ch.alloc(), upstreamServer));
+                            }
+                            cp.addLast(Tunnel.CODEC, new HttpClientCodec());
+                            cp.addLast(Tunnel.AGGREGATOR, new HttpObjectAggregator(maxContentLength));
                         }
-                    });
-            return httpClient;
+                        cp.addLast(Tunnel.RELAY, handler);
+                    }
+                });
+        if (connectTimeout > 0) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(Integer.MAX_VALUE, connectTimeout));
+        }
+        if (upstreamServer == null) {
+            // CONNECT 的目标可能先发数据, 下游切换成隧道之前先不读
+            bootstrap.option(ChannelOption.AUTO_READ, false);
+        }
+        return bootstrap.connect(address);
+    }
+
+    HttpClient createHttpClient(ProxyServerHandler owner, Channel sc, UpstreamServer upstreamServer) {
+        return new HttpClient(this, owner, sc, upstreamServer, pool(upstreamServer));
+    }
+
+    /**
+     * 重新加载配置后关闭已经不用的后端的连接池, 正在使用的连接在响应结束后关闭.
+     * 连接池配置或者 TLS 配置变了的后端换一个新的连接池, 旧连接用完后关闭
+     *
+     * @param proxyContext
+     */
+    void retainPools(ProxyContext proxyContext) {
+        Map<String, UpstreamServer> servers = new HashMap<>();
+        for (List<UpstreamServer> list : proxyContext.allServers()) {
+            for (UpstreamServer server : list) {
+                servers.putIfAbsent(server.toKey(), server);
+            }
+        }
+        poolMap.entrySet().removeIf(entry -> {
+            if (servers.containsKey(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().close();
+            return true;
         });
+        for (UpstreamServer server : servers.values()) {
+            ConnectionPool pool = poolMap.get(server.toKey());
+            if (pool != null && !pool.sameAs(server)
+                    && poolMap.replace(server.toKey(), pool, new ConnectionPool(clientBootstrap, server))) {
+                pool.retire();
+            }
+        }
     }
 
-    public void close(ChannelHandlerContext ctx) {
-        clientMap.remove(ctx.channel().id());
+    public void close() {
+        for (ConnectionPool pool : poolMap.values()) {
+            pool.close();
+        }
     }
 
 
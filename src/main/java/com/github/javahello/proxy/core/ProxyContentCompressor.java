@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.*;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.Function;
+
+/**
+ * 响应压缩, 按 location 的配置决定是否压缩.
+ * <p>
+ * 后端已经压缩过的响应(带 Content-Encoding)原样透传, 只有后端没压缩、
+ * 长度超过阈值并且类型匹配的响应才在代理上压缩.
+ *
+ * @author kailuo
+ */
+public class ProxyContentCompressor extends HttpContentEncoder {
+    private static final ProxyConf.Compression NONE = new ProxyConf.Compression();
+
+    static {
+        NONE.setEnabled(false);
+    }
+
+    private final Function<String, ProxyConf.Compression> compressionResolver;
+    private final Queue<ProxyConf.Compression> compressionQueue = new ArrayDeque<>();
+    private ProxyConf.Compression current;
+    private ChannelHandlerContext ctx;
+
+    /**
+     * @param compressionResolver 根据请求 uri 查找 location 的压缩配置
+     */
+    public ProxyContentCompressor(Function<String, ProxyConf.Compression> compressionResolver) {
+        this.compressionResolver = compressionResolver;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpRequest msg, List<Object> out) throws Exception {
+        ProxyConf.Compression compression = compressionResolver.apply(msg.uri());
+        compressionQueue.add(compression == null ? NONE : compression);
+        super.decode(ctx, msg, out);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        // 和父类消费 Accept-Encoding 队列的时机保持一致, 100-continue 后面还有真正的响应
+        if (msg instanceof HttpResponse && ((HttpResponse) msg).status().code() != HttpResponseStatus.CONTINUE.code()) {
+            current = compressionQueue.poll();
+        }
+        super.encode(ctx, msg, out);
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        ProxyConf.Compression compression = current;
+        if (compression == null || !compression.isEnabled()) {
+            return null;
+        }
+        HttpHeaders headers = response.headers();
+        if (headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            // 后端已经压缩过了
+            return null;
+        }
+        long contentLength = HttpUtil.getContentLength(response, -1L);
+        if (contentLength >= 0 && contentLength < compression.getMinLength()) {
+            return null;
+        }
+        if (!compression.matchType(headers.get(HttpHeaderNames.CONTENT_TYPE))) {
+            return null;
+        }
+        String encoding = selectEncoding(acceptEncoding, compression.getAlgorithms());
+        if (encoding == null) {
+            return null;
+        }
+        ZlibWrapper wrapper = HttpHeaderValues.GZIP.contentEqualsIgnoreCase(encoding) ? ZlibWrapper.GZIP : ZlibWrapper.ZLIB;
+        return new Result(encoding, new EmbeddedChannel(ctx.channel().id(), ctx.channel().metadata().hasDisconnect(),
+                ctx.channel().config(), ZlibCodecFactory.newZlibEncoder(wrapper, compression.getLevel(), 15, 8)));
+    }
+
+    /**
+     * 按配置的算法顺序, 选第一个客户端接受的编码
+     *
+     * @param acceptEncoding
+     * @param algorithms
+     * @return
+     */
+    static String selectEncoding(String acceptEncoding, List<String> algorithms) {
+        for (String algorithm : algorithms) {
+            if ((HttpHeaderValues.GZIP.contentEqualsIgnoreCase(algorithm) || HttpHeaderValues.DEFLATE.contentEqualsIgnoreCase(algorithm))
+                    && accepts(acceptEncoding, algorithm)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Accept-Encoding 是否接受指定编码, q=0 表示不接受. identity 除非被 q=0 排除总是接受,
+     * 没有 Accept-Encoding 时只接受 identity
+     *
+     * @param acceptEncoding
+     * @param encoding
+     * @return
+     */
+    public static boolean accepts(String acceptEncoding, String encoding) {
+        boolean identity = HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(encoding);
+        if (acceptEncoding == null) {
+            return identity;
+        }
+        float star = -1;
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String coding = (semi < 0 ? part : part.substring(0, semi)).trim();
+            float q = semi < 0 ? 1.0f : qValue(part, semi);
+            if (coding.equalsIgnoreCase(encoding)) {
+                return q > 0;
+            }
+            if ("*".equals(coding)) {
+                star = q;
+            }
+        }
+        return star < 0 ? identity : star > 0;
+    }
+
+    /**
+     * 参数里的 q 值, 没有 q 参数时为 1, 格式错误按 0 处理
+     */
+    private static float qValue(String part, int semi) {
+        for (String param : part.substring(semi + 1).split(";")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && "q".equalsIgnoreCase(param.substring(0, eq).trim())) {
+                try {
+                    return Float.parseFloat(param.substring(eq + 1).trim());
+                } catch (NumberFormatException e) {
+                    return 0.0f;
+                }
+            }
+        }
+        return 1.0f;
+    }
+}
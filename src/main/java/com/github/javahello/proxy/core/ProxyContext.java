@@ -15,46 +15,268 @@
  */
 package com.github.javahello.proxy.core;
 
+import com.github.javahello.proxy.cache.ResponseCache;
 import com.github.javahello.proxy.conf.ProxyConf;
 import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.lb.LoadBalancer;
+import com.github.javahello.proxy.limit.ConcurrencyLimiter;
+import com.github.javahello.proxy.limit.RateLimiter;
+import com.github.javahello.proxy.lb.LoadBalancers;
+import com.github.javahello.proxy.lb.OutlierDetector;
+import com.github.javahello.proxy.log.AccessLog;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
 import com.github.javahello.proxy.util.ProxyClientHelper;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.Future;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author kailuo
  */
 public class ProxyContext {
     private ProxyConf proxyConf;
-    Map<String, List<UpstreamServer>> upsRouterMap = new HashMap<>();
-    Map<String, AtomicInteger> nextServer = new ConcurrentHashMap<>();
+    private ResponseCache responseCache;
+    private ProxyMetrics metrics;
+    /**
+     * 没有配置时为 null, 重新加载配置时沿用旧的
+     */
+    private AccessLog accessLog;
+    /**
+     * 后端配置的是域名时, DNS 重新解析后会替换这几个 map 里的值, 所以都用 ConcurrentHashMap
+     */
+    Map<String, List<UpstreamServer>> upsRouterMap = new ConcurrentHashMap<>();
+    Map<String, LoadBalancer> loadBalancers = new ConcurrentHashMap<>();
+    Map<String, OutlierDetector> outlierDetectors = new ConcurrentHashMap<>();
+    Map<String, ConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<>();
+    private final Map<String, ClientTls> clientTls = new HashMap<>();
+    /**
+     * 后端里有域名的 upstream, 没有时不会创建 resolver
+     */
+    private final Map<String, DnsGroup> dnsGroups = new ConcurrentHashMap<>();
+    private UpstreamResolver resolver;
+    /**
+     * DNS 解析结果变化、后端列表被替换之后调用, 在 DNS 线程上执行
+     */
+    private volatile Runnable endpointListener;
+    /**
+     * 按 location 记录的限流器, 重新加载配置时沿用配置没变的
+     */
+    private final Map<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    private Map<String, RateLimiter> previousRateLimiters = Collections.emptyMap();
 
     private ProxyContext() {
     }
 
-    public static ProxyContext create(ProxyConf proxyConf) throws MalformedURLException {
+    public static ProxyContext create(ProxyConf proxyConf) throws IOException {
+        return create(proxyConf, null);
+    }
+
+    /**
+     * 重新加载配置时创建新的 context, 指标、缓存和仍然存在的后端沿用旧的,
+     * 后端的未完成请求数、健康状态和连接池都不受影响
+     *
+     * @param proxyConf
+     * @param previous  第一次启动时为 null
+     * @return
+     * @throws IOException proxyPass 不合法或者 upstream 的 CA 证书读取失败
+     */
+    public static ProxyContext create(ProxyConf proxyConf, ProxyContext previous) throws IOException {
         ProxyContext proxyContext = new ProxyContext();
         proxyContext.proxyConf = proxyConf;
+        proxyContext.metrics = previous == null ? new ProxyMetrics() : previous.metrics;
+        proxyContext.responseCache = previous == null ? ResponseCache.create(proxyConf.getCache(), proxyContext.metrics) : previous.responseCache;
+        proxyContext.accessLog = previous == null ? AccessLog.create(proxyConf.getAccessLog(), proxyContext.metrics)
+                : previous.accessLog;
+        if (previous != null) {
+            proxyContext.previousRateLimiters = previous.rateLimiters;
+            proxyContext.resolver = previous.resolver;
+        }
         for (ProxyConf.Server server : proxyConf.getServers()) {
             Map<String, ProxyConf.Location> location = server.getLocation();
             for (Map.Entry<String, ProxyConf.Location> locationEntry : location.entrySet()) {
                 ProxyConf.Location l = locationEntry.getValue();
                 URL url = new URL(l.getProxyPass());
-                proxyContext.findUpstreamServer(url.getHost()).orElseGet(() -> {
+                proxyContext.findUpstreamServer(url.getHost(), url.getProtocol()).orElseGet(() -> {
                     UpstreamServer upstreamServer = ProxyClientHelper.urlToUps(url);
                     String usk = upstreamServer.toKey();
-                    proxyContext.nextServer.put(usk, new AtomicInteger(0));
                     return proxyContext.upsRouterMap.computeIfAbsent(usk, k -> Arrays.asList(upstreamServer));
                 });
             }
         }
+        for (Map.Entry<String, List<UpstreamServer>> entry : proxyContext.upsRouterMap.entrySet()) {
+            String name = entry.getKey();
+            List<UpstreamServer> servers = entry.getValue();
+            ProxyConf.Upstream upstream = proxyConf.getUpstream().get(name);
+            if (servers.stream().anyMatch(UpstreamServer::isSecure)) {
+                // 一个 upstream 只建一个 SslContext, 所有后端的连接共用会话缓存. 配置没变时沿用, 缓存的会话不丢
+                ProxyConf.UpstreamTls tlsConf = upstream == null ? new ProxyConf.UpstreamTls() : upstream.getTls();
+                ClientTls tls = previous == null ? null : previous.clientTls.get(name);
+                proxyContext.clientTls.put(name, tls != null && tls.sameAs(tlsConf) ? tls : ClientTls.create(tlsConf));
+            }
+            if (upstream != null) {
+                proxyContext.concurrencyLimiter(name, upstream.getConcurrencyLimit(), previous);
+            }
+            if (servers.stream().anyMatch(UpstreamServer::needsResolve)) {
+                DnsGroup group = proxyContext.new DnsGroup(name, servers);
+                proxyContext.dnsGroups.put(name, group);
+                servers = group.resolveNow(proxyContext.resolver(previous));
+            }
+            if (previous != null) {
+                servers = previous.reuse(name, servers);
+            }
+            proxyContext.install(name, servers);
+        }
         return proxyContext;
     }
 
+    /**
+     * 解析 CONNECT 的目标, 没有域名后端时第一次调用才创建 resolver
+     *
+     * @param host
+     * @return 在 DNS 线程上完成
+     */
+    synchronized Future<InetAddress> resolve(String host) {
+        return resolver(null).resolve(host);
+    }
+
+    private UpstreamResolver resolver(ProxyContext previous) {
+        if (resolver == null) {
+            resolver = previous != null && previous.resolver != null ? previous.resolver : UpstreamResolver.create(proxyConf.getDns());
+        }
+        return resolver;
+    }
+
+    /**
+     * 设置 upstream 的后端列表, 没有可用的后端时 (域名还没有解析成功) 不创建负载均衡
+     */
+    private void install(String name, List<UpstreamServer> servers) {
+        ProxyConf.Upstream upstream = proxyConf.getUpstream().get(name);
+        for (UpstreamServer ups : servers) {
+            ups.setMetrics(metrics.upstream(name, ups.toKey()));
+            if (ups.isSecure()) {
+                ups.setTls(clientTls.get(name));
+            }
+            ups.setLimiter(concurrencyLimiters.get(name));
+        }
+        upsRouterMap.put(name, servers);
+        if (servers.isEmpty()) {
+            loadBalancers.remove(name);
+            outlierDetectors.remove(name);
+            return;
+        }
+        loadBalancers.put(name, LoadBalancers.create(upstream, servers));
+        outlierDetectors.put(name, new OutlierDetector(upstream == null ? null : upstream.getHealthCheck(), servers));
+    }
+
+    /**
+     * DNS 解析结果变化时调用, 用于重启健康检查和关闭已经不存在的后端的连接池
+     *
+     * @param endpointListener
+     */
+    public void setEndpointListener(Runnable endpointListener) {
+        this.endpointListener = endpointListener;
+    }
+
+    /**
+     * 关闭 DNS 解析和访问日志, 只在进程退出时调用, 重新加载配置时新的 context 会继续使用
+     */
+    public void close() {
+        if (resolver != null) {
+            resolver.close();
+        }
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
+    /**
+     * upstream 的并发限制, 配置没变时沿用上一份配置的, 已经调整好的限制和正在处理的请求数都保留
+     */
+    private ConcurrencyLimiter concurrencyLimiter(String hostname, ProxyConf.ConcurrencyLimit conf, ProxyContext previous) {
+        ConcurrencyLimiter limiter = previous == null ? null : previous.concurrencyLimiters.get(hostname);
+        if (limiter == null || !limiter.sameAs(conf)) {
+            limiter = ConcurrencyLimiter.create(conf, metrics.concurrency(hostname));
+        }
+        if (limiter != null) {
+            concurrencyLimiters.put(hostname, limiter);
+        }
+        return limiter;
+    }
+
+    /**
+     * 同一个 upstream 下地址相同的后端沿用旧对象, 更新权重和连接池配置, TLS 配置在 install 时更新.
+     * 连接池配置或者 TLS 配置变了时 {@link ProxyClient#retainPools} 会换新的连接池
+     */
+    private List<UpstreamServer> reuse(String hostname, List<UpstreamServer> servers) {
+        List<UpstreamServer> old = upsRouterMap.get(hostname);
+        if (old == null) {
+            return servers;
+        }
+        List<UpstreamServer> result = new ArrayList<>(servers.size());
+        for (UpstreamServer server : servers) {
+            UpstreamServer reused = server;
+            for (UpstreamServer o : old) {
+                if (o.toKey().equals(server.toKey())) {
+                    o.setWeight(server.getWeight());
+                    o.setPool(server.getPool());
+                    reused = o;
+                    break;
+                }
+            }
+            result.add(reused);
+        }
+        return result;
+    }
+
+    /**
+     * 所有 upstream 里的后端
+     *
+     * @return
+     */
+    Collection<List<UpstreamServer>> allServers() {
+        return upsRouterMap.values();
+    }
+
+    public ProxyConf getProxyConf() {
+        return proxyConf;
+    }
+
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * location 的限流器, 上一份配置里同一个 location 的限流配置没变时沿用, 计数不会因为重新加载而清零
+     *
+     * @param route
+     * @param conf
+     * @return 没有配置限流时返回 null
+     */
+    public RateLimiter rateLimiter(String route, ProxyConf.RateLimit conf) {
+        RateLimiter limiter = previousRateLimiters.get(route);
+        if (limiter == null || !limiter.sameAs(conf)) {
+            limiter = RateLimiter.create(conf);
+        }
+        if (limiter != null) {
+            rateLimiters.put(route, limiter);
+        }
+        return limiter;
+    }
 
     /**
      * 使用域名查询后端服务
@@ -78,34 +300,229 @@ public class ProxyContext {
      * @return
      */
     public Optional<List<UpstreamServer>> findUpstreamServer(String hostname) {
-        return findUpstream(hostname).map(e -> upsRouterMap.computeIfAbsent(hostname, k -> {
-            nextServer.put(hostname, new AtomicInteger(0));
-            List<UpstreamServer> upstreamServers = new ArrayList<>();
-            for (String s : e) {
-                upstreamServers.add(createUps(s));
-            }
-            return upstreamServers;
-        }));
-    }
-
-    public Optional<UpstreamServer> findClientUps(String hostname) {
-        AtomicInteger atomicInteger = nextServer.get(hostname);
-        return Optional.ofNullable(atomicInteger).map(a -> {
-            int i = atomicInteger.incrementAndGet();
-            List<UpstreamServer> upstreamServers = upsRouterMap.get(hostname);
-            return upstreamServers.get(i % upstreamServers.size());
+        return findUpstreamServer(hostname, UpstreamServer.HTTP);
+    }
+
+    /**
+     * 使用域名查询后端服务, 第一次查询时按 scheme 创建后端
+     *
+     * @param hostname
+     * @param scheme   proxyPass 的 scheme, 同一个 upstream 只能使用一种
+     * @return
+     */
+    Optional<List<UpstreamServer>> findUpstreamServer(String hostname, String scheme) {
+        ProxyConf.Upstream upstream = proxyConf.getUpstream().get(hostname);
+        return findUpstream(hostname).map(e -> {
+            List<UpstreamServer> servers = upsRouterMap.computeIfAbsent(hostname, k -> createServers(upstream, e, scheme));
+            if (!servers.isEmpty() && !servers.get(0).getScheme().equals(scheme)) {
+                throw new IllegalArgumentException("upstream " + hostname + " 同时使用了 http 和 https");
+            }
+            return servers;
         });
     }
 
-    private static UpstreamServer createUps(String s) {
-        String[] ss = s.split(":");
-        int port = 80;
+    private static List<UpstreamServer> createServers(ProxyConf.Upstream upstream, List<String> server, String scheme) {
+        List<UpstreamServer> upstreamServers = new ArrayList<>();
+        for (String s : server) {
+            UpstreamServer ups = createUps(s, scheme);
+            if (upstream.getPool() != null) {
+                ups.setPool(upstream.getPool());
+            }
+            upstreamServers.add(ups);
+        }
+        return upstreamServers;
+    }
+
+    /**
+     * 按 upstream 配置的负载均衡策略选择后端
+     *
+     * @param hostname
+     * @param request
+     * @param channel  下游连接
+     * @return 没有对应的 upstream 时返回 null
+     */
+    public UpstreamServer chooseUpstream(String hostname, HttpRequest request, Channel channel) {
+        if (!dnsGroups.isEmpty()) {
+            DnsGroup group = dnsGroups.get(hostname);
+            if (group != null) {
+                group.maybeRefresh();
+            }
+        }
+        LoadBalancer loadBalancer = loadBalancers.get(hostname);
+        return loadBalancer == null ? null : loadBalancer.select(request, channel);
+    }
+
+    /**
+     * 重试时选择另一个后端, 负载均衡选中的已经试过时换一个可用的、负载最低的
+     *
+     * @param hostname
+     * @param request
+     * @param channel
+     * @param tried    已经试过的后端
+     * @return 没有其他可用的后端时返回 null
+     */
+    UpstreamServer chooseRetry(String hostname, HttpRequest request, Channel channel, List<UpstreamServer> tried) {
+        LoadBalancer loadBalancer = loadBalancers.get(hostname);
+        if (loadBalancer == null) {
+            return null;
+        }
+        UpstreamServer selected = loadBalancer.select(request, channel);
+        if (!tried.contains(selected) && selected.getHealth().isAvailable()) {
+            return selected;
+        }
+        UpstreamServer best = null;
+        for (UpstreamServer server : loadBalancer.servers()) {
+            if (tried.contains(server) || !server.getHealth().isAvailable()) {
+                continue;
+            }
+            if (best == null || (long) server.getOutstanding() * best.getWeight() < (long) best.getOutstanding() * server.getWeight()) {
+                best = server;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 解析 "host:port weight=3" 格式的后端配置
+     *
+     * @throws IllegalArgumentException 权重不是正整数
+     */
+    static UpstreamServer createUps(String s, String scheme) {
+        String[] parts = s.trim().split("\\s+");
+        String[] ss = parts[0].split(":");
+        int port = UpstreamServer.defaultPort(scheme);
         if (ss.length == 2) {
             port = Integer.parseInt(ss[1]);
         }
         UpstreamServer upstreamServer = new UpstreamServer();
+        upstreamServer.setScheme(scheme);
         upstreamServer.setAddress(ss[0]);
         upstreamServer.setPort(port);
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith("weight=")) {
+                int weight = Integer.parseInt(parts[i].substring("weight=".length()));
+                if (weight < 1) {
+                    throw new IllegalArgumentException("后端 " + parts[0] + " 的 weight 必须大于 0");
+                }
+                upstreamServer.setWeight(weight);
+            }
+        }
         return upstreamServer;
     }
+
+    /**
+     * 一个后端里有域名的 upstream. 每个域名解析出来的每个 IP 是一个后端, 有请求时在后台按 refreshInterval 重新解析,
+     * 结果变化时替换负载均衡, 解析失败时继续使用上次成功的结果.
+     */
+    final class DnsGroup {
+        private final String name;
+        /**
+         * 配置里的后端, 域名还没有展开
+         */
+        private final List<UpstreamServer> templates;
+        private final Set<String> hosts = new LinkedHashSet<>();
+        /**
+         * 每个域名上次解析成功的地址, 只在 DNS 线程上或者第一次解析时修改
+         */
+        private final Map<String, List<InetAddress>> lastKnown = new ConcurrentHashMap<>();
+        private final Set<String> failed = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long nextRefresh;
+
+        DnsGroup(String name, List<UpstreamServer> templates) {
+            this.name = name;
+            this.templates = templates;
+            for (UpstreamServer template : templates) {
+                if (template.needsResolve()) {
+                    hosts.add(template.getAddress());
+                }
+            }
+        }
+
+        /**
+         * 创建 context 时同步解析一次, 超时或者失败的域名先没有后端, 之后有请求时再解析
+         */
+        List<UpstreamServer> resolveNow(UpstreamResolver resolver) {
+            ProxyConf.Dns conf = resolver.getConf();
+            Future<Map<String, Future<List<InetAddress>>>> future = resolver.resolveAll(hosts);
+            Map<String, Future<List<InetAddress>>> result = Collections.emptyMap();
+            if (future.awaitUninterruptibly(conf.getQueryTimeout() * 2) && future.isSuccess()) {
+                result = future.getNow();
+            }
+            nextRefresh = System.currentTimeMillis() + conf.getRefreshInterval();
+            return expand(result);
+        }
+
+        void maybeRefresh() {
+            long now = System.currentTimeMillis();
+            if (now < nextRefresh || !refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            nextRefresh = now + resolver.getConf().getRefreshInterval();
+            resolver.resolveAll(hosts).addListener((Future<Map<String, Future<List<InetAddress>>>> future) -> {
+                try {
+                    if (future.isSuccess()) {
+                        refreshed(expand(future.getNow()));
+                    }
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+
+        private void refreshed(List<UpstreamServer> servers) {
+            List<UpstreamServer> current = upsRouterMap.getOrDefault(name, Collections.emptyList());
+            if (keys(servers).equals(keys(current))) {
+                return;
+            }
+            System.out.println("upstream " + name + " 的后端变为 " + keys(servers));
+            install(name, reuse(name, servers));
+            Runnable listener = endpointListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        /**
+         * 把域名展开成每个 IP 一个后端, 同一个 IP 只保留一个
+         */
+        private List<UpstreamServer> expand(Map<String, Future<List<InetAddress>>> result) {
+            for (String host : hosts) {
+                Future<List<InetAddress>> f = result.get(host);
+                if (f != null && f.isSuccess() && !f.getNow().isEmpty()) {
+                    lastKnown.put(host, f.getNow());
+                    if (failed.remove(host)) {
+                        System.out.println("解析域名 " + host + " 恢复: " + f.getNow());
+                    }
+                } else if (failed.add(host)) {
+                    // 只在开始失败时打印一次
+                    System.out.println("解析域名 " + host + " 失败, " + (lastKnown.containsKey(host) ? "继续使用上次的结果: "
+                            + lastKnown.get(host) : "暂时没有可用的后端") + ": " + (f == null ? "超时" : f.cause()));
+                }
+            }
+            List<UpstreamServer> servers = new ArrayList<>();
+            Set<String> expanded = new HashSet<>();
+            for (UpstreamServer template : templates) {
+                if (!template.needsResolve()) {
+                    servers.add(template);
+                    continue;
+                }
+                for (InetAddress address : lastKnown.getOrDefault(template.getAddress(), Collections.emptyList())) {
+                    UpstreamServer server = template.withAddress(address);
+                    if (expanded.add(server.toKey())) {
+                        servers.add(server);
+                    }
+                }
+            }
+            return servers;
+        }
+
+        private Set<String> keys(List<UpstreamServer> servers) {
+            Set<String> keys = new HashSet<>();
+            for (UpstreamServer server : servers) {
+                keys.add(server.toKey());
+            }
+            return keys;
+        }
+    }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.bootstrap.Bootstrap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 管理所有监听端口, 支持不重启重新加载配置.
+ * <p>
+ * 重新加载时先完整构建新的 upstream 和路由, 有任何错误都保留旧配置; 构建成功后每个端口一次 volatile 替换.
+ * 新增的端口开始监听, 移除的端口停止监听并排空已有连接. 处理中的请求继续使用旧路由,
+ * 仍然存在的后端沿用原来的连接池和健康状态; 后端的 pool 或 tls 配置变了时换新的连接池, 旧连接用完后关闭.
+ * transport、admin 和缓存大小的修改需要重启.
+ *
+ * @author kailuo
+ */
+public class ProxyReloader implements Closeable {
+    /**
+     * 移除的端口上的连接最多等待的时间
+     */
+    static final long DRAIN_TIMEOUT = 30_000;
+
+    private final Callable<String> configSource;
+    private final ProxyTransport transport;
+    private ProxyClient proxyClient;
+    private volatile ProxyContext proxyContext;
+    private final Map<Integer, ProxyServer> servers = new HashMap<>();
+    private HealthChecker healthChecker;
+    /**
+     * DNS 线程也会重启健康检查, 不能使用 this 做锁, 否则重新加载时等待 DNS 解析会和它互相等待
+     */
+    private final Object healthLock = new Object();
+    private Thread watcher;
+
+    private ProxyReloader(Callable<String> configSource, ProxyTransport transport) {
+        this.configSource = configSource;
+        this.transport = transport;
+    }
+
+    /**
+     * 读取配置并启动所有监听端口
+     *
+     * @param configSource 读取配置文件内容
+     * @param transport
+     * @return
+     * @throws Exception 第一次加载配置失败或者端口监听失败
+     */
+    public static ProxyReloader start(Callable<String> configSource, ProxyTransport transport) throws Exception {
+        ProxyReloader reloader = new ProxyReloader(configSource, transport);
+        ProxyConf proxyConf = reloader.load();
+        ProxyContext proxyContext = ProxyContext.create(proxyConf);
+        reloader.proxyClient = ProxyClient.create(new Bootstrap(), transport, proxyContext.getMetrics());
+        reloader.apply(proxyConf, proxyContext);
+        return reloader;
+    }
+
+    private ProxyConf load() throws Exception {
+        return YmlHelper.reSerializer(configSource.call(), ProxyConf.class);
+    }
+
+    public ProxyContext getProxyContext() {
+        return proxyContext;
+    }
+
+    /**
+     * 重新读取配置并替换
+     *
+     * @return 配置有错误或者新增的端口监听失败时返回 false, 继续使用原来的配置
+     */
+    public synchronized boolean reload() {
+        try {
+            ProxyConf proxyConf = load();
+            apply(proxyConf, ProxyContext.create(proxyConf, proxyContext));
+        } catch (Exception e) {
+            System.out.println("重新加载配置失败, 继续使用原来的配置: " + e);
+            return false;
+        }
+        System.out.println("重新加载配置成功");
+        return true;
+    }
+
+    private void apply(ProxyConf proxyConf, ProxyContext next) throws Exception {
+        // 先构建所有端口的路由, 任何一个失败都不发布
+        Map<Integer, ProxyServer.Routes> routes = new LinkedHashMap<>();
+        for (ProxyConf.Server server : proxyConf.getServers()) {
+            if (routes.put(server.getListen(), ProxyServer.buildRoutes(server, next)) != null) {
+                throw new IllegalArgumentException("端口 " + server.getListen() + " 重复");
+            }
+        }
+        // 新增的端口先监听, 有一个失败就关掉这次新开的, 原来的配置不变
+        Map<Integer, ProxyServer> added = new LinkedHashMap<>();
+        for (Map.Entry<Integer, ProxyServer.Routes> entry : routes.entrySet()) {
+            if (!servers.containsKey(entry.getKey())) {
+                added.put(entry.getKey(), ProxyServer.create(entry.getValue(), proxyClient, transport));
+            }
+        }
+        try {
+            for (ProxyServer server : added.values()) {
+                server.awaitBound();
+            }
+        } catch (IOException e) {
+            for (ProxyServer server : added.values()) {
+                server.close();
+            }
+            throw e;
+        }
+        proxyContext = next;
+        for (Map.Entry<Integer, ProxyServer.Routes> entry : routes.entrySet()) {
+            ProxyServer server = servers.get(entry.getKey());
+            if (server != null) {
+                server.publish(entry.getValue());
+            }
+        }
+        servers.putAll(added);
+        Iterator<Map.Entry<Integer, ProxyServer>> it = servers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ProxyServer> entry = it.next();
+            if (!routes.containsKey(entry.getKey())) {
+                System.out.println("端口 " + entry.getKey() + " 已移除, 处理完已有请求后关闭");
+                entry.getValue().drain(DRAIN_TIMEOUT);
+                it.remove();
+            }
+        }
+        next.setEndpointListener(() -> endpointsChanged(next));
+        endpointsChanged(next);
+    }
+
+    /**
+     * 后端列表变化后重启健康检查, 关闭已经不存在的后端的连接池
+     */
+    private void endpointsChanged(ProxyContext context) {
+        synchronized (healthLock) {
+            if (context != proxyContext) {
+                return;
+            }
+            if (healthChecker != null) {
+                healthChecker.close();
+            }
+            healthChecker = HealthChecker.start(context, transport);
+            proxyClient.retainPools(context);
+        }
+    }
+
+    /**
+     * 监听配置文件的修改, 修改后自动重新加载
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void watch(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path name = file.getFileName();
+        WatchService watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        watcher = new Thread(() -> {
+            try (WatchService ws = watchService) {
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = ws.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= name.equals(event.context());
+                    }
+                    key.reset();
+                    if (changed) {
+                        // 编辑器保存时可能连续触发多次, 等写完再加载
+                        TimeUnit.MILLISECONDS.sleep(200);
+                        WatchKey more = ws.poll();
+                        if (more != null) {
+                            more.pollEvents();
+                            more.reset();
+                        }
+                        reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // 关闭
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "proxy-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+        synchronized (healthLock) {
+            if (healthChecker != null) {
+                healthChecker.close();
+            }
+        }
+        for (ProxyServer server : servers.values()) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        proxyClient.close();
+        proxyContext.close();
+    }
+}
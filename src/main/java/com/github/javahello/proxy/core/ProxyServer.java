@@ -17,74 +17,113 @@ package com.github.javahello.proxy.core;
 
 import com.github.javahello.proxy.conf.ProxyConf;
 import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.limit.RateLimiter;
+import com.github.javahello.proxy.limit.RetryBudget;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.metrics.RouteMetrics;
 import com.github.javahello.proxy.util.ProxyClientHelper;
-import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class ProxyServer implements Closeable {
-    final EventLoopGroup bossGroup;
-    final EventLoopGroup workerGroup;
+    /**
+     * 切换到 HTTP/2 时从连接上移除的处理器
+     */
+    static final String[] HTTP1_HANDLERS = {"http-aggregator", "http-content-compressor", "http-proxy"};
+
     final ServerBootstrap serverBootstrap = new ServerBootstrap();
-    final Bootstrap clientBootstrap = new Bootstrap();
+    /**
+     * 绑定监听端口的结果, channel 就是监听的 channel
+     */
+    private ChannelFuture bindFuture;
+    /**
+     * 当前的路由, 重新加载配置时整体替换, 请求处理时读一次
+     */
+    private volatile Routes routes;
+    /**
+     * 下游连接, 监听端口被移除时用来排空
+     */
+    final ChannelGroup connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
-    private ProxyConf.Server serverConf;
-    private ProxyContext proxyContext;
+    /**
+     * 一个监听端口的路由快照, 创建后不再修改
+     */
+    static final class Routes {
+        final ProxyConf.Server serverConf;
+        final ProxyContext proxyContext;
+        final RouteTable<UrlMatch> routeTable = new RouteTable<>();
+        /**
+         * 明文端口为 null
+         */
+        final ServerTls tls;
 
-    private final List<UrlMatch> urlMatches = new ArrayList<>();
+        private Routes(ProxyConf.Server serverConf, ProxyContext proxyContext, ServerTls tls) {
+            this.serverConf = serverConf;
+            this.proxyContext = proxyContext;
+            this.tls = tls;
+        }
 
-    static class UrlMatch implements Comparable<UrlMatch> {
-        private String api;
-        private ProxyConf.Location location;
-        private String hostname;
+        UrlMatch match(String uri) {
+            return routeTable.match(uri);
+        }
+    }
 
-        @Override
-        public int compareTo(UrlMatch o) {
-            String c2 = Optional.ofNullable(o)
-                    .map(UrlMatch::getApi)
-                    .orElse(null);
-            if (c2 == null) {
-                return -1;
-            }
-            if (this.api == null) {
-                return 0;
-            }
-            if (this.api.length() > c2.length()) {
-                return 1;
-            }
-            return 0;
+    /**
+     * 连接上当前请求的路由快照. 聚合器收到请求头时读取一次, 聚合、压缩和转发都使用这一份,
+     * 重新加载配置时一个请求不会用到新旧混合的配置. 同一个连接上的请求依次经过这些处理器, 不需要同步
+     */
+    static final class RouteSnapshot {
+        private final ProxyServer proxyServer;
+        Routes routes;
+        /**
+         * 没有匹配的 location 时为 null
+         */
+        UrlMatch urlMatch;
+
+        RouteSnapshot(ProxyServer proxyServer) {
+            this.proxyServer = proxyServer;
         }
 
-        public boolean match(String uri) {
-            return Optional.ofNullable(uri)
-                    .map(e -> e.split("/"))
-                    .map(e -> {
-                        if (e.length == 0) {
-                            return "/";
-                        }
-                        String r = "/";
-                        if (e.length > 1) {
-                            r += e[1];
-                        } else {
-                            r += e[0];
-                        }
-                        return r;
-                    })
-                    .map(e -> e.equalsIgnoreCase(api)).orElse(false);
+        void update(String uri) {
+            routes = proxyServer.routes();
+            urlMatch = routes.match(uri);
         }
 
+        boolean isStreaming() {
+            return urlMatch != null && urlMatch.getLocation().isStreaming();
+        }
+
+        ProxyConf.Compression compression() {
+            return urlMatch == null ? null : urlMatch.getLocation().getCompression();
+        }
+    }
+
+    /**
+     * location 匹配结果, 启动时按 location 构建好, 请求时直接复用
+     */
+    static class UrlMatch {
+        private String api;
+        private ProxyConf.Location location;
+        private String hostname;
+        private RouteMetrics metrics;
+        private RateLimiter rateLimiter;
+        private RetryBudget retryBudget;
+        private RetryBudget hedgeBudget;
+
         public String getApi() {
             return api;
         }
@@ -108,19 +147,65 @@ public class ProxyServer implements Closeable {
         public void setHostname(String hostname) {
             this.hostname = hostname;
         }
+
+        public RouteMetrics getMetrics() {
+            return metrics;
+        }
+
+        public void setMetrics(RouteMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        public RateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        public void setRateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+        }
+
+        public RetryBudget getRetryBudget() {
+            return retryBudget;
+        }
+
+        public void setRetryBudget(RetryBudget retryBudget) {
+            this.retryBudget = retryBudget;
+        }
+
+        public RetryBudget getHedgeBudget() {
+            return hedgeBudget;
+        }
+
+        public void setHedgeBudget(RetryBudget hedgeBudget) {
+            this.hedgeBudget = hedgeBudget;
+        }
     }
 
-    public ProxyServer() {
-        bossGroup = new NioEventLoopGroup();
-        workerGroup = new NioEventLoopGroup();
-        serverBootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class);
+    public ProxyServer(ProxyTransport transport) {
+        serverBootstrap.group(transport.bossGroup, transport.workerGroup)
+                .channel(transport.serverChannelClass)
+                .childOption(ChannelOption.TCP_NODELAY, true);
     }
 
-    public void initProxyCline() throws MalformedURLException {
+    /**
+     * 按 server 配置构建路由, 只构建不发布, 配置有错时抛异常, 不影响正在使用的路由
+     *
+     * @param serverConf
+     * @param proxyContext
+     * @return
+     * @throws IOException proxyPass 不合法或者证书读取失败
+     */
+    static Routes buildRoutes(ProxyConf.Server serverConf, ProxyContext proxyContext) throws IOException {
+        Routes routes = new Routes(serverConf, proxyContext, ServerTls.create(serverConf, proxyContext.getMetrics()));
         for (Map.Entry<String, ProxyConf.Location> locationEntry : serverConf.getLocation().entrySet()) {
             UrlMatch urlMatch = new UrlMatch();
             urlMatch.setApi(locationEntry.getKey());
             urlMatch.setLocation(locationEntry.getValue());
+            String route = serverConf.getListen() + " " + locationEntry.getKey();
+            urlMatch.setMetrics(proxyContext.getMetrics().route(route));
+            urlMatch.setRateLimiter(proxyContext.rateLimiter(route, locationEntry.getValue().getRateLimit()));
+            urlMatch.setRetryBudget(RetryBudget.create(locationEntry.getValue().getRetry()));
+            urlMatch.setHedgeBudget(RetryBudget.create(locationEntry.getValue().getHedge()));
             URL url = new URL(urlMatch.getLocation().getProxyPass());
             if (proxyContext.hasUpstream(url.getHost())) {
                 urlMatch.setHostname(url.getHost());
@@ -128,93 +213,183 @@ public class ProxyServer implements Closeable {
                 UpstreamServer upstreamServer = ProxyClientHelper.urlToUps(url);
                 urlMatch.setHostname(upstreamServer.toKey());
             }
-            urlMatches.add(urlMatch);
+            routes.routeTable.add(urlMatch.getApi(), urlMatch);
         }
-        urlMatches.sort(UrlMatch::compareTo);
+        return routes;
+    }
+
+    /**
+     * 发布新的路由, 已经在处理的请求继续使用旧的
+     *
+     * @param routes
+     */
+    void publish(Routes routes) {
+        this.routes = routes;
+    }
+
+    Routes routes() {
+        return routes;
+    }
+
+    /**
+     * 查找 uri 匹配的 location
+     *
+     * @param uri
+     * @return 没有匹配时返回 null
+     */
+    public UrlMatch urlMatch(String uri) {
+        return routes.match(uri);
+    }
+
+
+    /**
+     * HTTP/1.1 连接和 HTTP/2 stream 共用的处理器
+     *
+     * @param cp
+     * @param proxyClient
+     * @param maxPipelined
+     * @param proto        下游使用的协议, 转发时写到 X-Forwarded-Proto
+     */
+    void addHttpHandlers(ChannelPipeline cp, ProxyClient proxyClient, int maxPipelined, AsciiString proto) {
+        RouteSnapshot snapshot = new RouteSnapshot(this);
+        // 将HTTP消息的多个部分合成一条完整的HTTP消息, 流式转发的 location 跳过聚合
+        cp.addLast("http-aggregator", new HttpObjectAggregator(1024 * 1024) {
+            boolean streaming;
+
+            @Override
+            public boolean acceptInboundMessage(Object msg) throws Exception {
+                if (msg instanceof HttpRequest) {
+                    snapshot.update(((HttpRequest) msg).uri());
+                    streaming = snapshot.isStreaming();
+                }
+                return !streaming && super.acceptInboundMessage(msg);
+            }
+        });
+        // 压缩内容, 后端已压缩的响应直接透传
+        cp.addLast("http-content-compressor", new ProxyContentCompressor(uri -> snapshot.compression()));
+        cp.addLast("http-proxy", new ProxyServerHandler(proxyClient, maxPipelined, proto, snapshot));
     }
 
-    public Optional<UrlMatch> urlMatch(String uri) {
-        return urlMatches.stream().filter(e -> e.match(uri)).findFirst();
+    private ChannelHandler streamInitializer(ProxyClient proxyClient, AsciiString proto) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ChannelPipeline cp = ch.pipeline();
+                cp.addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                addHttpHandlers(cp, proxyClient, 1, proto);
+            }
+        };
     }
 
+    public static ProxyServer create(ProxyConf.Server serverConf, ProxyContext proxyContext,
+                                     ProxyClient proxyClient, ProxyTransport transport) throws IOException {
+        return create(buildRoutes(serverConf, proxyContext), proxyClient, transport);
+    }
 
-    public static ProxyServer create(ProxyConf.Server serverConf, ProxyContext proxyContext) throws MalformedURLException {
-        ProxyServer proxyServer = new ProxyServer();
-        proxyServer.serverConf = serverConf;
-        proxyServer.proxyContext = proxyContext;
-        proxyServer.initProxyCline();
-        ProxyClient proxyClient = ProxyClient.create(proxyServer.clientBootstrap, proxyServer.workerGroup);
+    static ProxyServer create(Routes initial, ProxyClient proxyClient, ProxyTransport transport) {
+        ProxyServer proxyServer = new ProxyServer(transport);
+        proxyServer.publish(initial);
+        ProxyConf.Server serverConf = initial.serverConf;
+        ProxyMetrics metrics = initial.proxyContext.getMetrics();
+        // HTTP/2 的每个 stream 一个子 channel, 一个 stream 只有一个请求
+        ChannelHandler h2cStreamInitializer = proxyServer.streamInitializer(proxyClient, ForwardHeaders.HTTP);
+        ChannelHandler h2StreamInitializer = proxyServer.streamInitializer(proxyClient, ForwardHeaders.HTTPS);
         proxyServer.serverBootstrap
                 .childHandler(new ChannelInitializer<Channel>() {
                     @Override
                     protected void initChannel(Channel ch) throws Exception {
+                        proxyServer.connections.add(ch);
+                        // 新连接使用当前的配置, 重新加载后证书和 HTTP/2 配置对新连接生效
+                        Routes routes = proxyServer.routes();
+                        ProxyConf.Http2 http2 = routes.serverConf.getHttp2();
+                        boolean http2Enabled = http2 != null && http2.isEnabled();
+                        int maxPipelined = routes.serverConf.getMaxPipelined();
                         ChannelPipeline cp = ch.pipeline();
-                        // 请求解码器, 响应转码器
-                        cp.addLast(new HttpServerCodec());
-                        // 将HTTP消息的多个部分合成一条完整的HTTP消息，对于报文较长的请求需要设置，短请求可以不设置
-                        cp.addLast("http-aggregator", new HttpObjectAggregator(1024 * 1024));
-                        // 压缩内容
-                        cp.addLast("http-content-compressor", new HttpContentCompressor());
-
-                        cp.addLast("http-proxy", new SimpleChannelInboundHandler<FullHttpRequest>(false) {
-                            ProxyClient.HttpClient httpClient;
-
-                            @Override
-                            public void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) throws Exception {
-                                Channel sc = ctx.channel();
-                                String uri = msg.uri();
-                                if (httpClient == null) {
-                                    httpClient = proxyServer.urlMatch(uri)
-                                            .flatMap(e -> proxyContext.findClientUps(e.getHostname()))
-                                            .map(ups -> proxyClient.createHttpClient(sc, ups)).orElse(null);
-                                    if (httpClient == null) {
-                                        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
-                                        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
-                                        ctx.writeAndFlush(response);
-                                        return;
-                                    }
-                                }
-                                DefaultFullHttpRequest request = new DefaultFullHttpRequest(msg.protocolVersion(), msg.method(), uri, msg.content());
-                                for (Map.Entry<String, String> header : msg.headers()) {
-                                    if (HttpHeaderNames.HOST.contentEqualsIgnoreCase(header.getKey())) {
-                                        continue;
+                        cp.addLast("traffic", metrics.downstreamTraffic());
+                        if (routes.tls != null) {
+                            cp.addLast("tls", routes.tls.newHandler(ch));
+                            cp.addLast("tls-handshake", routes.tls.newHandshakeRecorder());
+                            if (!http2Enabled) {
+                                cp.addLast(new HttpServerCodec());
+                                proxyServer.addHttpHandlers(cp, proxyClient, maxPipelined, ForwardHeaders.HTTPS);
+                                return;
+                            }
+                            // 握手完成后按 ALPN 协商的协议初始化
+                            cp.addLast("alpn", new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                                @Override
+                                protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                                    if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                        Http2Server.configure(ctx.pipeline(), http2, h2StreamInitializer);
+                                    } else {
+                                        ctx.pipeline().addLast(new HttpServerCodec());
+                                        proxyServer.addHttpHandlers(ctx.pipeline(), proxyClient, maxPipelined, ForwardHeaders.HTTPS);
                                     }
-                                    request.headers().add(header.getKey(), header.getValue());
                                 }
-                                request.headers().add(HttpHeaderNames.HOST, httpClient.getHost());
-                                httpClient.writeAndFlush(request);
-                            }
-
-                            @Override
-                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-                                // 客户端异常了 返回 500
-                                DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR);
-                                response.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
-                                ctx.writeAndFlush(response);
-                            }
-
-                            @Override
-                            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-                                proxyClient.close(ctx);
-                                super.channelInactive(ctx);
-                            }
-                        });
+                            });
+                            return;
+                        }
+                        // 请求解码器, 响应转码器
+                        HttpServerCodec httpServerCodec = new HttpServerCodec();
+                        if (http2Enabled) {
+                            cp.addLast("h2c", Http2Server.cleartext(httpServerCodec, http2, h2cStreamInitializer, HTTP1_HANDLERS));
+                        } else {
+                            cp.addLast(httpServerCodec);
+                        }
+                        proxyServer.addHttpHandlers(cp, proxyClient, maxPipelined, ForwardHeaders.HTTP);
                     }
                 });
-        proxyServer.serverBootstrap.bind(serverConf.getListen())
+        proxyServer.bindFuture = proxyServer.serverBootstrap.bind(serverConf.getListen())
                 .addListener((ChannelFutureListener) future -> {
                     if (future.isSuccess()) {
                         System.out.println(serverConf.getServerName() + ":" + serverConf.getListen() + " 启动成功");
                     } else {
-                        throw new RuntimeException(future.cause());
+                        System.out.println(serverConf.getServerName() + ":" + serverConf.getListen() + " 启动失败: " + future.cause());
                     }
                 });
         return proxyServer;
     }
 
+    /**
+     * 等待端口绑定完成, 不能在 EventLoop 上调用
+     *
+     * @throws IOException 绑定失败, 比如端口已经被占用
+     */
+    void awaitBound() throws IOException {
+        if (!bindFuture.awaitUninterruptibly().isSuccess()) {
+            throw new IOException("端口 " + getListen() + " 监听失败", bindFuture.cause());
+        }
+    }
+
+    /**
+     * 停止监听, 已有连接处理完手上的请求后关闭, 超过 timeout 还没结束的直接关闭
+     *
+     * @param timeoutMillis
+     */
+    void drain(long timeoutMillis) {
+        bindFuture.channel().close();
+        for (Channel ch : connections) {
+            ch.eventLoop().execute(() -> {
+                ProxyServerHandler handler = ch.pipeline().get(ProxyServerHandler.class);
+                if (handler != null) {
+                    handler.drain();
+                } else {
+                    // HTTP/2 连接关闭时先发 GOAWAY, 等已有的 stream 结束
+                    ch.close();
+                }
+            });
+        }
+        GlobalEventExecutor.INSTANCE.schedule(() -> {
+            connections.close();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getListen() {
+        return routes.serverConf.getListen();
+    }
+
     @Override
     public void close() throws IOException {
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
+        // EventLoop 是共享的, 这里只关闭监听
+        bindFuture.channel().close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.cache.ResponseCache;
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.limit.RateLimiter;
+import com.github.javahello.proxy.log.AccessLog;
+import com.github.javahello.proxy.metrics.RouteMetrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 下游连接的代理处理器, 每个连接一个.
+ * <p>
+ * 每个请求单独路由, 同一连接上 pipelining 的多个请求可能发往不同的后端,
+ * 响应按请求顺序排队写回, 没轮到的响应先缓存在各自的 {@link ProxyClient.HttpClient} 里.
+ *
+ * @author kailuo
+ */
+class ProxyServerHandler extends SimpleChannelInboundHandler<HttpObject> {
+    private final ProxyClient proxyClient;
+    private final int maxPipelined;
+    /**
+     * 还没写完响应的请求, 按请求顺序排列, 队头的响应直接写给下游
+     */
+    private final ArrayDeque<ProxyClient.HttpClient> inflight = new ArrayDeque<>();
+    /**
+     * 正在接收 body 分片的流式请求
+     */
+    private ProxyClient.HttpClient uploading;
+    private ChannelHandlerContext ctx;
+    /**
+     * 下游客户端地址, 第一个请求时编码一次, 同一连接上的请求复用
+     */
+    private AsciiString clientIp;
+    private boolean draining;
+    /**
+     * 收到了 Upgrade 或 CONNECT, 握手结束之前不再读下游
+     */
+    private boolean tunneling;
+    /**
+     * 握手中的隧道, 下游断开时取消
+     */
+    private Tunnel tunnel;
+    /**
+     * 前面还有请求没响应完, 等它们写完再开始握手
+     */
+    private Supplier<Tunnel> pendingTunnel;
+    private HttpRequest pendingTunnelRequest;
+    /**
+     * 下游使用的协议, TLS 端口为 https
+     */
+    private final AsciiString proto;
+    /**
+     * 聚合器读取的当前请求的路由
+     */
+    private final ProxyServer.RouteSnapshot snapshot;
+
+    ProxyServerHandler(ProxyClient proxyClient, int maxPipelined, AsciiString proto, ProxyServer.RouteSnapshot snapshot) {
+        super(false);
+        this.proxyClient = proxyClient;
+        this.maxPipelined = Math.max(1, maxPipelined);
+        this.proto = proto;
+        this.snapshot = snapshot;
+    }
+
+    static FullHttpResponse errorResponse(HttpResponseStatus status) {
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+        return response;
+    }
+
+    private AsciiString clientIp() {
+        AsciiString clientIp = this.clientIp;
+        if (clientIp == null) {
+            SocketAddress address = ctx.channel().remoteAddress();
+            if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+                clientIp = new AsciiString(((InetSocketAddress) address).getAddress().getHostAddress());
+                this.clientIp = clientIp;
+            }
+        }
+        return clientIp;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+        if (!(msg instanceof HttpRequest)) {
+            // 流式请求的 body 分片
+            ProxyClient.HttpClient httpClient = uploading;
+            if (httpClient == null) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (msg instanceof LastHttpContent) {
+                uploading = null;
+            }
+            httpClient.writeContent((HttpContent) msg);
+            updateAutoRead();
+            return;
+        }
+        long startNanos = System.nanoTime();
+        HttpRequest req = (HttpRequest) msg;
+        uploading = null;
+        // 一个请求只读一次路由快照 (聚合器收到请求头时读取), 重新加载配置时不会用到新旧混合的配置
+        ProxyServer.Routes routes = snapshot.routes;
+        if (HttpMethod.CONNECT.equals(req.method())) {
+            if (ctx.channel() instanceof Http2StreamChannel) {
+                // HTTP/2 的 CONNECT 是 stream 级的隧道, 不支持
+                ReferenceCountUtil.release(msg);
+                accessLog(routes, req, null, HttpResponseStatus.NOT_IMPLEMENTED);
+                respond(errorResponse(HttpResponseStatus.NOT_IMPLEMENTED));
+                return;
+            }
+            tunnel(req, () -> Tunnel.connect(this, ctx, routes, req, clientIp(), proxyClient));
+            return;
+        }
+        ProxyServer.UrlMatch urlMatch = snapshot.urlMatch;
+        if (urlMatch != null && urlMatch.getRateLimiter() != null && !allow(urlMatch, req)) {
+            accessLog(routes, req, urlMatch, HttpResponseStatus.TOO_MANY_REQUESTS);
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        UpstreamServer ups = urlMatch == null ? null : routes.proxyContext.chooseUpstream(urlMatch.getHostname(), req, ctx.channel());
+        if (ups == null) {
+            ReferenceCountUtil.release(msg);
+            // 匹配到了 location 但是没有可用的后端, 比如域名还没有解析成功
+            HttpResponseStatus status = urlMatch == null ? HttpResponseStatus.NOT_FOUND : HttpResponseStatus.SERVICE_UNAVAILABLE;
+            accessLog(routes, req, urlMatch, status);
+            respond(errorResponse(status));
+            return;
+        }
+        if (routes.serverConf.getTunnel().isUpgrade() && !(ctx.channel() instanceof Http2StreamChannel)
+                && Tunnel.isUpgrade(req)) {
+            tunnel(req, () -> Tunnel.upgrade(this, ctx, routes, urlMatch, ups, req, clientIp(), proto, proxyClient));
+            return;
+        }
+        long routedNanos = System.nanoTime();
+        ProxyClient.HttpClient httpClient = proxyClient.createHttpClient(this, ctx.channel(), ups);
+        httpClient.origin(req, clientIp());
+        httpClient.timing(routes.proxyContext.getProxyConf().getTiming(), routes.proxyContext.getMetrics().slowRequests(),
+                startNanos, routedNanos);
+        httpClient.closeAfterResponse = draining || !HttpUtil.isKeepAlive(req);
+        httpClient.streaming = urlMatch.getLocation().isStreaming();
+        httpClient.route = urlMatch.getMetrics();
+        httpClient.route.onRequest();
+        httpClient.timeout = urlMatch.getLocation().getTimeout();
+        httpClient.retry(routes.proxyContext, urlMatch.getHostname(), urlMatch.getRetryBudget());
+        httpClient.hedge(urlMatch.getLocation().getHedge(), urlMatch.getHedgeBudget());
+        AccessLog accessLog = routes.proxyContext.getAccessLog();
+        if (accessLog != null) {
+            httpClient.accessLog(accessLog);
+        }
+        if (!(req instanceof FullHttpRequest)) {
+            uploading = httpClient;
+        }
+        inflight.addLast(httpClient);
+        ProxyConf.CachePolicy cachePolicy = urlMatch.getLocation().getCache();
+        boolean cached = cachePolicy.isEnabled() && req instanceof FullHttpRequest && ResponseCache.isCacheable(req);
+        // 缓存 key 使用下游的 Host, 要在改写请求头之前取
+        String primaryKey = cached ? ResponseCache.primaryKey(req) : null;
+        ForwardHeaders.rewrite(req.headers(), ups.hostHeader(), clientIp(), proto);
+        if (cached) {
+            fetchCached(routes, httpClient, (FullHttpRequest) req, primaryKey, cachePolicy, true);
+        } else {
+            httpClient.writeAndFlush(req);
+        }
+        updateAutoRead();
+    }
+
+    /**
+     * 开始隧道握手, 之后这个连接上不会再有 HTTP 请求, 握手失败时恢复
+     *
+     * @param req
+     * @param start 开始握手
+     */
+    private void tunnel(HttpRequest req, Supplier<Tunnel> start) {
+        tunneling = true;
+        uploading = null;
+        ctx.channel().config().setAutoRead(false);
+        if (inflight.isEmpty()) {
+            startTunnel(start);
+        } else {
+            pendingTunnel = start;
+            pendingTunnelRequest = req;
+        }
+    }
+
+    private void startTunnel(Supplier<Tunnel> start) {
+        Tunnel tunnel = start.get();
+        // 握手可能已经同步失败了
+        if (tunneling) {
+            this.tunnel = tunnel;
+        }
+    }
+
+    /**
+     * 隧道握手失败, 返回响应后继续按 HTTP 处理
+     *
+     * @param response
+     */
+    void tunnelFailed(FullHttpResponse response) {
+        tunneling = false;
+        tunnel = null;
+        respond(response);
+        if (ctx.channel().isActive()) {
+            updateAutoRead();
+        }
+    }
+
+    /**
+     * 限流检查, 超出时直接在当前 EventLoop 上返回 429, 不会连接后端
+     *
+     * @param urlMatch
+     * @param req
+     * @return 是否放行
+     */
+    private boolean allow(ProxyServer.UrlMatch urlMatch, HttpRequest req) {
+        RateLimiter limiter = urlMatch.getRateLimiter();
+        long wait = limiter.tryAcquire(limiter.key(req, clientIp()));
+        if (wait == 0) {
+            return true;
+        }
+        RouteMetrics metrics = urlMatch.getMetrics();
+        metrics.onRequest();
+        metrics.onRateLimited();
+        FullHttpResponse response = errorResponse(HttpResponseStatus.TOO_MANY_REQUESTS);
+        // Retry-After 只能是整秒, 向上取整
+        response.headers().set(HttpHeaderNames.RETRY_AFTER, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        respond(response);
+        return false;
+    }
+
+    /**
+     * 没有经过后端的本地响应也记一条访问日志
+     */
+    private void accessLog(ProxyServer.Routes routes, HttpRequest req, ProxyServer.UrlMatch urlMatch, HttpResponseStatus status) {
+        AccessLog accessLog = routes.proxyContext.getAccessLog();
+        AccessLog.Record record = accessLog == null ? null : accessLog.claim();
+        if (record == null) {
+            return;
+        }
+        record.request(clientIp(), req);
+        record.time = System.currentTimeMillis();
+        record.status = status.code();
+        record.bytes = 0;
+        record.durationNanos = 0;
+        record.upstreamNanos = -1;
+        record.route = urlMatch == null ? null : urlMatch.getMetrics().getRoute();
+        record.upstream = null;
+        accessLog.publish(record);
+    }
+
+    /**
+     * 先查缓存, 未命中时向后端获取, 同一个 key 已经在获取时等它结束再查一次
+     *
+     * @param routes      请求的路由快照
+     * @param httpClient
+     * @param request
+     * @param primaryKey
+     * @param cachePolicy
+     * @param coalesce    是否合并并发的未命中, 等待过一次的请求不再合并
+     */
+    private void fetchCached(ProxyServer.Routes routes, ProxyClient.HttpClient httpClient, FullHttpRequest request, String primaryKey,
+                             ProxyConf.CachePolicy cachePolicy, boolean coalesce) {
+        ResponseCache cache = routes.proxyContext.getResponseCache();
+        String key = cache.key(primaryKey, request.headers());
+        FullHttpResponse hit = cache.get(key, request);
+        if (hit != null) {
+            request.release();
+            httpClient.complete(hit);
+            return;
+        }
+        if (coalesce && !cache.tryFetch(key, () -> ctx.channel().eventLoop().execute(() -> {
+            if (httpClient.isCancelled()) {
+                request.release();
+            } else {
+                fetchCached(routes, httpClient, request, primaryKey, cachePolicy, false);
+            }
+        }))) {
+            return;
+        }
+        httpClient.cacheFetch = cache.fetch(primaryKey, coalesce ? key : null, request, cachePolicy);
+        httpClient.writeAndFlush(request);
+    }
+
+    /**
+     * 本地生成的响应, 前面还有请求没响应完时排队
+     *
+     * @param response
+     */
+    void respond(FullHttpResponse response) {
+        if (inflight.isEmpty()) {
+            ctx.writeAndFlush(response);
+            if (draining) {
+                ctx.close();
+            }
+            return;
+        }
+        inflight.addLast(ProxyClient.HttpClient.local(this, ctx.channel(), response));
+        updateAutoRead();
+    }
+
+    /**
+     * 后端响应, 轮到该请求时直接写给下游, 否则先缓存
+     *
+     * @param httpClient
+     * @param msg
+     */
+    void deliver(ProxyClient.HttpClient httpClient, HttpObject msg) {
+        if (inflight.peekFirst() != httpClient) {
+            httpClient.buffer(msg);
+            if (httpClient.streaming) {
+                // 流式响应可能很大, 轮到之前先不读后端
+                httpClient.pauseRead();
+            }
+            return;
+        }
+        httpClient.onWrite(msg, ctx.write(msg));
+        if (httpClient.done && msg instanceof LastHttpContent) {
+            complete();
+        } else if (!ctx.channel().isWritable()) {
+            // 下游写不动了, 先停止读后端, 等下游可写再恢复
+            httpClient.pauseRead();
+            ctx.flush();
+        }
+    }
+
+    void flush(ProxyClient.HttpClient httpClient) {
+        if (inflight.peekFirst() == httpClient) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * 队头请求的响应写完了, 把后面已经到达的响应依次写出
+     */
+    private void complete() {
+        ProxyClient.HttpClient head = inflight.pollFirst();
+        if (head.closeAfterResponse) {
+            closeAfterFlush();
+            return;
+        }
+        ProxyClient.HttpClient next;
+        while ((next = inflight.peekFirst()) != null) {
+            HttpObject msg;
+            while ((msg = next.pollBuffered()) != null) {
+                next.onWrite(msg, ctx.write(msg));
+            }
+            if (!next.done) {
+                next.resumeRead();
+                break;
+            }
+            inflight.pollFirst();
+            if (next.closeAfterResponse) {
+                closeAfterFlush();
+                return;
+            }
+        }
+        if (pendingTunnel != null) {
+            Supplier<Tunnel> start = pendingTunnel;
+            pendingTunnel = null;
+            pendingTunnelRequest = null;
+            ctx.flush();
+            startTunnel(start);
+            return;
+        }
+        if (draining && inflight.isEmpty()) {
+            closeAfterFlush();
+            return;
+        }
+        ctx.flush();
+        updateAutoRead();
+    }
+
+    /**
+     * 监听端口被移除, 处理完已经收到的请求后关闭连接
+     */
+    void drain() {
+        draining = true;
+        if (inflight.isEmpty() && uploading == null && !tunneling) {
+            ctx.close();
+        }
+    }
+
+    private void closeAfterFlush() {
+        ctx.flush();
+        ctx.close();
+    }
+
+    /**
+     * 根据 pipelining 深度和流式上传的后端是否可写决定是否继续读下游.
+     * 正在上传的 body 属于已经计数的请求, 只看后端是否可写
+     */
+    void updateAutoRead() {
+        if (tunneling) {
+            ctx.channel().config().setAutoRead(false);
+            return;
+        }
+        ProxyClient.HttpClient httpClient = uploading;
+        boolean read = httpClient != null ? httpClient.canAcceptContent() : inflight.size() < maxPipelined;
+        ctx.channel().config().setAutoRead(read);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 下游可写了, 恢复读取后端响应
+        ProxyClient.HttpClient head = inflight.peekFirst();
+        if (ctx.channel().isWritable() && head != null) {
+            head.resumeRead();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // 客户端异常了 返回 500
+        respond(errorResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR));
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        uploading = null;
+        if (tunnel != null) {
+            tunnel.cancel();
+            tunnel = null;
+        }
+        if (pendingTunnelRequest != null) {
+            ReferenceCountUtil.release(pendingTunnelRequest);
+            pendingTunnel = null;
+            pendingTunnelRequest = null;
+        }
+        ProxyClient.HttpClient httpClient;
+        while ((httpClient = inflight.pollFirst()) != null) {
+            httpClient.cancel();
+        }
+        super.channelInactive(ctx);
+    }
+}
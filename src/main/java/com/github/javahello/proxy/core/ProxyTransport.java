@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.io.Closeable;
+
+/**
+ * 所有监听端口和后端连接共用的 EventLoop, Linux 上优先使用 epoll, 不可用时退回 NIO
+ *
+ * @author kailuo
+ */
+public class ProxyTransport implements Closeable {
+    final EventLoopGroup bossGroup;
+    final EventLoopGroup workerGroup;
+    final Class<? extends ServerChannel> serverChannelClass;
+    final Class<? extends SocketChannel> channelClass;
+
+    private ProxyTransport(EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                           Class<? extends ServerChannel> serverChannelClass,
+                           Class<? extends SocketChannel> channelClass) {
+        this.bossGroup = bossGroup;
+        this.workerGroup = workerGroup;
+        this.serverChannelClass = serverChannelClass;
+        this.channelClass = channelClass;
+    }
+
+    public static ProxyTransport create(ProxyConf.Transport conf) {
+        if (conf == null) {
+            conf = new ProxyConf.Transport();
+        }
+        if (conf.isNativeTransport() && Epoll.isAvailable()) {
+            return new ProxyTransport(new EpollEventLoopGroup(conf.getBossThreads()),
+                    new EpollEventLoopGroup(conf.getWorkerThreads()),
+                    EpollServerSocketChannel.class, EpollSocketChannel.class);
+        }
+        return new ProxyTransport(new NioEventLoopGroup(conf.getBossThreads()),
+                new NioEventLoopGroup(conf.getWorkerThreads()),
+                NioServerSocketChannel.class, NioSocketChannel.class);
+    }
+
+    public boolean isNative() {
+        return channelClass == EpollSocketChannel.class;
+    }
+
+    public EventLoopGroup getBossGroup() {
+        return bossGroup;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    @Override
+    public void close() {
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+/**
+ * location 路由表, 按路径段组织成前缀树, 启动时构建, 之后只读.
+ * <p>
+ * 支持两种 location:
+ * <ul>
+ *     <li>{@code /api/v2} 前缀匹配, 按路径段匹配, 取最长的前缀</li>
+ *     <li>{@code = /login} 精确匹配, 优先于前缀匹配</li>
+ * </ul>
+ * 匹配时直接扫描 uri, 不切分字符串, 不产生临时对象. 和原来的实现一样忽略大小写.
+ *
+ * @author kailuo
+ */
+public class RouteTable<T> {
+    static final String EXACT_PREFIX = "=";
+
+    private final Node<T> root = new Node<>(null, 0);
+
+    /**
+     * 添加 location
+     *
+     * @param location 形如 {@code /api} 或 {@code = /api}
+     * @param value
+     */
+    public void add(String location, T value) {
+        String path = location.trim();
+        boolean exact = path.startsWith(EXACT_PREFIX);
+        if (exact) {
+            path = path.substring(EXACT_PREFIX.length()).trim();
+        }
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("location 必须以 / 开头: " + location);
+        }
+        Node<T> node = root;
+        int len = path.length();
+        int i = 0;
+        while (true) {
+            while (i < len && path.charAt(i) == '/') {
+                i++;
+            }
+            if (i >= len) {
+                break;
+            }
+            int j = i;
+            while (j < len && path.charAt(j) != '/') {
+                j++;
+            }
+            node = node.getOrAddChild(path.substring(i, j));
+            i = j;
+        }
+        if (exact) {
+            node.exactPath = path;
+            node.exact = value;
+        } else {
+            node.prefix = value;
+        }
+    }
+
+    /**
+     * 查找 uri 对应的 location, 精确匹配优先, 其次是最长前缀
+     *
+     * @param uri 请求的 uri, 可以带查询参数
+     * @return 没有匹配时返回 null
+     */
+    public T match(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        int len = pathLength(uri);
+        Node<T> node = root;
+        T best = root.prefix;
+        int i = 0;
+        while (true) {
+            while (i < len && uri.charAt(i) == '/') {
+                i++;
+            }
+            if (i >= len) {
+                break;
+            }
+            int j = i;
+            while (j < len && uri.charAt(j) != '/') {
+                j++;
+            }
+            Node<T> child = node.child(uri, i, j);
+            if (child == null) {
+                return best;
+            }
+            node = child;
+            if (node.prefix != null) {
+                best = node.prefix;
+            }
+            i = j;
+        }
+        if (node.exact != null && node.exactPath.length() == len
+                && uri.regionMatches(true, 0, node.exactPath, 0, len)) {
+            return node.exact;
+        }
+        return best;
+    }
+
+    private static int pathLength(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return uri.length();
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int hash(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + lower(s.charAt(i));
+        }
+        // 打散低位, 表长是 2 的幂
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 前缀树节点, 子节点放在开放寻址的哈希表里
+     */
+    static final class Node<T> {
+        final String segment;
+        final int hash;
+        Node<T>[] children = newTable(4);
+        int size;
+        T prefix;
+        T exact;
+        String exactPath;
+
+        Node(String segment, int hash) {
+            this.segment = segment;
+            this.hash = hash;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <T> Node<T>[] newTable(int length) {
+            return new Node[length];
+        }
+
+        boolean matches(String s, int start, int end) {
+            return segment.length() == end - start && segment.regionMatches(true, 0, s, start, end - start);
+        }
+
+        Node<T> child(String s, int start, int end) {
+            Node<T>[] table = children;
+            int mask = table.length - 1;
+            int idx = hash(s, start, end) & mask;
+            Node<T> n;
+            while ((n = table[idx]) != null) {
+                if (n.matches(s, start, end)) {
+                    return n;
+                }
+                idx = (idx + 1) & mask;
+            }
+            return null;
+        }
+
+        Node<T> getOrAddChild(String segment) {
+            Node<T> n = child(segment, 0, segment.length());
+            if (n != null) {
+                return n;
+            }
+            if ((size + 1) * 2 > children.length) {
+                resize();
+            }
+            n = new Node<>(segment, hash(segment, 0, segment.length()));
+            insert(children, n);
+            size++;
+            return n;
+        }
+
+        private void resize() {
+            Node<T>[] table = newTable(children.length * 2);
+            for (Node<T> n : children) {
+                if (n != null) {
+                    insert(table, n);
+                }
+            }
+            children = table;
+        }
+
+        private static <T> void insert(Node<T>[] table, Node<T> n) {
+            int mask = table.length - 1;
+            int idx = n.hash & mask;
+            while (table[idx] != null) {
+                idx = (idx + 1) & mask;
+            }
+            table[idx] = n;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.metrics.TlsMetrics;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.*;
+import io.netty.internal.tcnative.SSL;
+import io.netty.util.DomainWildcardMappingBuilder;
+import io.netty.util.Mapping;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个 TLS 端口的 SslContext, 随路由一起构建, 重新加载配置时证书也一起更新.
+ *
+ * @author kailuo
+ */
+final class ServerTls {
+    static final String JDK = "jdk";
+    static final String OPENSSL = "openssl";
+    /**
+     * OpenSSL 会话票据的密钥, 进程内共用, 重新加载配置后之前发出的票据仍然有效.
+     * 第一个加密新票据, 第二个是上个周期的密钥, 只用来解密已经发出的票据
+     */
+    private static OpenSslSessionTicketKey[] ticketKeys;
+    private static volatile long ticketKeysCreatedNanos;
+    /**
+     * 使用票据密钥的 OpenSSL 会话, 轮换密钥时一起更新; 重新加载后不再使用的 SslContext 随 GC 移除
+     */
+    private static final Set<OpenSslSessionContext> ticketContexts = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final SslContext defaultContext;
+    /**
+     * 按 SNI 选择证书, 没有配置 sni 时为 null
+     */
+    private final Mapping<String, SslContext> mapping;
+    private final long handshakeTimeout;
+    /**
+     * 票据密钥的轮换周期, 和会话有效期相同; 不使用 OpenSSL 时为 0
+     */
+    private final long ticketKeyRotationNanos;
+    private final TlsMetrics metrics;
+
+    private ServerTls(SslContext defaultContext, Mapping<String, SslContext> mapping, long handshakeTimeout,
+                      long ticketKeyRotationNanos, TlsMetrics metrics) {
+        this.defaultContext = defaultContext;
+        this.mapping = mapping;
+        this.handshakeTimeout = handshakeTimeout;
+        this.ticketKeyRotationNanos = ticketKeyRotationNanos;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param serverConf
+     * @param metrics
+     * @return 没有配置 tls 时返回 null
+     * @throws IOException 证书读取失败或者 provider 不可用
+     */
+    static ServerTls create(ProxyConf.Server serverConf, ProxyMetrics metrics) throws IOException {
+        ProxyConf.Tls tls = serverConf.getTls();
+        if (tls == null) {
+            return null;
+        }
+        boolean http2 = serverConf.getHttp2() != null && serverConf.getHttp2().isEnabled();
+        SslContext defaultContext = context(tls, tls, http2);
+        Mapping<String, SslContext> mapping = null;
+        if (tls.getSni() != null && !tls.getSni().isEmpty()) {
+            DomainWildcardMappingBuilder<SslContext> builder = new DomainWildcardMappingBuilder<>(defaultContext);
+            if (serverConf.getServerName() != null) {
+                builder.add(serverConf.getServerName(), defaultContext);
+            }
+            for (Map.Entry<String, ProxyConf.Certificate> entry : tls.getSni().entrySet()) {
+                builder.add(entry.getKey(), context(tls, entry.getValue(), http2));
+            }
+            mapping = builder.build();
+        }
+        long ticketKeyRotationNanos = provider(tls.getProvider()) == SslProvider.OPENSSL
+                ? TimeUnit.SECONDS.toNanos(tls.getSessionTimeout()) : 0;
+        return new ServerTls(defaultContext, mapping, tls.getHandshakeTimeout(), ticketKeyRotationNanos,
+                metrics.tls(String.valueOf(serverConf.getListen())));
+    }
+
+    private static SslContext context(ProxyConf.Tls tls, ProxyConf.Certificate certificate, boolean http2)
+            throws IOException {
+        SslContextBuilder builder;
+        if (certificate.getKeyStore() != null) {
+            builder = SslContextBuilder.forServer(keyManagerFactory(certificate));
+        } else if (certificate.getCertificate() != null && certificate.getPrivateKey() != null) {
+            builder = SslContextBuilder.forServer(new File(certificate.getCertificate()),
+                    new File(certificate.getPrivateKey()), certificate.getKeyPassword());
+        } else {
+            throw new SSLException("tls 需要配置 certificate + privateKey 或者 keyStore");
+        }
+        SslProvider provider = provider(tls.getProvider());
+        builder.sslProvider(provider)
+                .protocols(tls.getProtocols())
+                .ciphers(tls.getCiphers() == null && http2 ? Http2SecurityUtil.CIPHERS : tls.getCiphers(),
+                        SupportedCipherSuiteFilter.INSTANCE)
+                .sessionCacheSize(tls.getSessionCacheSize())
+                .sessionTimeout(tls.getSessionTimeout());
+        if (http2) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+        SslContext context = builder.build();
+        if (provider == SslProvider.OPENSSL) {
+            useTicketKeys((OpenSslSessionContext) context.sessionContext());
+        }
+        return context;
+    }
+
+    private static KeyManagerFactory keyManagerFactory(ProxyConf.Certificate certificate) throws IOException {
+        char[] storePassword = certificate.getKeyStorePassword() == null ? null : certificate.getKeyStorePassword().toCharArray();
+        char[] keyPassword = certificate.getKeyPassword() == null ? storePassword : certificate.getKeyPassword().toCharArray();
+        try (InputStream in = Files.newInputStream(Paths.get(certificate.getKeyStore()))) {
+            KeyStore keyStore = KeyStore.getInstance(certificate.getKeyStoreType());
+            keyStore.load(in, storePassword);
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keyStore, keyPassword);
+            return factory;
+        } catch (GeneralSecurityException e) {
+            throw new SSLException("读取 keyStore " + certificate.getKeyStore() + " 失败", e);
+        }
+    }
+
+    static SslProvider provider(String name) throws SSLException {
+        if (name == null || JDK.equalsIgnoreCase(name)) {
+            return SslProvider.JDK;
+        }
+        if (OPENSSL.equalsIgnoreCase(name)) {
+            ClientTls.enableSessionCache();
+            if (!OpenSsl.isAvailable()) {
+                throw new SSLException("OpenSSL 不可用", OpenSsl.unavailabilityCause());
+            }
+            return SslProvider.OPENSSL;
+        }
+        throw new SSLException("不支持的 tls.provider: " + name);
+    }
+
+    private static synchronized void useTicketKeys(OpenSslSessionContext sessionContext) {
+        if (ticketKeys == null) {
+            ticketKeys = new OpenSslSessionTicketKey[]{newTicketKey()};
+            ticketKeysCreatedNanos = System.nanoTime();
+        }
+        sessionContext.setTicketKeys(ticketKeys);
+        ticketContexts.add(sessionContext);
+    }
+
+    /**
+     * 当前密钥用满一个周期后换成新密钥, 当前密钥再保留一个周期用来解密, 这时用它加密的票据都已经过期
+     *
+     * @param periodNanos
+     */
+    static synchronized void rotateTicketKeys(long periodNanos) {
+        if (ticketKeys == null || System.nanoTime() - ticketKeysCreatedNanos < periodNanos) {
+            return;
+        }
+        ticketKeys = new OpenSslSessionTicketKey[]{newTicketKey(), ticketKeys[0]};
+        ticketKeysCreatedNanos = System.nanoTime();
+        for (OpenSslSessionContext sessionContext : ticketContexts) {
+            sessionContext.setTicketKeys(ticketKeys);
+        }
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+
+    /**
+     * 新连接的 TLS 处理器, 配置了 sni 时先读 ClientHello 再选择证书
+     *
+     * @param ch
+     * @return
+     */
+    ChannelHandler newHandler(Channel ch) {
+        // 没有单独的定时任务, 新连接到来时检查票据密钥是否该轮换了
+        if (ticketKeyRotationNanos > 0 && System.nanoTime() - ticketKeysCreatedNanos >= ticketKeyRotationNanos) {
+            rotateTicketKeys(ticketKeyRotationNanos);
+        }
+        if (mapping == null) {
+            SslHandler sslHandler = defaultContext.newHandler(ch.alloc());
+            sslHandler.setHandshakeTimeoutMillis(handshakeTimeout);
+            return sslHandler;
+        }
+        return new SniHandler(mapping) {
+            @Override
+            protected SslHandler newSslHandler(SslContext context, ByteBufAllocator allocator) {
+                SslHandler sslHandler = super.newSslHandler(context, allocator);
+                sslHandler.setHandshakeTimeoutMillis(handshakeTimeout);
+                return sslHandler;
+            }
+        };
+    }
+
+    /**
+     * 记录握手结果, 握手结束后移除自己
+     *
+     * @return
+     */
+    ChannelHandler newHandshakeRecorder() {
+        return new HandshakeRecorder(metrics);
+    }
+
+    /**
+     * 是否复用了会话. OpenSSL 直接问 SSL 对象, JDK 复用的会话保留原来的创建时间
+     *
+     * @param engine
+     * @param startMillis 连接建立的时间
+     * @return
+     */
+    static boolean isResumed(SSLEngine engine, long startMillis) {
+        if (engine instanceof ReferenceCountedOpenSslEngine) {
+            return SSL.isSessionReused(((ReferenceCountedOpenSslEngine) engine).sslPointer());
+        }
+        return engine.getSession().getCreationTime() < startMillis;
+    }
+
+    private static class HandshakeRecorder extends ChannelInboundHandlerAdapter {
+        private final TlsMetrics metrics;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+
+        HandshakeRecorder(TlsMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslHandshakeCompletionEvent) {
+                SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+                if (((SslHandshakeCompletionEvent) evt).isSuccess() && sslHandler != null) {
+                    metrics.onHandshake(isResumed(sslHandler.engine(), startMillis), System.nanoTime() - startNanos);
+                } else {
+                    metrics.onFailure();
+                }
+                ctx.pipeline().remove(this);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+}
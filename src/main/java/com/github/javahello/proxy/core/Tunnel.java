@@ -0,0 +1,501 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.log.AccessLog;
+import com.github.javahello.proxy.metrics.RouteMetrics;
+import com.github.javahello.proxy.metrics.TunnelMetrics;
+import com.github.javahello.proxy.metrics.UpstreamMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upgrade (WebSocket 等) 和 CONNECT 建立的隧道.
+ * <p>
+ * 握手阶段仍然按 HTTP 处理: Upgrade 请求转发给 location 选出的后端, 后端返回 101 时把响应写给下游;
+ * CONNECT 连上允许的目标后返回 200. 握手成功后移除两边的 HTTP 编解码器、聚合和压缩,
+ * 之后两个连接上读到的 {@link ByteBuf} 不经复制直接写到对方, 对方写不动时停止读取.
+ * 后端连接不经过连接池, 注册在下游的 EventLoop 上, 所有状态都在这一个线程上.
+ *
+ * @author kailuo
+ */
+final class Tunnel {
+    static final String CODEC = "tunnel-codec";
+    static final String AGGREGATOR = "tunnel-aggregator";
+    static final String RELAY = "tunnel-relay";
+    private static final String IDLE = "tunnel-idle";
+    private static final AsciiString H2C = AsciiString.cached("h2c");
+    private static final HttpResponseStatus CONNECTION_ESTABLISHED = new HttpResponseStatus(200, "Connection Established");
+
+    private final ProxyServerHandler owner;
+    private final ChannelHandlerContext ctx;
+    private final Channel sc;
+    private final ProxyServer.Routes routes;
+    private final ProxyConf.Tunnel conf;
+    private final TunnelMetrics metrics;
+    private final HttpRequest req;
+    private final AsciiString client;
+    private final long startNanos = System.nanoTime();
+    /**
+     * Upgrade 时所属 location 的指标和选出的后端, CONNECT 为 null
+     */
+    private RouteMetrics route;
+    private UpstreamServer upstreamServer;
+    private String target;
+    private Channel uc;
+    private ScheduledFuture<?> handshakeTimer;
+    private int status;
+    /**
+     * 写给下游的字节数, 不包括握手的响应
+     */
+    private long bytes;
+    private boolean opened;
+    private boolean established;
+    private boolean finished;
+
+    private Tunnel(ProxyServerHandler owner, ChannelHandlerContext ctx, ProxyServer.Routes routes, HttpRequest req,
+                   AsciiString client) {
+        this.owner = owner;
+        this.ctx = ctx;
+        this.sc = ctx.channel();
+        this.routes = routes;
+        this.conf = routes.serverConf.getTunnel();
+        this.metrics = routes.proxyContext.getMetrics().tunnel(String.valueOf(routes.serverConf.getListen()));
+        this.req = req;
+        this.client = client;
+    }
+
+    /**
+     * 带 Connection: upgrade 的请求, h2c 由 HTTP/2 处理器处理, 不在这里
+     */
+    static boolean isUpgrade(HttpRequest req) {
+        HttpHeaders headers = req.headers();
+        String upgrade = headers.get(HttpHeaderNames.UPGRADE);
+        return upgrade != null && !H2C.contentEqualsIgnoreCase(upgrade)
+                && headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true);
+    }
+
+    /**
+     * 转发 Upgrade 请求, 后端返回 101 后建立隧道, 返回其他响应时原样写给下游
+     *
+     * @param proto 下游使用的协议, 转发时写到 X-Forwarded-Proto
+     * @return 握手结束之前下游断开时用来取消
+     */
+    static Tunnel upgrade(ProxyServerHandler owner, ChannelHandlerContext ctx, ProxyServer.Routes routes,
+                          ProxyServer.UrlMatch urlMatch, UpstreamServer ups, HttpRequest req, AsciiString client,
+                          AsciiString proto, ProxyClient proxyClient) {
+        Tunnel tunnel = new Tunnel(owner, ctx, routes, req, client);
+        tunnel.route = urlMatch.getMetrics();
+        tunnel.route.onRequest();
+        tunnel.upstreamServer = ups;
+        if (!tunnel.open()) {
+            return tunnel;
+        }
+        String upgrade = req.headers().get(HttpHeaderNames.UPGRADE);
+        ForwardHeaders.rewrite(req.headers(), ups.hostHeader(), client, proto);
+        req.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE);
+        req.headers().set(HttpHeaderNames.UPGRADE, upgrade);
+        ProxyConf.Timeout timeout = urlMatch.getLocation().getTimeout();
+        ChannelFuture cf = proxyClient.connectTunnel(tunnel.sc.eventLoop(), ups.socketAddress(), ups,
+                timeout.getConnect(), tunnel.new Side(tunnel.sc, true));
+        tunnel.uc = cf.channel();
+        cf.addListener((ChannelFutureListener) future -> {
+            if (tunnel.finished) {
+                return;
+            }
+            if (!future.isSuccess()) {
+                ups.getHealth().onFailure(future.cause());
+                UpstreamMetrics metrics = ups.getMetrics();
+                if (metrics != null) {
+                    metrics.onFailure(UpstreamMetrics.CONNECT);
+                }
+                tunnel.fail(HttpResponseStatus.BAD_GATEWAY);
+                return;
+            }
+            HttpRequest handshake = tunnel.req;
+            ReferenceCountUtil.retain(handshake);
+            tunnel.uc.write(handshake);
+            if (!(handshake instanceof FullHttpRequest)) {
+                // 流式 location 不聚合请求, 握手请求没有 body
+                tunnel.uc.write(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+            tunnel.uc.flush();
+            if (timeout.getFirstByte() > 0) {
+                tunnel.handshakeTimer = tunnel.sc.eventLoop().schedule(() -> {
+                    ups.getHealth().onFailure(null);
+                    UpstreamMetrics metrics = ups.getMetrics();
+                    if (metrics != null) {
+                        metrics.onFailure(UpstreamMetrics.TIMEOUT);
+                    }
+                    tunnel.fail(HttpResponseStatus.GATEWAY_TIMEOUT);
+                }, timeout.getFirstByte(), TimeUnit.MILLISECONDS);
+            }
+        });
+        return tunnel;
+    }
+
+    /**
+     * CONNECT host:port, 目标在 tunnel.connect 里才允许
+     *
+     * @return 握手结束之前下游断开时用来取消
+     */
+    static Tunnel connect(ProxyServerHandler owner, ChannelHandlerContext ctx, ProxyServer.Routes routes,
+                          HttpRequest req, AsciiString client, ProxyClient proxyClient) {
+        Tunnel tunnel = new Tunnel(owner, ctx, routes, req, client);
+        List<String> allowed = tunnel.conf.getConnect();
+        if (allowed == null || allowed.isEmpty()) {
+            tunnel.fail(HttpResponseStatus.METHOD_NOT_ALLOWED);
+            return tunnel;
+        }
+        String authority = req.uri();
+        int i = authority.lastIndexOf(':');
+        int port = i < 0 ? -1 : parsePort(authority.substring(i + 1));
+        String host = i < 0 ? authority : authority.substring(0, i);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (port <= 0 || host.isEmpty()) {
+            tunnel.fail(HttpResponseStatus.BAD_REQUEST);
+            return tunnel;
+        }
+        if (!isAllowed(allowed, host, port)) {
+            tunnel.fail(HttpResponseStatus.FORBIDDEN);
+            return tunnel;
+        }
+        if (!tunnel.open()) {
+            return tunnel;
+        }
+        tunnel.target = authority;
+        if (NetUtil.isValidIpV4Address(host) || NetUtil.isValidIpV6Address(host)) {
+            // IP 不会查 DNS
+            tunnel.connect(new InetSocketAddress(host, port), proxyClient);
+            return tunnel;
+        }
+        String h = host;
+        routes.proxyContext.resolve(host).addListener((Future<InetAddress> future) -> tunnel.sc.eventLoop().execute(() -> {
+            if (tunnel.finished) {
+                return;
+            }
+            if (!future.isSuccess()) {
+                System.out.println("解析 CONNECT 目标 " + h + " 失败: " + future.cause());
+                tunnel.fail(HttpResponseStatus.BAD_GATEWAY);
+                return;
+            }
+            tunnel.connect(new InetSocketAddress(future.getNow(), port), proxyClient);
+        }));
+        return tunnel;
+    }
+
+    private static int parsePort(String s) {
+        try {
+            int port = Integer.parseInt(s);
+            return port > 0 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param patterns "host:port", host 可以写成 "*.example.com"
+     */
+    static boolean isAllowed(List<String> patterns, String host, int port) {
+        String h = host.toLowerCase(Locale.ROOT);
+        for (String pattern : patterns) {
+            int i = pattern.lastIndexOf(':');
+            if (i < 0 || parsePort(pattern.substring(i + 1)) != port) {
+                continue;
+            }
+            String p = pattern.substring(0, i).toLowerCase(Locale.ROOT);
+            if (p.startsWith("*.") ? h.endsWith(p.substring(1)) : h.equals(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void connect(InetSocketAddress address, ProxyClient proxyClient) {
+        ChannelFuture cf = proxyClient.connectTunnel(sc.eventLoop(), address, null, conf.getConnectTimeout(), new Side(sc, true));
+        uc = cf.channel();
+        cf.addListener((ChannelFutureListener) future -> {
+            if (finished) {
+                return;
+            }
+            if (!future.isSuccess()) {
+                System.out.println("连接 CONNECT 目标 " + target + " 失败: " + future.cause());
+                fail(future.cause() instanceof ConnectTimeoutException ? HttpResponseStatus.GATEWAY_TIMEOUT
+                        : HttpResponseStatus.BAD_GATEWAY);
+                return;
+            }
+            ReferenceCountUtil.release(req);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
+            established(response);
+            uc.config().setAutoRead(true);
+        });
+    }
+
+    /**
+     * 计入隧道数, 超过上限时返回 503
+     */
+    private boolean open() {
+        if (!metrics.tryOpen(conf.getMaxConnections())) {
+            fail(HttpResponseStatus.SERVICE_UNAVAILABLE);
+            return false;
+        }
+        opened = true;
+        return true;
+    }
+
+    /**
+     * 握手成功, 写出握手响应后把两边都切换成隧道
+     *
+     * @param response 101 或者 200
+     */
+    private void established(FullHttpResponse response) {
+        cancelHandshakeTimer();
+        established = true;
+        status = response.status().code();
+        if (route != null) {
+            route.onComplete(status, System.nanoTime() - startNanos);
+        }
+        ctx.writeAndFlush(response);
+
+        ChannelPipeline dp = sc.pipeline();
+        dp.replace(ctx.name(), RELAY, new Side(uc, false));
+        if (conf.getIdleTimeout() > 0) {
+            dp.addBefore(RELAY, IDLE, new IdleStateHandler(0, 0, conf.getIdleTimeout(), TimeUnit.MILLISECONDS));
+        }
+        for (String name : ProxyServer.HTTP1_HANDLERS) {
+            if (dp.get(name) != null) {
+                dp.remove(name);
+            }
+        }
+        if (dp.get(HttpServerUpgradeHandler.class) != null) {
+            dp.remove(HttpServerUpgradeHandler.class);
+        }
+        // 最后移除解码器, 它缓存的没解码的字节会交给后面的隧道处理器
+        dp.remove(HttpServerCodec.class);
+
+        ChannelPipeline up = uc.pipeline();
+        if (up.get(AGGREGATOR) != null) {
+            up.remove(AGGREGATOR);
+            up.remove(CODEC);
+        }
+        sc.config().setAutoRead(true);
+    }
+
+    /**
+     * 握手失败, 返回错误响应, 下游连接继续按 HTTP 处理
+     */
+    private void fail(HttpResponseStatus status) {
+        ReferenceCountUtil.release(req);
+        finish(ProxyServerHandler.errorResponse(status));
+    }
+
+    private void finish(FullHttpResponse response) {
+        if (finished) {
+            response.release();
+            return;
+        }
+        finished = true;
+        cancelHandshakeTimer();
+        if (uc != null) {
+            uc.close();
+        }
+        status = response.status().code();
+        if (route != null) {
+            route.onComplete(status, System.nanoTime() - startNanos);
+        }
+        closed();
+        owner.tunnelFailed(response);
+    }
+
+    /**
+     * 握手结束之前下游断开了
+     */
+    void cancel() {
+        if (established || finished) {
+            return;
+        }
+        finished = true;
+        cancelHandshakeTimer();
+        if (uc != null) {
+            uc.close();
+        }
+        ReferenceCountUtil.release(req);
+        status = 499;
+        closed();
+    }
+
+    private void cancelHandshakeTimer() {
+        if (handshakeTimer != null) {
+            handshakeTimer.cancel(false);
+            handshakeTimer = null;
+        }
+    }
+
+    /**
+     * 隧道结束, 释放隧道数并记访问日志, 只调用一次
+     */
+    private void closed() {
+        if (opened) {
+            opened = false;
+            metrics.onClose();
+        }
+        AccessLog accessLog = routes.proxyContext.getAccessLog();
+        AccessLog.Record record = accessLog == null ? null : accessLog.claim();
+        if (record != null) {
+            record.request(client, req);
+            record.time = System.currentTimeMillis();
+            record.status = status;
+            record.bytes = bytes;
+            record.durationNanos = System.nanoTime() - startNanos;
+            record.upstreamNanos = -1;
+            record.route = route == null ? null : route.getRoute();
+            record.upstream = upstreamServer;
+            accessLog.publish(record);
+        }
+    }
+
+    /**
+     * 隧道一端的处理器, 读到的字节写给另一端. 后端一侧在握手阶段还要处理握手响应
+     */
+    private final class Side extends ChannelInboundHandlerAdapter {
+        private final Channel peer;
+        private final boolean upstream;
+
+        Side(Channel peer, boolean upstream) {
+            this.peer = peer;
+            this.upstream = upstream;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!established) {
+                handshake(msg);
+                return;
+            }
+            if (!(msg instanceof ByteBuf)) {
+                // 101 之后解码器补的空 LastHttpContent
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (upstream) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            }
+            peer.write(msg, peer.voidPromise());
+            if (!peer.isWritable()) {
+                // 对端写不动了, 等它可写时再读
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        private void handshake(Object msg) {
+            if (finished || !(msg instanceof FullHttpResponse)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            FullHttpResponse response = (FullHttpResponse) msg;
+            if (response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+                // 后端拒绝升级, 响应原样返回
+                upstreamServer.getHealth().onSuccess();
+                ReferenceCountUtil.release(req);
+                finish(response);
+                return;
+            }
+            upstreamServer.getHealth().onSuccess();
+            // 聚合器给 101 加上的 Content-Length 不能发给下游
+            response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            ReferenceCountUtil.release(req);
+            established(response);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (established) {
+                peer.flush();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (established) {
+                peer.config().setAutoRead(ctx.channel().isWritable());
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (upstream && !established) {
+                // 握手响应之前后端断开
+                if (!finished) {
+                    fail(HttpResponseStatus.BAD_GATEWAY);
+                }
+            } else if (established && !finished) {
+                finished = true;
+                closed();
+            }
+            if (established && peer.isActive()) {
+                // 先把已经写出的数据发完再关闭
+                peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (!established && upstream && !finished) {
+                // CONNECT 的目标不是 upstream 里的后端
+                if (upstreamServer != null) {
+                    upstreamServer.getHealth().onFailure(cause);
+                    UpstreamMetrics metrics = upstreamServer.getMetrics();
+                    if (metrics != null) {
+                        metrics.onFailure(UpstreamMetrics.ERROR);
+                    }
+                }
+                fail(HttpResponseStatus.BAD_GATEWAY);
+                return;
+            }
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * 后端域名的异步解析, 所有 context 共用一个, 修改配置需要重启.
+ * <p>
+ * 查询和结果处理都在单独的一个线程上, 不占用处理请求的 EventLoop. 成功的结果按 TTL 缓存,
+ * 解析失败按 negativeTtl 缓存, 缓存过期之前重新解析不会发出查询.
+ *
+ * @author kailuo
+ */
+final class UpstreamResolver implements Closeable {
+    private final NioEventLoopGroup group;
+    private final EventLoop eventLoop;
+    private final DnsNameResolver resolver;
+    private final ProxyConf.Dns conf;
+
+    private UpstreamResolver(NioEventLoopGroup group, EventLoop eventLoop, DnsNameResolver resolver, ProxyConf.Dns conf) {
+        this.group = group;
+        this.eventLoop = eventLoop;
+        this.resolver = resolver;
+        this.conf = conf;
+    }
+
+    static UpstreamResolver create(ProxyConf.Dns conf) {
+        if (conf == null) {
+            conf = new ProxyConf.Dns();
+        }
+        NioEventLoopGroup group = new NioEventLoopGroup(1, new DefaultThreadFactory("proxy-dns", true));
+        EventLoop eventLoop = group.next();
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder(eventLoop)
+                .channelType(NioDatagramChannel.class)
+                .resolveCache(new DefaultDnsCache(conf.getMinTtl(), conf.getMaxTtl(), conf.getNegativeTtl()))
+                .queryTimeoutMillis(conf.getQueryTimeout());
+        if (conf.getNameServers() != null && !conf.getNameServers().isEmpty()) {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (String nameServer : conf.getNameServers()) {
+                int i = nameServer.lastIndexOf(':');
+                addresses.add(i < 0 ? new InetSocketAddress(nameServer, 53)
+                        : new InetSocketAddress(nameServer.substring(0, i), Integer.parseInt(nameServer.substring(i + 1))));
+            }
+            builder.nameServerProvider(new SequentialDnsServerAddressStreamProvider(addresses));
+        }
+        if (conf.getAddressTypes() != null) {
+            builder.resolvedAddressTypes(ResolvedAddressTypes.valueOf(conf.getAddressTypes().toUpperCase(Locale.ROOT)));
+        }
+        return new UpstreamResolver(group, eventLoop, builder.build(), conf);
+    }
+
+    ProxyConf.Dns getConf() {
+        return conf;
+    }
+
+    /**
+     * 解析一组域名的全部 A/AAAA 记录
+     *
+     * @param hosts
+     * @return 每个域名对应一个已经完成的解析结果
+     */
+    Future<Map<String, Future<List<InetAddress>>>> resolveAll(Collection<String> hosts) {
+        Promise<Map<String, Future<List<InetAddress>>>> promise = eventLoop.newPromise();
+        eventLoop.execute(() -> {
+            Map<String, Future<List<InetAddress>>> result = new HashMap<>();
+            if (hosts.isEmpty()) {
+                promise.trySuccess(result);
+                return;
+            }
+            // 回调都在同一个 EventLoop 上执行, 不需要加锁
+            int[] remaining = {hosts.size()};
+            for (String host : hosts) {
+                resolver.resolveAll(host).addListener((Future<List<InetAddress>> f) -> {
+                    result.put(host, f);
+                    if (--remaining[0] == 0) {
+                        promise.trySuccess(result);
+                    }
+                });
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * 解析一个域名, 用于 CONNECT 的目标
+     *
+     * @param host
+     * @return 在 DNS 线程上完成
+     */
+    Future<InetAddress> resolve(String host) {
+        Promise<InetAddress> promise = eventLoop.newPromise();
+        eventLoop.execute(() -> resolver.resolve(host, promise));
+        return promise;
+    }
+
+    @Override
+    public void close() {
+        resolver.close();
+        group.shutdownGracefully();
+    }
+}
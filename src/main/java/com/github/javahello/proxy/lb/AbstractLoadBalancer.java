@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.UpstreamServer;
+
+import java.util.List;
+
+/**
+ * @author kailuo
+ */
+abstract class AbstractLoadBalancer implements LoadBalancer {
+    final UpstreamServer[] servers;
+    private final List<UpstreamServer> serverList;
+
+    AbstractLoadBalancer(List<UpstreamServer> servers) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("upstream 至少需要一个 server");
+        }
+        this.servers = servers.toArray(new UpstreamServer[0]);
+        this.serverList = List.copyOf(servers);
+    }
+
+    @Override
+    public List<UpstreamServer> servers() {
+        return serverList;
+    }
+
+    static boolean available(UpstreamServer server) {
+        return server.getHealth().isAvailable();
+    }
+
+    /**
+     * 选中的后端被摘除了, 从 start 往后找第一个可用的. 全部不可用时返回 start 对应的后端, 由请求自己失败
+     */
+    UpstreamServer nextAvailable(int start) {
+        int n = servers.length;
+        for (int i = 1; i < n; i++) {
+            UpstreamServer server = servers[(start + i) % n];
+            if (available(server)) {
+                return server;
+            }
+        }
+        return servers[start];
+    }
+
+    /**
+     * a 的负载是否比 b 低, 负载为 未完成请求数 / 权重, 交叉相乘避免除法
+     */
+    static boolean lessLoaded(UpstreamServer a, UpstreamServer b) {
+        return (long) a.getOutstanding() * b.getWeight() < (long) b.getOutstanding() * a.getWeight();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 带负载上限的一致性哈希.
+ * <p>
+ * 每个 server 按权重在环上放若干虚拟节点, 请求按 key 的哈希落到环上顺时针第一个节点.
+ * 如果该节点的未完成请求超过 平均值 * loadFactor, 继续往后找, 避免热点 key 压垮单个后端.
+ *
+ * @author kailuo
+ */
+class ConsistentHashLoadBalancer extends AbstractLoadBalancer {
+    static final int VIRTUAL_NODES = 160;
+
+    private final HashKey hashKey;
+    private final double loadFactor;
+    private final int[] ring;
+    private final UpstreamServer[] ringServers;
+
+    ConsistentHashLoadBalancer(List<UpstreamServer> servers, HashKey hashKey, double loadFactor) {
+        super(servers);
+        this.hashKey = hashKey;
+        this.loadFactor = Math.max(1.0, loadFactor);
+        int size = 0;
+        for (UpstreamServer server : this.servers) {
+            size += VIRTUAL_NODES * Math.max(1, server.getWeight());
+        }
+        long[] points = new long[size];
+        int p = 0;
+        for (int s = 0; s < this.servers.length; s++) {
+            UpstreamServer server = this.servers[s];
+            int nodes = VIRTUAL_NODES * Math.max(1, server.getWeight());
+            for (int i = 0; i < nodes; i++) {
+                int h = fnv((server.toKey() + "#" + i).getBytes(StandardCharsets.UTF_8));
+                // 高 32 位放哈希, 低位放 server 下标, 排序后一起移动
+                points[p++] = ((long) h << 32) | s;
+            }
+        }
+        Arrays.sort(points);
+        this.ring = new int[size];
+        this.ringServers = new UpstreamServer[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = (int) (points[i] >> 32);
+            ringServers[i] = this.servers[(int) (points[i] & 0xFFFFFFFFL)];
+        }
+    }
+
+    static int fnv(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        return mix(h);
+    }
+
+    /**
+     * String.hashCode 的低位分布不好, 打散后再上环
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public UpstreamServer select(HttpRequest request, Channel channel) {
+        int h = mix(hashKey.hash(request, channel));
+        int idx = Arrays.binarySearch(ring, h);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        int n = ring.length;
+        long total = 0;
+        long totalWeight = 0;
+        for (UpstreamServer server : servers) {
+            total += server.getOutstanding();
+            totalWeight += Math.max(1, server.getWeight());
+        }
+        // 加上这次请求后的平均负载, 按权重折算每个 server 的上限
+        double average = (total + 1) * loadFactor / totalWeight;
+        for (int i = 0; i < n; i++) {
+            UpstreamServer server = ringServers[(idx + i) % n];
+            if (available(server) && server.getOutstanding() < Math.ceil(average * Math.max(1, server.getWeight()))) {
+                return server;
+            }
+        }
+        // 可用的后端都满了, 退回环上第一个可用的
+        for (int i = 0; i < n; i++) {
+            UpstreamServer server = ringServers[(idx + i) % n];
+            if (available(server)) {
+                return server;
+            }
+        }
+        return ringServers[idx % n];
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * 一致性哈希使用的 key, 支持 {@code ip}、{@code header:名称}、{@code cookie:名称}.
+ * <p>
+ * 计算哈希时直接使用已有的对象, 不生成新的字符串.
+ *
+ * @author kailuo
+ */
+abstract class HashKey {
+    static final String IP = "ip";
+    static final String HEADER_PREFIX = "header:";
+    static final String COOKIE_PREFIX = "cookie:";
+
+    /**
+     * @return 取不到 key 时返回 0
+     */
+    abstract int hash(HttpRequest request, Channel channel);
+
+    static HashKey parse(String hashKey) {
+        if (hashKey == null || IP.equalsIgnoreCase(hashKey)) {
+            return new IpKey();
+        }
+        if (hashKey.regionMatches(true, 0, HEADER_PREFIX, 0, HEADER_PREFIX.length())) {
+            return new HeaderKey(hashKey.substring(HEADER_PREFIX.length()).trim());
+        }
+        if (hashKey.regionMatches(true, 0, COOKIE_PREFIX, 0, COOKIE_PREFIX.length())) {
+            return new CookieKey(hashKey.substring(COOKIE_PREFIX.length()).trim());
+        }
+        throw new IllegalArgumentException("不支持的 hashKey: " + hashKey);
+    }
+
+    static final class IpKey extends HashKey {
+        @Override
+        int hash(HttpRequest request, Channel channel) {
+            SocketAddress address = channel.remoteAddress();
+            if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+                return ((InetSocketAddress) address).getAddress().hashCode();
+            }
+            return 0;
+        }
+    }
+
+    static final class HeaderKey extends HashKey {
+        final String name;
+
+        HeaderKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        int hash(HttpRequest request, Channel channel) {
+            String value = request.headers().get(name);
+            return value == null ? 0 : value.hashCode();
+        }
+    }
+
+    static final class CookieKey extends HashKey {
+        final String name;
+
+        CookieKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        int hash(HttpRequest request, Channel channel) {
+            String cookie = request.headers().get(HttpHeaderNames.COOKIE);
+            if (cookie == null) {
+                return 0;
+            }
+            // 在 Cookie 头里找 name=value, 直接对 value 的字符计算哈希
+            int len = cookie.length();
+            int i = 0;
+            while (i < len) {
+                while (i < len && (cookie.charAt(i) == ' ' || cookie.charAt(i) == ';')) {
+                    i++;
+                }
+                int end = cookie.indexOf(';', i);
+                if (end < 0) {
+                    end = len;
+                }
+                if (cookie.startsWith(name, i) && i + name.length() < end && cookie.charAt(i + name.length()) == '=') {
+                    int h = 0;
+                    for (int j = i + name.length() + 1; j < end; j++) {
+                        h = 31 * h + cookie.charAt(j);
+                    }
+                    return h;
+                }
+                i = end + 1;
+            }
+            return 0;
+        }
+    }
+}
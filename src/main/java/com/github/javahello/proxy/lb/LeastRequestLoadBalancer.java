@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 最少未完成请求, 按权重折算, 负载相同时轮流选择
+ *
+ * @author kailuo
+ */
+class LeastRequestLoadBalancer extends AbstractLoadBalancer {
+    private final AtomicInteger next = new AtomicInteger();
+
+    LeastRequestLoadBalancer(List<UpstreamServer> servers) {
+        super(servers);
+    }
+
+    @Override
+    public UpstreamServer select(HttpRequest request, Channel channel) {
+        int n = servers.length;
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        UpstreamServer best = null;
+        for (int i = 0; i < n; i++) {
+            UpstreamServer candidate = servers[(start + i) % n];
+            if (available(candidate) && (best == null || lessLoaded(candidate, best))) {
+                best = candidate;
+            }
+        }
+        return best == null ? servers[start] : best;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.List;
+
+/**
+ * 负载均衡策略, 每个 upstream 一个实例.
+ * <p>
+ * {@link #select} 在 EventLoop 上对每个请求调用, 实现必须无锁并且不分配对象.
+ *
+ * @author kailuo
+ */
+public interface LoadBalancer {
+
+    /**
+     * 选择一个后端
+     *
+     * @param request 下游请求
+     * @param channel 下游连接
+     * @return 没有可用后端时返回 null
+     */
+    UpstreamServer select(HttpRequest request, Channel channel);
+
+    List<UpstreamServer> servers();
+
+    /**
+     * 负载均衡策略的 SPI, 通过 {@link java.util.ServiceLoader} 加载自定义实现,
+     * 在 upstream 的 balance 配置中按 {@link #name()} 选择
+     */
+    interface Factory {
+        String name();
+
+        LoadBalancer create(ProxyConf.Upstream conf, List<UpstreamServer> servers);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 负载均衡策略注册表, 内置策略之外的实现通过 ServiceLoader 加载
+ *
+ * @author kailuo
+ */
+public abstract class LoadBalancers {
+    public static final String ROUND_ROBIN = "round_robin";
+    public static final String WEIGHTED_ROUND_ROBIN = "weighted_round_robin";
+    public static final String LEAST_REQUEST = "least_request";
+    public static final String POWER_OF_TWO = "power_of_two";
+    public static final String CONSISTENT_HASH = "consistent_hash";
+
+    static final Map<String, LoadBalancer.Factory> FACTORIES = new ConcurrentHashMap<>();
+
+    static {
+        register(factory(ROUND_ROBIN, (conf, servers) -> new RoundRobinLoadBalancer(servers)));
+        register(factory(WEIGHTED_ROUND_ROBIN, (conf, servers) -> new WeightedRoundRobinLoadBalancer(servers)));
+        register(factory(LEAST_REQUEST, (conf, servers) -> new LeastRequestLoadBalancer(servers)));
+        register(factory(POWER_OF_TWO, (conf, servers) -> new PowerOfTwoLoadBalancer(servers)));
+        register(factory(CONSISTENT_HASH, (conf, servers) -> new ConsistentHashLoadBalancer(servers,
+                HashKey.parse(conf.getHashKey()), conf.getHashLoadFactor())));
+        for (LoadBalancer.Factory factory : ServiceLoader.load(LoadBalancer.Factory.class)) {
+            register(factory);
+        }
+    }
+
+    public static void register(LoadBalancer.Factory factory) {
+        FACTORIES.put(factory.name(), factory);
+    }
+
+    /**
+     * 按 upstream 的 balance 配置创建负载均衡, 没有配置时使用轮询
+     *
+     * @param conf    可以为 null, 比如 proxyPass 直接写后端地址的情况
+     * @param servers
+     * @return
+     */
+    public static LoadBalancer create(ProxyConf.Upstream conf, List<UpstreamServer> servers) {
+        if (conf == null) {
+            conf = new ProxyConf.Upstream();
+        }
+        String name = conf.getBalance() == null ? ROUND_ROBIN : conf.getBalance();
+        LoadBalancer.Factory factory = FACTORIES.get(name);
+        if (factory == null) {
+            throw new IllegalArgumentException("不支持的负载均衡策略: " + name);
+        }
+        return factory.create(conf, servers);
+    }
+
+    private static LoadBalancer.Factory factory(String name, Creator creator) {
+        return new LoadBalancer.Factory() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public LoadBalancer create(ProxyConf.Upstream conf, List<UpstreamServer> servers) {
+                return creator.create(conf, servers);
+            }
+        };
+    }
+
+    private interface Creator {
+        LoadBalancer create(ProxyConf.Upstream conf, List<UpstreamServer> servers);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个 upstream 的异常摘除.
+ * <p>
+ * 摘除和恢复只在失败时发生, 这里用 synchronized 保证摘除比例的判断准确, 选择后端的路径上不加锁.
+ * 单次失败只计入指标, 只有摘除和恢复时才打印.
+ *
+ * @author kailuo
+ */
+public class OutlierDetector {
+    final ProxyConf.HealthCheck conf;
+    private final UpstreamServer[] servers;
+
+    public OutlierDetector(ProxyConf.HealthCheck conf, List<UpstreamServer> servers) {
+        this.conf = conf == null ? new ProxyConf.HealthCheck() : conf;
+        this.servers = servers.toArray(new UpstreamServer[0]);
+        for (UpstreamServer server : this.servers) {
+            server.getHealth().detector = this;
+        }
+    }
+
+    public ProxyConf.HealthCheck getConf() {
+        return conf;
+    }
+
+    public UpstreamServer[] getServers() {
+        return servers;
+    }
+
+    /**
+     * 被动摘除, 时间按连续摘除次数指数增长
+     *
+     * @param cause 最后一次失败的异常, 可能为 null
+     */
+    synchronized void eject(ServerHealth health, Throwable cause) {
+        long now = System.nanoTime();
+        if (health.isEjected(now) || !canEject(health, now)) {
+            return;
+        }
+        long maxEjectNanos = TimeUnit.MILLISECONDS.toNanos(conf.getMaxEjectTime());
+        if (health.ejectedUntil != 0 && now - health.ejectedUntil > maxEjectNanos) {
+            // 上次恢复后正常了很久, 重新从最短的摘除时间开始
+            health.ejections = 0;
+        }
+        int shift = Math.min(health.ejections++, 30);
+        long ejectNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(conf.getEjectTime()) << shift, maxEjectNanos);
+        long until = now + ejectNanos;
+        health.ejectedUntil = until == 0 ? 1 : until;
+        health.failures.set(0);
+        health.recovering = true;
+        System.out.println("后端 " + name(health) + " 连续失败, 摘除 " + TimeUnit.NANOSECONDS.toMillis(ejectNanos) + "ms"
+                + (cause == null ? "" : ": " + cause));
+    }
+
+    /**
+     * 被动摘除结束后第一次成功
+     */
+    synchronized void recovered(ServerHealth health) {
+        if (!health.recovering || health.isEjected(System.nanoTime())) {
+            return;
+        }
+        health.recovering = false;
+        System.out.println("后端 " + name(health) + " 恢复");
+    }
+
+    /**
+     * 主动检查的结果, 需要在同一个 EventLoop 上调用
+     *
+     * @param server
+     * @param healthy
+     */
+    public void onProbe(UpstreamServer server, boolean healthy) {
+        ServerHealth health = server.getHealth();
+        if (healthy) {
+            health.probeFailures = 0;
+            if (health.down && ++health.probeSuccesses >= conf.getHealthyThreshold()) {
+                markUp(health);
+            }
+        } else {
+            health.probeSuccesses = 0;
+            if (!health.down && ++health.probeFailures >= conf.getUnhealthyThreshold()) {
+                markDown(health);
+            }
+        }
+    }
+
+    private synchronized void markUp(ServerHealth health) {
+        health.down = false;
+        health.ejectedUntil = 0;
+        health.ejections = 0;
+        health.failures.set(0);
+        health.recovering = false;
+        System.out.println("后端 " + name(health) + " 健康检查恢复");
+    }
+
+    private synchronized void markDown(ServerHealth health) {
+        if (canEject(health, System.nanoTime())) {
+            health.down = true;
+            health.probeSuccesses = 0;
+            System.out.println("后端 " + name(health) + " 健康检查失败, 摘除");
+        }
+    }
+
+    /**
+     * 再摘除一个后不超过 maxEjectionPercent, 已经被摘除的后端自己不算
+     */
+    private boolean canEject(ServerHealth health, long now) {
+        int ejected = 0;
+        for (UpstreamServer server : servers) {
+            if (server.getHealth() != health && server.getHealth().isEjected(now)) {
+                ejected++;
+            }
+        }
+        return (ejected + 1) * 100L <= (long) conf.getMaxEjectionPercent() * servers.length;
+    }
+
+    private String name(ServerHealth health) {
+        for (UpstreamServer server : servers) {
+            if (server.getHealth() == health) {
+                return server.toKey();
+            }
+        }
+        return "?";
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 随机选两个, 取未完成请求较少的一个. 比全量扫描便宜, 又能避开明显过载的后端
+ *
+ * @author kailuo
+ */
+class PowerOfTwoLoadBalancer extends AbstractLoadBalancer {
+
+    PowerOfTwoLoadBalancer(List<UpstreamServer> servers) {
+        super(servers);
+    }
+
+    @Override
+    public UpstreamServer select(HttpRequest request, Channel channel) {
+        int n = servers.length;
+        if (n == 1) {
+            return servers[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(n);
+        int b = random.nextInt(n - 1);
+        if (b >= a) {
+            b++;
+        }
+        boolean availableA = available(servers[a]);
+        boolean availableB = available(servers[b]);
+        if (availableA && availableB) {
+            return lessLoaded(servers[b], servers[a]) ? servers[b] : servers[a];
+        }
+        if (availableA || availableB) {
+            return availableA ? servers[a] : servers[b];
+        }
+        return nextAvailable(a);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轮询
+ *
+ * @author kailuo
+ */
+class RoundRobinLoadBalancer extends AbstractLoadBalancer {
+    private final AtomicInteger next = new AtomicInteger();
+
+    RoundRobinLoadBalancer(List<UpstreamServer> servers) {
+        super(servers);
+    }
+
+    @Override
+    public UpstreamServer select(HttpRequest request, Channel channel) {
+        // 计数器溢出后变成负数, 去掉符号位再取模
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % servers.length;
+        UpstreamServer server = servers[i];
+        return available(server) ? server : nextAvailable(i);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个后端的健康状态, 负载均衡选择时只读两个 volatile 字段
+ *
+ * @author kailuo
+ */
+public class ServerHealth {
+    /**
+     * 被动检查摘除到的时间点 (System.nanoTime), 0 表示没有摘除
+     */
+    volatile long ejectedUntil;
+    /**
+     * 主动检查判定为不可用
+     */
+    volatile boolean down;
+    final AtomicInteger failures = new AtomicInteger();
+    /**
+     * 连续摘除的次数, 决定下次摘除多久
+     */
+    int ejections;
+    /**
+     * 主动检查连续成功/失败的次数, 只在探测所在的 EventLoop 上修改
+     */
+    int probeSuccesses;
+    int probeFailures;
+    /**
+     * 被动摘除过, 摘除结束后第一次成功时打印一次恢复
+     */
+    volatile boolean recovering;
+    OutlierDetector detector;
+
+    public boolean isAvailable() {
+        if (down) {
+            return false;
+        }
+        long until = ejectedUntil;
+        return until == 0 || System.nanoTime() - until >= 0;
+    }
+
+    boolean isEjected(long now) {
+        long until = ejectedUntil;
+        return down || (until != 0 && now - until < 0);
+    }
+
+    /**
+     * 后端正常返回
+     */
+    public void onSuccess() {
+        // 大部分时候本来就是 0, 先读再写, 避免多个线程反复写同一个缓存行
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+        if (recovering) {
+            detector.recovered(this);
+        }
+    }
+
+    /**
+     * 后端返回 502/503/504
+     */
+    public void onFailure() {
+        onFailure(null);
+    }
+
+    /**
+     * 连接失败、超时或者响应中途断开, 只计数, 摘除时才打印
+     *
+     * @param cause 失败的异常, 超时或者后端断开时为 null
+     */
+    public void onFailure(Throwable cause) {
+        OutlierDetector detector = this.detector;
+        if (failures.incrementAndGet() >= (detector == null ? Integer.MAX_VALUE : detector.conf.getMaxFails())) {
+            detector.eject(this, cause);
+        }
+    }
+
+    public boolean isDown() {
+        return down;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.lb;
+
+import com.github.javahello.proxy.conf.UpstreamServer;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 平滑加权轮询, 和 nginx 的算法结果一致.
+ * <p>
+ * nginx 的算法每次选择都要修改所有 server 的 currentWeight, 多线程下需要加锁.
+ * 这里在创建时把一整轮的选择结果预先算好, 选择时只需要一个原子计数器.
+ *
+ * @author kailuo
+ */
+class WeightedRoundRobinLoadBalancer extends AbstractLoadBalancer {
+    /**
+     * 一轮的长度上限, 权重总和超过时按比例缩小
+     */
+    static final int MAX_SEQUENCE = 4096;
+
+    private final UpstreamServer[] sequence;
+    private final AtomicInteger next = new AtomicInteger();
+
+    WeightedRoundRobinLoadBalancer(List<UpstreamServer> servers) {
+        super(servers);
+        this.sequence = buildSequence(this.servers);
+    }
+
+    static UpstreamServer[] buildSequence(UpstreamServer[] servers) {
+        int n = servers.length;
+        int[] weights = new int[n];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            weights[i] = Math.max(1, servers[i].getWeight());
+            total += weights[i];
+        }
+        if (total > MAX_SEQUENCE) {
+            for (int i = 0; i < n; i++) {
+                weights[i] = (int) Math.max(1, weights[i] * MAX_SEQUENCE / total);
+            }
+            total = 0;
+            for (int w : weights) {
+                total += w;
+            }
+        }
+        UpstreamServer[] sequence = new UpstreamServer[(int) total];
+        int[] current = new int[n];
+        for (int s = 0; s < sequence.length; s++) {
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                current[i] += weights[i];
+                if (best < 0 || current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= (int) total;
+            sequence[s] = servers[best];
+        }
+        return sequence;
+    }
+
+    @Override
+    public UpstreamServer select(HttpRequest request, Channel channel) {
+        int n = sequence.length;
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        UpstreamServer server = sequence[i];
+        if (available(server)) {
+            return server;
+        }
+        // 沿着序列往后找, 剩下的后端仍然按权重分配
+        for (int j = 1; j < n; j++) {
+            UpstreamServer candidate = sequence[(i + j) % n];
+            if (available(candidate)) {
+                return candidate;
+            }
+        }
+        return server;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.limit;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+
+/**
+ * 并发限制的调整算法, 所有请求结束时都会调用, 用 synchronized 保护内部状态,
+ * 获取许可的路径只读 {@link ConcurrencyLimiter} 里的 volatile 值, 不加锁.
+ *
+ * @author kailuo
+ */
+abstract class AdaptiveLimit {
+    final ProxyConf.ConcurrencyLimit conf;
+    double limit;
+
+    AdaptiveLimit(ProxyConf.ConcurrencyLimit conf) {
+        this.conf = conf;
+        this.limit = clamp(conf.getInitialLimit());
+    }
+
+    /**
+     * 请求成功
+     *
+     * @param rttNanos 请求发出到收到响应头的耗时
+     * @param inflight 当前的并发数
+     * @return 新的限制
+     */
+    final synchronized int onSample(long rttNanos, int inflight) {
+        limit = clamp(update(rttNanos, inflight));
+        return (int) limit;
+    }
+
+    /**
+     * 请求失败, 连接失败、后端断开或者返回 502/503/504
+     *
+     * @return 新的限制
+     */
+    final synchronized int onDrop() {
+        limit = clamp(limit * conf.getBackoffRatio());
+        return (int) limit;
+    }
+
+    abstract double update(long rttNanos, int inflight);
+
+    private double clamp(double value) {
+        return Math.max(conf.getMinLimit(), Math.min(conf.getMaxLimit(), value));
+    }
+}
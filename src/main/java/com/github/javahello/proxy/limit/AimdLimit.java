@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.limit;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加性增、乘性减: 并发接近限制时每个成功的请求加一, 失败或者响应超过 maxLatency 时乘以 backoffRatio
+ *
+ * @author kailuo
+ */
+class AimdLimit extends AdaptiveLimit {
+    private final long maxLatency;
+
+    AimdLimit(ProxyConf.ConcurrencyLimit conf) {
+        super(conf);
+        this.maxLatency = TimeUnit.MILLISECONDS.toNanos(conf.getMaxLatency());
+    }
+
+    @Override
+    double update(long rttNanos, int inflight) {
+        if (maxLatency > 0 && rttNanos > maxLatency) {
+            return limit * conf.getBackoffRatio();
+        }
+        // 并发远低于限制时限制够用, 不需要增加
+        return inflight * 2 >= limit ? limit + 1 : limit;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.limit;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.metrics.ConcurrencyMetrics;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个 upstream 的自适应并发限制, 所有后端和 EventLoop 共用.
+ * <p>
+ * 发往后端的请求先拿许可, 超过限制时短暂排队, 队列满了或者等待超时直接拒绝, 由调用方返回 503.
+ * 请求结束时按结果调整限制, 后端变慢时限制随之缩小, 多出来的请求在代理这里快速失败, 而不是在后端越积越多.
+ *
+ * @author kailuo
+ */
+public final class ConcurrencyLimiter {
+    private static final RejectedException QUEUE_FULL = new RejectedException("并发已达上限, 等待队列已满");
+    private static final RejectedException TIMEOUT = new RejectedException("并发已达上限, 排队超时");
+
+    private final ProxyConf.ConcurrencyLimit conf;
+    private final AdaptiveLimit algorithm;
+    private final ConcurrencyMetrics metrics;
+    private volatile int limit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Promise<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private ConcurrencyLimiter(ProxyConf.ConcurrencyLimit conf, AdaptiveLimit algorithm, ConcurrencyMetrics metrics) {
+        this.conf = conf;
+        this.algorithm = algorithm;
+        this.metrics = metrics;
+        this.limit = (int) algorithm.limit;
+        metrics.bind(this::getLimit, this::getInflight);
+    }
+
+    /**
+     * @param conf
+     * @param metrics
+     * @return 没有配置时返回 null
+     * @throws IllegalArgumentException 不支持的算法
+     */
+    public static ConcurrencyLimiter create(ProxyConf.ConcurrencyLimit conf, ConcurrencyMetrics metrics) {
+        if (conf == null) {
+            return null;
+        }
+        AdaptiveLimit algorithm;
+        if ("gradient".equals(conf.getAlgorithm())) {
+            algorithm = new GradientLimit(conf);
+        } else if ("aimd".equals(conf.getAlgorithm())) {
+            algorithm = new AimdLimit(conf);
+        } else {
+            throw new IllegalArgumentException("不支持的 concurrencyLimit.algorithm: " + conf.getAlgorithm());
+        }
+        return new ConcurrencyLimiter(conf, algorithm, metrics);
+    }
+
+    /**
+     * 配置是否和当前一致, 重新加载配置时一致的沿用, 限制和并发数都保留
+     *
+     * @param other
+     * @return
+     */
+    public boolean sameAs(ProxyConf.ConcurrencyLimit other) {
+        return other != null && String.valueOf(other.getAlgorithm()).equals(String.valueOf(conf.getAlgorithm()))
+                && other.getInitialLimit() == conf.getInitialLimit()
+                && other.getMinLimit() == conf.getMinLimit() && other.getMaxLimit() == conf.getMaxLimit()
+                && other.getMaxQueue() == conf.getMaxQueue() && other.getMaxWait() == conf.getMaxWait()
+                && other.getBackoffRatio() == conf.getBackoffRatio() && other.getMaxLatency() == conf.getMaxLatency()
+                && other.getTolerance() == conf.getTolerance() && other.getSmoothing() == conf.getSmoothing();
+    }
+
+    /**
+     * 不排队地获取许可
+     *
+     * @return 是否获取到
+     */
+    public boolean tryAcquire() {
+        for (; ; ) {
+            int n = inflight.get();
+            if (n >= limit) {
+                return false;
+            }
+            if (inflight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 排队等待许可, {@link #tryAcquire()} 失败后调用
+     *
+     * @param executor 等待结果在这个 executor 上通知, 一般是下游连接的 EventLoop
+     * @return 失败时异常为 {@link RejectedException}
+     */
+    public Future<Void> await(EventExecutor executor) {
+        if (conf.getMaxWait() <= 0 || queued.incrementAndGet() > conf.getMaxQueue()) {
+            if (conf.getMaxWait() > 0) {
+                queued.decrementAndGet();
+            }
+            metrics.onRejected();
+            return executor.newFailedFuture(QUEUE_FULL);
+        }
+        Promise<Void> waiter = executor.newPromise();
+        ScheduledFuture<?> timeout = executor.schedule(() -> {
+            if (waiter.tryFailure(TIMEOUT)) {
+                metrics.onRejected();
+            }
+        }, conf.getMaxWait(), TimeUnit.MILLISECONDS);
+        waiter.addListener(f -> {
+            if (f.isSuccess()) {
+                timeout.cancel(false);
+            } else if (waiters.remove(waiter)) {
+                // 超时或者取消, 还在队列里的自己出队
+                queued.decrementAndGet();
+            }
+        });
+        waiters.add(waiter);
+        // 入队前可能刚好有许可释放, 检查一次, 避免白等
+        drain();
+        return waiter;
+    }
+
+    /**
+     * 请求成功, 按响应时间调整限制并释放许可
+     *
+     * @param rttNanos
+     */
+    public void onSuccess(long rttNanos) {
+        limit = algorithm.onSample(rttNanos, inflight.get());
+        release();
+    }
+
+    /**
+     * 请求失败, 缩小限制并释放许可
+     */
+    public void onDropped() {
+        limit = algorithm.onDrop();
+        release();
+    }
+
+    /**
+     * 下游取消了请求, 结果说明不了后端的情况, 只释放许可
+     */
+    public void onIgnore() {
+        release();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    private void release() {
+        inflight.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * 把空出来的许可交给排队的请求
+     */
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Promise<Void> waiter = waiters.poll();
+            if (waiter == null) {
+                inflight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            if (!waiter.trySuccess(null)) {
+                // 已经超时或者取消
+                inflight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 超过并发限制被拒绝, 不带堆栈, 过载时大量拒绝也没有额外开销
+     */
+    public static final class RejectedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
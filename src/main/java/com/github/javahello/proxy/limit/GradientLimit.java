@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.limit;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+
+/**
+ * 按响应时间的梯度调整: 长期平均响应时间代表后端没有排队时的水平, 最近的响应时间明显变长说明后端开始排队,
+ * 限制按两者的比值缩小; 响应时间正常时每次多放开 sqrt(limit) 个, 探测后端还能承受多少.
+ *
+ * @author kailuo
+ */
+class GradientLimit extends AdaptiveLimit {
+    private static final int SHORT_WINDOW = 10;
+    private static final int LONG_WINDOW = 600;
+    private double shortRtt;
+    private double longRtt;
+
+    GradientLimit(ProxyConf.ConcurrencyLimit conf) {
+        super(conf);
+    }
+
+    @Override
+    double update(long rttNanos, int inflight) {
+        if (longRtt == 0) {
+            shortRtt = rttNanos;
+            longRtt = rttNanos;
+            return limit;
+        }
+        shortRtt += (rttNanos - shortRtt) / SHORT_WINDOW;
+        longRtt += (rttNanos - longRtt) / LONG_WINDOW;
+        // 后端从一次变慢中恢复后长期值偏高, 让它更快回落, 否则会一直放开过多的并发
+        if (longRtt > shortRtt * 2) {
+            longRtt *= 0.95;
+        }
+        // 并发远低于限制时响应时间说明不了限制是否合适
+        if (inflight < limit / 2) {
+            return limit;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, conf.getTolerance() * longRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        return limit * (1 - conf.getSmoothing()) + newLimit * conf.getSmoothing();
+    }
+}
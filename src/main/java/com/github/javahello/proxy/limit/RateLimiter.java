@@ -0,0 +1,190 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.limit;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个 location 的限流, 使用 GCRA 算法.
+ * <p>
+ * 每个 key 只保存一个理论到达时间 (TAT), 用 CAS 更新, 不加锁. TAT 不晚于当前时间的 key 已经恢复满额,
+ * 删掉和保留没有区别, key 数量达到上限时先淘汰这些 key, 所以大量不同的客户端不会让内存无限增长.
+ *
+ * @author kailuo
+ */
+public final class RateLimiter {
+    private static final String IP = "ip";
+    private static final String ROUTE = "route";
+    private static final String HEADER = "header:";
+
+    private final ProxyConf.RateLimit conf;
+    /**
+     * 两个请求之间的间隔, 纳秒
+     */
+    private final long interval;
+    /**
+     * 允许提前的时间, 即 burst 个请求的间隔
+     */
+    private final long tolerance;
+    /**
+     * 按请求头限流时的请求头名称, 否则为 null
+     */
+    private final String header;
+    private final boolean perRoute;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private RateLimiter(ProxyConf.RateLimit conf, String header, boolean perRoute) {
+        this.conf = conf;
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / conf.getRate()));
+        this.tolerance = interval * Math.max(0, conf.getBurst());
+        this.header = header;
+        this.perRoute = perRoute;
+    }
+
+    /**
+     * @param conf
+     * @return 没有配置限流时返回 null
+     * @throws IllegalArgumentException 配置不合法
+     */
+    public static RateLimiter create(ProxyConf.RateLimit conf) {
+        if (conf == null) {
+            return null;
+        }
+        if (!(conf.getRate() > 0)) {
+            throw new IllegalArgumentException("rateLimit.rate 必须大于 0");
+        }
+        if (conf.getMaxKeys() <= 0) {
+            throw new IllegalArgumentException("rateLimit.maxKeys 必须大于 0");
+        }
+        String key = conf.getKey() == null ? IP : conf.getKey();
+        if (key.startsWith(HEADER) && key.length() > HEADER.length()) {
+            return new RateLimiter(conf, key.substring(HEADER.length()), false);
+        }
+        if (IP.equals(key) || ROUTE.equals(key)) {
+            return new RateLimiter(conf, null, ROUTE.equals(key));
+        }
+        throw new IllegalArgumentException("不支持的 rateLimit.key: " + key);
+    }
+
+    /**
+     * 配置是否和当前一致, 重新加载配置时一致的沿用原来的计数
+     *
+     * @param other
+     * @return
+     */
+    public boolean sameAs(ProxyConf.RateLimit other) {
+        return other != null && other.getRate() == conf.getRate() && other.getBurst() == conf.getBurst()
+                && other.getMaxKeys() == conf.getMaxKeys() && String.valueOf(other.getKey()).equals(String.valueOf(conf.getKey()));
+    }
+
+    /**
+     * 请求对应的限流 key
+     *
+     * @param request
+     * @param clientIp 客户端地址, 取不到时为 null
+     * @return
+     */
+    public String key(HttpRequest request, CharSequence clientIp) {
+        if (perRoute) {
+            return ROUTE;
+        }
+        if (header != null) {
+            String value = request.headers().get(header);
+            if (value != null) {
+                return value;
+            }
+        }
+        return clientIp == null ? "" : clientIp.toString();
+    }
+
+    public long tryAcquire(String key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    /**
+     * 尝试放行一个请求
+     *
+     * @param key
+     * @param now System.nanoTime()
+     * @return 0 表示放行, 否则为还需要等待的纳秒数
+     */
+    public long tryAcquire(String key, long now) {
+        AtomicLong tat = buckets.get(key);
+        if (tat == null) {
+            if (buckets.size() >= conf.getMaxKeys()) {
+                evict(now);
+            }
+            AtomicLong created = new AtomicLong(now);
+            tat = buckets.putIfAbsent(key, created);
+            if (tat == null) {
+                tat = created;
+            }
+        }
+        for (; ; ) {
+            long current = tat.get();
+            long base = current - now > 0 ? current : now;
+            // TAT 领先当前时间超过 burst 个间隔时拒绝
+            long wait = base - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (tat.compareAndSet(current, base + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 记录的 key 数量
+     *
+     * @return
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * 淘汰已经恢复满额的 key, 仍然超过上限时再任意淘汰到上限的 3/4.
+     * 同一时间只有一个线程淘汰, 其他线程直接继续
+     */
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            buckets.values().removeIf(tat -> tat.get() - now <= 0);
+            if (buckets.size() < conf.getMaxKeys()) {
+                return;
+            }
+            int excess = buckets.size() - conf.getMaxKeys() * 3 / 4;
+            Iterator<AtomicLong> it = buckets.values().iterator();
+            while (excess-- > 0 && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.limit;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个 location 的重试预算, 对冲请求也使用同样的预算.
+ * <p>
+ * 每个请求存入 budget 个份额, 每次重试取出一个, 所以重试数不会超过请求数的 budget 倍; 最多积累 1000 个请求的份额,
+ * 长时间正常之后的故障也只能多重试这么多. 请求很少时份额不够, 另外按 GCRA 每秒保底 minPerSecond 个.
+ *
+ * @author kailuo
+ */
+public final class RetryBudget {
+    /**
+     * 份额的精度, 一次重试是 SCALE
+     */
+    private static final long SCALE = 1000;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final Set<HttpMethod> IDEMPOTENT = Set.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS,
+            HttpMethod.TRACE, HttpMethod.PUT, HttpMethod.DELETE);
+    private static final Set<HttpMethod> SAFE = Set.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS);
+
+    private final ProxyConf.Retry conf;
+    /**
+     * 需要换后端重试的状态码, 每个响应都要查, 不用装箱
+     */
+    private final int[] statuses;
+    private final long deposit;
+    private final long cap;
+    /**
+     * 保底重试的间隔, 没有保底时为 0
+     */
+    private final long interval;
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+    private RetryBudget(ProxyConf.Retry conf, double budget, int minPerSecond) {
+        this.conf = conf;
+        this.statuses = conf == null || conf.getStatuses() == null ? new int[0]
+                : conf.getStatuses().stream().mapToInt(Integer::intValue).toArray();
+        this.deposit = Math.round(Math.max(0, budget) * SCALE);
+        this.cap = Math.max(SCALE, deposit * 1000);
+        this.interval = minPerSecond > 0 ? SECOND / minPerSecond : 0;
+    }
+
+    /**
+     * @param conf
+     * @return 不重试时返回 null
+     */
+    public static RetryBudget create(ProxyConf.Retry conf) {
+        if (conf == null || conf.getAttempts() <= 1) {
+            return null;
+        }
+        return new RetryBudget(conf, conf.getBudget(), conf.getMinPerSecond());
+    }
+
+    /**
+     * 对冲请求的预算, 没有保底
+     *
+     * @param conf
+     * @return 不开启对冲时返回 null
+     */
+    public static RetryBudget create(ProxyConf.Hedge conf) {
+        if (conf == null) {
+            return null;
+        }
+        return new RetryBudget(null, conf.getBudget(), 0);
+    }
+
+    /**
+     * @return 对冲请求的预算为 null
+     */
+    public ProxyConf.Retry getConf() {
+        return conf;
+    }
+
+    /**
+     * 已经发出的请求能否重试
+     *
+     * @param method
+     * @return
+     */
+    public static boolean isIdempotent(HttpMethod method) {
+        return IDEMPOTENT.contains(method);
+    }
+
+    /**
+     * 只读的请求, 可以同时发给两个后端
+     *
+     * @param method
+     * @return
+     */
+    public static boolean isSafe(HttpMethod method) {
+        return SAFE.contains(method);
+    }
+
+    public boolean retryOn(int status) {
+        for (int s : statuses) {
+            if (s == status) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 每个请求调用一次, 存入份额
+     */
+    public void onRequest() {
+        if (deposit > 0) {
+            balance.addAndGet(deposit);
+        }
+    }
+
+    /**
+     * 取出一次重试的份额
+     *
+     * @return 预算用完时返回 false
+     */
+    public boolean tryRetry() {
+        return tryRetry(System.nanoTime());
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return
+     */
+    public boolean tryRetry(long now) {
+        for (; ; ) {
+            long b = balance.get();
+            // 上限在取出时再计算, 存入时只需要一次原子加
+            long capped = Math.min(b, cap);
+            if (capped < SCALE) {
+                break;
+            }
+            if (balance.compareAndSet(b, capped - SCALE)) {
+                return true;
+            }
+        }
+        if (interval == 0) {
+            return false;
+        }
+        for (; ; ) {
+            long t = tat.get();
+            long next = Math.max(t, now) + interval;
+            // 最多提前一秒, 即每秒 minPerSecond 个
+            if (next - now > SECOND) {
+                return false;
+            }
+            if (tat.compareAndSet(t, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.log;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.metrics.AccessLogMetrics;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * 异步访问日志, 格式和 nginx 的 combined 一样, 后面加上耗时、location 和后端.
+ * <p>
+ * EventLoop 从预先分配好的环形队列里领取一条记录, 填好字段后发布, 不加锁也不分配对象.
+ * 后台线程按顺序取出发布了的记录, 格式化到复用的直接内存里, 攒够一批或者到了 flushInterval
+ * 用 {@link FileChannel} 写一次. 多个 EventLoop 领取位置用 CAS, 写线程只有一个.
+ *
+ * @author kailuo
+ */
+public final class AccessLog implements Closeable {
+    /**
+     * 单个字段最多写出的字节数, 过长的 URI、User-Agent 截断
+     */
+    private static final int MAX_FIELD = 2048;
+    /**
+     * 一条记录最多占用的字节数, 写缓冲剩余不够时先写文件
+     */
+    private static final int MAX_RECORD = 6 * (MAX_FIELD + 4) + 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter TIME_LOCAL = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+    private static final DateTimeFormatter ROTATED = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ProxyConf.AccessLog conf;
+    private final AccessLogMetrics metrics;
+    private final Path path;
+    private final boolean block;
+    private final Record[] ring;
+    private final int mask;
+    /**
+     * 下一个可以领取的序号
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * 写线程下一条要处理的序号, 小于它的位置都可以重新领取
+     */
+    private volatile long consumed;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    // 以下只在写线程上访问
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    private FileChannel channel;
+    private long fileSize;
+    private long nextRotate;
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedTime;
+    private boolean failing;
+
+    private AccessLog(ProxyConf.AccessLog conf, AccessLogMetrics metrics) throws IOException {
+        this.conf = conf;
+        this.metrics = metrics;
+        this.path = Paths.get(conf.getPath()).toAbsolutePath();
+        this.block = "block".equalsIgnoreCase(conf.getOverflow());
+        int size = Integer.highestOneBit(Math.max(2, conf.getBufferSize()) * 2 - 1);
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+        }
+        this.mask = size - 1;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(conf.getWriteBuffer(), MAX_RECORD * 4));
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        this.channel = open();
+        this.nextRotate = nextRotate(System.currentTimeMillis());
+        this.writer = new Thread(this::run, "proxy-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @param conf
+     * @param metrics
+     * @return 没有配置 path 时为 null
+     * @throws IOException 日志文件打不开
+     */
+    public static AccessLog create(ProxyConf.AccessLog conf, ProxyMetrics metrics) throws IOException {
+        if (conf == null || conf.getPath() == null || conf.getPath().isEmpty()) {
+            return null;
+        }
+        return new AccessLog(conf, metrics.accessLog());
+    }
+
+    public ProxyConf.AccessLog getConf() {
+        return conf;
+    }
+
+    /**
+     * 领取一条记录, 填好之后必须马上 {@link #publish}, 否则写线程会一直等在这条记录上
+     *
+     * @return 队列满了按 drop 丢弃或者已经关闭时为 null
+     */
+    public Record claim() {
+        if (closed) {
+            return null;
+        }
+        if (block) {
+            long seq = claimed.getAndIncrement();
+            while (seq - consumed >= ring.length) {
+                if (closed) {
+                    return null;
+                }
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+            return slot(seq);
+        }
+        for (; ; ) {
+            long seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                metrics.onDropped();
+                return null;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) {
+                return slot(seq);
+            }
+        }
+    }
+
+    private Record slot(long seq) {
+        Record record = ring[(int) seq & mask];
+        record.sequence = seq;
+        return record;
+    }
+
+    public void publish(Record record) {
+        record.published = record.sequence;
+    }
+
+    /**
+     * 写完已经发布的记录后关闭文件
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long next = 0;
+        long pendingSince = 0;
+        for (; ; ) {
+            boolean stopping = closed;
+            int count = 0;
+            Record record;
+            while ((record = ring[(int) next & mask]).published == next) {
+                if (buffer.remaining() < MAX_RECORD) {
+                    write();
+                }
+                if (buffer.position() == 0) {
+                    pendingSince = System.currentTimeMillis();
+                }
+                format(record);
+                record.clear();
+                next++;
+                if (++count % 1024 == 0) {
+                    // 批量处理时也及时腾出位置, 队列满时 EventLoop 不用等整批写完
+                    consumed = next;
+                }
+            }
+            consumed = next;
+            if (count > 0) {
+                metrics.onWritten(count);
+            }
+            if (buffer.position() > 0 && (stopping || System.currentTimeMillis() - pendingSince >= conf.getFlushInterval())) {
+                write();
+            }
+            if (stopping) {
+                break;
+            }
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("关闭访问日志 " + path + " 失败: " + e);
+        }
+    }
+
+    private void write() {
+        buffer.flip();
+        try {
+            if (!channel.isOpen()) {
+                // 上次切分时没能打开新文件
+                channel = open();
+            }
+            rotateIfNeeded(buffer.remaining());
+            while (buffer.hasRemaining()) {
+                fileSize += channel.write(buffer);
+            }
+            failing = false;
+        } catch (IOException e) {
+            // 写不进去的这批丢掉, 只在开始失败时打印一次
+            if (!failing) {
+                failing = true;
+                System.out.println("写访问日志 " + path + " 失败: " + e);
+            }
+        }
+        buffer.clear();
+    }
+
+    private FileChannel open() throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        return channel;
+    }
+
+    /**
+     * 超过大小或者到了切分时间, 把当前文件改名为带时间的文件, 再打开一个新文件.
+     * 空文件不切分
+     */
+    private void rotateIfNeeded(int pending) throws IOException {
+        long now = System.currentTimeMillis();
+        boolean bySize = conf.getMaxSize() > 0 && fileSize + pending > conf.getMaxSize();
+        boolean byTime = nextRotate > 0 && now >= nextRotate;
+        if (byTime) {
+            nextRotate = nextRotate(now);
+        }
+        if (!bySize && !byTime || fileSize == 0) {
+            return;
+        }
+        channel.close();
+        String name = path.getFileName() + "." + ROTATED.format(Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault()));
+        Path target = path.resolveSibling(name);
+        for (int i = 1; Files.exists(target); i++) {
+            target = path.resolveSibling(name + "." + i);
+        }
+        Files.move(path, target);
+        channel = open();
+        metrics.onRotated();
+        deleteOld();
+    }
+
+    private void deleteOld() throws IOException {
+        if (conf.getMaxFiles() <= 0) {
+            return;
+        }
+        String prefix = path.getFileName() + ".";
+        List<Path> rotated = new ArrayList<>();
+        try (Stream<Path> files = Files.list(path.getParent())) {
+            files.filter(p -> p.getFileName().toString().startsWith(prefix)).forEach(rotated::add);
+        }
+        // 文件名里的时间按字典序就是先后顺序
+        Collections.sort(rotated);
+        for (int i = 0; i < rotated.size() - conf.getMaxFiles(); i++) {
+            Files.deleteIfExists(rotated.get(i));
+        }
+    }
+
+    /**
+     * 下一个按本地时间对齐的切分时间点
+     */
+    private long nextRotate(long now) {
+        long interval = TimeUnit.SECONDS.toMillis(conf.getRotateInterval());
+        if (interval <= 0) {
+            return 0;
+        }
+        long offset = TimeZone.getDefault().getOffset(now);
+        return ((now + offset) / interval + 1) * interval - offset;
+    }
+
+    private void format(Record r) {
+        put(r.client, true);
+        putAscii(" - - [");
+        putTime(r.time);
+        putAscii("] \"");
+        put(r.method, false);
+        buffer.put((byte) ' ');
+        put(r.uri, false);
+        buffer.put((byte) ' ');
+        put(r.protocol, false);
+        putAscii("\" ");
+        putLong(r.status);
+        buffer.put((byte) ' ');
+        putLong(r.bytes);
+        putAscii(" \"");
+        put(r.referer, true);
+        putAscii("\" \"");
+        put(r.userAgent, true);
+        putAscii("\" rt=");
+        putSeconds(r.durationNanos);
+        putAscii(" urt=");
+        if (r.upstreamNanos < 0) {
+            buffer.put((byte) '-');
+        } else {
+            putSeconds(r.upstreamNanos);
+        }
+        putAscii(" route=\"");
+        put(r.route, true);
+        putAscii("\" upstream=\"");
+        put(r.upstream == null ? null : r.upstream.toKey(), true);
+        putAscii("\"\n");
+    }
+
+    private void putTime(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = TIME_LOCAL.format(Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault())).getBytes(StandardCharsets.US_ASCII);
+        }
+        buffer.put(cachedTime);
+    }
+
+    private void putAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * 和 nginx 一样, 控制字符、引号、反斜杠和非 ASCII 字节转义成 \xHH
+     *
+     * @param s
+     * @param dash 为空时写 "-"
+     */
+    private void put(CharSequence s, boolean dash) {
+        if (s == null || s.length() == 0) {
+            if (dash) {
+                buffer.put((byte) '-');
+            }
+            return;
+        }
+        int end = buffer.position() + MAX_FIELD;
+        for (int i = 0; i < s.length() && buffer.position() < end; i++) {
+            char c = s.charAt(i);
+            if (c > 0x20 && c < 0x7f && c != '"' && c != '\\' || c == ' ') {
+                buffer.put((byte) c);
+            } else {
+                buffer.put((byte) '\\').put((byte) 'x').put(HEX[(c >> 4) & 0xf]).put(HEX[c & 0xf]);
+            }
+        }
+    }
+
+    private void putLong(long v) {
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        buffer.put(digits, i, digits.length - i);
+    }
+
+    /**
+     * 秒, 保留三位小数
+     */
+    private void putSeconds(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+        putLong(millis / 1000);
+        buffer.put((byte) '.');
+        long frac = millis % 1000;
+        buffer.put((byte) ('0' + frac / 100)).put((byte) ('0' + frac / 10 % 10)).put((byte) ('0' + frac % 10));
+    }
+
+    /**
+     * 一条访问日志, 队列里的对象反复使用, 只持有已经存在的对象的引用
+     */
+    public static final class Record {
+        /**
+         * 领取时的序号, 发布时写入 published, 写线程看到序号相同才读取
+         */
+        private long sequence;
+        private volatile long published = -1;
+        /**
+         * 结束时间, System.currentTimeMillis()
+         */
+        public long time;
+        public CharSequence client;
+        public String method;
+        public String uri;
+        public String protocol;
+        public String referer;
+        public String userAgent;
+        public int status;
+        /**
+         * 写给下游的 body 字节数
+         */
+        public long bytes;
+        public long durationNanos;
+        /**
+         * 发出请求到收到后端响应头的耗时, 没有经过后端时为 -1
+         */
+        public long upstreamNanos;
+        public String route;
+        public UpstreamServer upstream;
+
+        /**
+         * 填入请求行和客户端相关的字段
+         */
+        public void request(CharSequence client, HttpRequest req) {
+            this.client = client;
+            this.method = req.method().name();
+            this.uri = req.uri();
+            this.protocol = req.protocolVersion().text();
+            this.referer = req.headers().get(HttpHeaderNames.REFERER);
+            this.userAgent = req.headers().get(HttpHeaderNames.USER_AGENT);
+        }
+
+        private void clear() {
+            client = null;
+            method = null;
+            uri = null;
+            protocol = null;
+            referer = null;
+            userAgent = null;
+            route = null;
+            upstream = null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 访问日志的写入和丢弃计数
+ *
+ * @author kailuo
+ */
+public class AccessLogMetrics {
+    final LongAdder written = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder rotations = new LongAdder();
+
+    AccessLogMetrics() {
+    }
+
+    public void onWritten(long records) {
+        written.add(records);
+    }
+
+    public void onDropped() {
+        dropped.increment();
+    }
+
+    public void onRotated() {
+        rotations.increment();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 响应缓存计数器, 使用 LongAdder 避免多个 EventLoop 竞争同一个计数
+ *
+ * @author kailuo
+ */
+public class CacheMetrics {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder stores = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder revalidated = new LongAdder();
+    /**
+     * 缓存的条目占用的字节数
+     */
+    final LongAdder bytes = new LongAdder();
+
+    CacheMetrics() {
+    }
+
+    public void onHit() {
+        hits.increment();
+    }
+
+    public void onMiss() {
+        misses.increment();
+    }
+
+    public void onStore() {
+        stores.increment();
+    }
+
+    public void onEviction() {
+        evictions.increment();
+    }
+
+    public void onCoalesced() {
+        coalesced.increment();
+    }
+
+    public void onRevalidated() {
+        revalidated.increment();
+    }
+
+    public void addBytes(long delta) {
+        bytes.add(delta);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getStores() {
+        return stores.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 合并到其它请求的未命中次数
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * 条件请求返回 304 后继续使用的次数
+     */
+    public long getRevalidated() {
+        return revalidated.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+}
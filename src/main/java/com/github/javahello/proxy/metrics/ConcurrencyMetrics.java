@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * 单个 upstream 的并发限制指标
+ *
+ * @author kailuo
+ */
+public class ConcurrencyMetrics {
+    final String upstream;
+    final LongAdder rejected = new LongAdder();
+    private volatile IntSupplier limit = () -> 0;
+    private volatile IntSupplier inflight = () -> 0;
+
+    ConcurrencyMetrics(String upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * 绑定当前的限制器, 重新加载配置换了限制器时重新绑定
+     */
+    public void bind(IntSupplier limit, IntSupplier inflight) {
+        this.limit = limit;
+        this.inflight = inflight;
+    }
+
+    public void onRejected() {
+        rejected.increment();
+    }
+
+    int limit() {
+        return limit.getAsInt();
+    }
+
+    int inflight() {
+        return inflight.getAsInt();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.math.BigDecimal;
+
+/**
+ * Prometheus 文本格式 0.0.4
+ *
+ * @author kailuo
+ */
+class PrometheusWriter {
+    private static final String[] STATUS_CLASSES = {"other", "1xx", "2xx", "3xx", "4xx", "5xx"};
+    /**
+     * 直方图只输出 2 的幂的边界, 从 64 微秒到 67 秒, 都和内部分桶对齐
+     */
+    private static final int MIN_EXPORT_EXPONENT = 6;
+    private static final int MAX_EXPORT_EXPONENT = 26;
+
+    private final StringBuilder sb;
+
+    PrometheusWriter(StringBuilder sb) {
+        this.sb = sb;
+    }
+
+    void type(String name, String type) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    void sample(String name, String labels, long value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    void sample(String name, String labels, double value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    void statusClasses(String name, String labels, StatusCounter counter) {
+        for (int i = 1; i < STATUS_CLASSES.length; i++) {
+            sample(name, labels + ",code=\"" + STATUS_CLASSES[i] + '"', counter.responses[i].sum());
+        }
+        long other = counter.responses[0].sum();
+        if (other > 0) {
+            sample(name, labels + ",code=\"other\"", other);
+        }
+    }
+
+    void histogram(String name, String labels, Histogram histogram) {
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        int bucket = 0;
+        for (int exponent = MIN_EXPORT_EXPONENT; exponent <= MAX_EXPORT_EXPONENT; exponent++) {
+            long bound = 1L << exponent;
+            while (bucket < Histogram.BUCKETS && Histogram.upperBound(bucket) <= bound) {
+                cumulative += counts[bucket++];
+            }
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(seconds(bound)).append("\"} ").append(cumulative).append('\n');
+        }
+        while (bucket < Histogram.BUCKETS) {
+            cumulative += counts[bucket++];
+        }
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(seconds(counts[Histogram.BUCKETS])).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 所有指标的注册表, 指标对象在启动时创建好挂到路由和后端上, 记录时不需要查表
+ *
+ * @author kailuo
+ */
+public class ProxyMetrics {
+    final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    final Map<String, UpstreamMetrics> upstreams = new ConcurrentHashMap<>();
+    final Map<String, TlsMetrics> tls = new ConcurrentHashMap<>();
+    final Map<String, ConcurrencyMetrics> concurrency = new ConcurrentHashMap<>();
+    final Map<String, TunnelMetrics> tunnels = new ConcurrentHashMap<>();
+    final TrafficCounter downstream = new TrafficCounter("downstream");
+    final TrafficCounter upstream = new TrafficCounter("upstream");
+    final SlowRequests slowRequests = new SlowRequests();
+    /**
+     * 开启访问日志时才创建
+     */
+    private volatile AccessLogMetrics accessLog;
+    /**
+     * 创建响应缓存时才创建
+     */
+    private volatile CacheMetrics cache;
+
+    public RouteMetrics route(String route) {
+        return routes.computeIfAbsent(route, RouteMetrics::new);
+    }
+
+    public UpstreamMetrics upstream(String upstream, String server) {
+        return upstreams.computeIfAbsent(upstream + '\n' + server, k -> new UpstreamMetrics(upstream, server));
+    }
+
+    public TlsMetrics tls(String listener) {
+        return tls.computeIfAbsent(listener, TlsMetrics::new);
+    }
+
+    public ConcurrencyMetrics concurrency(String upstream) {
+        return concurrency.computeIfAbsent(upstream, ConcurrencyMetrics::new);
+    }
+
+    public TunnelMetrics tunnel(String listener) {
+        return tunnels.computeIfAbsent(listener, TunnelMetrics::new);
+    }
+
+    public synchronized AccessLogMetrics accessLog() {
+        if (accessLog == null) {
+            accessLog = new AccessLogMetrics();
+        }
+        return accessLog;
+    }
+
+    public synchronized CacheMetrics cache() {
+        if (cache == null) {
+            cache = new CacheMetrics();
+        }
+        return cache;
+    }
+
+    public SlowRequests slowRequests() {
+        return slowRequests;
+    }
+
+    public TrafficCounter downstreamTraffic() {
+        return downstream;
+    }
+
+    public TrafficCounter upstreamTraffic() {
+        return upstream;
+    }
+
+    /**
+     * 输出 Prometheus 文本格式
+     *
+     * @return
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        PrometheusWriter writer = new PrometheusWriter(sb);
+
+        writer.type("proxy_requests_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.sample("proxy_requests_total", labels("route", m.route), m.requests.sum());
+        }
+        writer.type("proxy_responses_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.statusClasses("proxy_responses_total", labels("route", m.route), m);
+        }
+        writer.type("proxy_request_duration_seconds", "histogram");
+        for (RouteMetrics m : routes.values()) {
+            writer.histogram("proxy_request_duration_seconds", labels("route", m.route), m.duration);
+        }
+        writer.type("proxy_upstream_header_duration_seconds", "histogram");
+        for (RouteMetrics m : routes.values()) {
+            writer.histogram("proxy_upstream_header_duration_seconds", labels("route", m.route), m.upstreamHeader);
+        }
+        writer.type("proxy_rate_limited_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.sample("proxy_rate_limited_total", labels("route", m.route), m.rateLimited.sum());
+        }
+        writer.type("proxy_retries_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.sample("proxy_retries_total", labels("route", m.route), m.retries.sum());
+        }
+        writer.type("proxy_hedges_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.sample("proxy_hedges_total", labels("route", m.route), m.hedges.sum());
+        }
+        writer.type("proxy_hedge_wins_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.sample("proxy_hedge_wins_total", labels("route", m.route), m.hedgeWins.sum());
+        }
+        writer.type("proxy_upstream_timeouts_total", "counter");
+        for (RouteMetrics m : routes.values()) {
+            writer.sample("proxy_upstream_timeouts_total", labels("route", m.route), m.timeouts.sum());
+        }
+
+        writer.type("proxy_upstream_requests_total", "counter");
+        for (UpstreamMetrics m : upstreams.values()) {
+            writer.sample("proxy_upstream_requests_total", upstreamLabels(m), m.requests.sum());
+        }
+        writer.type("proxy_upstream_responses_total", "counter");
+        for (UpstreamMetrics m : upstreams.values()) {
+            writer.statusClasses("proxy_upstream_responses_total", upstreamLabels(m), m);
+        }
+        writer.type("proxy_upstream_connect_seconds", "histogram");
+        for (UpstreamMetrics m : upstreams.values()) {
+            writer.histogram("proxy_upstream_connect_seconds", upstreamLabels(m), m.connectTime);
+        }
+        writer.type("proxy_upstream_first_byte_seconds", "histogram");
+        for (UpstreamMetrics m : upstreams.values()) {
+            writer.histogram("proxy_upstream_first_byte_seconds", upstreamLabels(m), m.firstByteTime);
+        }
+        writer.type("proxy_upstream_connections", "gauge");
+        for (UpstreamMetrics m : upstreams.values()) {
+            writer.sample("proxy_upstream_connections", upstreamLabels(m), m.connections.sum());
+        }
+        writer.type("proxy_upstream_failures_total", "counter");
+        for (UpstreamMetrics m : upstreams.values()) {
+            String labels = upstreamLabels(m);
+            for (int i = 0; i < m.failures.length; i++) {
+                writer.sample("proxy_upstream_failures_total", labels + ",reason=\"" + UpstreamMetrics.FAILURE_REASONS[i] + '"',
+                        m.failures[i].sum());
+            }
+        }
+
+        if (!concurrency.isEmpty()) {
+            writer.type("proxy_upstream_concurrency_limit", "gauge");
+            for (ConcurrencyMetrics m : concurrency.values()) {
+                writer.sample("proxy_upstream_concurrency_limit", labels("upstream", m.upstream), m.limit());
+            }
+            writer.type("proxy_upstream_inflight", "gauge");
+            for (ConcurrencyMetrics m : concurrency.values()) {
+                writer.sample("proxy_upstream_inflight", labels("upstream", m.upstream), m.inflight());
+            }
+            writer.type("proxy_upstream_rejected_total", "counter");
+            for (ConcurrencyMetrics m : concurrency.values()) {
+                writer.sample("proxy_upstream_rejected_total", labels("upstream", m.upstream), m.rejected.sum());
+            }
+        }
+
+        if (!tls.isEmpty()) {
+            writer.type("proxy_tls_handshakes_total", "counter");
+            for (TlsMetrics m : tls.values()) {
+                String labels = labels("listener", m.listener);
+                writer.sample("proxy_tls_handshakes_total", labels + ",result=\"full\"", m.full.sum());
+                writer.sample("proxy_tls_handshakes_total", labels + ",result=\"resumed\"", m.resumed.sum());
+                writer.sample("proxy_tls_handshakes_total", labels + ",result=\"failed\"", m.failed.sum());
+            }
+            writer.type("proxy_tls_resumption_ratio", "gauge");
+            for (TlsMetrics m : tls.values()) {
+                writer.sample("proxy_tls_resumption_ratio", labels("listener", m.listener), m.resumptionRatio());
+            }
+            writer.type("proxy_tls_handshake_seconds", "histogram");
+            for (TlsMetrics m : tls.values()) {
+                writer.histogram("proxy_tls_handshake_seconds", labels("listener", m.listener), m.handshakeTime);
+            }
+        }
+
+        if (!tunnels.isEmpty()) {
+            writer.type("proxy_tunnels", "gauge");
+            for (TunnelMetrics m : tunnels.values()) {
+                writer.sample("proxy_tunnels", labels("listener", m.listener), m.active.get());
+            }
+            writer.type("proxy_tunnels_total", "counter");
+            for (TunnelMetrics m : tunnels.values()) {
+                writer.sample("proxy_tunnels_total", labels("listener", m.listener), m.opened.sum());
+            }
+            writer.type("proxy_tunnels_rejected_total", "counter");
+            for (TunnelMetrics m : tunnels.values()) {
+                writer.sample("proxy_tunnels_rejected_total", labels("listener", m.listener), m.rejected.sum());
+            }
+        }
+
+        CacheMetrics cache = this.cache;
+        if (cache != null) {
+            writer.type("proxy_cache_requests_total", "counter");
+            writer.sample("proxy_cache_requests_total", "result=\"hit\"", cache.hits.sum());
+            writer.sample("proxy_cache_requests_total", "result=\"miss\"", cache.misses.sum());
+            writer.type("proxy_cache_revalidations_total", "counter");
+            writer.sample("proxy_cache_revalidations_total", "", cache.revalidated.sum());
+            writer.type("proxy_cache_coalesced_total", "counter");
+            writer.sample("proxy_cache_coalesced_total", "", cache.coalesced.sum());
+            writer.type("proxy_cache_stores_total", "counter");
+            writer.sample("proxy_cache_stores_total", "", cache.stores.sum());
+            writer.type("proxy_cache_evictions_total", "counter");
+            writer.sample("proxy_cache_evictions_total", "", cache.evictions.sum());
+            writer.type("proxy_cache_bytes", "gauge");
+            writer.sample("proxy_cache_bytes", "", cache.bytes.sum());
+        }
+
+        AccessLogMetrics accessLog = this.accessLog;
+        if (accessLog != null) {
+            writer.type("proxy_access_log_records_total", "counter");
+            writer.sample("proxy_access_log_records_total", "result=\"written\"", accessLog.written.sum());
+            writer.sample("proxy_access_log_records_total", "result=\"dropped\"", accessLog.dropped.sum());
+            writer.type("proxy_access_log_rotations_total", "counter");
+            writer.sample("proxy_access_log_rotations_total", "", accessLog.rotations.sum());
+        }
+
+        writer.type("proxy_connections", "gauge");
+        for (TrafficCounter t : new TrafficCounter[]{downstream, upstream}) {
+            writer.sample("proxy_connections", labels("side", t.side), t.connections.sum());
+        }
+        writer.type("proxy_bytes_total", "counter");
+        for (TrafficCounter t : new TrafficCounter[]{downstream, upstream}) {
+            writer.sample("proxy_bytes_total", labels("side", t.side) + ",direction=\"in\"", t.bytesIn.sum());
+            writer.sample("proxy_bytes_total", labels("side", t.side) + ",direction=\"out\"", t.bytesOut.sum());
+        }
+        return sb.toString();
+    }
+
+    private static String upstreamLabels(UpstreamMetrics m) {
+        return labels("upstream", m.upstream) + ',' + labels("server", m.server);
+    }
+
+    static String labels(String name, String value) {
+        StringBuilder sb = new StringBuilder(name.length() + value.length() + 3);
+        sb.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
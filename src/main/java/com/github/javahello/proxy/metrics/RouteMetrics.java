@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个 location 的指标
+ *
+ * @author kailuo
+ */
+public class RouteMetrics extends StatusCounter {
+    final String route;
+    final Histogram duration = new Histogram();
+    /**
+     * 发出请求到收到后端响应头的耗时, 只包括真正转发给后端的请求, 对冲的等待时间按它计算
+     */
+    final Histogram upstreamHeader = new Histogram();
+    final LongAdder upstreamResponses = new LongAdder();
+    /**
+     * 被限流拒绝的请求数
+     */
+    final LongAdder rateLimited = new LongAdder();
+    /**
+     * 换一个后端重试的次数
+     */
+    final LongAdder retries = new LongAdder();
+    /**
+     * 连接、首字节或者总时间超时的次数, 包括之后重试成功的
+     */
+    final LongAdder timeouts = new LongAdder();
+    /**
+     * 发出的对冲请求数和其中先返回的次数
+     */
+    final LongAdder hedges = new LongAdder();
+    final LongAdder hedgeWins = new LongAdder();
+    /**
+     * 缓存的分位数, 每秒最多计算一次
+     */
+    private volatile long percentileMicros;
+    private volatile long percentileUntil;
+
+    RouteMetrics(String route) {
+        this.route = route;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    /**
+     * 请求结束, 包括本地生成和缓存命中的响应
+     *
+     * @param status
+     * @param nanos  从收到请求到响应写完的耗时
+     */
+    public void onComplete(int status, long nanos) {
+        onResponse(status);
+        duration.recordNanos(nanos);
+    }
+
+    /**
+     * 请求被限流, 本地返回了 429
+     */
+    public void onRateLimited() {
+        rateLimited.increment();
+        onResponse(429);
+    }
+
+    /**
+     * 收到一个后端响应头
+     *
+     * @param nanos 从发出请求到收到响应头的耗时
+     */
+    public void onUpstreamHeader(long nanos) {
+        upstreamResponses.increment();
+        upstreamHeader.recordNanos(nanos);
+    }
+
+    public void onRetry() {
+        retries.increment();
+    }
+
+    public void onTimeout() {
+        timeouts.increment();
+    }
+
+    public void onHedge() {
+        hedges.increment();
+    }
+
+    public void onHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    /**
+     * 后端响应头耗时的分位数, 计算需要合并直方图, 结果缓存一秒. 同一个 location 总是使用同一个分位数
+     *
+     * @param quantile 0 到 1
+     * @return 单位微秒, 后端响应少于 100 个时返回 0
+     */
+    public long upstreamHeaderPercentile(double quantile) {
+        long now = System.nanoTime();
+        if (now - percentileUntil < 0) {
+            return percentileMicros;
+        }
+        long value = upstreamResponses.sum() < 100 ? 0 : upstreamHeader.valueAt(quantile);
+        percentileMicros = value;
+        percentileUntil = now + TimeUnit.SECONDS.toNanos(1);
+        return value;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 最近的慢请求及各阶段的耗时, 超过上限时丢掉最早的, 通过管理端口的 /slow 查看.
+ * 只有超过阈值的请求才会加进来, 用一把锁就够了
+ *
+ * @author kailuo
+ */
+public class SlowRequests {
+    private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+
+    SlowRequests() {
+    }
+
+    /**
+     * @param sample
+     * @param capacity 当前配置的上限, 重新加载配置改小时多出的在下次添加时丢掉
+     */
+    public synchronized void add(Sample sample, int capacity) {
+        samples.addLast(sample);
+        while (samples.size() > Math.max(0, capacity)) {
+            samples.pollFirst();
+        }
+    }
+
+    /**
+     * @return 最新的在前
+     */
+    public synchronized List<Sample> snapshot() {
+        List<Sample> list = new ArrayList<>(samples.size());
+        Iterator<Sample> it = samples.descendingIterator();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    /**
+     * 纳秒转成毫秒, 保留三位小数
+     */
+    public static double millis(long nanos) {
+        return Math.round(Math.max(0, nanos) / 1000.0) / 1000.0;
+    }
+
+    /**
+     * 一个慢请求, 耗时的单位都是毫秒. 没有经过的阶段为 0, 时间计入前一个阶段,
+     * 比如连接失败时 connect 是从选好后端到返回错误的时间
+     */
+    public static class Sample {
+        final long time;
+        final String client;
+        final String method;
+        final String uri;
+        final int status;
+        final String route;
+        final String upstream;
+        final int attempts;
+        final double routeTime;
+        final double connectTime;
+        final double upstreamTime;
+        final double transferTime;
+        final double writeTime;
+        final double totalTime;
+
+        /**
+         * @param time       结束时间, System.currentTimeMillis()
+         * @param timestamps 收到请求、选好后端、拿到后端连接、收到响应头、收到完整响应、写完下游这几个时间点
+         *                   (System.nanoTime()), 没有经过的为 0
+         */
+        public Sample(long time, String client, String method, String uri, int status, String route, String upstream,
+                      int attempts, long[] timestamps) {
+            this.time = time;
+            this.client = client;
+            this.method = method;
+            this.uri = uri;
+            this.status = status;
+            this.route = route;
+            this.upstream = upstream;
+            this.attempts = attempts;
+            for (int i = timestamps.length - 2; i > 0; i--) {
+                if (timestamps[i] == 0) {
+                    timestamps[i] = timestamps[i + 1];
+                }
+            }
+            this.routeTime = millis(timestamps[1] - timestamps[0]);
+            this.connectTime = millis(timestamps[2] - timestamps[1]);
+            this.upstreamTime = millis(timestamps[3] - timestamps[2]);
+            this.transferTime = millis(timestamps[4] - timestamps[3]);
+            this.writeTime = millis(timestamps[5] - timestamps[4]);
+            this.totalTime = millis(timestamps[5] - timestamps[0]);
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getRoute() {
+            return route;
+        }
+
+        public String getUpstream() {
+            return upstream;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public double getRouteTime() {
+            return routeTime;
+        }
+
+        public double getConnectTime() {
+            return connectTime;
+        }
+
+        public double getUpstreamTime() {
+            return upstreamTime;
+        }
+
+        public double getTransferTime() {
+            return transferTime;
+        }
+
+        public double getWriteTime() {
+            return writeTime;
+        }
+
+        public double getTotalTime() {
+            return totalTime;
+        }
+    }
+}
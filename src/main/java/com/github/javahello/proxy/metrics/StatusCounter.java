@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 请求数和按状态码类别 (1xx-5xx) 统计的响应数
+ *
+ * @author kailuo
+ */
+public class StatusCounter {
+    final LongAdder requests = new LongAdder();
+    final LongAdder[] responses = new LongAdder[6];
+
+    public StatusCounter() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    public void onRequest() {
+        requests.increment();
+    }
+
+    public void onResponse(int status) {
+        int statusClass = status / 100;
+        responses[statusClass > 0 && statusClass < 6 ? statusClass : 0].increment();
+    }
+}
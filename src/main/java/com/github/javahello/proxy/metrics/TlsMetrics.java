@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个 TLS 端口的握手指标
+ *
+ * @author kailuo
+ */
+public class TlsMetrics {
+    final String listener;
+    final LongAdder full = new LongAdder();
+    final LongAdder resumed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final Histogram handshakeTime = new Histogram();
+
+    TlsMetrics(String listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 握手成功
+     *
+     * @param resumed 是否复用了会话 (会话缓存或会话票据)
+     * @param nanos   从连接建立到握手完成的耗时
+     */
+    public void onHandshake(boolean resumed, long nanos) {
+        (resumed ? this.resumed : full).increment();
+        handshakeTime.recordNanos(nanos);
+    }
+
+    public void onFailure() {
+        failed.increment();
+    }
+
+    /**
+     * 成功的握手里复用会话的比例
+     *
+     * @return 还没有握手时为 0
+     */
+    public double resumptionRatio() {
+        long resumed = this.resumed.sum();
+        long total = resumed + full.sum();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个监听端口的隧道数, 同时用来限制隧道数
+ *
+ * @author kailuo
+ */
+public class TunnelMetrics {
+    final String listener;
+    final AtomicInteger active = new AtomicInteger();
+    final LongAdder opened = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    TunnelMetrics(String listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param max 上限, 0 不限制
+     * @return 超过上限时返回 false, 成功时结束后要调用 {@link #onClose()}
+     */
+    public boolean tryOpen(int max) {
+        for (; ; ) {
+            int n = active.get();
+            if (max > 0 && n >= max) {
+                rejected.increment();
+                return false;
+            }
+            if (active.compareAndSet(n, n + 1)) {
+                opened.increment();
+                return true;
+            }
+        }
+    }
+
+    public void onClose() {
+        active.decrementAndGet();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021 kailuo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.javahello.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个后端的指标
+ *
+ * @author kailuo
+ */
+public class UpstreamMetrics extends StatusCounter {
+    /**
+     * 失败的原因, 下标对应 {@link #FAILURE_REASONS}
+     */
+    public static final int CONNECT = 0;
+    public static final int TIMEOUT = 1;
+    public static final int CLOSED = 2;
+    public static final int ERROR = 3;
+    static final String[] FAILURE_REASONS = {"connect", "timeout", "closed", "error"};
+
+    final String upstream;
+    final String server;
+    final Histogram connectTime = new Histogram();
+    final Histogram firstByteTime = new Histogram();
+    final LongAdder connections = new LongAdder();
+    final LongAdder[] failures = new LongAdder[FAILURE_REASONS.length];
+
+    UpstreamMetrics(String upstream, String server) {
+        this.upstream = upstream;
+        this.server = server;
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 收到后端的响应头
+     *
+     * @param status
+     * @param nanos  从请求写出到收到响应头的耗时
+     */
+    public void onFirstByte(int status, long nanos) {
+        onResponse(status);
+        firstByteTime.recordNanos(nanos);
+    }
+
+    /**
+     * 连接失败、超时、响应中途断开或者连接上出现异常, 只计数不打印
+     *
+     * @param reason {@link #CONNECT}, {@link #TIMEOUT}, {@link #CLOSED} 或 {@link #ERROR}
+     */
+    public void onFailure(int reason) {
+        failures[reason].increment();
+    }
+
+    public void onConnect(long nanos) {
+        connectTime.recordNanos(nanos);
+        connections.increment();
+    }
+
+    public void onDisconnect() {
+        connections.decrement();
+    }
+}
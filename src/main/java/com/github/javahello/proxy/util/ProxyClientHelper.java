@@ -26,7 +26,8 @@ public class ProxyClientHelper {
     public static UpstreamServer urlToUps(URL url) {
         UpstreamServer upstreamServer = new UpstreamServer();
         upstreamServer.setAddress(url.getHost());
-        int port = 80;
+        upstreamServer.setScheme(url.getProtocol());
+        int port = url.getDefaultPort();
         if (url.getPort() > 0) {
             port = url.getPort();
         }
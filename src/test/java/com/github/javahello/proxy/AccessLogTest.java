@@ -0,0 +1,168 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.log.AccessLog;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AccessLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProxyConf.AccessLog conf(File file) {
+        ProxyConf.AccessLog conf = new ProxyConf.AccessLog();
+        conf.setPath(file.getPath());
+        conf.setFlushInterval(0);
+        conf.setRotateInterval(0);
+        return conf;
+    }
+
+    private static void log(AccessLog accessLog, String uri, int status) {
+        AccessLog.Record record = accessLog.claim();
+        assertNotNull(record);
+        fill(record, uri, status);
+        accessLog.publish(record);
+    }
+
+    private static void fill(AccessLog.Record record, String uri, int status) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        req.headers().set(HttpHeaderNames.USER_AGENT, "curl/7.88.1 \"x\"");
+        record.request("10.0.0.1", req);
+        record.time = System.currentTimeMillis();
+        record.status = status;
+        record.bytes = 1234;
+        record.durationNanos = TimeUnit.MILLISECONDS.toNanos(1500);
+        record.upstreamNanos = -1;
+        record.route = "8080 /api";
+        record.upstream = null;
+    }
+
+    private static List<String> lines(File file) throws Exception {
+        return Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void formatsLikeNginx() throws Exception {
+        File file = new File(folder.getRoot(), "logs/access.log");
+        AccessLog accessLog = AccessLog.create(conf(file), new ProxyMetrics());
+        log(accessLog, "/api/a?q=ä", 200);
+        accessLog.close();
+        List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line, line.startsWith("10.0.0.1 - - ["));
+        assertTrue(line, line.endsWith("] \"GET /api/a?q=\\xe4 HTTP/1.1\" 200 1234 \"-\" \"curl/7.88.1 \\x22x\\x22\" rt=1.500 urt=- route=\"8080 /api\" upstream=\"-\""));
+    }
+
+    @Test
+    public void concurrentProducersBlockInsteadOfDropping() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        ProxyConf.AccessLog conf = conf(file);
+        conf.setBufferSize(16);
+        conf.setOverflow("block");
+        ProxyMetrics metrics = new ProxyMetrics();
+        AccessLog accessLog = AccessLog.create(conf, metrics);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    log(accessLog, "/t" + id + "/" + i, 200);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        accessLog.close();
+        List<String> lines = lines(file);
+        assertEquals(40_000, lines.size());
+        assertEquals(0, metrics.accessLog().getDropped());
+        // 同一个生产者的记录按顺序写出
+        int[] next = new int[threads.length];
+        for (String line : lines) {
+            String uri = line.substring(line.indexOf("\"GET ") + 5, line.indexOf(" HTTP/1.1"));
+            String[] parts = uri.split("/");
+            int id = Integer.parseInt(parts[1].substring(1));
+            assertEquals(next[id]++, Integer.parseInt(parts[2]));
+        }
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        ProxyConf.AccessLog conf = conf(file);
+        conf.setBufferSize(2);
+        ProxyMetrics metrics = new ProxyMetrics();
+        AccessLog accessLog = AccessLog.create(conf, metrics);
+        // 还没发布的记录写线程不会越过, 领取到的位置一直占着
+        AccessLog.Record first = accessLog.claim();
+        AccessLog.Record second = accessLog.claim();
+        assertNull(accessLog.claim());
+        assertEquals(1, metrics.accessLog().getDropped());
+        fill(first, "/1", 200);
+        accessLog.publish(first);
+        fill(second, "/2", 200);
+        accessLog.publish(second);
+        accessLog.close();
+        assertEquals(2, lines(file).size());
+        assertTrue(metrics.scrape().contains("proxy_access_log_records_total{result=\"dropped\"} 1"));
+    }
+
+    @Test
+    public void rotatesBySizeAndKeepsMaxFiles() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        ProxyConf.AccessLog conf = conf(file);
+        conf.setMaxSize(1000);
+        conf.setMaxFiles(2);
+        AccessLog accessLog = AccessLog.create(conf, new ProxyMetrics());
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 3; j++) {
+                log(accessLog, "/" + i + "/" + j, 200);
+            }
+            Thread.sleep(20);
+        }
+        accessLog.close();
+        String[] rotated = folder.getRoot().list((dir, name) -> name.startsWith("access.log."));
+        assertEquals(Arrays.toString(rotated), 2, rotated.length);
+        assertTrue(file.length() <= 1000);
+        List<String> last = new ArrayList<>(lines(file));
+        assertTrue(last.get(last.size() - 1).contains("/19/2 "));
+    }
+
+    @Test
+    public void rotatesByTime() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        ProxyConf.AccessLog conf = conf(file);
+        conf.setRotateInterval(1);
+        AccessLog accessLog = AccessLog.create(conf, new ProxyMetrics());
+        log(accessLog, "/before", 200);
+        Thread.sleep(1200);
+        log(accessLog, "/after", 200);
+        accessLog.close();
+        String[] rotated = folder.getRoot().list((dir, name) -> name.startsWith("access.log."));
+        assertEquals(1, rotated.length);
+        assertTrue(lines(new File(folder.getRoot(), rotated[0])).get(0).contains("/before"));
+        List<String> current = lines(file);
+        assertEquals(1, current.size());
+        assertTrue(current.get(0).contains("/after"));
+    }
+}
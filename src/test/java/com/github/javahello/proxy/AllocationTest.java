@@ -0,0 +1,71 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AllocationTest {
+    private static EventLoopGroup backendGroup;
+
+    @BeforeClass
+    public static void start() {
+        backendGroup = new NioEventLoopGroup(1);
+    }
+
+    @AfterClass
+    public static void stop() {
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 完整的代理路径: 解码下游请求、改写请求头、从连接池租连接、转发、聚合后端响应、写回下游.
+     * 代理只有一个 worker 线程, 统计它在每个请求上分配的堆内存, ByteBuf 来自池化的直接内存不计入.
+     * <p>
+     * 目前大约 2.8KB, 绝大部分是 netty HTTP 编解码器为下游请求和后端响应生成的请求头、字符串和消息对象;
+     * 代理自己分配的只有每个请求的 HttpClient、首字节定时器、连接池的 Promise 和新增的三个请求头节点
+     */
+    @Test
+    public void allocationPerProxiedRequest() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+        int listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        try (StubBackend keepalive = new StubBackend(backendGroup, 0, 16, 0);
+             StubBackend closing = new StubBackend(backendGroup, 0, 16, 0)) {
+            variables.put("keepalive", keepalive.port());
+            variables.put("closing", closing.port());
+            try (ProxyHarness proxy = new ProxyHarness("/e2e/pool.yml", variables);
+                 BlockingClient client = new BlockingClient(listen)) {
+                long worker = proxy.getTransport().getWorkerGroup().next().submit(() -> Thread.currentThread().getId()).get();
+                for (int i = 0; i < 10_000; i++) {
+                    assertEquals(200, client.get("/keepalive").status);
+                }
+                int n = 5_000;
+                long before = threadBean.getThreadAllocatedBytes(worker);
+                for (int i = 0; i < n; i++) {
+                    assertEquals(200, client.get("/keepalive").status);
+                }
+                long perRequest = (threadBean.getThreadAllocatedBytes(worker) - before) / n;
+                assertTrue("每个请求分配了 " + perRequest + " 字节", perRequest <= 4096);
+            }
+        }
+    }
+}
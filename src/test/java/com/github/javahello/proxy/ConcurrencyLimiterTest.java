@@ -0,0 +1,81 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.limit.ConcurrencyLimiter;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static ConcurrencyLimiter limiter(String algorithm, int initialLimit, int maxQueue) {
+        ProxyConf.ConcurrencyLimit conf = new ProxyConf.ConcurrencyLimit();
+        conf.setAlgorithm(algorithm);
+        conf.setInitialLimit(initialLimit);
+        conf.setMaxQueue(maxQueue);
+        conf.setMaxWait(1000);
+        return ConcurrencyLimiter.create(conf, new ProxyMetrics().concurrency("g"));
+    }
+
+    @Test
+    public void aimd() {
+        ConcurrencyLimiter limiter = limiter("aimd", 4, 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        // 并发打满时成功的请求把限制加一
+        limiter.onSuccess(10 * MS);
+        assertEquals(5, limiter.getLimit());
+        limiter.onDropped();
+        assertEquals(4, limiter.getLimit());
+        assertEquals(2, limiter.getInflight());
+    }
+
+    @Test
+    public void gradientShrinksWhenLatencyGrows() {
+        ConcurrencyLimiter limiter = limiter("gradient", 20, 0);
+        for (int i = 0; i < 200; i++) {
+            while (limiter.tryAcquire()) {
+            }
+            limiter.onSuccess(10 * MS);
+        }
+        int steady = limiter.getLimit();
+        assertTrue(steady > 20);
+        for (int i = 0; i < 50; i++) {
+            while (limiter.tryAcquire()) {
+            }
+            limiter.onSuccess(100 * MS);
+        }
+        assertTrue(limiter.getLimit() < steady / 2);
+    }
+
+    @Test
+    public void queueThenReject() throws Exception {
+        EventExecutor executor = new DefaultEventExecutor();
+        try {
+            ConcurrencyLimiter limiter = limiter("aimd", 2, 1);
+            assertTrue(limiter.tryAcquire());
+            assertTrue(limiter.tryAcquire());
+            Future<Void> queued = limiter.await(executor);
+            Future<Void> rejected = limiter.await(executor);
+            assertTrue(rejected.isDone());
+            assertTrue(rejected.cause() instanceof ConcurrencyLimiter.RejectedException);
+            assertFalse(queued.isDone());
+            // 释放的许可交给排队的请求
+            limiter.onIgnore();
+            assertTrue(queued.await(1, TimeUnit.SECONDS));
+            assertTrue(queued.isSuccess());
+            assertEquals(2, limiter.getInflight());
+        } finally {
+            executor.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+}
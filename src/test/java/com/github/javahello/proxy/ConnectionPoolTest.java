@@ -0,0 +1,166 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.core.ConnectionPool;
+import com.github.javahello.proxy.core.ProxyClient;
+import com.github.javahello.proxy.core.ProxyTransport;
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.util.ProxyClientHelper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+    private static EventLoopGroup backendGroup;
+
+    @BeforeClass
+    public static void start() {
+        backendGroup = new NioEventLoopGroup(1);
+    }
+
+    @AfterClass
+    public static void stop() {
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static ProxyHarness proxy(int listen, StubBackend keepalive, StubBackend closing) throws Exception {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("keepalive", keepalive.port());
+        variables.put("closing", closing.port());
+        return new ProxyHarness("/e2e/pool.yml", variables);
+    }
+
+    @Test
+    public void keepAliveConnectionIsReused() throws Exception {
+        int listen = ProxyHarness.freePort();
+        try (StubBackend keepalive = new StubBackend(backendGroup, 0, 16, 0);
+             StubBackend closing = new StubBackend(backendGroup, 0, 16, 0);
+             ProxyHarness ignored = proxy(listen, keepalive, closing)) {
+            for (int i = 0; i < 3; i++) {
+                // 每次新的下游连接, 后端连接来自同一个 EventLoop 的池
+                try (BlockingClient client = new BlockingClient(listen)) {
+                    for (int j = 0; j < 3; j++) {
+                        assertEquals(200, client.get("/keepalive").status);
+                    }
+                }
+            }
+            assertEquals(9, keepalive.requests());
+            assertEquals(0, keepalive.closedConnections());
+            assertEquals(1, keepalive.connections());
+        }
+    }
+
+    @Test
+    public void connectionCloseIsNotReused() throws Exception {
+        int listen = ProxyHarness.freePort();
+        StubBackend.Handler handler = (ctx, request) -> {
+            FullHttpResponse response = StubBackend.text(HttpResponseStatus.OK, "bye");
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        };
+        try (StubBackend keepalive = new StubBackend(backendGroup, 0, 16, 0);
+             StubBackend closing = new StubBackend(backendGroup, handler);
+             ProxyHarness ignored = proxy(listen, keepalive, closing);
+             BlockingClient client = new BlockingClient(listen)) {
+            for (int i = 0; i < 3; i++) {
+                BlockingClient.Response response = client.get("/closing");
+                assertEquals(200, response.status);
+                assertEquals("bye", response.body());
+                // 后端的 Connection: close 不影响下游连接
+                assertNull(response.header("connection"));
+            }
+            assertTrue(TestHelper.await(() -> closing.closedConnections() == 3, 1000));
+            assertEquals(3, closing.connections());
+        }
+    }
+
+    private static UpstreamServer server(StubBackend backend, int maxConnections, int maxPending, long idleTimeout) throws Exception {
+        UpstreamServer server = ProxyClientHelper.urlToUps(new URL("http://127.0.0.1:" + backend.port()));
+        ProxyConf.Pool pool = new ProxyConf.Pool();
+        pool.setMaxConnections(maxConnections);
+        pool.setMaxPending(maxPending);
+        pool.setIdleTimeout(idleTimeout);
+        server.setPool(pool);
+        return server;
+    }
+
+    @Test
+    public void maxConnectionsQueuesPending() throws Exception {
+        ProxyTransport transport = ProxyTransport.create(new ProxyConf.Transport());
+        ProxyClient proxyClient = ProxyClient.create(new Bootstrap(), transport, new ProxyMetrics());
+        try (StubBackend backend = new StubBackend(backendGroup, 0, 16, 0)) {
+            ConnectionPool pool = proxyClient.pool(server(backend, 1, 1, 60_000));
+            EventLoop eventLoop = transport.getWorkerGroup().next();
+            Channel first = pool.acquire(eventLoop).get(5, TimeUnit.SECONDS);
+
+            Future<Channel> queued = pool.acquire(eventLoop);
+            Future<Channel> rejected = pool.acquire(eventLoop);
+            assertFalse(rejected.await(5, TimeUnit.SECONDS) && rejected.isSuccess());
+            assertTrue(rejected.cause() instanceof IllegalStateException);
+            assertFalse(queued.isDone());
+
+            // 归还后直接交给排队的请求
+            ConnectionPool.release(first, true);
+            assertSame(first, queued.get(5, TimeUnit.SECONDS));
+            assertEquals(1, backend.connections());
+
+            // 连接关闭后为排队的请求新建连接
+            Future<Channel> next = pool.acquire(eventLoop);
+            ConnectionPool.release(first, false);
+            Channel second = next.get(5, TimeUnit.SECONDS);
+            assertNotSame(first, second);
+            assertFalse(first.isActive());
+            ConnectionPool.release(second, true);
+        } finally {
+            proxyClient.close();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        ProxyTransport transport = ProxyTransport.create(new ProxyConf.Transport());
+        ProxyClient proxyClient = ProxyClient.create(new Bootstrap(), transport, new ProxyMetrics());
+        try (StubBackend backend = new StubBackend(backendGroup, 0, 16, 0)) {
+            ConnectionPool pool = proxyClient.pool(server(backend, 4, 16, 200));
+            EventLoop eventLoop = transport.getWorkerGroup().next();
+            Channel ch = pool.acquire(eventLoop).get(5, TimeUnit.SECONDS);
+            ConnectionPool.release(ch, true);
+            assertSame(ch, pool.acquire(eventLoop).get(5, TimeUnit.SECONDS));
+            ConnectionPool.release(ch, true);
+
+            // 回收任务至少每秒检查一次
+            assertTrue(ch.closeFuture().await(3, TimeUnit.SECONDS));
+            Channel fresh = pool.acquire(eventLoop).get(5, TimeUnit.SECONDS);
+            assertNotSame(ch, fresh);
+            assertTrue(TestHelper.await(() -> backend.connections() == 2, 1000));
+            ConnectionPool.release(fresh, true);
+        } finally {
+            proxyClient.close();
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.core.ForwardHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+public class ForwardHeadersTest {
+    private static final AsciiString HOST = new AsciiString("localhost:9000");
+    private static final AsciiString CLIENT = new AsciiString("10.0.0.1");
+
+    private static HttpRequest request() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/api/users?id=1");
+        HttpHeaders headers = request.headers();
+        headers.add("Host", "example.com");
+        headers.add("User-Agent", "curl/7.74.0");
+        headers.add("Accept", "*/*");
+        headers.add("Accept-Encoding", "gzip, deflate");
+        headers.add("Connection", "keep-alive");
+        headers.add("Keep-Alive", "timeout=5");
+        return request;
+    }
+
+    @Test
+    public void responseConnectionHeadersAreNotForwarded() {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpHeaders headers = response.headers();
+        headers.add("Connection", "close, X-Backend-Hint");
+        headers.add("Keep-Alive", "timeout=5");
+        headers.add("X-Backend-Hint", "1");
+        headers.add("Content-Length", "3");
+        ForwardHeaders.rewriteResponse(headers);
+        assertFalse(headers.contains("Connection"));
+        assertFalse(headers.contains("Keep-Alive"));
+        assertFalse(headers.contains("X-Backend-Hint"));
+        assertEquals("3", headers.get("Content-Length"));
+    }
+
+    @Test
+    public void rewrite() {
+        HttpRequest request = request();
+        request.headers().set("Connection", "keep-alive, X-Secret");
+        request.headers().add("X-Secret", "1");
+        request.headers().add("TE", "trailers");
+        ForwardHeaders.rewrite(request.headers(), HOST, CLIENT, ForwardHeaders.HTTP);
+        HttpHeaders headers = request.headers();
+        assertEquals("localhost:9000", headers.get("Host"));
+        assertEquals("10.0.0.1", headers.get("X-Forwarded-For"));
+        assertEquals("http", headers.get("X-Forwarded-Proto"));
+        assertFalse(headers.contains("Connection"));
+        assertFalse(headers.contains("Keep-Alive"));
+        assertFalse(headers.contains("TE"));
+        assertFalse(headers.contains("X-Secret"));
+        assertEquals("*/*", headers.get("Accept"));
+    }
+
+    @Test
+    public void removeHttp2ExtensionHeaders() {
+        HttpRequest request = request();
+        request.headers().add("x-http2-stream-id", "3");
+        request.headers().add("x-http2-scheme", "http");
+        ForwardHeaders.rewrite(request.headers(), HOST, CLIENT, ForwardHeaders.HTTP);
+        assertFalse(request.headers().contains("x-http2-stream-id"));
+        assertFalse(request.headers().contains("x-http2-scheme"));
+    }
+
+    @Test
+    public void appendForwardedFor() {
+        HttpRequest request = request();
+        request.headers().add("X-Forwarded-For", "192.168.1.2");
+        ForwardHeaders.rewrite(request.headers(), HOST, CLIENT, ForwardHeaders.HTTP);
+        assertEquals("192.168.1.2, 10.0.0.1", request.headers().get("X-Forwarded-For"));
+    }
+
+    /**
+     * 只统计改写本身: 新增 Host、X-Forwarded-For、X-Forwarded-Proto 三个头节点, 不复制请求也不生成字符串.
+     * 完整代理路径的分配见 AllocationTest
+     */
+    @Test
+    public void allocationPerRewrite() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+        int n = 10_000;
+        HttpRequest[] requests = new HttpRequest[n];
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < n; i++) {
+                requests[i] = request();
+            }
+            for (HttpRequest request : requests) {
+                ForwardHeaders.rewrite(request.headers(), HOST, CLIENT, ForwardHeaders.HTTP);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            requests[i] = request();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (HttpRequest request : requests) {
+            ForwardHeaders.rewrite(request.headers(), HOST, CLIENT, ForwardHeaders.HTTP);
+        }
+        long perRequest = (threadBean.getThreadAllocatedBytes(threadId) - before) / n;
+        assertTrue("每个请求分配了 " + perRequest + " 字节", perRequest <= 192);
+    }
+}
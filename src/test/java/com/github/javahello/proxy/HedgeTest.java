@@ -0,0 +1,97 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HedgeTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend slow;
+    private static StubBackend slow2;
+    private static StubBackend fast;
+    /**
+     * 快后端最近一次收到请求的时间
+     */
+    private static final AtomicLong fastReceivedNanos = new AtomicLong();
+    private static ProxyHarness proxy;
+    private static int listen;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        slow = new StubBackend(backendGroup, (ctx, request) -> ctx.executor().schedule(
+                () -> ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "slow")), 500, TimeUnit.MILLISECONDS));
+        slow2 = new StubBackend(backendGroup, (ctx, request) -> ctx.executor().schedule(
+                () -> ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "slow2")), 300, TimeUnit.MILLISECONDS));
+        fast = new StubBackend(backendGroup, (ctx, request) -> {
+            fastReceivedNanos.set(System.nanoTime());
+            ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "fast"));
+        });
+        listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("slow", slow.port());
+        variables.put("slow2", slow2.port());
+        variables.put("fast", fast.port());
+        proxy = new ProxyHarness("/e2e/hedge.yml", variables);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        proxy.close();
+        slow.close();
+        slow2.close();
+        fast.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 轮询先选中慢后端, 过了 delay 向快后端发出对冲请求, 快的响应生效, 慢后端的连接关闭而不是放回连接池
+     */
+    @Test
+    public void fastHedgeWins() throws Exception {
+        int slowBefore = slow.requests();
+        int slowClosedBefore = slow.closedConnections();
+        int fastBefore = fast.requests();
+        try (BlockingClient client = new BlockingClient(listen)) {
+            long start = System.nanoTime();
+            BlockingClient.Response response = client.get("/race/1");
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(200, response.status);
+            assertEquals("fast", response.body());
+            assertTrue("用了 " + millis + "ms", millis < 400);
+            long hedgeMillis = TimeUnit.NANOSECONDS.toMillis(fastReceivedNanos.get() - start);
+            assertTrue("对冲请求在 " + hedgeMillis + "ms 发出", hedgeMillis >= 100);
+        }
+        assertEquals(slowBefore + 1, slow.requests());
+        assertEquals(fastBefore + 1, fast.requests());
+        assertTrue(TestHelper.await(() -> slow.closedConnections() == slowClosedBefore + 1, 5000));
+    }
+
+    /**
+     * 两个后端都慢, 每个请求都想对冲; budget 0.5 时每两个请求只攒够一次对冲的份额
+     */
+    @Test
+    public void budgetCapsHedges() throws Exception {
+        int before = slow.requests() + slow2.requests();
+        for (int i = 0; i < 6; i++) {
+            try (BlockingClient client = new BlockingClient(listen)) {
+                assertEquals(200, client.get("/capped/" + i).status);
+            }
+        }
+        assertEquals(before + 6 + 3, slow.requests() + slow2.requests());
+    }
+}
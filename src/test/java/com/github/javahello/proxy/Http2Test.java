@@ -0,0 +1,215 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Http2Test {
+    private static EventLoopGroup backendGroup;
+    private static EventLoopGroup clientGroup;
+    private static StubBackend backend;
+    private static ProxyHarness proxy;
+    private static int listen;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        clientGroup = new NioEventLoopGroup(1);
+        // 回显方法、路径和 body, 300ms 后才响应, 让多个 stream 同时在途
+        backend = new StubBackend(backendGroup, (ctx, request) -> {
+            String echo = request.method() + " " + request.uri() + " " + request.content().toString(CharsetUtil.UTF_8);
+            ctx.executor().schedule(() -> ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, echo)),
+                    300, TimeUnit.MILLISECONDS);
+        });
+        listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("backend", backend.port());
+        proxy = new ProxyHarness("/e2e/http2.yml", variables);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        proxy.close();
+        backend.close();
+        clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * prior knowledge 的 h2c 连接, 等收到服务端的 SETTINGS 后返回.
+     * 客户端不遵守服务端的 maxConcurrentStreams, 超出的 stream 由服务端拒绝
+     */
+    private static Channel connect() throws Exception {
+        Http2FrameCodec codec = Http2FrameCodecBuilder.forClient().build();
+        Promise<Void> settings = clientGroup.next().newPromise();
+        Channel ch = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(codec);
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                if (msg instanceof Http2SettingsFrame) {
+                                    codec.connection().local().maxActiveStreams(Integer.MAX_VALUE);
+                                    settings.trySuccess(null);
+                                }
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                })
+                .connect("127.0.0.1", listen).sync().channel();
+        // 客户端的连接前言和 SETTINGS 只写不 flush
+        ch.flush();
+        assertTrue(settings.await(5, TimeUnit.SECONDS));
+        return ch;
+    }
+
+    /**
+     * 打开一个 stream 发送 GET, 完成时是响应状态码和 body, 被重置时是 "RST " 加错误码
+     */
+    private static CompletableFuture<String> get(Channel parent, String path) throws Exception {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(parent)
+                .handler(new ChannelInboundHandlerAdapter() {
+                    private final StringBuilder body = new StringBuilder();
+                    private String status;
+
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        try {
+                            boolean end = false;
+                            if (msg instanceof Http2HeadersFrame) {
+                                Http2HeadersFrame headers = (Http2HeadersFrame) msg;
+                                status = String.valueOf(headers.headers().status());
+                                end = headers.isEndStream();
+                            } else if (msg instanceof Http2DataFrame) {
+                                Http2DataFrame data = (Http2DataFrame) msg;
+                                body.append(data.content().toString(CharsetUtil.UTF_8));
+                                end = data.isEndStream();
+                            } else if (msg instanceof Http2ResetFrame) {
+                                reset((Http2ResetFrame) msg);
+                            }
+                            if (end) {
+                                result.complete(status + " " + body);
+                            }
+                        } finally {
+                            ReferenceCountUtil.release(msg);
+                        }
+                    }
+
+                    @Override
+                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                        if (evt instanceof Http2ResetFrame) {
+                            reset((Http2ResetFrame) evt);
+                        }
+                    }
+
+                    private void reset(Http2ResetFrame frame) {
+                        result.complete("RST " + Http2Error.valueOf(frame.errorCode()));
+                    }
+
+                    @Override
+                    public void channelInactive(ChannelHandlerContext ctx) {
+                        result.complete("closed");
+                    }
+                })
+                .open().sync().getNow();
+        Http2Headers headers = new DefaultHttp2Headers()
+                .method("GET").path(path).scheme("http").authority("localhost");
+        stream.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true)).sync();
+        return result;
+    }
+
+    @Test
+    public void concurrentStreamsShareHttp1Pool() throws Exception {
+        int connectionsBefore = backend.connections();
+        Channel ch = connect();
+        try {
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                List<CompletableFuture<String>> responses = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    responses.add(get(ch, "/r" + round + "/" + i));
+                }
+                for (int i = 0; i < 4; i++) {
+                    assertEquals("200 GET /r" + round + "/" + i + " ", responses.get(i).get(5, TimeUnit.SECONDS));
+                }
+                // 4 个 stream 同时转发, 不是一个接一个
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("用了 " + millis + "ms", millis < 1000);
+            }
+            // 每个在途的 stream 一个后端连接, 第二轮复用第一轮的连接
+            assertEquals(connectionsBefore + 4, backend.connections());
+        } finally {
+            ch.close().sync();
+        }
+    }
+
+    @Test
+    public void streamsOverLimitAreRefused() throws Exception {
+        Channel ch = connect();
+        try {
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                responses.add(get(ch, "/limit/" + i));
+            }
+            for (int i = 0; i < 4; i++) {
+                assertEquals("200 GET /limit/" + i + " ", responses.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals("RST " + Http2Error.REFUSED_STREAM, responses.get(4).get(5, TimeUnit.SECONDS));
+            // 连接没有因为被拒绝的 stream 关闭, 在途的 stream 结束后可以继续打开
+            assertTrue(ch.isActive());
+            assertEquals("200 GET /limit/again ", get(ch, "/limit/again").get(5, TimeUnit.SECONDS));
+        } finally {
+            ch.close().sync();
+        }
+    }
+
+    @Test
+    public void upgradeWithBodyStaysHttp1() throws Exception {
+        try (BlockingClient client = new BlockingClient(listen)) {
+            client.write("POST /upgrade HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Connection: Upgrade, HTTP2-Settings\r\n"
+                    + "Upgrade: h2c\r\n"
+                    + "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n"
+                    + "Content-Length: 5\r\n"
+                    + "\r\n"
+                    + "hello");
+            BlockingClient.Response response = client.read();
+            assertEquals(200, response.status);
+            assertEquals("POST /upgrade hello", response.body());
+            assertNull(response.header("upgrade"));
+            // 连接还是 HTTP/1.1
+            assertEquals("GET /after ", client.get("/after").body());
+        }
+    }
+}
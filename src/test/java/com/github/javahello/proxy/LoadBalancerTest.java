@@ -0,0 +1,142 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.lb.LoadBalancer;
+import com.github.javahello.proxy.lb.LoadBalancers;
+import com.github.javahello.proxy.lb.OutlierDetector;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LoadBalancerTest {
+
+    private static UpstreamServer server(int port, int weight) {
+        UpstreamServer server = new UpstreamServer();
+        server.setAddress("127.0.0.1");
+        server.setPort(port);
+        server.setWeight(weight);
+        return server;
+    }
+
+    private static LoadBalancer create(String balance, String hashKey, List<UpstreamServer> servers) {
+        ProxyConf.Upstream conf = new ProxyConf.Upstream();
+        conf.setBalance(balance);
+        conf.setHashKey(hashKey);
+        return LoadBalancers.create(conf, servers);
+    }
+
+    private static HttpRequest request() {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    }
+
+    @Test
+    public void smoothWeightedRoundRobin() {
+        UpstreamServer a = server(1, 5);
+        UpstreamServer b = server(2, 1);
+        UpstreamServer c = server(3, 1);
+        LoadBalancer lb = create(LoadBalancers.WEIGHTED_ROUND_ROBIN, null, List.of(a, b, c));
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 7; i++) {
+            order.append(lb.select(request(), null).getPort());
+        }
+        // nginx 平滑加权轮询的经典结果 a a b a c a a
+        assertEquals("1121311", order.toString());
+    }
+
+    @Test
+    public void leastRequest() {
+        UpstreamServer a = server(1, 1);
+        UpstreamServer b = server(2, 1);
+        a.incrementOutstanding();
+        a.incrementOutstanding();
+        b.incrementOutstanding();
+        LoadBalancer lb = create(LoadBalancers.LEAST_REQUEST, null, List.of(a, b));
+        for (int i = 0; i < 10; i++) {
+            assertSame(b, lb.select(request(), null));
+        }
+        assertSame(b, create(LoadBalancers.POWER_OF_TWO, null, List.of(a, b)).select(request(), null));
+    }
+
+    @Test
+    public void consistentHashStickyAndBounded() {
+        List<UpstreamServer> servers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            servers.add(server(i, 1));
+        }
+        LoadBalancer lb = create(LoadBalancers.CONSISTENT_HASH, "cookie:sid", servers);
+        HttpRequest req = request();
+        req.headers().set("Cookie", "lang=zh; sid=user-42");
+        UpstreamServer first = lb.select(req, null);
+        assertSame(first, lb.select(req, null));
+
+        // 同一个 key 的后端超过负载上限后会落到下一个节点
+        for (int i = 0; i < 10; i++) {
+            first.incrementOutstanding();
+        }
+        assertNotSame(first, lb.select(req, null));
+    }
+
+    @Test
+    public void consistentHashByIp() {
+        List<UpstreamServer> servers = List.of(server(1, 1), server(2, 1), server(3, 1));
+        LoadBalancer lb = create(LoadBalancers.CONSISTENT_HASH, "ip", servers);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Map<UpstreamServer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            counts.merge(lb.select(request(), channel), 1, Integer::sum);
+        }
+        assertEquals(1, counts.size());
+    }
+
+    @Test
+    public void ejectedServerSkipped() {
+        UpstreamServer a = server(1, 1);
+        UpstreamServer b = server(2, 1);
+        UpstreamServer c = server(3, 1);
+        ProxyConf.HealthCheck conf = new ProxyConf.HealthCheck();
+        conf.setMaxFails(2);
+        conf.setMaxEjectionPercent(50);
+        new OutlierDetector(conf, List.of(a, b, c));
+        LoadBalancer lb = create(LoadBalancers.ROUND_ROBIN, null, List.of(a, b, c));
+
+        a.getHealth().onFailure();
+        assertTrue(a.getHealth().isAvailable());
+        a.getHealth().onFailure();
+        assertFalse(a.getHealth().isAvailable());
+        for (int i = 0; i < 6; i++) {
+            assertNotSame(a, lb.select(request(), null));
+        }
+
+        // 最多摘除一半, 第二个后端不会再被摘掉
+        b.getHealth().onFailure();
+        b.getHealth().onFailure();
+        assertTrue(b.getHealth().isAvailable());
+    }
+
+    @Test
+    public void activeProbe() {
+        UpstreamServer a = server(1, 1);
+        UpstreamServer b = server(2, 1);
+        OutlierDetector detector = new OutlierDetector(new ProxyConf.HealthCheck(), List.of(a, b));
+        detector.onProbe(a, false);
+        assertTrue(a.getHealth().isAvailable());
+        detector.onProbe(a, false);
+        assertFalse(a.getHealth().isAvailable());
+        LoadBalancer lb = create(LoadBalancers.LEAST_REQUEST, null, List.of(a, b));
+        assertSame(b, lb.select(request(), null));
+        detector.onProbe(a, true);
+        detector.onProbe(a, true);
+        assertTrue(a.getHealth().isAvailable());
+    }
+}
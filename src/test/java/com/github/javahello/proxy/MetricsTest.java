@@ -0,0 +1,160 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.metrics.Histogram;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.metrics.RouteMetrics;
+import com.github.javahello.proxy.metrics.SlowRequests;
+import com.github.javahello.proxy.metrics.TlsMetrics;
+import com.github.javahello.proxy.metrics.TunnelMetrics;
+import com.github.javahello.proxy.metrics.UpstreamMetrics;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramQuantiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100L);
+        }
+        long p50 = histogram.valueAt(0.5);
+        long p99 = histogram.valueAt(0.99);
+        // 分桶的相对误差不超过 12.5%
+        assertTrue(p50 >= 50_000 && p50 <= 50_000 * 1.125);
+        assertTrue(p99 >= 99_000 && p99 <= 99_000 * 1.125);
+        assertEquals(100_000, histogram.valueAt(1.0), 100_000 * 0.125);
+        long[] snapshot = histogram.snapshot();
+        assertEquals(500_500 * 100L, snapshot[snapshot.length - 1]);
+    }
+
+    @Test
+    public void histogramExtremes() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(1, histogram.valueAt(0.5));
+        assertTrue(histogram.valueAt(1.0) > 0);
+    }
+
+    /**
+     * 对冲的等待时间只看后端响应头的耗时, 缓存命中之类的本地响应不参与
+     */
+    @Test
+    public void upstreamHeaderPercentile() {
+        RouteMetrics route = new ProxyMetrics().route("8080 /api");
+        for (int i = 0; i < 200; i++) {
+            route.onComplete(200, 50_000_000);
+        }
+        for (int i = 0; i < 100; i++) {
+            route.onUpstreamHeader(1_000_000);
+        }
+        long p95 = route.upstreamHeaderPercentile(0.95);
+        assertTrue("p95 " + p95, p95 >= 1000 && p95 <= 1152);
+    }
+
+    @Test
+    public void scrape() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        RouteMetrics route = metrics.route("8080 /api");
+        route.onRequest();
+        route.onComplete(200, 3_000_000);
+        route.onRequest();
+        route.onComplete(503, 100_000);
+        route.onUpstreamHeader(2_000_000);
+        UpstreamMetrics upstream = metrics.upstream("proxy_001", "localhost:9000");
+        upstream.onConnect(500_000);
+        upstream.onFirstByte(200, 2_000_000);
+        upstream.onFailure(UpstreamMetrics.CONNECT);
+        upstream.onFailure(UpstreamMetrics.CONNECT);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE proxy_requests_total counter\n"));
+        assertTrue(text.contains("proxy_requests_total{route=\"8080 /api\"} 2\n"));
+        assertTrue(text.contains("proxy_responses_total{route=\"8080 /api\",code=\"2xx\"} 1\n"));
+        assertTrue(text.contains("proxy_responses_total{route=\"8080 /api\",code=\"5xx\"} 1\n"));
+        assertTrue(text.contains("proxy_request_duration_seconds_bucket{route=\"8080 /api\",le=\"0.000128\"} 1\n"));
+        assertTrue(text.contains("proxy_request_duration_seconds_bucket{route=\"8080 /api\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("proxy_request_duration_seconds_sum{route=\"8080 /api\"} 0.0031\n"));
+        assertTrue(text.contains("proxy_upstream_header_duration_seconds_count{route=\"8080 /api\"} 1\n"));
+        assertTrue(text.contains("proxy_upstream_connections{upstream=\"proxy_001\",server=\"localhost:9000\"} 1\n"));
+        assertTrue(text.contains("proxy_upstream_connect_seconds_count{upstream=\"proxy_001\",server=\"localhost:9000\"} 1\n"));
+        assertTrue(text.contains("proxy_upstream_failures_total{upstream=\"proxy_001\",server=\"localhost:9000\",reason=\"connect\"} 2\n"));
+        assertTrue(text.contains("proxy_upstream_failures_total{upstream=\"proxy_001\",server=\"localhost:9000\",reason=\"timeout\"} 0\n"));
+    }
+
+    @Test
+    public void tlsHandshakes() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        assertFalse(metrics.scrape().contains("proxy_tls_"));
+        TlsMetrics tls = metrics.tls("8443");
+        assertEquals(0, tls.resumptionRatio(), 0);
+        tls.onHandshake(false, 5_000_000);
+        tls.onHandshake(true, 500_000);
+        tls.onHandshake(true, 500_000);
+        tls.onHandshake(true, 500_000);
+        tls.onFailure();
+        assertEquals(0.75, tls.resumptionRatio(), 0);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("proxy_tls_handshakes_total{listener=\"8443\",result=\"full\"} 1\n"));
+        assertTrue(text.contains("proxy_tls_handshakes_total{listener=\"8443\",result=\"resumed\"} 3\n"));
+        assertTrue(text.contains("proxy_tls_handshakes_total{listener=\"8443\",result=\"failed\"} 1\n"));
+        assertTrue(text.contains("proxy_tls_resumption_ratio{listener=\"8443\"} 0.75\n"));
+        assertTrue(text.contains("proxy_tls_handshake_seconds_count{listener=\"8443\"} 4\n"));
+    }
+
+    @Test
+    public void slowRequestsKeepLatest() {
+        SlowRequests slow = new ProxyMetrics().slowRequests();
+        long ms = 1_000_000;
+        // 收到请求、选好后端、拿到连接、响应头、完整响应、写完
+        slow.add(new SlowRequests.Sample(1, "10.0.0.1", "GET", "/a", 200, "8080 /", "127.0.0.1:9000", 1,
+                new long[]{1000 * ms, 1000 * ms + 20_000, 1002 * ms, 1100 * ms, 1101 * ms, 1105 * ms}), 2);
+        // 连接失败, 没有响应头
+        slow.add(new SlowRequests.Sample(2, "10.0.0.1", "GET", "/b", 502, "8080 /", "127.0.0.1:9000", 2,
+                new long[]{1000 * ms, 1000 * ms, 0, 0, 1200 * ms, 1201 * ms}), 2);
+        slow.add(new SlowRequests.Sample(3, "10.0.0.1", "GET", "/c", 200, "8080 /", null, 0,
+                new long[]{1000 * ms, 1000 * ms, 0, 0, 1000 * ms, 1300 * ms}), 2);
+
+        List<SlowRequests.Sample> samples = slow.snapshot();
+        assertEquals(2, samples.size());
+        assertEquals("/c", samples.get(0).getUri());
+        assertEquals(300, samples.get(0).getWriteTime(), 0);
+        SlowRequests.Sample failed = samples.get(1);
+        assertEquals(200, failed.getConnectTime(), 0);
+        assertEquals(0, failed.getUpstreamTime(), 0);
+        assertEquals(201, failed.getTotalTime(), 0);
+
+        SlowRequests.Sample sample = new SlowRequests.Sample(1, null, "GET", "/a", 200, null, null, 1,
+                new long[]{1000 * ms, 1000 * ms + 20_000, 1002 * ms, 1100 * ms, 1101 * ms, 1105 * ms});
+        assertEquals(0.02, sample.getRouteTime(), 0);
+        assertEquals(1.98, sample.getConnectTime(), 0);
+        assertEquals(98, sample.getUpstreamTime(), 0);
+        assertEquals(1, sample.getTransferTime(), 0);
+        assertEquals(105, sample.getTotalTime(), 0);
+    }
+
+    @Test
+    public void tunnelLimit() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        TunnelMetrics tunnel = metrics.tunnel("8080");
+        assertSame(tunnel, metrics.tunnel("8080"));
+        assertTrue(tunnel.tryOpen(2));
+        assertTrue(tunnel.tryOpen(2));
+        assertFalse(tunnel.tryOpen(2));
+        tunnel.onClose();
+        assertTrue(tunnel.tryOpen(2));
+        // 0 不限制
+        assertTrue(tunnel.tryOpen(0));
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("proxy_tunnels{listener=\"8080\"} 3\n"));
+        assertTrue(text.contains("proxy_tunnels_total{listener=\"8080\"} 4\n"));
+        assertTrue(text.contains("proxy_tunnels_rejected_total{listener=\"8080\"} 1\n"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipeliningTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend slow;
+    private static StubBackend fast;
+    private static ProxyHarness proxy;
+    private static int listen;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(2);
+        // 按请求路径回显, 慢后端 300ms 后才响应
+        slow = new StubBackend(backendGroup, (ctx, request) -> {
+            String uri = request.uri();
+            ctx.executor().schedule(() -> ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "slow " + uri)),
+                    300, TimeUnit.MILLISECONDS);
+        });
+        fast = new StubBackend(backendGroup, (ctx, request) ->
+                ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "fast " + request.uri())));
+        listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("slow", slow.port());
+        variables.put("fast", fast.port());
+        proxy = new ProxyHarness("/e2e/pipelining.yml", variables);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        proxy.close();
+        slow.close();
+        fast.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static String request(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    @Test
+    public void responsesFollowRequestOrder() throws Exception {
+        int fastBefore = fast.requests();
+        try (BlockingClient client = new BlockingClient(listen)) {
+            // 一次写出, 慢后端的请求在前
+            client.write(request("/slow/1") + request("/fast/2") + request("/nowhere") + request("/stream/3")
+                    + request("/fast/4") + request("/slow/5"));
+            long start = System.nanoTime();
+            BlockingClient.Response first = client.read();
+            long firstMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals("slow /slow/1", first.body());
+            // 快后端的请求没有等慢的响应就已经发出去了
+            assertEquals(fastBefore + 3, fast.requests());
+            assertTrue("第一个响应用了 " + firstMillis + "ms", firstMillis >= 200);
+
+            assertEquals("fast /fast/2", client.read().body());
+            // 没有匹配的 location, 本地的 404 也按顺序返回
+            assertEquals(404, client.read().status);
+            assertEquals("fast /stream/3", client.read().body());
+            assertEquals("fast /fast/4", client.read().body());
+            assertEquals("slow /slow/5", client.read().body());
+
+            // 连接还可以继续使用
+            assertEquals("fast /fast/6", client.get("/fast/6").body());
+        }
+    }
+
+    @Test
+    public void fastUpstreamIsNotBlockedAcrossConnections() throws Exception {
+        try (BlockingClient slowClient = new BlockingClient(listen);
+             BlockingClient fastClient = new BlockingClient(listen)) {
+            slowClient.write(request("/slow/a"));
+            long start = System.nanoTime();
+            assertEquals("fast /fast/b", fastClient.get("/fast/b").body());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+            assertEquals("slow /slow/a", slowClient.read().body());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.core.ProxyContentCompressor;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ProxyContentCompressorTest {
+
+    @Test
+    public void acceptsQValues() {
+        assertTrue(ProxyContentCompressor.accepts("gzip, deflate", "gzip"));
+        assertTrue(ProxyContentCompressor.accepts("GZIP", "gzip"));
+        assertTrue(ProxyContentCompressor.accepts("deflate;q=0.5, gzip;q=0.8", "deflate"));
+        assertFalse(ProxyContentCompressor.accepts("gzip;q=0", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts("gzip; q=0.000", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts("gzip;q=abc", "gzip"));
+        // 不是 q 的参数不影响
+        assertTrue(ProxyContentCompressor.accepts("gzip;level=0", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts("deflate", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts("", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts(null, "gzip"));
+    }
+
+    @Test
+    public void acceptsStar() {
+        assertTrue(ProxyContentCompressor.accepts("*", "br"));
+        assertTrue(ProxyContentCompressor.accepts("deflate, *;q=0.1", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts("deflate, *;q=0", "gzip"));
+        // 明确列出的编码优先于 *
+        assertTrue(ProxyContentCompressor.accepts("*;q=0, gzip", "gzip"));
+        assertFalse(ProxyContentCompressor.accepts("*, gzip;q=0", "gzip"));
+    }
+
+    @Test
+    public void acceptsIdentity() {
+        assertTrue(ProxyContentCompressor.accepts(null, "identity"));
+        assertTrue(ProxyContentCompressor.accepts("gzip", "identity"));
+        assertFalse(ProxyContentCompressor.accepts("gzip, identity;q=0", "identity"));
+        assertFalse(ProxyContentCompressor.accepts("gzip, *;q=0", "identity"));
+        assertTrue(ProxyContentCompressor.accepts("*;q=0, identity", "identity"));
+    }
+
+    private static EmbeddedChannel channel(ProxyConf.Compression compression, String acceptEncoding) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProxyContentCompressor(uri -> compression));
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        if (acceptEncoding != null) {
+            request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        }
+        assertTrue(channel.writeInbound(request));
+        ReferenceCountUtil.release(channel.readInbound());
+        return channel;
+    }
+
+    private static FullHttpResponse response(String contentType, byte[] body) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.wrappedBuffer(body));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+        return response;
+    }
+
+    /**
+     * 写出响应, 把编码器输出的各部分拼起来
+     */
+    private static Output write(EmbeddedChannel channel, FullHttpResponse response) {
+        assertTrue(channel.writeOutbound(response));
+        Output output = new Output();
+        ByteBuf body = Unpooled.buffer();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof HttpResponse) {
+                output.headers = ((HttpResponse) msg).headers();
+            }
+            if (msg instanceof HttpContent) {
+                body.writeBytes(((HttpContent) msg).content());
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        output.body = ByteBufUtil.getBytes(body);
+        body.release();
+        return output;
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("hello proxy ");
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void upstreamGzipPassesThrough() throws IOException {
+        EmbeddedChannel channel = channel(new ProxyConf.Compression(), "gzip, deflate");
+        byte[] gzipped = gzip(text(4096));
+        FullHttpResponse response = response("text/plain", gzipped);
+        response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        Output output = write(channel, response);
+        assertEquals("gzip", output.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        assertEquals(String.valueOf(gzipped.length), output.headers.get(HttpHeaderNames.CONTENT_LENGTH));
+        assertArrayEquals(gzipped, output.body);
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void compressesLargeText() throws IOException {
+        EmbeddedChannel channel = channel(new ProxyConf.Compression(), "gzip");
+        byte[] body = text(4096);
+        Output output = write(channel, response("text/html; charset=utf-8", body));
+        assertEquals("gzip", output.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        assertTrue(output.body.length < body.length);
+        assertArrayEquals(body, gunzip(output.body));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void skipsSmallOrBinaryOrUnaccepted() {
+        ProxyConf.Compression compression = new ProxyConf.Compression();
+        // 小于 minLength
+        Output small = write(channel(compression, "gzip"), response("text/plain", text(100)));
+        assertNull(small.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        assertEquals(100, small.body.length);
+        // 类型不在 types 里
+        Output binary = write(channel(compression, "gzip"), response("image/png", text(4096)));
+        assertNull(binary.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        // 客户端不接受
+        Output refused = write(channel(compression, "gzip;q=0"), response("text/plain", text(4096)));
+        assertNull(refused.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        Output none = write(channel(compression, null), response("text/plain", text(4096)));
+        assertNull(none.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        // location 关闭压缩
+        ProxyConf.Compression disabled = new ProxyConf.Compression();
+        disabled.setEnabled(false);
+        Output off = write(channel(disabled, "gzip"), response("text/plain", text(4096)));
+        assertNull(off.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        assertEquals(4096, off.body.length);
+    }
+
+    @Test
+    public void deflateWhenGzipRefused() {
+        EmbeddedChannel channel = channel(new ProxyConf.Compression(), "gzip;q=0, deflate");
+        Output output = write(channel, response("application/json", text(4096)));
+        assertEquals("deflate", output.headers.get(HttpHeaderNames.CONTENT_ENCODING));
+        channel.finishAndReleaseAll();
+    }
+
+    private static class Output {
+        HttpHeaders headers;
+        byte[] body;
+    }
+}
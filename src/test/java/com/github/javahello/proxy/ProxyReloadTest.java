@@ -0,0 +1,241 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.core.ProxyContext;
+import com.github.javahello.proxy.core.ProxyReloader;
+import com.github.javahello.proxy.core.ProxyTransport;
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ProxyReloadTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend blue;
+    private static StubBackend green;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        // 响应里带上后端的名字, 请求路径里带 slow 的 300ms 后才响应
+        blue = new StubBackend(backendGroup, (ctx, request) -> respond(ctx, request.uri(), "blue"));
+        green = new StubBackend(backendGroup, (ctx, request) -> respond(ctx, request.uri(), "green"));
+    }
+
+    private static void respond(ChannelHandlerContext ctx, String uri, String name) {
+        long delay = uri.contains("slow") ? 300 : 0;
+        ctx.executor().schedule(() -> ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, name + " " + uri)),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    @AfterClass
+    public static void stop() {
+        blue.close();
+        green.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 每个端口一个 location, 转发到指定的后端
+     *
+     * @param listeners 端口和后端交替
+     */
+    private static String listeners(Object... listeners) {
+        StringBuilder sb = new StringBuilder("upstream:\n"
+                + "  blue:\n"
+                + "    server:\n"
+                + "      - \"127.0.0.1:" + blue.port() + "\"\n"
+                + "  green:\n"
+                + "    server:\n"
+                + "      - \"127.0.0.1:" + green.port() + "\"\n"
+                + "servers:\n");
+        for (int i = 0; i < listeners.length; i += 2) {
+            sb.append("  - listen: ").append(listeners[i]).append("\n")
+                    .append("    serverName: \"localhost\"\n")
+                    .append("    location:\n")
+                    .append("      /:\n")
+                    .append("        proxyPass: \"http://").append(listeners[i + 1]).append("/\"\n");
+        }
+        return sb.toString();
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        assertTrue(TestHelper.await(() -> {
+            try (BlockingClient ignored = new BlockingClient(port)) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }, 5000));
+    }
+
+    private static ProxyConf conf(String servers) throws Exception {
+        String yml = "upstream:\n"
+                + "  g:\n"
+                + "    server:\n"
+                + servers
+                + "servers:\n"
+                + "  - listen: 18080\n"
+                + "    serverName: \"localhost\"\n"
+                + "    location:\n"
+                + "      /:\n"
+                + "        proxyPass: \"http://g/\"\n";
+        return YmlHelper.reSerializer(yml, ProxyConf.class);
+    }
+
+    private static UpstreamServer choose(ProxyContext context) {
+        return context.chooseUpstream("g", new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"), null);
+    }
+
+    @Test
+    public void reloadKeepsExistingServers() throws Exception {
+        ProxyContext first = ProxyContext.create(conf("      - \"127.0.0.1:9000\"\n"));
+        UpstreamServer server = choose(first);
+
+        ProxyContext second = ProxyContext.create(conf("      - \"127.0.0.1:9000 weight=3\"\n"), first);
+        // 同一个后端沿用原来的对象, 健康状态和未完成请求数不会因为重新加载丢失
+        assertSame(server, choose(second));
+        assertEquals(3, server.getWeight());
+        assertSame(first.getMetrics(), second.getMetrics());
+
+        ProxyContext third = ProxyContext.create(conf("      - \"127.0.0.1:9001\"\n"), second);
+        assertNotSame(server, choose(third));
+        assertEquals(9001, choose(third).getPort());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroWeightRejected() throws Exception {
+        ProxyContext.create(conf("      - \"127.0.0.1:9000 weight=0\"\n"));
+    }
+
+    @Test
+    public void addAndRemoveListeners() throws Exception {
+        int a = ProxyHarness.freePort();
+        int b = ProxyHarness.freePort();
+        AtomicReference<String> config = new AtomicReference<>(listeners(a, "blue"));
+        ProxyTransport transport = ProxyTransport.create(new ProxyConf.Transport());
+        ProxyReloader reloader = ProxyReloader.start(config::get, transport);
+        try {
+            awaitListening(a);
+
+            // 新增的端口开始监听
+            config.set(listeners(a, "blue", b, "green"));
+            assertTrue(reloader.reload());
+            awaitListening(b);
+            try (BlockingClient client = new BlockingClient(b)) {
+                assertEquals("green /x", client.get("/x").body());
+            }
+
+            // 移除的端口: 已有连接上处理中的请求正常完成, 然后关闭连接, 不再接受新连接
+            try (BlockingClient client = new BlockingClient(b)) {
+                assertEquals("green /first", client.get("/first").body());
+                long sent = green.requests();
+                client.send("GET", "/slow");
+                // 等请求到达后端再重新加载
+                assertTrue(TestHelper.await(() -> green.requests() > sent, 5000));
+                config.set(listeners(a, "blue"));
+                assertTrue(reloader.reload());
+                BlockingClient.Response response = client.read();
+                assertEquals(200, response.status);
+                assertEquals("green /slow", response.body());
+                assertTrue(client.awaitClose());
+            }
+            assertTrue(TestHelper.await(() -> {
+                try (BlockingClient ignored = new BlockingClient(b)) {
+                    return false;
+                } catch (IOException e) {
+                    return true;
+                }
+            }, 5000));
+            try (BlockingClient client = new BlockingClient(a)) {
+                assertEquals("blue /y", client.get("/y").body());
+            }
+
+            // 配置有错误时保留原来的配置
+            config.set("servers: [");
+            assertFalse(reloader.reload());
+            try (BlockingClient client = new BlockingClient(a)) {
+                assertEquals("blue /z", client.get("/z").body());
+            }
+        } finally {
+            reloader.close();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void inflightRequestsSurviveSwap() throws Exception {
+        int a = ProxyHarness.freePort();
+        AtomicReference<String> config = new AtomicReference<>(listeners(a, "blue"));
+        ProxyTransport transport = ProxyTransport.create(new ProxyConf.Transport());
+        ProxyReloader reloader = ProxyReloader.start(config::get, transport);
+        try {
+            awaitListening(a);
+            try (BlockingClient client = new BlockingClient(a)) {
+                long sent = blue.requests();
+                client.send("GET", "/slow");
+                assertTrue(TestHelper.await(() -> blue.requests() > sent, 5000));
+                config.set(listeners(a, "green"));
+                assertTrue(reloader.reload());
+                // 替换之前已经转发的请求继续使用原来的路由
+                assertEquals("blue /slow", client.read().body());
+                // 同一个连接上后面的请求使用新路由
+                assertEquals("green /next", client.get("/next").body());
+            }
+        } finally {
+            reloader.close();
+            transport.close();
+        }
+    }
+
+    @Test
+    public void failedBindKeepsOldConfig() throws Exception {
+        int a = ProxyHarness.freePort();
+        int b = ProxyHarness.freePort();
+        AtomicReference<String> config = new AtomicReference<>(listeners(a, "blue"));
+        ProxyTransport transport = ProxyTransport.create(new ProxyConf.Transport());
+        ProxyReloader reloader = ProxyReloader.start(config::get, transport);
+        try {
+            awaitListening(a);
+            // 新增的端口被占用时整个重新加载失败, 已有端口的路由也不替换
+            config.set(listeners(a, "green", b, "green"));
+            try (ServerSocket ignored = new ServerSocket(b)) {
+                assertFalse(reloader.reload());
+            }
+            try (BlockingClient client = new BlockingClient(a)) {
+                assertEquals("blue /x", client.get("/x").body());
+            }
+
+            // 端口释放后再次加载可以监听
+            assertTrue(reloader.reload());
+            awaitListening(b);
+            try (BlockingClient client = new BlockingClient(a)) {
+                assertEquals("green /y", client.get("/y").body());
+            }
+            try (BlockingClient client = new BlockingClient(b)) {
+                assertEquals("green /z", client.get("/z").body());
+            }
+        } finally {
+            reloader.close();
+            transport.close();
+        }
+    }
+}
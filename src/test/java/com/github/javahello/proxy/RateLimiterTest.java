@@ -0,0 +1,75 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.limit.RateLimiter;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static RateLimiter limiter(double rate, int burst, String key, int maxKeys) {
+        ProxyConf.RateLimit conf = new ProxyConf.RateLimit();
+        conf.setRate(rate);
+        conf.setBurst(burst);
+        conf.setKey(key);
+        conf.setMaxKeys(maxKeys);
+        return RateLimiter.create(conf);
+    }
+
+    @Test
+    public void burstThenSteadyRate() {
+        RateLimiter limiter = limiter(10, 4, "ip", 100);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire("a", now));
+        }
+        long wait = limiter.tryAcquire("a", now);
+        assertEquals(SECOND / 10, wait);
+        // 其他 key 不受影响
+        assertEquals(0, limiter.tryAcquire("b", now));
+        assertEquals(0, limiter.tryAcquire("a", now + wait));
+        assertTrue(limiter.tryAcquire("a", now + wait) > 0);
+    }
+
+    @Test
+    public void evictIdleKeys() {
+        RateLimiter limiter = limiter(1, 0, "ip", 10);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire("k" + i, now);
+        }
+        assertEquals(10, limiter.size());
+        // 1 秒后都已恢复满额, 新 key 进来时全部淘汰
+        assertEquals(0, limiter.tryAcquire("new", now + SECOND));
+        assertEquals(1, limiter.size());
+        // 都在限流中时也不会超过上限
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire("x" + i, now + SECOND);
+        }
+        assertTrue(limiter.size() <= 10);
+    }
+
+    @Test
+    public void key() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        request.headers().set("X-Api-Key", "k1");
+        assertEquals("k1", limiter(1, 0, "header:X-Api-Key", 10).key(request, "10.0.0.1"));
+        assertEquals("10.0.0.1", limiter(1, 0, "header:X-Other", 10).key(request, "10.0.0.1"));
+        assertEquals("10.0.0.1", limiter(1, 0, "ip", 10).key(request, "10.0.0.1"));
+        assertEquals(limiter(1, 0, "route", 10).key(request, "10.0.0.1"),
+                limiter(1, 0, "route", 10).key(request, "10.0.0.2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidKey() {
+        limiter(1, 0, "cookie", 10);
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.cache.ResponseCache;
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import com.github.javahello.proxy.metrics.CacheMetrics;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+    private final ProxyConf.CachePolicy policy = new ProxyConf.CachePolicy();
+
+    private static FullHttpRequest request(String uri, String... headers) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, "example.com");
+        for (int i = 0; i < headers.length; i += 2) {
+            request.headers().set(headers[i], headers[i + 1]);
+        }
+        return request;
+    }
+
+    private static FullHttpResponse response(HttpResponseStatus status, String body, String... headers) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        for (int i = 0; i < headers.length; i += 2) {
+            response.headers().add(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    /**
+     * 查缓存, 返回响应的 body 和 X-Cache, 未命中返回 null
+     */
+    private static String get(ResponseCache cache, FullHttpRequest request) {
+        FullHttpResponse hit = cache.get(cache.key(ResponseCache.primaryKey(request), request.headers()), request);
+        if (hit == null) {
+            return null;
+        }
+        String result = hit.headers().get("x-cache") + " " + hit.content().toString(CharsetUtil.UTF_8);
+        hit.release();
+        return result;
+    }
+
+    /**
+     * 模拟一次向后端的获取, 返回写给客户端的响应
+     */
+    private String fetch(ResponseCache cache, FullHttpRequest request, FullHttpResponse upstream) {
+        ResponseCache.Fetch fetch = cache.fetch(ResponseCache.primaryKey(request), null, request, policy);
+        FullHttpResponse response = fetch.onResponse(upstream);
+        fetch.finish();
+        String result = response.headers().get("x-cache") + " " + response.content().toString(CharsetUtil.UTF_8);
+        response.release();
+        return result;
+    }
+
+    @Test
+    public void varyKeepsVariantsApart() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, new ProxyMetrics().cache());
+        FullHttpRequest en = request("/page", "Accept-Language", "en");
+        FullHttpRequest zh = request("/page", "Accept-Language", "zh");
+        assertNull(get(cache, en));
+        assertEquals("MISS hello", fetch(cache, en,
+                response(HttpResponseStatus.OK, "hello", "Cache-Control", "max-age=60", "Vary", "Accept-Language")));
+        assertEquals("HIT hello", get(cache, en));
+        // 同一个 uri 的其它语言不能命中
+        assertNull(get(cache, zh));
+        assertEquals("MISS 你好", fetch(cache, zh,
+                response(HttpResponseStatus.OK, "你好", "Cache-Control", "max-age=60", "Vary", "Accept-Language")));
+        assertEquals("HIT 你好", get(cache, zh));
+        assertEquals("HIT hello", get(cache, en));
+        // Accept-Encoding 总是参与 key, 后端压缩过的响应不能给不接受的客户端
+        assertNull(get(cache, request("/page", "Accept-Language", "en", "Accept-Encoding", "gzip")));
+        assertEquals(1, cache.varyIndexSize());
+
+        // Vary: * 不缓存
+        FullHttpRequest star = request("/star");
+        fetch(cache, star, response(HttpResponseStatus.OK, "x", "Cache-Control", "max-age=60", "Vary", "*"));
+        assertNull(get(cache, star));
+    }
+
+    @Test
+    public void notModifiedRefreshesStoredEntry() {
+        CacheMetrics metrics = new ProxyMetrics().cache();
+        ResponseCache cache = new ResponseCache(1024 * 1024, metrics);
+        FullHttpRequest request = request("/etag");
+        // max-age=0, 每次都要重新验证
+        fetch(cache, request, response(HttpResponseStatus.OK, "v1", "Cache-Control", "max-age=0", "ETag", "\"v1\""));
+        assertNull(get(cache, request));
+
+        FullHttpRequest conditional = request("/etag");
+        ResponseCache.Fetch fetch = cache.fetch(ResponseCache.primaryKey(conditional), null, conditional, policy);
+        // 转成条件请求发给后端
+        assertEquals("\"v1\"", conditional.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+        FullHttpResponse notModified = response(HttpResponseStatus.NOT_MODIFIED, "", "Cache-Control", "max-age=60");
+        FullHttpResponse response = fetch.onResponse(notModified);
+        fetch.finish();
+        assertEquals(200, response.status().code());
+        assertEquals("REVALIDATED", response.headers().get("x-cache"));
+        assertEquals("v1", response.content().toString(CharsetUtil.UTF_8));
+        assertEquals("max-age=60", response.headers().get(HttpHeaderNames.CACHE_CONTROL));
+        response.release();
+        assertEquals(0, notModified.refCnt());
+
+        // 304 带来的新鲜期写回了缓存
+        assertEquals("HIT v1", get(cache, request));
+        assertEquals(1, metrics.getRevalidated());
+
+        // 客户端自己的条件请求原样转发, 不改写
+        FullHttpRequest own = request("/etag", "If-None-Match", "\"old\"");
+        ResponseCache.Fetch passThrough = cache.fetch(ResponseCache.primaryKey(own), null, own, policy);
+        assertEquals("\"old\"", own.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+        passThrough.finish();
+    }
+
+    @Test
+    public void noCacheAlwaysRevalidates() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, new ProxyMetrics().cache());
+        for (String cacheControl : new String[]{"no-cache, max-age=60", "max-age=60, no-cache", "s-maxage=60, no-cache"}) {
+            String uri = "/" + cacheControl.replace(" ", "");
+            FullHttpRequest request = request(uri);
+            fetch(cache, request, response(HttpResponseStatus.OK, "x", "Cache-Control", cacheControl, "ETag", "\"1\""));
+            assertNull(cacheControl, get(cache, request));
+            // 下一次获取会带上校验信息
+            FullHttpRequest next = request(uri);
+            cache.fetch(ResponseCache.primaryKey(next), null, next, policy).finish();
+            assertEquals(cacheControl, "\"1\"", next.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+        }
+        // 没有校验信息的 no-cache 响应不存
+        long stores = cache.getMetrics().getStores();
+        fetch(cache, request("/plain"), response(HttpResponseStatus.OK, "x", "Cache-Control", "no-cache, max-age=60"));
+        assertEquals(stores, cache.getMetrics().getStores());
+    }
+
+    @Test
+    public void evictsUnderByteBudget() {
+        long maxBytes = 64 * 1024;
+        CacheMetrics metrics = new ProxyMetrics().cache();
+        ResponseCache cache = new ResponseCache(maxBytes, metrics);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append('x');
+        }
+        for (int i = 0; i < 1000; i++) {
+            fetch(cache, request("/item?id=" + i),
+                    response(HttpResponseStatus.OK, body.toString(), "Cache-Control", "max-age=60"));
+        }
+        assertEquals(1000, metrics.getStores());
+        assertTrue(metrics.getEvictions() > 900);
+        assertTrue(cache.size() <= maxBytes);
+        assertEquals(cache.size(), metrics.getBytes());
+        // 被淘汰的 uri 不再占用 Vary 索引
+        assertEquals(1000 - metrics.getEvictions(), cache.varyIndexSize());
+        // 最近写入的还在
+        assertEquals("HIT " + body, get(cache, request("/item?id=999")));
+        assertNull(get(cache, request("/item?id=0")));
+    }
+
+    @Test
+    public void concurrentMissesFetchOnce() throws Exception {
+        EventLoopGroup backendGroup = new NioEventLoopGroup(1);
+        StubBackend origin = new StubBackend(backendGroup, (ctx, request) -> {
+            FullHttpResponse response = response(HttpResponseStatus.OK, "fresh " + request.uri(), "Cache-Control", "max-age=60");
+            ctx.executor().schedule(() -> ctx.writeAndFlush(response), 300, TimeUnit.MILLISECONDS);
+        });
+        int listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("origin", origin.port());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (ProxyHarness proxy = new ProxyHarness("/e2e/cache.yml", variables)) {
+            List<Future<BlockingClient.Response>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    try (BlockingClient client = new BlockingClient(listen)) {
+                        return client.get("/cached/a");
+                    }
+                }));
+            }
+            List<String> xCache = new ArrayList<>();
+            for (Future<BlockingClient.Response> future : futures) {
+                BlockingClient.Response response = future.get(5, TimeUnit.SECONDS);
+                assertEquals("fresh /cached/a", response.body());
+                xCache.add(response.header("x-cache"));
+            }
+            // 8 个并发未命中只有一个发到后端, 其它等它写入缓存后命中
+            assertEquals(1, origin.requests());
+            assertEquals(1, xCache.stream().filter("MISS"::equals).count());
+            assertEquals(7, xCache.stream().filter("HIT"::equals).count());
+
+            String text = proxy.getProxyContext().getMetrics().scrape();
+            assertTrue(text.contains("proxy_cache_requests_total{result=\"hit\"} 7\n"));
+            assertTrue(text.contains("proxy_cache_coalesced_total{} 7\n"));
+            assertTrue(text.contains("proxy_cache_stores_total{} 1\n"));
+        } finally {
+            executor.shutdownNow();
+            origin.close();
+            backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.limit.RetryBudget;
+import io.netty.handler.codec.http.HttpMethod;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RetryBudgetTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static RetryBudget budget(double ratio, int minPerSecond) {
+        ProxyConf.Retry conf = new ProxyConf.Retry();
+        conf.setBudget(ratio);
+        conf.setMinPerSecond(minPerSecond);
+        return RetryBudget.create(conf);
+    }
+
+    @Test
+    public void retriesAreAFractionOfRequests() {
+        RetryBudget budget = budget(0.5, 0);
+        long now = 1_000 * SECOND;
+        assertFalse(budget.tryRetry(now));
+        for (int i = 0; i < 4; i++) {
+            budget.onRequest();
+        }
+        assertTrue(budget.tryRetry(now));
+        assertTrue(budget.tryRetry(now));
+        assertFalse(budget.tryRetry(now));
+    }
+
+    @Test
+    public void savedBudgetIsCapped() {
+        RetryBudget budget = budget(0.2, 0);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 100_000; i++) {
+            budget.onRequest();
+        }
+        // 最多积累 1000 个请求的份额
+        int retries = 0;
+        while (budget.tryRetry(now)) {
+            retries++;
+        }
+        assertEquals(200, retries);
+    }
+
+    @Test
+    public void minPerSecondWithoutTraffic() {
+        RetryBudget budget = budget(0.2, 2);
+        long now = 1_000 * SECOND;
+        assertTrue(budget.tryRetry(now));
+        assertTrue(budget.tryRetry(now));
+        assertFalse(budget.tryRetry(now));
+        assertTrue(budget.tryRetry(now + SECOND / 2));
+        assertFalse(budget.tryRetry(now + SECOND / 2));
+    }
+
+    @Test
+    public void disabledAndIdempotent() {
+        ProxyConf.Retry conf = new ProxyConf.Retry();
+        conf.setAttempts(1);
+        assertNull(RetryBudget.create(conf));
+        assertTrue(RetryBudget.isIdempotent(HttpMethod.GET));
+        assertTrue(RetryBudget.isIdempotent(HttpMethod.PUT));
+        assertFalse(RetryBudget.isIdempotent(HttpMethod.POST));
+        assertTrue(budget(0.2, 0).retryOn(503));
+        assertFalse(budget(0.2, 0).retryOn(500));
+    }
+
+    @Test
+    public void hedgeBudgetHasNoFloor() {
+        ProxyConf.Hedge conf = new ProxyConf.Hedge();
+        conf.setBudget(0.1);
+        RetryBudget budget = RetryBudget.create(conf);
+        long now = 1_000 * SECOND;
+        assertFalse(budget.tryRetry(now));
+        for (int i = 0; i < 10; i++) {
+            budget.onRequest();
+        }
+        assertTrue(budget.tryRetry(now));
+        assertFalse(budget.tryRetry(now));
+        assertFalse(budget.retryOn(503));
+        assertNull(RetryBudget.create((ProxyConf.Hedge) null));
+        assertTrue(RetryBudget.isSafe(HttpMethod.HEAD));
+        assertFalse(RetryBudget.isSafe(HttpMethod.PUT));
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.core.RouteTable;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RouteTableTest {
+
+    private RouteTable<String> table() {
+        RouteTable<String> table = new RouteTable<>();
+        table.add("/", "root");
+        table.add("/api", "api");
+        table.add("/api/v2", "api-v2");
+        table.add("= /api/v2/login", "login");
+        return table;
+    }
+
+    @Test
+    public void longestPrefix() {
+        RouteTable<String> table = table();
+        assertEquals("root", table.match("/"));
+        assertEquals("root", table.match("/index.html"));
+        assertEquals("api", table.match("/api"));
+        assertEquals("api", table.match("/api/users?id=1"));
+        assertEquals("api-v2", table.match("/api/v2/users"));
+        assertEquals("api-v2", table.match("/API/V2"));
+        assertEquals("root", table.match("/apix"));
+    }
+
+    @Test
+    public void exactMatch() {
+        RouteTable<String> table = table();
+        assertEquals("login", table.match("/api/v2/login"));
+        assertEquals("login", table.match("/api/v2/login?next=/"));
+        assertEquals("api-v2", table.match("/api/v2/login/"));
+        assertEquals("api-v2", table.match("/api/v2/login/x"));
+    }
+
+    @Test
+    public void noMatch() {
+        RouteTable<String> table = new RouteTable<>();
+        table.add("/api", "api");
+        assertNull(table.match("/"));
+        assertNull(table.match("/static/a.js"));
+        assertNull(table.match(null));
+    }
+
+    @Test
+    public void manyLocations() {
+        RouteTable<String> table = new RouteTable<>();
+        for (int i = 0; i < 1000; i++) {
+            table.add("/svc" + i + "/api", "svc" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("svc" + i, table.match("/svc" + i + "/api/x"));
+        }
+        assertNull(table.match("/svc1000/api"));
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import com.github.javahello.proxy.metrics.TlsMetrics;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.CharsetUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ServerTlsTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend backend;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        backend = new StubBackend(backendGroup, (ctx, request) ->
+                ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "ok")));
+    }
+
+    @AfterClass
+    public static void stop() {
+        backend.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void jdkResumesSession() throws Exception {
+        assertResumes("jdk");
+    }
+
+    @Test
+    public void opensslResumesSession() throws Exception {
+        assertResumes("openssl");
+    }
+
+    /**
+     * 同一个客户端连接两次, 第二次握手复用第一次的会话, 指标里记为复用
+     */
+    private static void assertResumes(String provider) throws Exception {
+        int listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("backend", backend.port());
+        variables.put("provider", provider);
+        variables.put("certificate", UpstreamTlsTest.resource("/tls/localhost.pem"));
+        variables.put("privateKey", UpstreamTlsTest.resource("/tls/localhost.key"));
+        try (ProxyHarness proxy = new ProxyHarness("/e2e/server-tls.yml", variables)) {
+            SSLSocketFactory factory = ((JdkSslContext) SslContextBuilder.forClient()
+                    .sslProvider(SslProvider.JDK)
+                    .trustManager(new File(UpstreamTlsTest.resource("/tls/ca.pem")))
+                    .build()).context().getSocketFactory();
+            assertFalse(get(factory, listen));
+            // 会话的创建时间精确到毫秒
+            Thread.sleep(20);
+            assertTrue(get(factory, listen));
+            TlsMetrics metrics = proxy.getProxyContext().getMetrics().tls(String.valueOf(listen));
+            assertTrue(TestHelper.await(() -> metrics.resumptionRatio() == 0.5, 5000));
+        }
+    }
+
+    /**
+     * 发一个请求, 读完响应才能收到 TLSv1.3 在握手之后发出的会话票据
+     *
+     * @return 客户端看到的会话是否复用
+     */
+    private static boolean get(SSLSocketFactory factory, int port) throws Exception {
+        long startMillis = System.currentTimeMillis();
+        try (SSLSocket socket = (SSLSocket) factory.createSocket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(CharsetUtil.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            byte[] buf = new byte[1024];
+            for (int n; (n = in.read(buf)) > 0; ) {
+                response.append(new String(buf, 0, n, CharsetUtil.UTF_8));
+            }
+            assertTrue(response.toString(), response.toString().startsWith("HTTP/1.1 200"));
+            return socket.getSession().getCreationTime() < startMillis;
+        }
+    }
+}
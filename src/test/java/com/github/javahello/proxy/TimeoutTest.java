@@ -0,0 +1,131 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimeoutTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend hole;
+    private static StubBackend closing;
+    private static StubBackend healthy;
+    private static ProxyHarness proxy;
+    private static int listen;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        // 收下请求但是从不响应
+        hole = new StubBackend(backendGroup, (ctx, request) -> {
+        });
+        // 收到请求后直接断开
+        closing = new StubBackend(backendGroup, (ctx, request) -> ctx.close());
+        healthy = new StubBackend(backendGroup, (ctx, request) ->
+                ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, "healthy " + request.method() + " " + request.uri())));
+        listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("hole", hole.port());
+        variables.put("closing", closing.port());
+        variables.put("healthy", healthy.port());
+        proxy = new ProxyHarness("/e2e/timeout.yml", variables);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        proxy.close();
+        hole.close();
+        closing.close();
+        healthy.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return 状态码和耗时 (毫秒)
+     */
+    private static long[] timed(String method, String uri, String... headers) throws Exception {
+        try (BlockingClient client = new BlockingClient(listen)) {
+            long start = System.nanoTime();
+            client.send(method, uri, headers);
+            BlockingClient.Response response = client.read();
+            return new long[]{response.status, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)};
+        }
+    }
+
+    private static void assertTimeout(long[] result, long min, long max) {
+        assertEquals(504, result[0]);
+        assertTrue("用了 " + result[1] + "ms", result[1] >= min && result[1] < max);
+    }
+
+    @Test
+    public void connectTimeout() throws Exception {
+        assertTimeout(timed("GET", "/connect"), 200, 2000);
+    }
+
+    @Test
+    public void firstByteTimeout() throws Exception {
+        int before = hole.requests();
+        assertTimeout(timed("GET", "/first-byte"), 200, 2000);
+        assertEquals(before + 1, hole.requests());
+    }
+
+    @Test
+    public void totalTimeout() throws Exception {
+        assertTimeout(timed("GET", "/total"), 300, 2000);
+    }
+
+    /**
+     * 轮询的第一个后端不响应, 幂等请求换另一个后端重试; 已经发出去的 POST 不重试.
+     * GET 和 POST 各用一个 upstream, 第一个请求都先到不响应的后端
+     */
+    @Test
+    public void retriesIdempotentRequestsOnly() throws Exception {
+        int holeBefore = hole.requests();
+        int healthyBefore = healthy.requests();
+        try (BlockingClient client = new BlockingClient(listen)) {
+            BlockingClient.Response response = client.get("/retry/get");
+            assertEquals(200, response.status);
+            assertEquals("healthy GET /retry/get", response.body());
+        }
+        assertEquals(holeBefore + 1, hole.requests());
+        assertEquals(healthyBefore + 1, healthy.requests());
+
+        try (BlockingClient client = new BlockingClient(listen)) {
+            client.write("POST /retry-post/post HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2\r\n\r\nhi");
+            assertEquals(504, client.read().status);
+        }
+        assertEquals(holeBefore + 2, hole.requests());
+        assertEquals(healthyBefore + 1, healthy.requests());
+    }
+
+    @Test
+    public void retriesWhenUpstreamCloses() throws Exception {
+        int healthyBefore = healthy.requests();
+        try (BlockingClient client = new BlockingClient(listen)) {
+            BlockingClient.Response response = client.get("/closed/get");
+            assertEquals(200, response.status);
+            assertEquals("healthy GET /closed/get", response.body());
+        }
+        assertEquals(healthyBefore + 1, healthy.requests());
+
+        int closingBefore = closing.requests();
+        try (BlockingClient client = new BlockingClient(listen)) {
+            client.write("POST /closed-post/post HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2\r\n\r\nhi");
+            assertEquals(502, client.read().status);
+        }
+        assertEquals(closingBefore + 1, closing.requests());
+        assertEquals(healthyBefore + 1, healthy.requests());
+    }
+}
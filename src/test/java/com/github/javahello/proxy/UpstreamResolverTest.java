@@ -0,0 +1,173 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.core.ProxyContext;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.*;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UpstreamResolverTest {
+    /**
+     * 域名 -> A 记录, 不存在的域名返回 NXDOMAIN
+     */
+    private final Map<String, List<String>> records = new ConcurrentHashMap<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private NioEventLoopGroup group;
+    private Channel dns;
+    private ProxyContext context;
+
+    @Before
+    public void startDns() throws Exception {
+        group = new NioEventLoopGroup(1);
+        dns = new Bootstrap().group(group).channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<NioDatagramChannel>() {
+                    @Override
+                    protected void initChannel(NioDatagramChannel ch) {
+                        ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder(),
+                                new SimpleChannelInboundHandler<DatagramDnsQuery>() {
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) {
+                                        ctx.writeAndFlush(answer(query));
+                                    }
+                                });
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    private DatagramDnsResponse answer(DatagramDnsQuery query) {
+        queries.incrementAndGet();
+        DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+        String name = question.name().endsWith(".") ? question.name().substring(0, question.name().length() - 1) : question.name();
+        List<String> ips = records.get(name);
+        DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+        response.setRecursionAvailable(true);
+        response.addRecord(DnsSection.QUESTION, question);
+        if (ips == null) {
+            response.setCode(DnsResponseCode.NXDOMAIN);
+            return response;
+        }
+        for (String ip : ips) {
+            byte[] address = new InetSocketAddress(ip, 0).getAddress().getAddress();
+            response.addRecord(DnsSection.ANSWER,
+                    new DefaultDnsRawRecord(question.name(), DnsRecordType.A, 1, Unpooled.wrappedBuffer(address)));
+        }
+        return response;
+    }
+
+    @After
+    public void stop() {
+        if (context != null) {
+            context.close();
+        }
+        dns.close();
+        group.shutdownGracefully();
+    }
+
+    private ProxyContext create(String server) throws Exception {
+        int port = ((InetSocketAddress) dns.localAddress()).getPort();
+        String yml = "dns:\n"
+                + "  nameServers:\n"
+                + "    - \"127.0.0.1:" + port + "\"\n"
+                + "  addressTypes: \"ipv4_only\"\n"
+                + "  maxTtl: 1\n"
+                + "  negativeTtl: 60\n"
+                + "  refreshInterval: 0\n"
+                + "upstream:\n"
+                + "  g:\n"
+                + "    server:\n"
+                + "      - \"" + server + "\"\n"
+                + "servers:\n"
+                + "  - listen: 18080\n"
+                + "    serverName: \"localhost\"\n"
+                + "    location:\n"
+                + "      /:\n"
+                + "        proxyPass: \"http://g/\"\n";
+        context = ProxyContext.create(YmlHelper.reSerializer(yml, ProxyConf.class));
+        return context;
+    }
+
+    private static UpstreamServer choose(ProxyContext context) {
+        return context.chooseUpstream("g", new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"), null);
+    }
+
+    private static Set<String> addresses(ProxyContext context) {
+        Set<String> addresses = new TreeSet<>();
+        for (UpstreamServer server : context.findUpstreamServer("g").get()) {
+            addresses.add(server.getAddress());
+        }
+        return addresses;
+    }
+
+    @Test
+    public void everyAddressIsAnEndpoint() throws Exception {
+        records.put("api.test", Arrays.asList("127.0.0.2", "127.0.0.3"));
+        ProxyContext context = create("api.test:9000");
+        assertEquals(new TreeSet<>(Arrays.asList("127.0.0.2", "127.0.0.3")), addresses(context));
+
+        UpstreamServer first = choose(context);
+        UpstreamServer second = choose(context);
+        assertNotEquals(first.getAddress(), second.getAddress());
+        // Host 头使用配置的域名, 连接时不再解析
+        assertEquals("api.test:9000", first.hostHeader().toString());
+        assertEquals("api.test/" + first.getAddress() + ":9000", first.toKey());
+        assertFalse(first.socketAddress().isUnresolved());
+        assertEquals(InetAddress.getByName(first.getAddress()), first.socketAddress().getAddress());
+    }
+
+    @Test
+    public void refreshAfterTtl() throws Exception {
+        records.put("api.test", Collections.singletonList("127.0.0.2"));
+        ProxyContext context = create("api.test:9000");
+        UpstreamServer old = choose(context);
+        AtomicInteger changed = new AtomicInteger();
+        context.setEndpointListener(changed::incrementAndGet);
+
+        records.put("api.test", Arrays.asList("127.0.0.2", "127.0.0.4"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (addresses(context).size() < 2 && System.currentTimeMillis() < deadline) {
+            choose(context);
+            Thread.sleep(50);
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("127.0.0.2", "127.0.0.4")), addresses(context));
+        assertEquals(1, changed.get());
+        // 没变的地址沿用原来的后端, 健康状态和连接池不受影响
+        assertTrue(context.findUpstreamServer("g").get().contains(old));
+    }
+
+    @Test
+    public void failureIsCachedAndHasNoEndpoint() throws Exception {
+        ProxyContext context = create("missing.test:9000");
+        assertNull(choose(context));
+        assertTrue(addresses(context).isEmpty());
+        int count = queries.get();
+        assertTrue(count > 0);
+        for (int i = 0; i < 5; i++) {
+            assertNull(choose(context));
+            Thread.sleep(50);
+        }
+        // negativeTtl 内不会重新查询
+        assertEquals(count, queries.get());
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.core.ProxyContext;
+import com.github.javahello.proxy.util.ProxyClientHelper;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class UpstreamServerTest {
+
+    @Test
+    public void httpsUrl() throws Exception {
+        UpstreamServer server = ProxyClientHelper.urlToUps(new URL("https://example.com/api"));
+        assertTrue(server.isSecure());
+        assertEquals(443, server.getPort());
+        assertEquals("https://example.com:443", server.toKey());
+        assertEquals("example.com", server.hostHeader().toString());
+
+        UpstreamServer http = ProxyClientHelper.urlToUps(new URL("http://example.com:8443/"));
+        assertFalse(http.isSecure());
+        assertEquals("example.com:8443", http.toKey());
+        assertEquals("example.com:8443", http.hostHeader().toString());
+    }
+
+    @Test
+    public void httpsUpstreamSharesTls() throws Exception {
+        String yml = "upstream:\n"
+                + "  g:\n"
+                + "    server:\n"
+                + "      - \"127.0.0.1\"\n"
+                + "      - \"127.0.0.2:8443\"\n"
+                + "servers:\n"
+                + "  - listen: 18080\n"
+                + "    location:\n"
+                + "      /:\n"
+                + "        proxyPass: \"https://g/\"\n";
+        ProxyContext context = ProxyContext.create(YmlHelper.reSerializer(yml, ProxyConf.class));
+        DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        UpstreamServer first = context.chooseUpstream("g", request, null);
+        UpstreamServer second = context.chooseUpstream("g", request, null);
+        assertNotSame(first, second);
+        assertNotNull(first.getTls());
+        assertSame(first.getTls(), second.getTls());
+        assertTrue(first.toKey().equals("https://127.0.0.1:443") || second.toKey().equals("https://127.0.0.1:443"));
+    }
+}
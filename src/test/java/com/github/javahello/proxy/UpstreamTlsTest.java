@@ -0,0 +1,140 @@
+package com.github.javahello.proxy;
+
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class UpstreamTlsTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend named;
+    private static StubBackend ip;
+    private static StubBackend wrong;
+    private static StubBackend jdk;
+    private static StubBackend openssl;
+    private static ProxyHarness proxy;
+    private static int listen;
+
+    static String resource(String name) throws Exception {
+        return new File(UpstreamTlsTest.class.getResource(name).toURI()).getPath();
+    }
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        // 后端固定用 JDK: 默认 provider 会先加载 OpenSsl, 代理就来不及打开 OpenSSL 客户端的会话缓存
+        SslContext sslContext = SslContextBuilder
+                .forServer(new File(resource("/tls/localhost.pem")), new File(resource("/tls/localhost.key")))
+                .sslProvider(SslProvider.JDK)
+                .build();
+        // 响应里带上收到的 SNI 和会话是否复用, 路径里带 slow 的 300ms 后才响应.
+        // 每个测试用自己的后端, 第一个连接都是完整握手
+        StubBackend.Handler handler = (ctx, request) -> {
+            SSLSession session = ctx.pipeline().get(SslHandler.class).engine().getSession();
+            String sni = ctx.channel().attr(StubBackend.SNI).get();
+            boolean resumed = session.getCreationTime() < ctx.channel().attr(StubBackend.ACCEPTED).get();
+            String body = "sni=" + (sni == null ? "" : sni) + " resumed=" + resumed;
+            long delay = request.uri().contains("slow") ? 300 : 0;
+            ctx.executor().schedule(() -> ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.OK, body)),
+                    delay, TimeUnit.MILLISECONDS);
+        };
+        named = new StubBackend(backendGroup, sslContext, handler);
+        ip = new StubBackend(backendGroup, sslContext, handler);
+        wrong = new StubBackend(backendGroup, sslContext, handler);
+        jdk = new StubBackend(backendGroup, sslContext, handler);
+        openssl = new StubBackend(backendGroup, sslContext, handler);
+        listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("ca", resource("/tls/ca.pem"));
+        variables.put("named", named.port());
+        variables.put("ip", ip.port());
+        variables.put("wrong", wrong.port());
+        variables.put("jdk", jdk.port());
+        variables.put("openssl", openssl.port());
+        proxy = new ProxyHarness("/e2e/upstream-tls.yml", variables);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        proxy.close();
+        named.close();
+        ip.close();
+        wrong.close();
+        jdk.close();
+        openssl.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static String get(String uri) throws Exception {
+        try (BlockingClient client = new BlockingClient(listen)) {
+            BlockingClient.Response response = client.get(uri);
+            assertEquals(uri, 200, response.status);
+            return response.body();
+        }
+    }
+
+    @Test
+    public void sendsServerName() throws Exception {
+        assertEquals("sni=backend.example.com resumed=false", get("/named/sni"));
+        // 后端地址是 IP 并且没有配置 serverName 时不发送 SNI, 证书按 IP 校验
+        assertEquals("sni= resumed=false", get("/ip/sni"));
+    }
+
+    @Test
+    public void hostnameMismatchFails() throws Exception {
+        try (BlockingClient client = new BlockingClient(listen)) {
+            assertEquals(502, client.get("/wrong/x").status);
+        }
+        assertEquals(0, wrong.requests());
+    }
+
+    @Test
+    public void jdkResumesSession() throws Exception {
+        assertResumes("/jdk", jdk);
+    }
+
+    @Test
+    public void opensslResumesSession() throws Exception {
+        assertResumes("/openssl", openssl);
+    }
+
+    /**
+     * 第一个连接完整握手, 两个并发请求时连接池新建的第二个连接复用第一个连接的会话
+     */
+    private static void assertResumes(String prefix, StubBackend backend) throws Exception {
+        int connectionsBefore = backend.connections();
+        assertEquals("sni=backend.example.com resumed=false", get(prefix + "/first"));
+        Thread.sleep(20);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> a = executor.submit(() -> get(prefix + "/slow/a"));
+            Future<String> b = executor.submit(() -> get(prefix + "/slow/b"));
+            Set<String> resumed = new HashSet<>();
+            for (String body : Arrays.asList(a.get(5, TimeUnit.SECONDS), b.get(5, TimeUnit.SECONDS))) {
+                resumed.add(body.substring(body.indexOf(" ") + 1));
+            }
+            assertEquals(connectionsBefore + 2, backend.connections());
+            // 一个在池里的旧连接上, 一个在复用了会话的新连接上
+            assertEquals(new HashSet<>(Arrays.asList("resumed=false", "resumed=true")), resumed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.conf.UpstreamServer;
+import com.github.javahello.proxy.e2e.StubBackend;
+import com.github.javahello.proxy.metrics.ProxyMetrics;
+import com.github.javahello.proxy.util.ProxyClientHelper;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PoolReloadTest {
+    private static ProxyTransport transport;
+    private static EventLoopGroup backendGroup;
+
+    @BeforeClass
+    public static void start() {
+        transport = ProxyTransport.create(new ProxyConf.Transport());
+        backendGroup = new NioEventLoopGroup(1);
+    }
+
+    @AfterClass
+    public static void stop() {
+        transport.close();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static ProxyConf conf(int maxConnections, String serverName) throws Exception {
+        String yml = "upstream:\n"
+                + "  g:\n"
+                + "    server:\n"
+                + "      - \"127.0.0.1:9443\"\n"
+                + "    pool:\n"
+                + "      maxConnections: " + maxConnections + "\n"
+                + "    tls:\n"
+                + "      serverName: \"" + serverName + "\"\n"
+                + "servers:\n"
+                + "  - listen: 18080\n"
+                + "    serverName: \"localhost\"\n"
+                + "    location:\n"
+                + "      /:\n"
+                + "        proxyPass: \"https://g/\"\n";
+        return YmlHelper.reSerializer(yml, ProxyConf.class);
+    }
+
+    private static UpstreamServer choose(ProxyContext context) {
+        return context.chooseUpstream("g", new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"), null);
+    }
+
+    @Test
+    public void poolRebuiltWhenConfigChanges() throws Exception {
+        ProxyContext first = ProxyContext.create(conf(2, "a.example.com"));
+        ProxyClient proxyClient = ProxyClient.create(new Bootstrap(), transport, first.getMetrics());
+        try {
+            UpstreamServer server = choose(first);
+            ConnectionPool pool = proxyClient.pool(server);
+
+            // 配置没变, 连接池和 SslContext 都沿用
+            ProxyContext second = ProxyContext.create(conf(2, "a.example.com"), first);
+            proxyClient.retainPools(second);
+            assertSame(server, choose(second));
+            assertSame(pool.tls, server.getTls());
+            assertSame(pool, proxyClient.pool(server));
+
+            // 连接池的上限变了
+            ProxyContext third = ProxyContext.create(conf(4, "a.example.com"), second);
+            proxyClient.retainPools(third);
+            ConnectionPool resized = proxyClient.pool(server);
+            assertNotSame(pool, resized);
+            assertEquals(4, resized.poolConf.getMaxConnections());
+            assertSame(pool.tls, resized.tls);
+
+            // SNI 变了
+            ProxyContext fourth = ProxyContext.create(conf(4, "b.example.com"), third);
+            proxyClient.retainPools(fourth);
+            assertNotSame(pool.tls, server.getTls());
+            ConnectionPool renamed = proxyClient.pool(server);
+            assertNotSame(resized, renamed);
+            assertSame(server.getTls(), renamed.tls);
+        } finally {
+            proxyClient.close();
+        }
+    }
+
+    @Test
+    public void retiredPoolServesPendingThenCloses() throws Exception {
+        ProxyClient proxyClient = ProxyClient.create(new Bootstrap(), transport, new ProxyMetrics());
+        try (StubBackend backend = new StubBackend(backendGroup, 0, 16, 0)) {
+            UpstreamServer server = ProxyClientHelper.urlToUps(new URL("http://127.0.0.1:" + backend.port()));
+            server.getPool().setMaxConnections(1);
+            ConnectionPool pool = proxyClient.pool(server);
+            EventLoop eventLoop = transport.getWorkerGroup().next();
+            Channel ch = pool.acquire(eventLoop).get(5, TimeUnit.SECONDS);
+            Future<Channel> queued = pool.acquire(eventLoop);
+
+            // 排队的请求仍然拿到连接, 用完之后不再放回池中
+            pool.retire();
+            ConnectionPool.release(ch, true);
+            assertSame(ch, queued.get(5, TimeUnit.SECONDS));
+            ConnectionPool.release(ch, true);
+            assertTrue(ch.closeFuture().await(5, TimeUnit.SECONDS));
+        } finally {
+            proxyClient.close();
+        }
+    }
+}
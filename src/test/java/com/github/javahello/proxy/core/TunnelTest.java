@@ -0,0 +1,189 @@
+package com.github.javahello.proxy.core;
+
+import com.github.javahello.proxy.TestHelper;
+import com.github.javahello.proxy.e2e.BlockingClient;
+import com.github.javahello.proxy.e2e.ProxyHarness;
+import com.github.javahello.proxy.e2e.StubBackend;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TunnelTest {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend ws;
+    private static Channel echo;
+    private static ProxyHarness proxy;
+    private static int plain;
+    private static int connect;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(1);
+        // /ws 返回 101 后变成回显, 先推一个 hello; 其他路径是普通的 HTTP 响应
+        ws = new StubBackend(backendGroup, (ctx, request) -> {
+            if (!request.uri().startsWith("/ws")) {
+                ctx.writeAndFlush(StubBackend.text(HttpResponseStatus.BAD_REQUEST, "not upgraded " + request.uri()));
+                return;
+            }
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SWITCHING_PROTOCOLS);
+            response.headers().set(HttpHeaderNames.UPGRADE, request.headers().get(HttpHeaderNames.UPGRADE));
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE);
+            // 没有这个头时 netty 的客户端解码器按旧版 WebSocket 握手等待 16 字节的 body
+            response.headers().set(HttpHeaderNames.SEC_WEBSOCKET_ACCEPT, "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+            ChannelPipeline cp = ctx.pipeline();
+            ctx.writeAndFlush(response).addListener(f -> {
+                cp.remove(HttpServerCodec.class);
+                cp.remove(HttpObjectAggregator.class);
+                cp.addLast(new EchoHandler());
+                cp.writeAndFlush(Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8));
+            });
+        });
+        echo = new ServerBootstrap()
+                .group(backendGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new EchoHandler())
+                .bind("127.0.0.1", 0).sync().channel();
+        plain = ProxyHarness.freePort();
+        connect = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("plain", plain);
+        variables.put("connect", connect);
+        variables.put("ws", ws.port());
+        variables.put("echo", ((InetSocketAddress) echo.localAddress()).getPort());
+        proxy = new ProxyHarness("/e2e/tunnel.yml", variables);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        proxy.close();
+        ws.close();
+        echo.close().sync();
+        backendGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    @ChannelHandler.Sharable
+    private static class EchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.writeAndFlush(msg);
+        }
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String connectRequest(String target) {
+        return "CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n";
+    }
+
+    @Test
+    public void isAllowed() {
+        List<String> patterns = Arrays.asList("*.example.com:443", "db.internal:5432");
+        assertTrue(Tunnel.isAllowed(patterns, "www.example.com", 443));
+        assertTrue(Tunnel.isAllowed(patterns, "a.b.EXAMPLE.com", 443));
+        // 通配符不包括域名本身, 也不能只比较后缀
+        assertFalse(Tunnel.isAllowed(patterns, "example.com", 443));
+        assertFalse(Tunnel.isAllowed(patterns, "evil-example.com", 443));
+        assertFalse(Tunnel.isAllowed(patterns, "www.example.com.evil.com", 443));
+        // 端口要一致
+        assertFalse(Tunnel.isAllowed(patterns, "www.example.com", 80));
+        assertTrue(Tunnel.isAllowed(patterns, "db.internal", 5432));
+        assertFalse(Tunnel.isAllowed(patterns, "x.db.internal", 5432));
+        assertFalse(Tunnel.isAllowed(Arrays.asList("db.internal", "db.internal:x"), "db.internal", 5432));
+    }
+
+    @Test
+    public void upgradeRelaysBothWays() throws Exception {
+        try (BlockingClient client = new BlockingClient(plain)) {
+            client.send("GET", "/ws", "Connection: Upgrade", "Upgrade: websocket");
+            BlockingClient.Response response = client.read(true);
+            assertEquals(101, response.status);
+            assertEquals("websocket", response.header("upgrade"));
+            // 后端主动推送的和回显的字节都原样到达
+            assertEquals("hello", text(client.readBytes(5)));
+            client.write("ping");
+            assertEquals("ping", text(client.readBytes(4)));
+            byte[] large = new byte[256 * 1024];
+            Arrays.fill(large, (byte) 'x');
+            client.write(large);
+            assertArrayEquals(large, client.readBytes(large.length));
+        }
+    }
+
+    @Test
+    public void rejectedUpgradeStaysHttp() throws Exception {
+        try (BlockingClient client = new BlockingClient(plain)) {
+            client.send("GET", "/nope", "Connection: Upgrade", "Upgrade: websocket");
+            BlockingClient.Response response = client.read();
+            assertEquals(400, response.status);
+            assertEquals("not upgraded /nope", response.body());
+            // 连接还是 HTTP
+            BlockingClient.Response next = client.get("/again");
+            assertEquals(400, next.status);
+            assertEquals("not upgraded /again", next.body());
+        }
+    }
+
+    @Test
+    public void connectWithoutAllowListIsNotAllowed() throws Exception {
+        try (BlockingClient client = new BlockingClient(plain)) {
+            client.write(connectRequest("127.0.0.1:" + ((InetSocketAddress) echo.localAddress()).getPort()));
+            assertEquals(405, client.read().status);
+        }
+    }
+
+    @Test
+    public void connectToDisallowedTargetIsForbidden() throws Exception {
+        try (BlockingClient client = new BlockingClient(connect)) {
+            client.write(connectRequest("evil-example.com:443"));
+            assertEquals(403, client.read().status);
+        }
+        try (BlockingClient client = new BlockingClient(connect)) {
+            client.write(connectRequest("127.0.0.1:1"));
+            assertEquals(403, client.read().status);
+        }
+    }
+
+    @Test
+    public void connectOverLimitIsRejected() throws Exception {
+        String target = "127.0.0.1:" + ((InetSocketAddress) echo.localAddress()).getPort();
+        try (BlockingClient first = new BlockingClient(connect)) {
+            first.write(connectRequest(target));
+            assertEquals(200, first.read(true).status);
+            first.write("raw bytes");
+            assertEquals("raw bytes", text(first.readBytes(9)));
+            // maxConnections: 1
+            try (BlockingClient second = new BlockingClient(connect)) {
+                second.write(connectRequest(target));
+                assertEquals(503, second.read().status);
+            }
+        }
+        // 第一个隧道关闭后可以再建立
+        assertTrue(TestHelper.await(() -> {
+            try (BlockingClient client = new BlockingClient(connect)) {
+                client.write(connectRequest(target));
+                return client.read(true).status == 200;
+            } catch (Exception e) {
+                return false;
+            }
+        }, 5000));
+    }
+}
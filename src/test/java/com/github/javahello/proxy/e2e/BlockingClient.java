@@ -0,0 +1,162 @@
+package com.github.javahello.proxy.e2e;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 测试用的阻塞 HTTP/1.1 客户端, 请求原样写出, 方便构造 pipelining、Upgrade 和 CONNECT.
+ * 读超时 5 秒
+ */
+public class BlockingClient implements AutoCloseable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public BlockingClient(int port) throws IOException {
+        socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    public void write(String raw) throws IOException {
+        write(raw.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * 发出一个没有 body 的请求
+     *
+     * @param headers "name: value" 形式
+     */
+    public void send(String method, String uri, String... headers) throws IOException {
+        StringBuilder sb = new StringBuilder(method).append(' ').append(uri).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        write(sb.append("\r\n").toString());
+    }
+
+    public Response get(String uri, String... headers) throws IOException {
+        send("GET", uri, headers);
+        return read();
+    }
+
+    public Response read() throws IOException {
+        return read(false);
+    }
+
+    /**
+     * @param head HEAD 请求的响应没有 body
+     */
+    public Response read(boolean head) throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new IOException("连接已关闭");
+        }
+        String[] parts = statusLine.split(" ", 3);
+        Response response = new Response();
+        response.status = Integer.parseInt(parts[1]);
+        response.reason = parts.length > 2 ? parts[2] : "";
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int i = line.indexOf(':');
+            response.headers.merge(line.substring(0, i).trim().toLowerCase(Locale.ROOT), line.substring(i + 1).trim(),
+                    (a, b) -> a + ", " + b);
+        }
+        if (head || response.status / 100 == 1 || response.status == 204 || response.status == 304) {
+            return response;
+        }
+        String length = response.header("content-length");
+        if ("chunked".equalsIgnoreCase(response.header("transfer-encoding"))) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine().trim(), 16)) > 0) {
+                body.write(readBytes(size));
+                readLine();
+            }
+            while (!readLine().isEmpty()) {
+                // trailer
+            }
+            response.body = body.toByteArray();
+        } else if (length != null) {
+            response.body = readBytes(Integer.parseInt(length));
+        } else {
+            response.body = in.readAllBytes();
+        }
+        return response;
+    }
+
+    public byte[] readBytes(int n) throws IOException {
+        byte[] bytes = in.readNBytes(n);
+        if (bytes.length < n) {
+            throw new IOException("连接已关闭, 只读到 " + bytes.length + " 字节");
+        }
+        return bytes;
+    }
+
+    /**
+     * 等待对方关闭连接, 期间不应该再收到数据
+     *
+     * @return 超时之前连接是否被关闭
+     */
+    public boolean awaitClose() throws IOException {
+        try {
+            return in.read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // 连接被重置
+            return true;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static class Response {
+        public int status;
+        public String reason;
+        /**
+         * 名字是小写的, 重复的头用 ", " 连接
+         */
+        public final Map<String, String> headers = new LinkedHashMap<>();
+        public byte[] body = new byte[0];
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String body() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
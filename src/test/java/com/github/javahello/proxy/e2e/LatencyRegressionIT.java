@@ -0,0 +1,116 @@
+package com.github.javahello.proxy.e2e;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+import com.github.javahello.proxy.TestHelper;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 端到端延迟回归, 本机回环上启动代理和后端, 按 e2e/scenarios.yml 的速率压测并检查延迟预算.
+ * <p>
+ * 由 failsafe 在 mvn verify 时运行
+ */
+public class LatencyRegressionIT {
+    private static EventLoopGroup backendGroup;
+    private static StubBackend fast;
+    private static StubBackend large;
+    private static StubBackend slow;
+    private static StubBackend flaky;
+    private static ProxyHarness proxy;
+    private static LoadGenerator loadGenerator;
+    private static Map<String, Scenario> scenarios;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        backendGroup = new NioEventLoopGroup(2);
+        fast = new StubBackend(backendGroup, 0, 512, 0);
+        large = new StubBackend(backendGroup, 0, 1024 * 1024, 0);
+        slow = new StubBackend(backendGroup, 50, 512, 0);
+        flaky = new StubBackend(backendGroup, 0, 512, 0.05);
+        int listen = ProxyHarness.freePort();
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("listen", listen);
+        variables.put("fast", fast.port());
+        variables.put("large", large.port());
+        variables.put("slow", slow.port());
+        variables.put("flaky", flaky.port());
+        proxy = new ProxyHarness("/e2e/proxy.yml", variables);
+        loadGenerator = new LoadGenerator("127.0.0.1", listen);
+
+        ObjectMapper mapper = new YAMLMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        scenarios = mapper.readValue(TestHelper.readClasspathFile("/e2e/scenarios.yml"),
+                new TypeReference<Map<String, Scenario>>() {
+                });
+
+        // 预热, 结果不计
+        Scenario warmup = new Scenario();
+        warmup.path = "/fast";
+        warmup.rate = 500;
+        warmup.durationSeconds = 2;
+        loadGenerator.run(warmup);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (loadGenerator != null) {
+            loadGenerator.close();
+        }
+        if (proxy != null) {
+            proxy.close();
+        }
+        for (StubBackend backend : new StubBackend[]{fast, large, slow, flaky}) {
+            if (backend != null) {
+                backend.close();
+            }
+        }
+        if (backendGroup != null) {
+            backendGroup.shutdownGracefully();
+        }
+    }
+
+    private static void runScenario(String name) throws InterruptedException {
+        Scenario scenario = scenarios.get(name);
+        LoadGenerator.Result result = loadGenerator.run(scenario);
+        System.out.println("[e2e] " + name + ": " + result);
+        assertTrue(name + " 错误率超出预算: " + result, result.errorRate() <= scenario.maxErrorRate);
+        assertTrue(name + " p50 超出预算: " + result, result.percentileMillis(0.5) <= scenario.p50Millis);
+        assertTrue(name + " p99 超出预算: " + result, result.percentileMillis(0.99) <= scenario.p99Millis);
+        assertTrue(name + " p999 超出预算: " + result, result.percentileMillis(0.999) <= scenario.p999Millis);
+    }
+
+    @Test
+    public void keepAlive() throws InterruptedException {
+        runScenario("keepAlive");
+    }
+
+    @Test
+    public void pipelining() throws InterruptedException {
+        runScenario("pipelining");
+    }
+
+    @Test
+    public void largeBody() throws InterruptedException {
+        runScenario("largeBody");
+    }
+
+    @Test
+    public void slowUpstream() throws InterruptedException {
+        runScenario("slowUpstream");
+    }
+
+    @Test
+    public void flakyUpstream() throws InterruptedException {
+        runScenario("flakyUpstream");
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.javahello.proxy.e2e;
+
+import com.github.javahello.proxy.metrics.Histogram;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 开环压测: 请求按固定速率计划发出, 延迟从计划发出的时间算起.
+ * <p>
+ * 连接都忙时请求在本地排队, 排队时间也算进延迟, 这样后端变慢不会让压测跟着降速, 避免 coordinated omission.
+ * 所有连接和状态都在同一个 EventLoop 上.
+ */
+public class LoadGenerator implements AutoCloseable {
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private final EventLoop eventLoop = group.next();
+    private final String host;
+    private final int port;
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public Result run(Scenario scenario) throws InterruptedException {
+        Run run = new Run(scenario);
+        run.connect();
+        long interval = TimeUnit.SECONDS.toNanos(1) / scenario.rate;
+        long start = System.nanoTime();
+        for (int i = 0; i < run.total; i++) {
+            long intended = start + i * interval;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            eventLoop.execute(() -> run.dispatch(intended));
+        }
+        if (!run.finished.await(30, TimeUnit.SECONDS)) {
+            eventLoop.submit(run::timeout).syncUninterruptibly();
+        }
+        eventLoop.submit(run::close).syncUninterruptibly();
+        return run.result;
+    }
+
+    @Override
+    public void close() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    public static class Result {
+        final Histogram latency = new Histogram();
+        long completed;
+        long errors;
+        long total;
+
+        public double percentileMillis(double quantile) {
+            return latency.valueAt(quantile) / 1000.0;
+        }
+
+        public double errorRate() {
+            return total == 0 ? 0 : (double) errors / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                    total, errors, percentileMillis(0.5), percentileMillis(0.99),
+                    percentileMillis(0.999), percentileMillis(1.0));
+        }
+    }
+
+    private class Run {
+        final Scenario scenario;
+        final int total;
+        final Result result = new Result();
+        final List<Connection> connections = new ArrayList<>();
+        /**
+         * 连接都满了, 还没发出去的请求的计划时间
+         */
+        final ArrayDeque<Long> backlog = new ArrayDeque<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        int next;
+
+        Run(Scenario scenario) {
+            this.scenario = scenario;
+            this.total = scenario.rate * scenario.durationSeconds;
+            result.total = total;
+        }
+
+        void connect() throws InterruptedException {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(eventLoop)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new HttpClientCodec());
+                            ch.pipeline().addLast(new HttpObjectAggregator(16 * 1024 * 1024));
+                        }
+                    });
+            for (int i = 0; i < scenario.connections; i++) {
+                Channel ch = bootstrap.connect(host, port).sync().channel();
+                Connection connection = new Connection(ch);
+                ch.pipeline().addLast(connection);
+                eventLoop.submit(() -> connections.add(connection)).sync();
+            }
+        }
+
+        void dispatch(long intended) {
+            for (int i = 0; i < connections.size(); i++) {
+                Connection connection = connections.get(next++ % connections.size());
+                if (connection.inflight.size() < scenario.pipelineDepth) {
+                    connection.send(intended);
+                    return;
+                }
+            }
+            backlog.addLast(intended);
+            checkFinished();
+        }
+
+        void onDone(Connection connection, long intended, boolean error) {
+            if (error) {
+                result.errors++;
+            } else {
+                result.completed++;
+                result.latency.recordNanos(System.nanoTime() - intended);
+            }
+            Long queued = backlog.pollFirst();
+            if (queued != null) {
+                if (connection.ch.isActive()) {
+                    connection.send(queued);
+                } else {
+                    dispatch(queued);
+                }
+            }
+            checkFinished();
+        }
+
+        void checkFinished() {
+            if (result.completed + result.errors == total) {
+                finished.countDown();
+            } else if (connections.isEmpty()) {
+                // 连接都断了, 剩下的都算失败
+                result.errors = total - result.completed;
+                finished.countDown();
+            }
+        }
+
+        void timeout() {
+            result.errors = total - result.completed;
+        }
+
+        void close() {
+            for (Connection connection : connections) {
+                connection.ch.close();
+            }
+        }
+
+        private class Connection extends SimpleChannelInboundHandler<FullHttpResponse> {
+            final Channel ch;
+            final ArrayDeque<Long> inflight = new ArrayDeque<>();
+
+            Connection(Channel ch) {
+                this.ch = ch;
+            }
+
+            void send(long intended) {
+                inflight.addLast(intended);
+                FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, scenario.path);
+                request.headers().set(HttpHeaderNames.HOST, host);
+                request.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                ch.writeAndFlush(request);
+            }
+
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                Long intended = inflight.pollFirst();
+                if (intended != null) {
+                    onDone(this, intended, msg.status().code() >= 500);
+                }
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                connections.remove(this);
+                Long intended;
+                while ((intended = inflight.pollFirst()) != null) {
+                    onDone(this, intended, true);
+                }
+                checkFinished();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                ctx.close();
+            }
+        }
+    }
+}
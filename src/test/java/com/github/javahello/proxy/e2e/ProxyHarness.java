@@ -0,0 +1,84 @@
+package com.github.javahello.proxy.e2e;
+
+import com.github.javahello.proxy.TestHelper;
+import com.github.javahello.proxy.conf.ProxyConf;
+import com.github.javahello.proxy.core.ProxyClient;
+import com.github.javahello.proxy.core.ProxyContext;
+import com.github.javahello.proxy.core.ProxyServer;
+import com.github.javahello.proxy.core.ProxyTransport;
+import com.github.javahello.proxy.util.YmlHelper;
+import io.netty.bootstrap.Bootstrap;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 和 App 一样启动代理, 配置文件里的 ${name} 替换成传入的值, 比如后端端口
+ */
+public class ProxyHarness implements AutoCloseable {
+    private final ProxyTransport transport;
+    private final ProxyClient proxyClient;
+    private final List<ProxyServer> servers = new ArrayList<>();
+    private final ProxyConf proxyConf;
+    private final ProxyContext proxyContext;
+
+    public ProxyHarness(String configPath, Map<String, Object> variables) throws Exception {
+        String config = TestHelper.readClasspathFile(configPath);
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            config = config.replace("${" + entry.getKey() + "}", String.valueOf(entry.getValue()));
+        }
+        proxyConf = YmlHelper.reSerializer(config, ProxyConf.class);
+        proxyContext = ProxyContext.create(proxyConf);
+        transport = ProxyTransport.create(proxyConf.getTransport());
+        proxyClient = ProxyClient.create(new Bootstrap(), transport, proxyContext.getMetrics());
+        for (ProxyConf.Server server : proxyConf.getServers()) {
+            servers.add(ProxyServer.create(server, proxyContext, proxyClient, transport));
+        }
+        for (ProxyConf.Server server : proxyConf.getServers()) {
+            awaitListening(server.getListen());
+        }
+    }
+
+    public ProxyContext getProxyContext() {
+        return proxyContext;
+    }
+
+    public ProxyClient getProxyClient() {
+        return proxyClient;
+    }
+
+    public ProxyTransport getTransport() {
+        return transport;
+    }
+
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("代理端口 " + port + " 没有启动");
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (ProxyServer server : servers) {
+            server.close();
+        }
+        proxyClient.close();
+        proxyContext.close();
+        transport.close();
+    }
+}
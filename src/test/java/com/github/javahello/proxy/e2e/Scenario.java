@@ -0,0 +1,22 @@
+package com.github.javahello.proxy.e2e;
+
+/**
+ * 一个压测场景和它的延迟预算, 从 e2e/scenarios.yml 读取
+ */
+public class Scenario {
+    public String path;
+    /**
+     * 每秒请求数, 按固定间隔发出, 不等上一个响应
+     */
+    public int rate = 200;
+    public int durationSeconds = 3;
+    public int connections = 8;
+    /**
+     * 每个连接上最多同时发出的请求数, 大于 1 时使用 pipelining
+     */
+    public int pipelineDepth = 1;
+    public long p50Millis = Long.MAX_VALUE;
+    public long p99Millis = Long.MAX_VALUE;
+    public long p999Millis = Long.MAX_VALUE;
+    public double maxErrorRate;
+}
@@ -0,0 +1,164 @@
+package com.github.javahello.proxy.e2e;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SniHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的后端, 固定延迟、响应大小和失败率, 失败时返回 503; 也可以传入 {@link Handler} 自定义响应
+ */
+public class StubBackend implements AutoCloseable {
+    /**
+     * 自定义响应, 在后端连接的 EventLoop 上调用, 返回后请求会被释放
+     */
+    public interface Handler {
+        void handle(ChannelHandlerContext ctx, FullHttpRequest request);
+    }
+
+    /**
+     * 接受连接的时间, 毫秒
+     */
+    public static final AttributeKey<Long> ACCEPTED = AttributeKey.valueOf("accepted");
+    /**
+     * https 后端收到的 SNI, 客户端没有发送时为 null
+     */
+    public static final AttributeKey<String> SNI = AttributeKey.valueOf("sni");
+
+    private final long latencyMillis;
+    private final ByteBuf body;
+    private final double failureRate;
+    private final Channel channel;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger closedConnections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public StubBackend(EventLoopGroup group, long latencyMillis, int bodySize, double failureRate) throws InterruptedException {
+        this(group, latencyMillis, bodySize, failureRate, null, null);
+    }
+
+    public StubBackend(EventLoopGroup group, Handler handler) throws InterruptedException {
+        this(group, 0, 0, 0, null, handler);
+    }
+
+    /**
+     * https 后端
+     */
+    public StubBackend(EventLoopGroup group, SslContext sslContext, Handler handler) throws InterruptedException {
+        this(group, 0, 0, 0, sslContext, handler);
+    }
+
+    private StubBackend(EventLoopGroup group, long latencyMillis, int bodySize, double failureRate,
+                        SslContext sslContext, Handler handler) throws InterruptedException {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        byte[] bytes = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        this.body = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(bytes));
+        this.channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        connections.incrementAndGet();
+                        ch.closeFuture().addListener(f -> closedConnections.incrementAndGet());
+                        ch.attr(ACCEPTED).set(System.currentTimeMillis());
+                        if (sslContext != null) {
+                            ch.pipeline().addLast(new SniHandler(hostname -> sslContext) {
+                                @Override
+                                protected void replaceHandler(ChannelHandlerContext ctx, String hostname,
+                                                              SslContext sslContext) throws Exception {
+                                    ctx.channel().attr(SNI).set(hostname);
+                                    super.replaceHandler(ctx, hostname, sslContext);
+                                }
+                            });
+                        }
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+                                requests.incrementAndGet();
+                                if (handler != null) {
+                                    handler.handle(ctx, msg);
+                                    return;
+                                }
+                                FullHttpResponse response = response();
+                                if (latencyMillis > 0) {
+                                    ctx.executor().schedule(() -> ctx.writeAndFlush(response), latencyMillis, TimeUnit.MILLISECONDS);
+                                } else {
+                                    ctx.writeAndFlush(response);
+                                }
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    private FullHttpResponse response() {
+        FullHttpResponse response;
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        } else {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body.duplicate());
+            // 不压缩, 测的是转发本身
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+        }
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    /**
+     * 带 Content-Length 的文本响应
+     */
+    public static FullHttpResponse text(HttpResponseStatus status, String text) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                Unpooled.copiedBuffer(text, CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    public int port() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * 接受过的连接数
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * 已经关闭的连接数
+     */
+    public int closedConnections() {
+        return closedConnections.get();
+    }
+
+    public int requests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+    }
+}